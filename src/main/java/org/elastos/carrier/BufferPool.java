@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The class representing a size-classed pool of reusable buffers.
+ *
+ * Buffer sizes are rounded up to powers of two between MIN_BUFFER_SIZE and
+ * MAX_BUFFER_SIZE, and each size class keeps a bounded number of free
+ * buffers. Requests larger than MAX_BUFFER_SIZE are served with buffers
+ * that are not pooled.
+ */
+public class BufferPool {
+	/**
+	 * The smallest pooled buffer size.
+	 */
+	public static final int MIN_BUFFER_SIZE = 256;
+
+	/**
+	 * The largest pooled buffer size.
+	 */
+	public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * Default number of free buffers kept in each size class.
+	 */
+	public static final int DEFAULT_BUFFERS_PER_CLASS = 64;
+
+	private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+	private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_BUFFER_SIZE) - MIN_SHIFT + 1;
+
+	private static volatile BufferPool defaultPool;
+
+	private static class SizeClass {
+		final ConcurrentLinkedQueue<PooledBuffer> free = new ConcurrentLinkedQueue<>();
+		final AtomicInteger count = new AtomicInteger(0);
+	}
+
+	private final boolean direct;
+	private final int buffersPerClass;
+	private final SizeClass[] sizeClasses;
+
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+
+	/**
+	 * Create a buffer pool.
+	 *
+	 * @param
+	 * 		direct				True to pool direct buffers, false for heap buffers
+	 * @param
+	 * 		buffersPerClass		The number of free buffers kept in each size class
+	 */
+	public BufferPool(boolean direct, int buffersPerClass) {
+		if (buffersPerClass < 0)
+			throw new IllegalArgumentException();
+
+		this.direct = direct;
+		this.buffersPerClass = buffersPerClass;
+
+		sizeClasses = new SizeClass[CLASSES];
+		for (int i = 0; i < CLASSES; i++)
+			sizeClasses[i] = new SizeClass();
+	}
+
+	/**
+	 * Get the default buffer pool shared in the SDK.
+	 *
+	 * @return
+	 * 		The default pool of direct buffers.
+	 */
+	public static BufferPool getDefault() {
+		BufferPool pool = defaultPool;
+		if (pool == null) {
+			synchronized (BufferPool.class) {
+				pool = defaultPool;
+				if (pool == null) {
+					pool = new BufferPool(true, DEFAULT_BUFFERS_PER_CLASS);
+					defaultPool = pool;
+				}
+			}
+		}
+		return pool;
+	}
+
+	private static int classOf(int size) {
+		if (size <= MIN_BUFFER_SIZE)
+			return 0;
+
+		return (32 - Integer.numberOfLeadingZeros(size - 1)) - MIN_SHIFT;
+	}
+
+	/**
+	 * Acquire a buffer with at least the given size.
+	 *
+	 * The buffer of returned object is cleared with its limit set to size.
+	 * The caller owns one reference and must release it.
+	 *
+	 * @param
+	 * 		size		The required buffer size
+	 *
+	 * @return
+	 * 		The pooled buffer.
+	 */
+	public PooledBuffer acquire(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException();
+
+		if (size > MAX_BUFFER_SIZE) {
+			misses.incrementAndGet();
+			return new PooledBuffer(null, -1, allocate(size)).reset(size);
+		}
+
+		int sizeClass = classOf(size);
+		PooledBuffer buffer = sizeClasses[sizeClass].free.poll();
+		if (buffer != null) {
+			sizeClasses[sizeClass].count.decrementAndGet();
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			buffer = new PooledBuffer(this, sizeClass, allocate(MIN_BUFFER_SIZE << sizeClass));
+		}
+
+		return buffer.reset(size);
+	}
+
+	/**
+	 * Acquire a buffer filled with a copy of the given data.
+	 *
+	 * @param
+	 * 		data		The data to copy
+	 *
+	 * @return
+	 * 		The pooled buffer, flipped for reading.
+	 */
+	public PooledBuffer copyOf(byte[] data) {
+		PooledBuffer buffer = acquire(data.length);
+		buffer.buffer().put(data).flip();
+		return buffer;
+	}
+
+	private ByteBuffer allocate(int capacity) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	void recycle(PooledBuffer buffer, int sizeClass) {
+		SizeClass slot = sizeClasses[sizeClass];
+		if (slot.count.incrementAndGet() > buffersPerClass) {
+			slot.count.decrementAndGet();
+			return;
+		}
+
+		slot.free.offer(buffer);
+	}
+
+	/**
+	 * Check if the pool holds direct buffers.
+	 *
+	 * @return
+	 * 		True for direct buffers, false for heap buffers.
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Get the number of acquires served from free buffers.
+	 *
+	 * @return
+	 * 		The pool hit count.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Get the number of acquires which allocated new buffers.
+	 *
+	 * @return
+	 * 		The pool miss count.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+}
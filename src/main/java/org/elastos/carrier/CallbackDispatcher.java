@@ -0,0 +1,462 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The class dispatching carrier callbacks off the native run loop.
+ *
+ * Callbacks are queued into a bounded set of lock-free lanes and run on the
+ * configured executor. All callbacks with the same key (friend id, group id)
+ * go through the same lane, so they are delivered in order, while callbacks
+ * for different keys may run in parallel. There is no ordering across keys:
+ * e.g. a friend event keyed by the friend id may run before an earlier
+ * callback keyed by the user itself, such as the initial friend list.
+ *
+ * Callbacks never run on the dispatching thread. If the executor refuses a
+ * lane, the overflow policy applies: Block waits until the executor takes
+ * the lane, DropOldest drops and Reject rejects the callbacks queued in it.
+ */
+public class CallbackDispatcher {
+	private static final String TAG = "CallbackDispatcher";
+
+	/**
+	 * Default number of queued callbacks.
+	 */
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private static final int LANES = 64;
+	private static final int LANE_BATCH = 32;
+	private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	/**
+	 * The policy to apply when the dispatcher queue is full.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Block the native carrier thread until there is room in the queue.
+		 */
+		Block,
+
+		/**
+		 * Drop the oldest queued callback to make room for the new one.
+		 * The oldest callback is the one queued earliest among the heads of
+		 * all lanes, so callbacks of any key may be dropped.
+		 */
+		DropOldest,
+
+		/**
+		 * Reject the new callback.
+		 */
+		Reject
+	}
+
+	private static final class Event {
+		private final Runnable callback;
+		private final long enqueueTime;
+
+		Event(Runnable callback) {
+			this.callback = callback;
+			this.enqueueTime = System.nanoTime();
+		}
+	}
+
+	private final class Lane implements Runnable {
+		private final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		// Returns false if the executor refused the lane and its queued
+		// callbacks were discarded.
+		boolean schedule() {
+			boolean accepted = true;
+
+			while (scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+					return accepted;
+				} catch (RuntimeException e) {
+					if (policy == OverflowPolicy.Block && !isExecutorShutdown()) {
+						scheduled.set(false);
+						LockSupport.parkNanos(BLOCK_PARK_NANOS);
+						continue;
+					}
+
+					Log.e(TAG, "Schedule callback lane error: " + e);
+					discard();
+					accepted = false;
+
+					// Callbacks queued meanwhile would be stranded otherwise.
+					if (queue.isEmpty())
+						break;
+				}
+			}
+			return accepted;
+		}
+
+		private void discard() {
+			int count = 0;
+			while (queue.poll() != null) {
+				pending.decrementAndGet();
+				count++;
+			}
+
+			if (policy == OverflowPolicy.DropOldest)
+				dropped.addAndGet(count);
+			else
+				rejected.addAndGet(count);
+
+			scheduled.set(false);
+		}
+
+		@Override
+		public void run() {
+			int count = 0;
+
+			for (;;) {
+				Event event = queue.poll();
+				if (event == null) {
+					scheduled.set(false);
+					if (queue.isEmpty() || !scheduled.compareAndSet(false, true))
+						return;
+					continue;
+				}
+
+				pending.decrementAndGet();
+				recordLag(System.nanoTime() - event.enqueueTime);
+
+				try {
+					event.callback.run();
+				} catch (Throwable e) {
+					Log.e(TAG, "Callback raised exception: " + e);
+				}
+
+				if (++count >= LANE_BATCH) {
+					// Yield the worker so that other lanes are not starved.
+					try {
+						executor.execute(this);
+						return;
+					} catch (RuntimeException e) {
+						// Keep draining here, the lane is still marked scheduled.
+						count = 0;
+					}
+				}
+			}
+		}
+	}
+
+	private final Executor executor;
+	private final boolean ownExecutor;
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final Lane[] lanes;
+
+	private final AtomicInteger pending = new AtomicInteger(0);
+	private final AtomicLong dispatched = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+	private final AtomicLong rejected = new AtomicLong(0);
+	private final AtomicLong totalLag = new AtomicLong(0);
+	private final AtomicLong maxLag = new AtomicLong(0);
+	private volatile long lastLag;
+	private volatile boolean didShutdown = false;
+
+	/**
+	 * Create a callback dispatcher with its own pool of worker threads.
+	 *
+	 * @param
+	 * 		threads		The number of worker threads
+	 * @param
+	 * 		capacity	The maximum number of queued callbacks
+	 * @param
+	 * 		policy		The policy to apply when the queue is full
+	 */
+	public CallbackDispatcher(int threads, int capacity, OverflowPolicy policy) {
+		this(Executors.newFixedThreadPool(threads, new WorkerThreadFactory()), true,
+				capacity, policy);
+	}
+
+	/**
+	 * Create a callback dispatcher running callbacks on the given executor.
+	 *
+	 * @param
+	 * 		executor	The executor to run callbacks on
+	 * @param
+	 * 		capacity	The maximum number of queued callbacks
+	 * @param
+	 * 		policy		The policy to apply when the queue is full
+	 */
+	public CallbackDispatcher(Executor executor, int capacity, OverflowPolicy policy) {
+		this(executor, false, capacity, policy);
+	}
+
+	private CallbackDispatcher(Executor executor, boolean ownExecutor, int capacity,
+							   OverflowPolicy policy) {
+		if (executor == null || capacity <= 0 || policy == null)
+			throw new IllegalArgumentException();
+
+		this.executor = executor;
+		this.ownExecutor = ownExecutor;
+		this.capacity = capacity;
+		this.policy = policy;
+
+		lanes = new Lane[LANES];
+		for (int i = 0; i < lanes.length; i++)
+			lanes[i] = new Lane();
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger index = new AtomicInteger(0);
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "CarrierDispatcher-" + index.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	private Lane laneOf(String key) {
+		int h = (key == null) ? 0 : key.hashCode();
+		h ^= (h >>> 16);
+		return lanes[h & (lanes.length - 1)];
+	}
+
+	private void recordLag(long lag) {
+		lastLag = lag;
+		totalLag.addAndGet(lag);
+		dispatched.incrementAndGet();
+
+		long max;
+		while (lag > (max = maxLag.get())) {
+			if (maxLag.compareAndSet(max, lag))
+				break;
+		}
+	}
+
+	private boolean dropOldest() {
+		Lane oldest = null;
+		long oldestTime = 0;
+
+		for (Lane lane : lanes) {
+			Event head = lane.queue.peek();
+			if (head != null && (oldest == null || head.enqueueTime - oldestTime < 0)) {
+				oldest = lane;
+				oldestTime = head.enqueueTime;
+			}
+		}
+
+		// The head may have been taken meanwhile, the caller retries then.
+		return oldest != null && oldest.queue.poll() != null;
+	}
+
+	private boolean isExecutorShutdown() {
+		return didShutdown || (executor instanceof ExecutorService &&
+				((ExecutorService)executor).isShutdown());
+	}
+
+	private boolean reserve() {
+		for (;;) {
+			int count = pending.get();
+			if (count < capacity) {
+				if (pending.compareAndSet(count, count + 1))
+					return true;
+				continue;
+			}
+
+			switch (policy) {
+				case Reject:
+					rejected.incrementAndGet();
+					return false;
+
+				case DropOldest:
+					// The slot of the dropped callback is handed over to the new one.
+					if (dropOldest()) {
+						dropped.incrementAndGet();
+						return true;
+					}
+					Thread.yield();
+					break;
+
+				case Block:
+				default:
+					if (isExecutorShutdown()) {
+						rejected.incrementAndGet();
+						return false;
+					}
+					LockSupport.parkNanos(BLOCK_PARK_NANOS);
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Queue a callback to be run after all the callbacks queued before with
+	 * the same key.
+	 *
+	 * @param
+	 * 		key			The ordering key, such as friend id or group id
+	 * @param
+	 * 		callback	The callback to run
+	 *
+	 * @return
+	 * 		True if the callback was queued, or false if it was rejected, or
+	 * 		discarded because the executor refused its lane.
+	 */
+	public boolean dispatch(String key, Runnable callback) {
+		if (callback == null)
+			throw new IllegalArgumentException();
+
+		if (didShutdown) {
+			rejected.incrementAndGet();
+			return false;
+		}
+
+		Lane lane = laneOf(key);
+		if (!reserve())
+			return false;
+
+		lane.queue.offer(new Event(callback));
+		return lane.schedule();
+	}
+
+	/**
+	 * Stop accepting new callbacks. The worker threads are stopped too if
+	 * they are owned by this dispatcher.
+	 */
+	public void shutdown() {
+		didShutdown = true;
+
+		if (ownExecutor)
+			((ExecutorService)executor).shutdown();
+	}
+
+	/**
+	 * Get the overflow policy of this dispatcher.
+	 *
+	 * @return
+	 * 		The overflow policy.
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Get the maximum number of queued callbacks.
+	 *
+	 * @return
+	 * 		The queue capacity.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the number of callbacks waiting to be run.
+	 *
+	 * @return
+	 * 		The current queue depth.
+	 */
+	public int getQueueDepth() {
+		return pending.get();
+	}
+
+	/**
+	 * Get the number of callbacks that have been run.
+	 *
+	 * @return
+	 * 		The number of dispatched callbacks.
+	 */
+	public long getDispatchedCount() {
+		return dispatched.get();
+	}
+
+	/**
+	 * Get the number of queued callbacks dropped by the DropOldest policy.
+	 *
+	 * @return
+	 * 		The number of dropped callbacks.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Get the number of callbacks rejected because the queue was full or
+	 * the dispatcher was shut down.
+	 *
+	 * @return
+	 * 		The number of rejected callbacks.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Get the time the last dispatched callback waited in the queue.
+	 *
+	 * @param
+	 * 		unit		The time unit of the result
+	 *
+	 * @return
+	 * 		The last dispatch lag.
+	 */
+	public long getLastDispatchLag(TimeUnit unit) {
+		return unit.convert(lastLag, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Get the average time callbacks waited in the queue.
+	 *
+	 * @param
+	 * 		unit		The time unit of the result
+	 *
+	 * @return
+	 * 		The average dispatch lag.
+	 */
+	public long getAverageDispatchLag(TimeUnit unit) {
+		long count = dispatched.get();
+		return count == 0 ? 0 : unit.convert(totalLag.get() / count, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Get the longest time a callback waited in the queue.
+	 *
+	 * @param
+	 * 		unit		The time unit of the result
+	 *
+	 * @return
+	 * 		The maximum dispatch lag.
+	 */
+	public long getMaxDispatchLag(TimeUnit unit) {
+		return unit.convert(maxLag.get(), TimeUnit.NANOSECONDS);
+	}
+}
@@ -31,6 +31,7 @@ import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
 
 import org.elastos.carrier.exceptions.CarrierException;
 
@@ -60,7 +61,15 @@ public class Carrier {
 	private CarrierHandler handler;
 	private long nativeCookie = 0;  // store the native (JNI-layered) carrier handler
 	private boolean didKill = false;
+	private volatile boolean killing = false;
 	private Hashtable<String, Group> groups = new Hashtable<>();
+	private CallbackDispatcher dispatcher;
+	private FriendRoster roster;
+	private ReceiptTable receipts = new ReceiptTable();
+	private long receiptTimeout;
+
+	// ordering key of the callbacks about the carrier node itself.
+	private static final String SELF_KEY = "";
 
 	static {
 		System.loadLibrary("carrierjni");
@@ -70,19 +79,22 @@ public class Carrier {
 		private List<FriendInfo> friends;
 
 		void onIdle(Carrier carrier) {
+			carrier.receipts.expire(System.currentTimeMillis());
+
+			// Idle work is bound to the native run loop, never dispatched.
 			carrier.handler.onIdle(carrier);
 		}
 
 		void onConnection(Carrier carrier, ConnectionStatus status) {
-			carrier.handler.onConnection(carrier, status);
+			carrier.dispatch(SELF_KEY, () -> carrier.handler.onConnection(carrier, status));
 		}
 
 		void onReady(Carrier carrier) {
-			carrier.handler.onReady(carrier);
+			carrier.dispatch(SELF_KEY, () -> carrier.handler.onReady(carrier));
 		}
 
 		void onSelfInfoChanged(Carrier carrier, UserInfo userInfo) {
-			carrier.handler.onSelfInfoChanged(carrier, userInfo);
+			carrier.dispatch(SELF_KEY, () -> carrier.handler.onSelfInfoChanged(carrier, userInfo));
 		}
 
 		boolean onFriendsIterated(Carrier carrier, FriendInfo info) {
@@ -92,76 +104,89 @@ public class Carrier {
 			if (info != null) {
 				friends.add(info);
 			} else {
-				carrier.handler.onFriends(carrier, friends);
+				List<FriendInfo> list = friends;
+				if (carrier.roster != null)
+					carrier.roster.load(list);
+				carrier.dispatch(SELF_KEY, () -> carrier.handler.onFriends(carrier, list));
 				friends = null;
 			}
 			return true;
 		}
 
 		void onFriendConnection(Carrier carrier, String friendid, ConnectionStatus status) {
-			carrier.handler.onFriendConnection(carrier, friendid, status);
+			if (carrier.roster != null)
+				carrier.roster.updateConnection(friendid, status);
+			carrier.dispatch(friendid, () -> carrier.handler.onFriendConnection(carrier, friendid, status));
 		}
 
 		void onFriendInfoChanged(Carrier carrier, String friendId, FriendInfo info) {
-			carrier.handler.onFriendInfoChanged(carrier, friendId, info);
+			if (carrier.roster != null)
+				carrier.roster.put(info);
+			carrier.dispatch(friendId, () -> carrier.handler.onFriendInfoChanged(carrier, friendId, info));
 		}
 
 		void onFriendPresence(Carrier carrier, String friendId, PresenceStatus presence) {
-			carrier.handler.onFriendPresence(carrier, friendId, presence);
+			if (carrier.roster != null)
+				carrier.roster.updatePresence(friendId, presence);
+			carrier.dispatch(friendId, () -> carrier.handler.onFriendPresence(carrier, friendId, presence));
 		}
 
 		void onFriendRequest(Carrier carrier, String userId, UserInfo info, String hello) {
-			carrier.handler.onFriendRequest(carrier, userId, info, hello);
+			carrier.dispatch(userId, () -> carrier.handler.onFriendRequest(carrier, userId, info, hello));
 		}
 
 		void onFriendAdded(Carrier carrier, FriendInfo friendInfo) {
-			carrier.handler.onFriendAdded(carrier, friendInfo);
+			if (carrier.roster != null)
+				carrier.roster.put(friendInfo);
+			carrier.dispatch(friendInfo.getUserId(), () -> carrier.handler.onFriendAdded(carrier, friendInfo));
 		}
 
 		void onFriendRemoved(Carrier carrier, String friendId) {
-			carrier.handler.onFriendRemoved(carrier, friendId);
+			if (carrier.roster != null)
+				carrier.roster.remove(friendId);
+			carrier.dispatch(friendId, () -> carrier.handler.onFriendRemoved(carrier, friendId));
 		}
 
 		void onFriendMessage(Carrier carrier, String from, byte[] message, Date timestamp, boolean isOffline) {
-			carrier.handler.onFriendMessage(carrier, from, message, timestamp, isOffline);
+			carrier.dispatch(from, () -> carrier.handler.onFriendMessage(carrier, from, message, timestamp, isOffline));
 		}
 
 		void onFriendInviteRequest(Carrier carrier, String from, String data) {
-			carrier.handler.onFriendInviteRequest(carrier, from, data);
+			carrier.dispatch(from, () -> carrier.handler.onFriendInviteRequest(carrier, from, data));
 		}
 
 		void onGroupInvite(Carrier carrier, String from, byte[] cookie) {
-			carrier.handler.onGroupInvite(carrier, from, cookie);
+			carrier.dispatch(from, () -> carrier.handler.onGroupInvite(carrier, from, cookie));
 		}
 
 		void onGroupConnected(Carrier carrier, String groupId) {
 			Group group = carrier.groups.get(groupId);
 			if (group != null)
-				carrier.handler.onGroupConnected(group);
+				carrier.dispatch(groupId, () -> carrier.handler.onGroupConnected(group));
 		}
 
 		void onGroupMessage(Carrier carrier, String groupId, String from, byte[] message) {
 			Group group = carrier.groups.get(groupId);
 			if (group != null)
-				carrier.handler.onGroupMessage(group, from, message);
+				carrier.dispatch(groupId, () -> carrier.handler.onGroupMessage(group, from, message));
 		}
 
 		void onGroupTitle(Carrier carrier, String groupId, String from, String title) {
 			Group group = carrier.groups.get(groupId);
 			if (group != null)
-				carrier.handler.onGroupTitle(group, from, title);
+				carrier.dispatch(groupId, () -> carrier.handler.onGroupTitle(group, from, title));
 		}
 
 		void onPeerName(Carrier carrier, String groupId, String peerId, String peerName) {
 			Group group = carrier.groups.get(groupId);
 			if (group != null)
-				carrier.handler.onPeerName(group, peerId, peerName);
+				carrier.dispatch(groupId, () -> carrier.handler.onPeerName(group, peerId, peerName));
 		}
 
 		void onPeerListChanged(Carrier carrier, String groupId) {
 			Group group = carrier.groups.get(groupId);
 			if (group != null)
-				carrier.handler.onPeerListChanged(group);
+				carrier.dispatch(groupId, () -> carrier.handler.onPeerListChanged(group));
 		}
 	}
 
@@ -178,6 +203,9 @@ public class Carrier {
 		private boolean udpEnabled;
 		private List<BootstrapNode> bootstrapNodes;
 		private List<ExpressNode> expressNodes;
+		private CallbackDispatcher dispatcher;
+		private boolean rosterEnabled;
+		private long receiptTimeout;
 
 		public static class BootstrapNode {
 			private String ipv4;
@@ -343,6 +371,88 @@ public class Carrier {
 		public List<ExpressNode> getExpressNodes() {
 			return expressNodes;
 		}
+
+		/**
+		 * Set the dispatcher to run the carrier handler callbacks on.
+		 * The dispatcher is optional to be set. Without dispatcher, callbacks
+		 * are invoked inline on the native carrier thread.
+		 *
+		 * The dispatcher is not shut down when the carrier node is killed, so
+		 * application can share one dispatcher between carrier instances.
+		 * Callbacks of the killed node still queued in the dispatcher are
+		 * discarded instead of being run.
+		 *
+		 * Callbacks are ordered per friend or group, and the callbacks about
+		 * the node itself, including onFriends, are ordered on their own. So
+		 * friend events such as onFriendAdded or onFriendConnection may be
+		 * delivered before the initial friend list.
+		 *
+		 * @param dispatcher The callback dispatcher to set
+		 *
+		 * @return The current Options object reference.
+		 */
+		public Options setCallbackDispatcher(CallbackDispatcher dispatcher) {
+			this.dispatcher = dispatcher;
+			return this;
+		}
+
+		/**
+		 * Get the callback dispatcher.
+		 *
+		 * @return The callback dispatcher, or null if callbacks run inline
+		 */
+		public CallbackDispatcher getCallbackDispatcher() {
+			return dispatcher;
+		}
+
+		/**
+		 * Set to keep an in-memory friend roster or not.
+		 * With the roster enabled, friend queries are served from memory
+		 * without calling into native layer.
+		 *
+		 * @param rosterEnabled flag to enable or disable friend roster.
+		 *
+		 * @return The current Options object reference.
+		 */
+		public Options setFriendRosterEnabled(boolean rosterEnabled) {
+			this.rosterEnabled = rosterEnabled;
+			return this;
+		}
+
+		/**
+		 * Get the friend roster enabled or not.
+		 *
+		 * @return	The value of enable/disable friend roster.
+		 */
+		public boolean getFriendRosterEnabled() {
+			return rosterEnabled;
+		}
+
+		/**
+		 * Set the default timeout of message receipts returned as future.
+		 * The value 0 means to wait for receipts without a timeout of its own,
+		 * the receipts not arrived in ten minutes are still given up then.
+		 *
+		 * @param receiptTimeout The receipt timeout in milliseconds
+		 *
+		 * @return The current Options object reference.
+		 */
+		public Options setReceiptTimeout(long receiptTimeout) {
+			if (receiptTimeout < 0)
+				throw new IllegalArgumentException();
+
+			this.receiptTimeout = receiptTimeout;
+			return this;
+		}
+
+		/**
+		 * Get the default timeout of message receipts.
+		 *
+		 * @return The receipt timeout in milliseconds
+		 */
+		public long getReceiptTimeout() {
+			return receiptTimeout;
+		}
 	}
 
 	// native jni methods.
@@ -384,8 +494,25 @@ public class Carrier {
 	private static native int get_error_code();
 	private static native String get_version();
 
-	private Carrier(CarrierHandler handler) {
+	private Carrier(CarrierHandler handler, Options options) {
 		this.handler = handler;
+		this.dispatcher = options.getCallbackDispatcher();
+		this.receiptTimeout = options.getReceiptTimeout();
+		if (options.getFriendRosterEnabled())
+			this.roster = new FriendRoster();
+	}
+
+	private void dispatch(String key, Runnable callback) {
+		if (dispatcher == null) {
+			callback.run();
+			return;
+		}
+
+		// Callbacks still queued when the node is killed are discarded.
+		dispatcher.dispatch(key, () -> {
+			if (!killing)
+				callback.run();
+		});
 	}
 
 	/**
@@ -473,7 +600,7 @@ public class Carrier {
 			throw new IllegalArgumentException();
 
 		Callbacks callbacks = new Callbacks();
-		Carrier tmp = new Carrier(handler);
+		Carrier tmp = new Carrier(handler, options);
 
 		if (!tmp.native_init(options, callbacks))
 			throw CarrierException.fromErrorCode(get_error_code());
@@ -523,6 +650,7 @@ public class Carrier {
 		if (!didKill) {
 
 			Log.i(TAG, "Killing Carrier node instance ...");
+			killing = true;
 			native_kill();
 			didKill = true;
 
@@ -535,10 +663,33 @@ public class Carrier {
 				carrierThread = null;
 			}
 
+			receipts.cancelAll();
+
 			Log.i(TAG, "Carrier instance killed");
 		}
 	}
 
+	/**
+	 * Get the dispatcher the carrier handler callbacks run on.
+	 *
+	 * @return
+	 * 		The callback dispatcher, or null if callbacks run inline on the
+	 * 		native carrier thread.
+	 */
+	public CallbackDispatcher getCallbackDispatcher() {
+		return dispatcher;
+	}
+
+	/**
+	 * Get the in-memory friend roster.
+	 *
+	 * @return
+	 * 		The friend roster, or null if the roster is not enabled in options.
+	 */
+	public FriendRoster getFriendRoster() {
+		return roster;
+	}
+
 	/**
 	 * Get node address associated with the carrier node instance.
 	 *
@@ -718,6 +869,9 @@ public class Carrier {
 	 * @throws CarrierException carrier exception.
 	 */
 	public List<FriendInfo> getFriends() throws CarrierException {
+		if (roster != null && roster.isLoaded())
+			return roster.getFriends();
+
 		List<FriendInfo> friends = new ArrayList<FriendInfo>();
 
 		boolean result = get_friends(new FriendsIterator() {
@@ -739,6 +893,41 @@ public class Carrier {
 		}
 		Log.d(TAG, "<<++++++++");
 
+		// The roster is only loaded from the carrier thread (onFriends), a
+		// snapshot taken here may be older than updates already applied.
+		return friends;
+	}
+
+	/**
+	 * Get the information of the given friends.
+	 *
+	 * @param
+	 * 		userIds		The user identifiers of friends
+	 *
+	 * @return
+	 * 		The list of friend information in the order of userIds. User
+	 * 		identifiers that are not friends are skipped.
+	 *
+	 * @throws IllegalArgumentException illegal exception.
+	 * @throws CarrierException carrier exception.
+	 */
+	public List<FriendInfo> getFriends(Collection<String> userIds) throws CarrierException {
+		if (userIds == null)
+			throw new IllegalArgumentException();
+
+		if (roster != null && roster.isLoaded())
+			return roster.getFriends(userIds);
+
+		List<FriendInfo> friends = new ArrayList<FriendInfo>(userIds.size());
+		for (String userId : userIds) {
+			if (userId == null || userId.length() == 0 || !is_friend(userId))
+				continue;
+
+			FriendInfo info = get_friend(userId);
+			if (info != null)
+				friends.add(info);
+		}
+
 		return friends;
 	}
 
@@ -758,7 +947,11 @@ public class Carrier {
 		if (userId == null || userId.length() == 0)
 			throw new IllegalArgumentException();
 
-		FriendInfo friendInfo = get_friend(userId);
+		FriendInfo friendInfo = (roster != null) ? roster.get(userId) : null;
+		if (friendInfo != null)
+			return friendInfo;
+
+		friendInfo = get_friend(userId);
 		if (friendInfo == null)
 			throw CarrierException.fromErrorCode(get_error_code());
 
@@ -788,6 +981,9 @@ public class Carrier {
 		if (!label_friend(userId, label))
 			throw CarrierException.fromErrorCode(get_error_code());
 
+		if (roster != null)
+			roster.updateLabel(userId, label);
+
 		Log.d(TAG, "Label friend " + userId + " as  " + label);
 	}
 
@@ -807,6 +1003,9 @@ public class Carrier {
 		if (userId == null || userId.length() == 0)
 			throw new IllegalArgumentException();
 
+		if (roster != null && roster.isLoaded())
+			return roster.contains(userId);
+
 		return is_friend(userId);
 	}
 
@@ -875,6 +1074,9 @@ public class Carrier {
 		if (!remove_friend(userId))
 			throw CarrierException.fromErrorCode(get_error_code());
 
+		if (roster != null)
+			roster.remove(userId);
+
 		Log.d(TAG, "Friend " + userId + " was removed");
 	}
 
@@ -938,6 +1140,56 @@ public class Carrier {
 		return (ret == 0);
 	}
 
+	/**
+	 * Send a message to a friend.
+	 *
+	 * The message is the remaining content of the buffer, and the buffer
+	 * position is advanced to its limit after the message is sent. Heap
+	 * buffers are sent through their backing array, direct buffers are
+	 * copied to a byte array first.
+	 *
+	 * The message length may not exceed ELA_MAX_APP_BULKMSG_LEN.
+	 *
+	 * @param
+	 * 		to 			The target id
+	 * @param
+	 * 		message		The buffer of message content defined by application
+	 *
+	 * @return
+	 *		Return boolean value whether this message sent as online message or
+	 *		offline message. The value of true means the message was sent as
+	 *		online message, otherwise as offline message.
+	 *
+	 * @throws IllegalArgumentException illegal exception.
+	 * @throws CarrierException  carrier exception.
+	 */
+	public boolean sendFriendMessage(String to, ByteBuffer message) throws CarrierException {
+		if (to == null || to.length() == 0 || message == null || !message.hasRemaining() ||
+				message.remaining() > ELA_MAX_APP_BULKMSG_LEN)
+			throw new IllegalArgumentException();
+
+		int len = message.remaining();
+		int ret;
+
+		if (message.hasArray()) {
+			int offset = message.arrayOffset() + message.position();
+			ret = send_message(to, offset == 0 && len == message.array().length ?
+					message.array() : Arrays.copyOfRange(message.array(), offset, offset + len));
+		} else {
+			byte[] data = new byte[len];
+			message.duplicate().get(data);
+			ret = send_message(to, data);
+		}
+
+		if (ret < 0)
+			throw CarrierException.fromErrorCode(get_error_code());
+
+		message.position(message.limit());
+
+		Log.d(TAG, "Send " + len + " bytes message to friend " + to);
+		return (ret == 0);
+	}
+
 	/**
 	 * Send a message to a friend.
 	 *
@@ -1001,6 +1253,92 @@ public class Carrier {
 		return ret;
 	}
 
+	/**
+	 * Send a message to a friend, and get the receipt as future.
+	 *
+	 * The receipt future times out with the default receipt timeout set in
+	 * options. The future is completed on the native carrier thread, application
+	 * should use the async variants of CompletableFuture for long-running work.
+	 *
+	 * @param
+	 * 		to 			The target id
+	 * @param
+	 * 		message		The message content defined by application
+	 *
+	 * @return
+	 *      The future to be completed with the message receipt state.
+	 *
+	 * @throws IllegalArgumentException illegal exception.
+	 * @throws CarrierException  carrier exception.
+	 */
+	public CompletableFuture<ReceiptState> sendFriendMessageAsync(String to, String message)
+			throws CarrierException {
+		if (to == null || to.length() == 0 ||
+				message == null || message.length() == 0 || message.length() >= ELA_MAX_APP_BULKMSG_LEN)
+			throw new IllegalArgumentException();
+
+		return sendFriendMessageAsync(to, message.getBytes(UTF8), receiptTimeout);
+	}
+
+	/**
+	 * Send a message to a friend, and get the receipt as future.
+	 *
+	 * The receipt future times out with the default receipt timeout set in
+	 * options. The future is completed on the native carrier thread, application
+	 * should use the async variants of CompletableFuture for long-running work.
+	 *
+	 * @param
+	 * 		to 			The target id
+	 * @param
+	 * 		message		The message content defined by application
+	 *
+	 * @return
+	 *      The future to be completed with the message receipt state.
+	 *
+	 * @throws IllegalArgumentException illegal exception.
+	 * @throws CarrierException  carrier exception.
+	 */
+	public CompletableFuture<ReceiptState> sendFriendMessageAsync(String to, byte[] message)
+			throws CarrierException {
+		return sendFriendMessageAsync(to, message, receiptTimeout);
+	}
+
+	/**
+	 * Send a message to a friend, and get the receipt as future.
+	 *
+	 * If no receipt arrives within the timeout, the future completes
+	 * exceptionally with TimeoutException. The future is completed on the
+	 * native carrier thread, application should use the async variants of
+	 * CompletableFuture for long-running work.
+	 *
+	 * @param
+	 * 		to 			The target id
+	 * @param
+	 * 		message		The message content defined by application
+	 * @param
+	 * 		timeout		The receipt timeout in milliseconds, or 0 to wait up to
+	 * 					ten minutes
+	 *
+	 * @return
+	 *      The future to be completed with the message receipt state.
+	 *
+	 * @throws IllegalArgumentException illegal exception.
+	 * @throws CarrierException  carrier exception.
+	 */
+	public CompletableFuture<ReceiptState> sendFriendMessageAsync(String to, byte[] message, long timeout)
+			throws CarrierException {
+		if (to == null || to.length() == 0 || message == null || message.length == 0 ||
+				timeout < 0)
+			throw new IllegalArgumentException();
+
+		long ret = send_message_with_receipt(to, message, receipts);
+		if (ret < 0)
+			throw CarrierException.fromErrorCode(get_error_code());
+
+		Log.d(TAG, "Send " + message.length + " bytes message with receipt future to friend " + to);
+		return receipts.register(ret, timeout);
+	}
+
 	/**
 	 * Send invite request to a friend.
 	 *
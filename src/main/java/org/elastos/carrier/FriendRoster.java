@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The class representing the in-memory index of the friend list.
+ *
+ * The roster is seeded from the friend list delivered by the onFriends
+ * callback and kept current by the carrier callbacks, so lookups never cross
+ * JNI. Until it is seeded, friend queries fall back to the native layer.
+ * Besides the carrier thread, Carrier.labelFriend() and removeFriend() write
+ * to it from application threads; every write replaces one entry at once,
+ * so a reader sees a friend either before or after an update.
+ *
+ * Each friend is stored as a compact immutable entry: the profile strings
+ * are kept in one shared array that is reused across status updates, and
+ * presence, connection and avatar flags are packed into a single byte.
+ * FriendInfo objects are built when a caller asks for them, and each one is
+ * a new copy owned by the caller.
+ */
+public class FriendRoster {
+	private static final int NAME = 0;
+	private static final int DESCRIPTION = 1;
+	private static final int GENDER = 2;
+	private static final int PHONE = 3;
+	private static final int EMAIL = 4;
+	private static final int REGION = 5;
+	private static final int LABEL = 6;
+	private static final int FIELDS = 7;
+
+	private static final int PRESENCE_MASK = 0x03;
+	private static final int CONNECTED = 0x04;
+	private static final int HAS_AVATAR = 0x08;
+
+	// Profile shared by all the friends without any profile information.
+	private static final String[] EMPTY_PROFILE = { "", "", "", "", "", "", "" };
+
+	private static final class Entry {
+		private final String userId;
+		private final String[] profile;
+		private final byte state;
+
+		Entry(String userId, String[] profile, int state) {
+			this.userId = userId;
+			this.profile = profile;
+			this.state = (byte)state;
+		}
+
+		Entry withState(int state) {
+			return state == this.state ? this : new Entry(userId, profile, state);
+		}
+
+		Entry withLabel(String label) {
+			String[] fields = profile.clone();
+			fields[LABEL] = label;
+			return new Entry(userId, shared(fields), state);
+		}
+
+		FriendInfo toFriendInfo() {
+			FriendInfo info = new FriendInfo();
+			info.setUserId(userId);
+
+			// Empty fields stay empty, as the native layer reports them.
+			if (profile[NAME] != null)
+				info.setName(profile[NAME]);
+			if (profile[DESCRIPTION] != null)
+				info.setDescription(profile[DESCRIPTION]);
+			if (profile[GENDER] != null)
+				info.setGender(profile[GENDER]);
+			if (profile[PHONE] != null)
+				info.setPhone(profile[PHONE]);
+			if (profile[EMAIL] != null)
+				info.setEmail(profile[EMAIL]);
+			if (profile[REGION] != null)
+				info.setRegion(profile[REGION]);
+			if (profile[LABEL] != null)
+				info.setLabel(profile[LABEL]);
+
+			info.setHasAvatar((state & HAS_AVATAR) != 0);
+			info.setPresence(PresenceStatus.valueOf(state & PRESENCE_MASK));
+			info.setConnectionStatus((state & CONNECTED) != 0 ?
+					ConnectionStatus.Connected : ConnectionStatus.Disconnected);
+			return info;
+		}
+	}
+
+	private static final class Snapshot extends AbstractList<FriendInfo> implements RandomAccess {
+		private final Entry[] entries;
+
+		Snapshot(Entry[] entries) {
+			this.entries = entries;
+		}
+
+		// FriendInfo is mutable, so every access builds a new copy.
+		@Override
+		public FriendInfo get(int index) {
+			return entries[index].toFriendInfo();
+		}
+
+		@Override
+		public int size() {
+			return entries.length;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private volatile boolean loaded = false;
+
+	FriendRoster() {}
+
+	// All the empty fields share one string.
+	private static String normalize(String value) {
+		return (value != null && value.isEmpty()) ? "" : value;
+	}
+
+	private static String[] shared(String[] fields) {
+		return Arrays.equals(fields, EMPTY_PROFILE) ? EMPTY_PROFILE : fields;
+	}
+
+	private static int state(PresenceStatus presence, ConnectionStatus connection, boolean hasAvatar) {
+		// Packed by ordinal, value() reports Busy as 0.
+		int state = (presence == null ? 0 : presence.ordinal()) & PRESENCE_MASK;
+		if (connection == ConnectionStatus.Connected)
+			state |= CONNECTED;
+		if (hasAvatar)
+			state |= HAS_AVATAR;
+		return state;
+	}
+
+	private static Entry compact(FriendInfo info) {
+		String[] fields = new String[FIELDS];
+		fields[NAME] = normalize(info.getName());
+		fields[DESCRIPTION] = normalize(info.getDescription());
+		fields[GENDER] = normalize(info.getGender());
+		fields[PHONE] = normalize(info.getPhone());
+		fields[EMAIL] = normalize(info.getEmail());
+		fields[REGION] = normalize(info.getRegion());
+		fields[LABEL] = normalize(info.getLabel());
+
+		return new Entry(info.getUserId(), shared(fields),
+				state(info.getPresence(), info.getConnectionStatus(), info.hasAvatar()));
+	}
+
+	void load(List<FriendInfo> friends) {
+		for (FriendInfo info : friends)
+			put(info);
+		loaded = true;
+	}
+
+	void put(FriendInfo info) {
+		if (info != null && info.getUserId() != null)
+			entries.put(info.getUserId(), compact(info));
+	}
+
+	void remove(String userId) {
+		entries.remove(userId);
+	}
+
+	void updateConnection(String userId, ConnectionStatus status) {
+		entries.computeIfPresent(userId, (id, entry) -> entry.withState(status == ConnectionStatus.Connected ?
+				(entry.state | CONNECTED) : (entry.state & ~CONNECTED)));
+	}
+
+	void updatePresence(String userId, PresenceStatus presence) {
+		entries.computeIfPresent(userId, (id, entry) ->
+				entry.withState((entry.state & ~PRESENCE_MASK) | (presence.ordinal() & PRESENCE_MASK)));
+	}
+
+	void updateLabel(String userId, String label) {
+		entries.computeIfPresent(userId, (id, entry) -> entry.withLabel(normalize(label)));
+	}
+
+	/**
+	 * Check if the roster has been seeded with the friend list.
+	 *
+	 * @return
+	 * 		True if the roster is seeded, otherwise false.
+	 */
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Get the number of friends.
+	 *
+	 * @return
+	 * 		The number of friends in roster.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Check if the user ID is friend.
+	 *
+	 * @param
+	 * 		userId		The user ID to check
+	 *
+	 * @return
+	 * 		True if the user is a friend, or false if not.
+	 */
+	public boolean contains(String userId) {
+		return userId != null && entries.containsKey(userId);
+	}
+
+	/**
+	 * Get specified friend information.
+	 *
+	 * The returned object is a copy, changing it has no effect on roster.
+	 *
+	 * @param
+	 * 		userId		The user ID of friend
+	 *
+	 * @return
+	 * 		The friend information, or null if user is not a friend.
+	 */
+	public FriendInfo get(String userId) {
+		Entry entry = (userId == null) ? null : entries.get(userId);
+		return entry == null ? null : entry.toFriendInfo();
+	}
+
+	/**
+	 * Get the connection status of specified friend.
+	 *
+	 * @param
+	 * 		userId		The user ID of friend
+	 *
+	 * @return
+	 * 		The connection status, or null if user is not a friend.
+	 */
+	public ConnectionStatus getConnectionStatus(String userId) {
+		Entry entry = (userId == null) ? null : entries.get(userId);
+		if (entry == null)
+			return null;
+
+		return (entry.state & CONNECTED) != 0 ? ConnectionStatus.Connected : ConnectionStatus.Disconnected;
+	}
+
+	/**
+	 * Get the presence status of specified friend.
+	 *
+	 * @param
+	 * 		userId		The user ID of friend
+	 *
+	 * @return
+	 * 		The presence status, or null if user is not a friend.
+	 */
+	public PresenceStatus getPresence(String userId) {
+		Entry entry = (userId == null) ? null : entries.get(userId);
+		return entry == null ? null : PresenceStatus.valueOf(entry.state & PRESENCE_MASK);
+	}
+
+	/**
+	 * Get a snapshot of the friend list.
+	 *
+	 * The list itself does not change. Each access to an element builds a
+	 * new friend information object, so changing one has no effect on the
+	 * roster or on other readers.
+	 *
+	 * @return
+	 * 		The unmodifiable list of friends.
+	 */
+	public List<FriendInfo> getFriends() {
+		return Collections.unmodifiableList(new Snapshot(entries.values().toArray(new Entry[0])));
+	}
+
+	/**
+	 * Get the information of the given friends.
+	 *
+	 * User IDs that are not friends are skipped.
+	 *
+	 * @param
+	 * 		userIds		The user IDs of friends
+	 *
+	 * @return
+	 * 		The unmodifiable list of friends, in the order of userIds.
+	 */
+	public List<FriendInfo> getFriends(Collection<String> userIds) {
+		List<Entry> found = new ArrayList<>(userIds.size());
+		for (String userId : userIds) {
+			Entry entry = (userId == null) ? null : entries.get(userId);
+			if (entry != null)
+				found.add(entry);
+		}
+
+		return Collections.unmodifiableList(new Snapshot(found.toArray(new Entry[0])));
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The class representing a reference counted buffer from BufferPool.
+ *
+ * The acquirer owns one reference. Each holder sharing the buffer calls
+ * retain() to keep it, and release() once it is done with it. The buffer
+ * goes back to its pool when the last reference is released, and must not
+ * be used after that.
+ */
+public final class PooledBuffer {
+	private final BufferPool pool;
+	private final int sizeClass;
+	private final ByteBuffer buffer;
+	private final AtomicInteger refCount = new AtomicInteger(0);
+
+	PooledBuffer(BufferPool pool, int sizeClass, ByteBuffer buffer) {
+		this.pool = pool;
+		this.sizeClass = sizeClass;
+		this.buffer = buffer;
+	}
+
+	PooledBuffer reset(int size) {
+		buffer.clear();
+		buffer.limit(size);
+		refCount.set(1);
+		return this;
+	}
+
+	/**
+	 * Get the underlying buffer.
+	 *
+	 * @return
+	 * 		The byte buffer.
+	 */
+	public ByteBuffer buffer() {
+		if (refCount.get() <= 0)
+			throw new IllegalStateException("Buffer already released");
+
+		return buffer;
+	}
+
+	/**
+	 * Get the number of bytes between position and limit of the buffer.
+	 *
+	 * @return
+	 * 		The remaining bytes.
+	 */
+	public int remaining() {
+		return buffer().remaining();
+	}
+
+	/**
+	 * Copy the remaining bytes of the buffer into a new array.
+	 *
+	 * @return
+	 * 		The byte array.
+	 */
+	public byte[] toByteArray() {
+		ByteBuffer view = buffer().duplicate();
+		byte[] data = new byte[view.remaining()];
+		view.get(data);
+		return data;
+	}
+
+	/**
+	 * Add a reference to the buffer.
+	 *
+	 * @return
+	 * 		The current buffer.
+	 */
+	public PooledBuffer retain() {
+		for (;;) {
+			int count = refCount.get();
+			if (count <= 0)
+				throw new IllegalStateException("Buffer already released");
+			if (refCount.compareAndSet(count, count + 1))
+				return this;
+		}
+	}
+
+	/**
+	 * Release a reference to the buffer. The buffer goes back to its pool
+	 * when the last reference is released.
+	 */
+	public void release() {
+		int count = refCount.decrementAndGet();
+		if (count == 0) {
+			if (pool != null)
+				pool.recycle(this, sizeClass);
+		} else if (count < 0) {
+			refCount.incrementAndGet();
+			throw new IllegalStateException("Buffer already released");
+		}
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The table correlating message receipts to the pending futures.
+ *
+ * One table instance is registered as the receipt handler of all the
+ * messages sent with future receipts. The pending futures are kept in an
+ * open-addressing hash table keyed by the primitive message id, with linear
+ * probing and backward-shift deletion.
+ *
+ * A receipt may arrive on the carrier thread before the sender had a chance
+ * to register the message id. In that case the receipt state itself is kept
+ * in the table until the sender registers, or until it expires.
+ *
+ * Deadlines are tracked in a binary min-heap of (deadline, message id) pairs,
+ * so expiring only visits the entries that are due. Heap entries of receipts
+ * that completed before their deadline are left in place and skipped when
+ * they reach the top; the heap is rebuilt once such stale entries outnumber
+ * the live ones. Expiring is driven by the idle callback of the carrier, so
+ * deadlines are honored with the precision of the carrier idle interval.
+ *
+ * A pending future is removed from the table as soon as it completes by any
+ * means, including cancellation by the application. Receipts registered
+ * without timeout still give up after MAX_RECEIPT_WAIT, so a receipt that
+ * never arrives does not hold its slot for the lifetime of the carrier.
+ */
+final class ReceiptTable implements FriendMessageReceiptHandler {
+	private static final int INITIAL_CAPACITY = 64;
+
+	// How long an unclaimed receipt is kept, in milliseconds.
+	private static final long UNCLAIMED_RECEIPT_TTL = 60 * 1000;
+
+	// How long a receipt registered without timeout is waited for, in milliseconds.
+	static final long MAX_RECEIPT_WAIT = 10 * 60 * 1000;
+
+	private long[] keys;
+	private Object[] values;
+	private long[] deadlines;
+	private int size;
+
+	private long[] heapDeadlines;
+	private long[] heapKeys;
+	private int heapSize;
+
+	ReceiptTable() {
+		keys = new long[INITIAL_CAPACITY];
+		values = new Object[INITIAL_CAPACITY];
+		deadlines = new long[INITIAL_CAPACITY];
+		heapDeadlines = new long[INITIAL_CAPACITY];
+		heapKeys = new long[INITIAL_CAPACITY];
+	}
+
+	private static int hash(long key) {
+		key ^= (key >>> 33);
+		key *= 0xff51afd7ed558ccdL;
+		key ^= (key >>> 33);
+		return (int)key;
+	}
+
+	private int indexOf(long key) {
+		int mask = keys.length - 1;
+		for (int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key)
+				return i;
+		}
+		return -1;
+	}
+
+	private void insert(long key, Object value, long deadline) {
+		if ((size + 1) * 2 > keys.length)
+			resize(keys.length * 2);
+
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (values[i] != null)
+			i = (i + 1) & mask;
+
+		keys[i] = key;
+		values[i] = value;
+		deadlines[i] = deadline;
+		size++;
+	}
+
+	private void schedule(long key, long deadline) {
+		if (heapSize > size * 2 + INITIAL_CAPACITY)
+			rebuildHeap();
+
+		if (heapSize == heapKeys.length) {
+			heapDeadlines = Arrays.copyOf(heapDeadlines, heapSize * 2);
+			heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+		}
+
+		int i = heapSize++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (heapDeadlines[parent] <= deadline)
+				break;
+			heapDeadlines[i] = heapDeadlines[parent];
+			heapKeys[i] = heapKeys[parent];
+			i = parent;
+		}
+		heapDeadlines[i] = deadline;
+		heapKeys[i] = key;
+	}
+
+	private void popHeap() {
+		long deadline = heapDeadlines[--heapSize];
+		long key = heapKeys[heapSize];
+
+		int i = 0;
+		for (;;) {
+			int child = i * 2 + 1;
+			if (child >= heapSize)
+				break;
+			if (child + 1 < heapSize && heapDeadlines[child + 1] < heapDeadlines[child])
+				child++;
+			if (deadline <= heapDeadlines[child])
+				break;
+			heapDeadlines[i] = heapDeadlines[child];
+			heapKeys[i] = heapKeys[child];
+			i = child;
+		}
+		heapDeadlines[i] = deadline;
+		heapKeys[i] = key;
+	}
+
+	private void rebuildHeap() {
+		int capacity = INITIAL_CAPACITY;
+		while (capacity < size)
+			capacity *= 2;
+
+		heapDeadlines = new long[capacity];
+		heapKeys = new long[capacity];
+		heapSize = 0;
+
+		for (int i = 0; i < keys.length; i++) {
+			if (values[i] != null)
+				schedule(keys[i], deadlines[i]);
+		}
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		long[] oldDeadlines = deadlines;
+
+		keys = new long[capacity];
+		values = new Object[capacity];
+		deadlines = new long[capacity];
+		size = 0;
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null)
+				insert(oldKeys[i], oldValues[i], oldDeadlines[i]);
+		}
+	}
+
+	private Object removeAt(int i) {
+		Object value = values[i];
+		int mask = keys.length - 1;
+
+		for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			int home = hash(keys[j]) & mask;
+			boolean inPlace = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+			if (inPlace)
+				continue;
+
+			keys[i] = keys[j];
+			values[i] = values[j];
+			deadlines[i] = deadlines[j];
+			i = j;
+		}
+
+		values[i] = null;
+		size--;
+		return value;
+	}
+
+	/**
+	 * Register a sent message and get the future of its receipt.
+	 *
+	 * @param
+	 * 		messageId	The message id returned from sending
+	 * @param
+	 * 		timeout		The receipt timeout in milliseconds, or 0 to wait up to
+	 * 					MAX_RECEIPT_WAIT
+	 *
+	 * @return
+	 * 		The future completed with the receipt state.
+	 */
+	CompletableFuture<ReceiptState> register(long messageId, long timeout) {
+		CompletableFuture<ReceiptState> future = new CompletableFuture<>();
+
+		synchronized (this) {
+			int i = indexOf(messageId);
+			if (i >= 0 && values[i] instanceof ReceiptState)
+				return CompletableFuture.completedFuture((ReceiptState)removeAt(i));
+
+			long deadline = System.currentTimeMillis() + (timeout > 0 ? timeout : MAX_RECEIPT_WAIT);
+			insert(messageId, future, deadline);
+			schedule(messageId, deadline);
+		}
+
+		// Release the slot when the application cancels or completes the future.
+		future.whenComplete((state, e) -> remove(messageId, future));
+		return future;
+	}
+
+	private synchronized void remove(long messageId, CompletableFuture<ReceiptState> future) {
+		int i = indexOf(messageId);
+		if (i >= 0 && values[i] == future)
+			removeAt(i);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void onReceipt(long messageId, ReceiptState state) {
+		Object value;
+
+		synchronized (this) {
+			int i = indexOf(messageId);
+			if (i < 0) {
+				long deadline = System.currentTimeMillis() + UNCLAIMED_RECEIPT_TTL;
+				insert(messageId, state, deadline);
+				schedule(messageId, deadline);
+				return;
+			}
+
+			value = removeAt(i);
+		}
+
+		if (value instanceof CompletableFuture)
+			((CompletableFuture<ReceiptState>)value).complete(state);
+	}
+
+	/**
+	 * Fail the pending receipts whose deadline has passed.
+	 *
+	 * @param
+	 * 		now			The current time in milliseconds
+	 */
+	@SuppressWarnings("unchecked")
+	void expire(long now) {
+		Object[] expired = null;
+		int count = 0;
+
+		synchronized (this) {
+			while (heapSize > 0 && heapDeadlines[0] <= now) {
+				long key = heapKeys[0];
+				long deadline = heapDeadlines[0];
+				popHeap();
+
+				// Skip the stale entry of a receipt that already completed.
+				int i = indexOf(key);
+				if (i < 0 || deadlines[i] != deadline)
+					continue;
+
+				if (expired == null)
+					expired = new Object[8];
+				else if (count == expired.length)
+					expired = Arrays.copyOf(expired, count * 2);
+				expired[count++] = removeAt(i);
+			}
+		}
+
+		for (int i = 0; i < count; i++) {
+			Object value = expired[i];
+			if (value instanceof CompletableFuture)
+				((CompletableFuture<ReceiptState>)value).completeExceptionally(
+						new TimeoutException("Message receipt timeout"));
+		}
+	}
+
+	/**
+	 * Cancel all the pending receipts.
+	 */
+	@SuppressWarnings("unchecked")
+	void cancelAll() {
+		Object[] pending;
+
+		synchronized (this) {
+			pending = values;
+			keys = new long[INITIAL_CAPACITY];
+			values = new Object[INITIAL_CAPACITY];
+			deadlines = new long[INITIAL_CAPACITY];
+			size = 0;
+			heapDeadlines = new long[INITIAL_CAPACITY];
+			heapKeys = new long[INITIAL_CAPACITY];
+			heapSize = 0;
+		}
+
+		for (Object value : pending) {
+			if (value instanceof CompletableFuture)
+				((CompletableFuture<ReceiptState>)value).cancel(false);
+		}
+	}
+
+	/**
+	 * Get the number of entries in the table.
+	 *
+	 * @return
+	 * 		The number of pending and unclaimed receipts.
+	 */
+	synchronized int size() {
+		return size;
+	}
+}
@@ -1,6 +1,12 @@
 package org.elastos.carrier.exceptions;
 
 public class GeneralException extends CarrierException {
+	// Error codes of general facility, as defined by native carrier library.
+	public static final int NOT_EXIST		= 0x8100000A;
+	public static final int WRONG_STATE		= 0x8100000F;
+	public static final int BUSY			= 0x81000010;
+	public static final int LIMIT_EXCEEDED	= 0x81000016;
+
 	protected GeneralException(int errorCode) {
 		super(errorCode);
 	}
@@ -26,6 +26,7 @@ import org.elastos.carrier.exceptions.CarrierException;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public class FileTransfer {
 	private long nativeCookie; // store native (jni-layered) file transfer handler.
@@ -298,6 +299,46 @@ public class FileTransfer {
 		return writeData(fileId, _data);
 	}
 
+	/**
+	 * To transfer file data with specified fileId.
+	 *
+	 * The data is the remaining content of the buffer, and the buffer position
+	 * is advanced by the bytes sent. Heap buffers are sent through their
+	 * backing array with its offset, direct buffers are copied to a byte
+	 * array first.
+	 *
+	 * @param
+	 *      fileId          [in] The file identifier.
+	 * @param
+	 *      data            [in] The buffer of data to transfer for file.
+	 *
+	 * @return
+	 * 		Bytes of data sent on success.
+	 *
+	 * @throws
+	 * 		CarrierException
+	 */
+	public int writeData(String fileId, ByteBuffer data) throws CarrierException {
+		if (fileId == null || fileId.isEmpty() || data == null || !data.hasRemaining())
+			throw new IllegalArgumentException();
+
+		int bytes;
+
+		if (data.hasArray()) {
+			bytes = writeData(fileId, data.array(), data.arrayOffset() + data.position(),
+					data.remaining());
+			data.position(data.position() + bytes);
+			return bytes;
+		}
+
+		byte[] _data = new byte[data.remaining()];
+		data.duplicate().get(_data);
+
+		bytes = writeData(fileId, _data);
+		data.position(data.position() + bytes);
+		return bytes;
+	}
+
 	public OutputStream getOutputStream(String fileId) {
 		return new FileTransferOutputStream(fileId);
 	}
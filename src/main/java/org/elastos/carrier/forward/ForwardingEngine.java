@@ -0,0 +1,1068 @@
+package org.elastos.carrier.forward;
+
+import org.elastos.carrier.BufferPool;
+import org.elastos.carrier.Log;
+import org.elastos.carrier.PooledBuffer;
+import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.session.AbstractStreamHandler;
+import org.elastos.carrier.session.CloseReason;
+import org.elastos.carrier.session.Stream;
+import org.elastos.carrier.session.StreamState;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Pure Java TCP port forwarding over multiplexing channels.
+ *
+ * The agent side listens on local ports and maps each accepted connection
+ * to a channel with cookie COOKIE_PREFIX + service. The server side accepts
+ * these channels for its served services and dials the service address.
+ * All sockets are driven by one selector thread with pooled direct buffers.
+ *
+ * Backpressure works both ways: a socket is not read while its channel is
+ * pended by the peer or congested, and a channel is pended while too much
+ * of its data waits for a slow socket.
+ *
+ * The engine also runs a SOCKS5 front end on one stream: each CONNECT
+ * becomes a channel with cookie SOCKS_COOKIE_PREFIX + "host:port", and a
+ * relaying engine on the peer dials that target, answering with a status
+ * byte once connected. One session thus reaches any number of targets,
+ * within the relay policy of the peer.
+ *
+ * The engine consumes the channel events of its streams, so the stream
+ * handler of those streams must be the engine or forward channel events to
+ * it; the event methods return false for channels the engine does not own.
+ */
+public class ForwardingEngine extends AbstractStreamHandler implements Runnable {
+    private static String TAG = "ForwardingEngine";
+
+    public static final String COOKIE_PREFIX = "carrier:forward:";
+    public static final String SOCKS_COOKIE_PREFIX = "carrier:socks:";
+    public static final int DEFAULT_HIGH_WATERMARK = 256 * 1024;
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final long RETRY_INTERVAL = 10;
+
+    private static final int SOCKS_NONE = 0;
+    private static final int SOCKS_GREETING = 1;
+    private static final int SOCKS_REQUEST = 2;
+    private static final int SOCKS_CONNECTING = 3;
+
+    public static class ConnectionStats {
+        private final String mService;
+        private final int mChannel;
+        private final long mBytesSent;
+        private final long mBytesReceived;
+        private final long mSetupLatency;
+        private final long mDuration;
+        private final long mStalls;
+
+        ConnectionStats(Connection conn) {
+            mService = conn.mService;
+            mChannel = conn.mChannel;
+            mBytesSent = conn.mBytesSent.get();
+            mBytesReceived = conn.mBytesReceived.get();
+            mSetupLatency = conn.mSetupNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(conn.mSetupNanos);
+            mDuration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - conn.mStartNanos);
+            mStalls = conn.mStalls.get();
+        }
+
+        public String getService() {
+            return mService;
+        }
+
+        public int getChannel() {
+            return mChannel;
+        }
+
+        // Bytes read from the local socket and sent to the peer.
+        public long getBytesSent() {
+            return mBytesSent;
+        }
+
+        // Bytes received from the peer and written to the local socket.
+        public long getBytesReceived() {
+            return mBytesReceived;
+        }
+
+        // Milliseconds until the channel was open and the socket connected,
+        // or -1 while setting up.
+        public long getSetupLatency() {
+            return mSetupLatency;
+        }
+
+        public long getDuration() {
+            return mDuration;
+        }
+
+        // Times the connection was held up by backpressure in either way.
+        public long getStalls() {
+            return mStalls;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s#%d: sent %d, received %d, setup %dms, stalls %d",
+                    mService, mChannel, mBytesSent, mBytesReceived, mSetupLatency, mStalls);
+        }
+    }
+
+    private static class Listener {
+        final Stream mStream;
+        final Supplier<Stream> mStreams;
+        final String mService;
+        final ServerSocketChannel mServer;
+        final boolean mSocks;
+
+        Listener(Stream stream, Supplier<Stream> streams, String service, ServerSocketChannel server,
+                 boolean socks) {
+            mStream = stream;
+            mStreams = streams;
+            mService = service;
+            mServer = server;
+            mSocks = socks;
+        }
+    }
+
+    private class Connection {
+        final Stream mStream;
+        final SocketChannel mSocket;
+        final long mStartNanos = System.nanoTime();
+        String mService;
+        int mChannel;
+        SelectionKey mKey;
+
+        // SOCKS handshake state; the relaying side sends a status byte
+        // once the target is connected.
+        volatile int mSocksState = SOCKS_NONE;
+        ByteBuffer mHandshake;
+        boolean mSocksRelay;
+
+        // Selector thread only.
+        boolean mConnected;
+        boolean mInputShutdown;
+        PooledBuffer mToPeer;
+
+        // Set from carrier callbacks.
+        volatile boolean mOpened;
+        volatile boolean mRemotePending;
+        volatile long mSetupNanos = -1;
+
+        // Guarded by the connection.
+        final ArrayDeque<PooledBuffer> mToSocket = new ArrayDeque<>();
+        long mToSocketBytes;
+        boolean mLocalPended;
+        boolean mChannelClosed;
+        boolean mClosed;
+
+        final AtomicLong mBytesSent = new AtomicLong(0);
+        final AtomicLong mBytesReceived = new AtomicLong(0);
+        final AtomicLong mStalls = new AtomicLong(0);
+
+        Connection(Stream stream, String service, SocketChannel socket) {
+            mStream = stream;
+            mService = service;
+            mSocket = socket;
+        }
+
+        void setupDone() {
+            if (mSetupNanos < 0 && mOpened && mConnected)
+                mSetupNanos = System.nanoTime() - mStartNanos;
+        }
+    }
+
+    private final int mHighWatermark;
+    private final Selector mSelector;
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    private final Set<Connection> mStalled = new HashSet<>();
+    private final ExecutorService mResolver = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "ForwardingEngine-resolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    private final AtomicInteger mNextListenerId = new AtomicInteger(1);
+    private final ConcurrentHashMap<Integer, Listener> mListeners = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, InetSocketAddress> mServices = new ConcurrentHashMap<>();
+    private volatile Predicate<InetSocketAddress> mSocksPolicy;
+    private final ConcurrentHashMap<Stream, ConcurrentHashMap<Integer, Connection>> mConnections =
+            new ConcurrentHashMap<>();
+
+    public ForwardingEngine() throws IOException {
+        this(DEFAULT_HIGH_WATERMARK);
+    }
+
+    public ForwardingEngine(int highWatermark) throws IOException {
+        if (highWatermark <= 0)
+            throw new IllegalArgumentException();
+
+        mHighWatermark = highWatermark;
+        mSelector = Selector.open();
+    }
+
+    public synchronized void start() {
+        if (mRunning)
+            return;
+
+        mRunning = true;
+        mThread = new Thread(this, "ForwardingEngine");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        if (!mRunning)
+            return;
+
+        mRunning = false;
+        mSelector.wakeup();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Integer id : new ArrayList<>(mListeners.keySet()))
+            closeListener(id);
+
+        for (Map<Integer, Connection> conns : mConnections.values()) {
+            for (Connection conn : new ArrayList<>(conns.values()))
+                close(conn, true);
+        }
+    }
+
+    /**
+     * Listen on a local address, forwarding each accepted connection to the
+     * service of the peer over a new channel of the stream.
+     *
+     * @return the listener id, used to get the bound port or close it.
+     */
+    public int listen(Stream stream, String service, String host, int port) throws IOException {
+        if (stream == null || service == null || host == null || port < 0)
+            throw new IllegalArgumentException();
+
+        return bind(stream, null, service, host, port, false);
+    }
+
+    /**
+     * Listen on a local address, forwarding each accepted connection to the
+     * service over a stream chosen by the supplier for that connection.
+     * Connections are refused while the supplier has no stream.
+     *
+     * @return the listener id, used to get the bound port or close it.
+     */
+    public int listen(Supplier<Stream> streams, String service, String host, int port) throws IOException {
+        if (streams == null || service == null || host == null || port < 0)
+            throw new IllegalArgumentException();
+
+        return bind(null, streams, service, host, port, false);
+    }
+
+    /**
+     * Run a SOCKS5 proxy on a local address, tunneling each CONNECT over a
+     * new channel of the stream. Only CONNECT without authentication is
+     * supported.
+     *
+     * @return the listener id, used to get the bound port or close it.
+     */
+    public int listenSocks(Stream stream, String host, int port) throws IOException {
+        if (stream == null || host == null || port < 0)
+            throw new IllegalArgumentException();
+
+        return bind(stream, null, "socks", host, port, true);
+    }
+
+    private int bind(Stream stream, Supplier<Stream> streams, String service, String host, int port,
+                     boolean socks) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.configureBlocking(false);
+            server.socket().setReuseAddress(true);
+            server.bind(new InetSocketAddress(host, port));
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+
+        int id = mNextListenerId.getAndIncrement();
+        Listener listener = new Listener(stream, streams, service, server, socks);
+        mListeners.put(id, listener);
+
+        execute(() -> {
+            try {
+                server.register(mSelector, SelectionKey.OP_ACCEPT, listener);
+            } catch (IOException e) {
+                Log.e(TAG, "Register listener of " + service + " error: " + e.getMessage());
+                closeListener(id);
+            }
+        });
+
+        Log.i(TAG, "Forwarding " + server.socket().getLocalSocketAddress() + " to service " + service);
+        return id;
+    }
+
+    public int getLocalPort(int listenerId) {
+        Listener listener = mListeners.get(listenerId);
+        return listener != null ? listener.mServer.socket().getLocalPort() : -1;
+    }
+
+    /**
+     * Close a listener. Connections already accepted keep running.
+     */
+    public void closeListener(int listenerId) {
+        Listener listener = mListeners.remove(listenerId);
+        if (listener == null)
+            return;
+
+        try {
+            listener.mServer.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Close listener error: " + e.getMessage());
+        }
+        mSelector.wakeup();
+    }
+
+    /**
+     * Serve a service on this side, dialing the address for each incoming
+     * forwarding channel of it.
+     */
+    public void serve(String service, String host, int port) {
+        if (service == null || host == null || port <= 0)
+            throw new IllegalArgumentException();
+
+        mServices.put(service, InetSocketAddress.createUnresolved(host, port));
+    }
+
+    public void unserve(String service) {
+        mServices.remove(service);
+    }
+
+    /**
+     * Relay SOCKS channels from peers, dialing the targets accepted by the
+     * policy. The policy gets the target address after name lookup, so a
+     * host name can not be used to reach an address the policy refuses;
+     * null stops relaying. Relaying is off by default.
+     */
+    public void relaySocks(Predicate<InetSocketAddress> policy) {
+        mSocksPolicy = policy;
+    }
+
+    public static boolean isForwarding(String cookie) {
+        return cookie != null && (cookie.startsWith(COOKIE_PREFIX) || cookie.startsWith(SOCKS_COOKIE_PREFIX));
+    }
+
+    public List<ConnectionStats> getConnectionStats() {
+        List<ConnectionStats> stats = new ArrayList<>();
+        for (Map<Integer, Connection> conns : mConnections.values()) {
+            for (Connection conn : conns.values())
+                stats.add(new ConnectionStats(conn));
+        }
+        return stats;
+    }
+
+    private ConcurrentHashMap<Integer, Connection> connectionsOf(Stream stream) {
+        return mConnections.computeIfAbsent(stream, k -> new ConcurrentHashMap<>());
+    }
+
+    private Connection lookup(Stream stream, int channel) {
+        Map<Integer, Connection> conns = mConnections.get(stream);
+        if (conns == null)
+            return null;
+
+        // Held while a channel is being opened and registered.
+        synchronized (conns) {
+            return conns.get(channel);
+        }
+    }
+
+    private void execute(Runnable task) {
+        mTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (mRunning) {
+            try {
+                mSelector.select(mStalled.isEmpty() ? 0 : RETRY_INTERVAL);
+            } catch (IOException e) {
+                Log.e(TAG, "Select error: " + e.getMessage());
+                break;
+            }
+
+            Runnable task;
+            while ((task = mTasks.poll()) != null)
+                task.run();
+
+            for (SelectionKey key : mSelector.selectedKeys()) {
+                if (!key.isValid())
+                    continue;
+
+                if (key.attachment() instanceof Listener) {
+                    accept((Listener)key.attachment());
+                    continue;
+                }
+
+                Connection conn = (Connection)key.attachment();
+                if (key.isConnectable())
+                    finishConnect(conn);
+                if (key.isValid() && key.isWritable())
+                    writeSocket(conn);
+                if (key.isValid() && key.isReadable())
+                    readSocket(conn);
+            }
+            mSelector.selectedKeys().clear();
+
+            if (!mStalled.isEmpty()) {
+                for (Connection conn : new ArrayList<>(mStalled))
+                    readSocket(conn);
+            }
+        }
+    }
+
+    private void accept(Listener listener) {
+        SocketChannel socket;
+        try {
+            socket = listener.mServer.accept();
+            if (socket == null)
+                return;
+
+            socket.configureBlocking(false);
+            socket.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            Log.e(TAG, "Accept connection error: " + e.getMessage());
+            return;
+        }
+
+        Stream stream = listener.mStream != null ? listener.mStream : listener.mStreams.get();
+        if (stream == null) {
+            Log.w(TAG, "No stream for service " + listener.mService + ", connection refused");
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            return;
+        }
+
+        Connection conn = new Connection(stream, listener.mService, socket);
+        conn.mConnected = true;
+
+        try {
+            conn.mKey = socket.register(mSelector, 0, conn);
+            if (listener.mSocks) {
+                conn.mSocksState = SOCKS_GREETING;
+                conn.mHandshake = ByteBuffer.allocate(512);
+            } else {
+                openChannel(conn, COOKIE_PREFIX + listener.mService);
+            }
+        } catch (CarrierException | IOException e) {
+            Log.e(TAG, "Forward connection to " + listener.mService + " error: " + e.getMessage());
+            close(conn, conn.mChannel > 0);
+            return;
+        }
+
+        // The channel may have opened before the key was registered.
+        updateInterest(conn);
+    }
+
+    private void openChannel(Connection conn, String cookie) throws CarrierException {
+        ConcurrentHashMap<Integer, Connection> conns = connectionsOf(conn.mStream);
+        synchronized (conns) {
+            conn.mChannel = conn.mStream.openChannel(cookie);
+            conns.put(conn.mChannel, conn);
+        }
+    }
+
+    // SOCKS5 greeting and request (RFC 1928), on selector thread.
+    private void handshake(Connection conn) {
+        ByteBuffer buffer = conn.mHandshake;
+        try {
+            if (conn.mSocket.read(buffer) < 0 || !buffer.hasRemaining()) {
+                close(conn, false);
+                return;
+            }
+        } catch (IOException e) {
+            close(conn, false);
+            return;
+        }
+
+        buffer.flip();
+        try {
+            if (conn.mSocksState == SOCKS_GREETING) {
+                switch (Socks5.parseGreeting(buffer)) {
+                    case Socks5.GREETING_INCOMPLETE:
+                        return;
+
+                    case Socks5.GREETING_BAD_VERSION:
+                        close(conn, false);
+                        return;
+
+                    case Socks5.GREETING_NO_METHOD:
+                        reply(conn, new byte[] { Socks5.VERSION, Socks5.NO_ACCEPTABLE_METHODS });
+                        closeAfterReply(conn);
+                        return;
+
+                    default:
+                        reply(conn, new byte[] { Socks5.VERSION, Socks5.NO_AUTH });
+                        conn.mSocksState = SOCKS_REQUEST;
+                        break;
+                }
+            }
+
+            if (conn.mSocksState == SOCKS_REQUEST) {
+                String target;
+                try {
+                    target = Socks5.parseRequest(buffer);
+                } catch (Socks5.RequestException e) {
+                    reply(conn, Socks5.reply(e.getStatus()));
+                    closeAfterReply(conn);
+                    return;
+                }
+                if (target == null)
+                    return;
+
+                conn.mSocksState = SOCKS_CONNECTING;
+                conn.mService = target;
+                conn.mHandshake = null;
+                try {
+                    openChannel(conn, SOCKS_COOKIE_PREFIX + target);
+                } catch (CarrierException e) {
+                    Log.e(TAG, "Open SOCKS channel to " + target + " error: " + e.getMessage());
+                    reply(conn, Socks5.reply(Socks5.GENERAL_FAILURE));
+                    closeAfterReply(conn);
+                }
+            }
+        } finally {
+            if (conn.mHandshake != null)
+                buffer.compact();
+
+            updateInterest(conn);
+        }
+    }
+
+    private void reply(Connection conn, byte[] data) {
+        PooledBuffer buffer = BufferPool.getDefault().copyOf(data);
+        synchronized (conn) {
+            conn.mToSocket.add(buffer);
+            conn.mToSocketBytes += data.length;
+        }
+    }
+
+    private void closeAfterReply(Connection conn) {
+        synchronized (conn) {
+            conn.mChannelClosed = true;
+        }
+        conn.mSocksState = SOCKS_NONE;
+        conn.mHandshake = null;
+        conn.mInputShutdown = true;
+    }
+
+    private void finishConnect(Connection conn) {
+        try {
+            conn.mSocket.finishConnect();
+        } catch (IOException e) {
+            Log.e(TAG, "Connect service " + conn.mService + " error: " + e.getMessage());
+            close(conn, true);
+            return;
+        }
+
+        conn.mConnected = true;
+        connected(conn);
+    }
+
+    private void connected(Connection conn) {
+        if (conn.mSocksRelay) {
+            try {
+                conn.mStream.writeData(conn.mChannel, new byte[] { Socks5.SUCCEEDED });
+            } catch (CarrierException e) {
+                Log.e(TAG, String.format("Write channel %d error (0x%x)", conn.mChannel, e.getErrorCode()));
+                close(conn, true);
+                return;
+            }
+        }
+
+        conn.setupDone();
+        updateInterest(conn);
+    }
+
+    private void updateInterest(Connection conn) {
+        SelectionKey key = conn.mKey;
+        if (key == null || !key.isValid())
+            return;
+
+        int ops;
+        if (!conn.mConnected) {
+            ops = SelectionKey.OP_CONNECT;
+        } else {
+            ops = 0;
+            int socksState = conn.mSocksState;
+            if (socksState == SOCKS_GREETING || socksState == SOCKS_REQUEST)
+                ops |= SelectionKey.OP_READ;
+            else if (socksState == SOCKS_NONE && conn.mOpened && !conn.mRemotePending &&
+                    conn.mToPeer == null && !conn.mInputShutdown)
+                ops |= SelectionKey.OP_READ;
+
+            synchronized (conn) {
+                if (!conn.mToSocket.isEmpty())
+                    ops |= SelectionKey.OP_WRITE;
+            }
+        }
+
+        key.interestOps(ops);
+    }
+
+    // Socket to channel, on selector thread.
+    private void readSocket(Connection conn) {
+        mStalled.remove(conn);
+        if (!conn.mConnected || conn.mKey == null || !conn.mKey.isValid())
+            return;
+
+        if (conn.mSocksState == SOCKS_GREETING || conn.mSocksState == SOCKS_REQUEST) {
+            handshake(conn);
+            return;
+        }
+
+        if (conn.mToPeer != null) {
+            if (!sendToPeer(conn, conn.mToPeer.buffer()))
+                return;
+
+            conn.mToPeer.release();
+            conn.mToPeer = null;
+        }
+
+        if (!conn.mOpened || conn.mSocksState != SOCKS_NONE || conn.mRemotePending || conn.mInputShutdown) {
+            updateInterest(conn);
+            return;
+        }
+
+        mReadBuffer.clear();
+        int bytes;
+        try {
+            bytes = conn.mSocket.read(mReadBuffer);
+        } catch (IOException e) {
+            bytes = -1;
+        }
+
+        if (bytes < 0) {
+            // Local peer closed the connection, end the forwarding.
+            conn.mInputShutdown = true;
+            close(conn, true);
+            return;
+        }
+
+        if (bytes > 0) {
+            mReadBuffer.flip();
+            if (!sendToPeer(conn, mReadBuffer)) {
+                PooledBuffer leftover = BufferPool.getDefault().acquire(mReadBuffer.remaining());
+                leftover.buffer().put(mReadBuffer).flip();
+                conn.mToPeer = leftover;
+            }
+        }
+
+        updateInterest(conn);
+    }
+
+    // Returns false if the buffer was not fully sent.
+    private boolean sendToPeer(Connection conn, ByteBuffer data) {
+        try {
+            while (data.hasRemaining()) {
+                int bytes = conn.mStream.writeData(conn.mChannel, data);
+                if (bytes <= 0)
+                    break;
+
+                conn.mBytesSent.addAndGet(bytes);
+            }
+        } catch (CarrierException e) {
+            Log.e(TAG, String.format("Write channel %d error (0x%x)", conn.mChannel, e.getErrorCode()));
+            close(conn, true);
+            return false;
+        }
+
+        if (!data.hasRemaining())
+            return true;
+
+        // Congested without a pending event, retry shortly.
+        conn.mStalls.incrementAndGet();
+        if (!conn.mRemotePending)
+            mStalled.add(conn);
+        updateInterest(conn);
+        return false;
+    }
+
+    // Channel to socket, on selector thread.
+    private void writeSocket(Connection conn) {
+        boolean resume = false;
+        boolean finished = false;
+
+        try {
+            for (;;) {
+                PooledBuffer buffer;
+                synchronized (conn) {
+                    buffer = conn.mToSocket.peek();
+                }
+                if (buffer == null)
+                    break;
+
+                ByteBuffer data = buffer.buffer();
+                conn.mSocket.write(data);
+                if (data.hasRemaining())
+                    break;
+
+                synchronized (conn) {
+                    conn.mToSocket.poll();
+                    conn.mToSocketBytes -= data.limit();
+                }
+                buffer.release();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Write socket of channel " + conn.mChannel + " error: " + e.getMessage());
+            close(conn, true);
+            return;
+        }
+
+        synchronized (conn) {
+            if (conn.mLocalPended && conn.mToSocketBytes <= mHighWatermark / 4) {
+                conn.mLocalPended = false;
+                resume = !conn.mChannelClosed;
+            }
+            finished = conn.mChannelClosed && conn.mToSocket.isEmpty();
+        }
+
+        if (resume) {
+            try {
+                conn.mStream.resumeChannel(conn.mChannel);
+            } catch (CarrierException e) {
+                Log.w(TAG, String.format("Resume channel %d error (0x%x)", conn.mChannel, e.getErrorCode()));
+            }
+        }
+
+        if (finished)
+            close(conn, false);
+        else
+            updateInterest(conn);
+    }
+
+    private void close(Connection conn, boolean closeChannel) {
+        synchronized (conn) {
+            if (conn.mClosed)
+                return;
+
+            conn.mClosed = true;
+            for (PooledBuffer buffer : conn.mToSocket)
+                buffer.release();
+            conn.mToSocket.clear();
+        }
+
+        Map<Integer, Connection> conns = mConnections.get(conn.mStream);
+        if (conns != null && conn.mChannel > 0)
+            conns.remove(conn.mChannel, conn);
+
+        // Buffers owned by the selector thread are released by it.
+        execute(() -> {
+            mStalled.remove(conn);
+            if (conn.mToPeer != null) {
+                conn.mToPeer.release();
+                conn.mToPeer = null;
+            }
+            if (conn.mKey != null)
+                conn.mKey.cancel();
+            try {
+                conn.mSocket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        });
+
+        if (closeChannel && conn.mChannel > 0) {
+            try {
+                conn.mStream.closeChannel(conn.mChannel);
+            } catch (CarrierException e) {
+                // Channel already gone.
+            }
+        }
+
+        Log.d(TAG, "Forwarding closed, " + new ConnectionStats(conn));
+    }
+
+    @Override
+    public void onStateChanged(Stream stream, StreamState state) {
+        switch (state) {
+            case Deactivated:
+            case Closed:
+            case Error:
+                Map<Integer, Connection> conns = mConnections.remove(stream);
+                if (conns != null) {
+                    for (Connection conn : conns.values())
+                        close(conn, false);
+                }
+
+                for (Map.Entry<Integer, Listener> entry : mListeners.entrySet()) {
+                    if (entry.getValue().mStream == stream)
+                        closeListener(entry.getKey());
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public boolean onChannelOpen(Stream stream, int channel, String cookie) {
+        if (!isForwarding(cookie))
+            return false;
+
+        String service;
+        InetSocketAddress target;
+        boolean socks = cookie.startsWith(SOCKS_COOKIE_PREFIX);
+
+        if (socks) {
+            service = cookie.substring(SOCKS_COOKIE_PREFIX.length());
+            target = parseTarget(service);
+            if (target == null || mSocksPolicy == null) {
+                Log.w(TAG, "SOCKS channel to " + service + " refused");
+                return false;
+            }
+        } else {
+            service = cookie.substring(COOKIE_PREFIX.length());
+            target = mServices.get(service);
+            if (target == null) {
+                Log.w(TAG, "Forwarding channel to unknown service " + service + " refused");
+                return false;
+            }
+        }
+
+        SocketChannel socket;
+        try {
+            socket = SocketChannel.open();
+            socket.configureBlocking(false);
+            socket.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            Log.e(TAG, "Open socket error: " + e.getMessage());
+            return false;
+        }
+
+        Connection conn = new Connection(stream, service, socket);
+        conn.mChannel = channel;
+        conn.mOpened = true;
+        conn.mSocksRelay = socks;
+        connectionsOf(stream).put(channel, conn);
+
+        // Name lookup blocks, so it never runs on the selector thread. The
+        // SOCKS policy is checked against the looked up address.
+        mResolver.execute(() -> {
+            InetSocketAddress address = new InetSocketAddress(target.getHostString(), target.getPort());
+            if (socks && !address.isUnresolved()) {
+                Predicate<InetSocketAddress> policy = mSocksPolicy;
+                if (policy == null || !policy.test(address)) {
+                    Log.w(TAG, "SOCKS channel to " + service + " (" + address + ") refused");
+                    close(conn, true);
+                    return;
+                }
+            }
+
+            execute(() -> connect(conn, address));
+        });
+
+        return true;
+    }
+
+    // Dial the service of a relayed channel, on selector thread.
+    private void connect(Connection conn, InetSocketAddress address) {
+        synchronized (conn) {
+            if (conn.mClosed)
+                return;
+        }
+
+        if (address.isUnresolved()) {
+            Log.e(TAG, "Resolve service " + conn.mService + " address failed");
+            close(conn, true);
+            return;
+        }
+
+        try {
+            conn.mConnected = conn.mSocket.connect(address);
+            conn.mKey = conn.mSocket.register(mSelector, 0, conn);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Connect service " + conn.mService + " error: " + e.getMessage());
+            close(conn, true);
+            return;
+        }
+
+        if (conn.mConnected)
+            connected(conn);
+        else
+            updateInterest(conn);
+    }
+
+    private static InetSocketAddress parseTarget(String target) {
+        int index = target.lastIndexOf(':');
+        if (index <= 0)
+            return null;
+
+        try {
+            int port = Integer.parseInt(target.substring(index + 1));
+            return port > 0 && port < 65536 ?
+                    InetSocketAddress.createUnresolved(target.substring(0, index), port) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void onChannelOpened(Stream stream, int channel) {
+        Connection conn = lookup(stream, channel);
+        if (conn == null)
+            return;
+
+        conn.mOpened = true;
+        execute(() -> {
+            conn.setupDone();
+            updateInterest(conn);
+        });
+    }
+
+    @Override
+    public void onChannelClose(Stream stream, int channel, CloseReason reason) {
+        Connection conn = lookup(stream, channel);
+        if (conn == null)
+            return;
+
+        if (conn.mSocksState == SOCKS_CONNECTING) {
+            // Refused or the relay could not reach the target.
+            refuseSocks(conn, Socks5.CONNECTION_REFUSED, false);
+            return;
+        }
+
+        boolean drained;
+        synchronized (conn) {
+            conn.mChannelClosed = true;
+            drained = conn.mToSocket.isEmpty();
+        }
+
+        // Deliver what is left to the socket before closing it.
+        if (drained || reason != CloseReason.Normal)
+            close(conn, false);
+        else
+            execute(() -> updateInterest(conn));
+    }
+
+    // Answer a SOCKS client whose CONNECT failed on the relay, then close it.
+    private void refuseSocks(Connection conn, byte status, boolean closeChannel) {
+        reply(conn, Socks5.reply(status));
+        Map<Integer, Connection> conns = mConnections.get(conn.mStream);
+        if (conns != null)
+            conns.remove(conn.mChannel, conn);
+        execute(() -> {
+            closeAfterReply(conn);
+            updateInterest(conn);
+            if (closeChannel) {
+                try {
+                    conn.mStream.closeChannel(conn.mChannel);
+                } catch (CarrierException e) {
+                    // Channel already gone.
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean onChannelData(Stream stream, int channel, byte[] data) {
+        Connection conn = lookup(stream, channel);
+        if (conn == null)
+            return false;
+
+        int offset = 0;
+        if (conn.mSocksState == SOCKS_CONNECTING) {
+            // First byte is the relay status of the target connection.
+            if (data[0] != Socks5.SUCCEEDED) {
+                refuseSocks(conn, Socks5.GENERAL_FAILURE, true);
+                return true;
+            }
+
+            reply(conn, Socks5.reply(Socks5.SUCCEEDED));
+            conn.mSocksState = SOCKS_NONE;
+            conn.setupDone();
+            offset = 1;
+            if (data.length == 1) {
+                execute(() -> updateInterest(conn));
+                return true;
+            }
+        }
+
+        PooledBuffer buffer = BufferPool.getDefault().acquire(data.length - offset);
+        buffer.buffer().put(data, offset, data.length - offset).flip();
+        boolean pend;
+
+        synchronized (conn) {
+            if (conn.mClosed) {
+                buffer.release();
+                return false;
+            }
+
+            conn.mToSocket.add(buffer);
+            conn.mToSocketBytes += buffer.remaining();
+            pend = !conn.mLocalPended && conn.mToSocketBytes >= mHighWatermark;
+            if (pend)
+                conn.mLocalPended = true;
+        }
+        conn.mBytesReceived.addAndGet(data.length);
+
+        if (pend) {
+            conn.mStalls.incrementAndGet();
+            try {
+                stream.pendChannel(channel);
+            } catch (CarrierException e) {
+                Log.w(TAG, String.format("Pend channel %d error (0x%x)", channel, e.getErrorCode()));
+            }
+        }
+
+        execute(() -> updateInterest(conn));
+        return true;
+    }
+
+    @Override
+    public void onChannelPending(Stream stream, int channel) {
+        Connection conn = lookup(stream, channel);
+        if (conn == null)
+            return;
+
+        conn.mRemotePending = true;
+        conn.mStalls.incrementAndGet();
+        execute(() -> updateInterest(conn));
+    }
+
+    @Override
+    public void onChannelResume(Stream stream, int channel) {
+        Connection conn = lookup(stream, channel);
+        if (conn == null)
+            return;
+
+        conn.mRemotePending = false;
+        execute(() -> readSocket(conn));
+    }
+}
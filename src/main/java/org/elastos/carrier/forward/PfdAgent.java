@@ -9,31 +9,41 @@ import org.elastos.carrier.Log;
 import org.elastos.carrier.PresenceStatus;
 import org.elastos.carrier.UserInfo;
 import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.session.AbstractStreamHandler;
+import org.elastos.carrier.session.CloseReason;
 import org.elastos.carrier.session.Manager;
+import org.elastos.carrier.session.Session;
+import org.elastos.carrier.session.SessionPool;
+import org.elastos.carrier.session.Stream;
+import org.elastos.carrier.session.StreamState;
+import org.elastos.carrier.session.StreamType;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public class PfdAgent extends AbstractCarrierHandler {
     private static String TAG = "PfdAgent";
 
+    private static final long SESSION_IDLE_TTL = 5 * 60 * 1000;
+
     public static PfdAgent pfdAgentInst;
 
     private Carrier mCarrier;
     private Manager mSessionManager;
+    private SessionPool mSessionPool;
+    private volatile ForwardingEngine mForwardingEngine;
+    private volatile PfdBalancer mBalancer;
     private ConnectionStatus mStatus;
     private boolean mReady;
 
-    private PfdServer mCheckedServer;
-    private List<PfdServer> mServerList;
-    private Map<String, PfdServer> mServerMap;
+    private volatile PfdServer mCheckedServer;
+    private final PfdServerRegistry mServers = new PfdServerRegistry();
 
     private String storePath;
 
@@ -48,9 +58,6 @@ public class PfdAgent extends AbstractCarrierHandler {
         this.storePath = storePath;
         mStatus = ConnectionStatus.Disconnected;
         mReady = false;
-
-        mServerList = new ArrayList<>();
-        mServerMap = new HashMap();
     }
 
     public void checkLogin() throws CarrierException {
@@ -99,6 +106,60 @@ public class PfdAgent extends AbstractCarrierHandler {
 
         mSessionManager = Manager.createInstance(mCarrier);
         Log.i(TAG, "Agent session manager created successfully");
+
+        int sopt = Stream.PROPERTY_MULTIPLEXING
+                | Stream.PROPERTY_PORT_FORWARDING
+                | Stream.PROPERTY_RELIABLE;
+
+        Manager.ConnectOptions connectOptions = new Manager.ConnectOptions()
+                .setStreamOptions(sopt)
+                .setHandler(new AbstractStreamHandler() {
+                    @Override
+                    public void onStateChanged(Stream stream, StreamState state) {
+                        if (mForwardingEngine != null)
+                            mForwardingEngine.onStateChanged(stream, state);
+                        if (mBalancer != null)
+                            mBalancer.onServerChanged();
+
+                        Session session = stream.getSession();
+                        PfdServer server = session != null ? mServers.get(session.getPeer()) : null;
+                        if (server != null)
+                            server.onStateChanged(stream, state);
+                    }
+
+                    @Override
+                    public void onChannelOpened(Stream stream, int channel) {
+                        if (mForwardingEngine != null)
+                            mForwardingEngine.onChannelOpened(stream, channel);
+                    }
+
+                    @Override
+                    public void onChannelClose(Stream stream, int channel, CloseReason reason) {
+                        if (mForwardingEngine != null)
+                            mForwardingEngine.onChannelClose(stream, channel, reason);
+                    }
+
+                    @Override
+                    public boolean onChannelData(Stream stream, int channel, byte[] data) {
+                        return mForwardingEngine != null &&
+                                mForwardingEngine.onChannelData(stream, channel, data);
+                    }
+
+                    @Override
+                    public void onChannelPending(Stream stream, int channel) {
+                        if (mForwardingEngine != null)
+                            mForwardingEngine.onChannelPending(stream, channel);
+                    }
+
+                    @Override
+                    public void onChannelResume(Stream stream, int channel) {
+                        if (mForwardingEngine != null)
+                            mForwardingEngine.onChannelResume(stream, channel);
+                    }
+                });
+
+        mSessionPool = new SessionPool(mSessionManager, StreamType.Application,
+                connectOptions, SESSION_IDLE_TTL);
     }
 
     public boolean isReady() {
@@ -131,14 +192,18 @@ public class PfdAgent extends AbstractCarrierHandler {
     }
 
     public void kill() {
-        for (PfdServer server : mServerList) {
+        for (PfdServer server : mServers.clear()) {
             server.close();
         }
 
-        mServerMap.clear();
-        mServerList.clear();
+        disableLoadBalancing();
+        if (mForwardingEngine != null) {
+            mForwardingEngine.stop();
+            mForwardingEngine = null;
+        }
 
         if (mCarrier != null) {
+            mSessionPool.close();
             mSessionManager.cleanup();
             mCarrier.kill();
         }
@@ -150,9 +215,65 @@ public class PfdAgent extends AbstractCarrierHandler {
         return mSessionManager;
     }
 
+    public SessionPool getSessionPool() {
+        return mSessionPool;
+    }
+
+    /**
+     * Forward ports with the Java forwarding engine instead of the native
+     * port forwarding. The servers must serve the "hivenode" service with a
+     * ForwardingEngine. Takes effect for forwardings opened afterwards.
+     */
+    public synchronized void setJavaForwarding(boolean enabled) throws IOException {
+        if (enabled && mForwardingEngine == null) {
+            ForwardingEngine engine = new ForwardingEngine();
+            engine.start();
+            mForwardingEngine = engine;
+        } else if (!enabled && mForwardingEngine != null) {
+            disableLoadBalancing();
+            mForwardingEngine.stop();
+            mForwardingEngine = null;
+        }
+    }
+
+    public ForwardingEngine getForwardingEngine() {
+        return mForwardingEngine;
+    }
+
+    /**
+     * Balance the connections of one local port over the best servers,
+     * failing over to the next best server within failoverTimeout
+     * milliseconds. Enables the Java forwarding engine.
+     *
+     * @return the bound local port.
+     */
+    public synchronized int enableLoadBalancing(int servers, int port, long failoverTimeout) throws IOException {
+        if (mBalancer != null)
+            return mBalancer.getLocalPort();
+
+        setJavaForwarding(true);
+        PfdBalancer balancer = new PfdBalancer(this, mForwardingEngine, servers, failoverTimeout);
+        int localPort = balancer.start(port);
+        mBalancer = balancer;
+
+        Log.i(TAG, "Load balancing over " + servers + " servers on port " + localPort);
+        return localPort;
+    }
+
+    public synchronized void disableLoadBalancing() {
+        if (mBalancer != null) {
+            mBalancer.stop();
+            mBalancer = null;
+        }
+    }
+
+    public PfdBalancer getBalancer() {
+        return mBalancer;
+    }
+
 
-    public void setCheckedServer(String serverId) {
-        PfdServer server = mServerMap.get(serverId);
+    public synchronized void setCheckedServer(String serverId) {
+        PfdServer server = mServers.get(serverId);
 
         if (server != null && server != mCheckedServer) {
             Log.i(TAG, "Checked server changed to " + serverId);
@@ -172,12 +293,35 @@ public class PfdAgent extends AbstractCarrierHandler {
         return mCheckedServer;
     }
 
+    /**
+     * Get the servers as an immutable snapshot, safe to iterate while the
+     * registry changes.
+     */
     public List<PfdServer> getServerList() {
-        return mServerList;
+        return mServers.list();
     }
 
     public PfdServer getServer(String serverId) {
-        return mServerMap.get(serverId);
+        return mServers.get(serverId);
+    }
+
+    public void addServerListener(PfdServerListener listener) {
+        if (listener == null)
+            throw new IllegalArgumentException();
+
+        mServers.addListener(listener);
+    }
+
+    public void removeServerListener(PfdServerListener listener) {
+        mServers.removeListener(listener);
+    }
+
+    private PfdServer newServer(FriendInfo info) {
+        PfdServer server = new PfdServer(this.storePath);
+        server.setInfo(info);
+        server.setConnectionStatus(info.getConnectionStatus());
+        server.setPresenceStatus(info.getPresence());
+        return server;
     }
 
     public void pairServer(String serverId, String password) throws CarrierException {
@@ -232,11 +376,13 @@ public class PfdAgent extends AbstractCarrierHandler {
 
         Log.i(TAG, "Elastos carrier instance is ready.");
 
-        if (mCheckedServer == null) {
-            for (PfdServer server : mServerList) {
-                if (server.isOnline()) {
-                    mCheckedServer = server;
-                    break;
+        synchronized (this) {
+            if (mCheckedServer == null) {
+                for (PfdServer server : mServers.list()) {
+                    if (server.isOnline()) {
+                        mCheckedServer = server;
+                        break;
+                    }
                 }
             }
         }
@@ -249,98 +395,102 @@ public class PfdAgent extends AbstractCarrierHandler {
         Log.i(TAG, "Client portforwarding agent received friend list: " + friends);
 
         for (FriendInfo info : friends) {
-            String serverId = info.getUserId();
-            PfdServer server;
-
-            server = mServerMap.get(serverId);
-            if (server == null) {
-                server = new PfdServer(this.storePath);
-                mServerList.add(server);
-                mServerMap.put(serverId, server);
-            }
+            PfdServer server = mServers.getOrAdd(info.getUserId(), id -> newServer(info));
 
             server.setInfo(info);
             server.setConnectionStatus(info.getConnectionStatus());
             server.setPresenceStatus(info.getPresence());
+            mServers.changed(server);
         }
     }
 
     @Override
     public void onFriendInfoChanged(Carrier carrier, String friendId, FriendInfo friendInfo) {
-        PfdServer server = mServerMap.get(friendId);
-        assert (server != null);
+        PfdServer server = mServers.get(friendId);
+        if (server == null)
+            return;
 
         Log.i(TAG, "Server " + friendId + "info changed to " + friendInfo);
 
         server.setInfo(friendInfo);
+        mServers.changed(server);
     }
 
     @Override
     public void onFriendConnection(Carrier carrier, String friendId, ConnectionStatus status) {
-        PfdServer server = mServerMap.get(friendId);
-        assert (server != null);
+        PfdServer server = mServers.get(friendId);
+        if (server == null)
+            return;
 
         Log.i(TAG, "Server " + friendId + " connection status changed to " + status);
 
         server.setConnectionStatus(status);
+        mServers.changed(server);
+
+        if (mBalancer != null)
+            mBalancer.onServerChanged();
 
         if (server.equals(mCheckedServer)) {
             if (server.isOnline()) {
-                server.setupPortforwarding();
+                server.reconnectNow();
             } else {
-                server.close();
+                server.onPeerOffline();
             }
         }
     }
 
     @Override
     public void onFriendPresence(Carrier carrier, String friendId, PresenceStatus presence) {
-        PfdServer server = mServerMap.get(friendId);
-        assert (server != null);
+        PfdServer server = mServers.get(friendId);
+        if (server == null)
+            return;
 
         Log.i(TAG, "Server" + friendId + "presence changed to " + presence);
 
         server.setPresenceStatus(presence);
+        mServers.changed(server);
+
+        if (mBalancer != null)
+            mBalancer.onServerChanged();
 
         if (server.equals(mCheckedServer)) {
             if (server.isOnline()) {
-                server.setupPortforwarding();
+                server.reconnectNow();
             } else {
-                server.close();
+                server.onPeerOffline();
             }
         }
     }
 
     @Override
     public void onFriendAdded(Carrier carrier, FriendInfo friendInfo) {
-        PfdServer server = new PfdServer(this.storePath);
-        server.setInfo(friendInfo);
-        server.setConnectionStatus(friendInfo.getConnectionStatus());
-        server.setPresenceStatus(friendInfo.getPresence());
-
-        mServerList.add(server);
-        mServerMap.put(server.getServerId(), server);
+        PfdServer server = mServers.getOrAdd(friendInfo.getUserId(), id -> newServer(friendInfo));
 
         Log.i(TAG, "Server " + server.getServerId() + " added: " + friendInfo);
 
-        if (mCheckedServer == null) {
-            mCheckedServer = server;
+        synchronized (this) {
+            if (mCheckedServer == null) {
+                mCheckedServer = server;
+            }
         }
     }
 
     @Override
     public void onFriendRemoved(Carrier carrier, String friendId) {
-        PfdServer server = mServerMap.remove(friendId);
-        assert (server != null);
+        PfdServer server = mServers.remove(friendId);
+        if (server == null)
+            return;
 
-        mServerList.remove(server);
         Log.i(TAG, "Portforwarding server " + friendId + "removed");
-
-        if (mCheckedServer.equals(server)) {
-            mCheckedServer = null;
-            for (PfdServer svr : mServerList) {
-                if (svr.isOnline())
-                    mCheckedServer = svr;
+        server.close();
+
+        synchronized (this) {
+            if (server.equals(mCheckedServer)) {
+                mCheckedServer = null;
+                for (PfdServer svr : mServers.list()) {
+                    if (svr.isOnline())
+                        mCheckedServer = svr;
+                }
             }
         }
     }
@@ -0,0 +1,355 @@
+package org.elastos.carrier.forward;
+
+import org.elastos.carrier.Log;
+import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.session.SessionPool;
+import org.elastos.carrier.session.Stream;
+import org.elastos.carrier.session.StreamState;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads local connections of one forwarding port over the streams to the
+ * best few online servers.
+ *
+ * Streams to the top N servers are kept warm and probed for round trip
+ * time every PROBE_INTERVAL. Each new connection goes to a server picked at
+ * random, weighted by the inverse of its cost, which is the smoothed round
+ * trip time inflated by the throughput the server already carries. A server
+ * going offline is dropped at once; a server whose probes stop answering is
+ * dropped after the failover timeout, and the next best server is warmed
+ * up in its place.
+ *
+ * Forwarding goes through the Java forwarding engine, so the servers must
+ * serve the service with a ForwardingEngine.
+ */
+public class PfdBalancer {
+    private static String TAG = "PfdBalancer";
+
+    public static final long DEFAULT_FAILOVER_TIMEOUT = 5000;
+
+    private static final String SERVICE = "hivenode";
+    private static final long PROBE_INTERVAL = 1000;
+    private static final double EWMA_WEIGHT = 0.3;
+    private static final double THROUGHPUT_SCALE = 1024 * 1024;
+    private static final double REPLACE_FACTOR = 2;
+
+    public static class ServerStats {
+        private final String mServerId;
+        private final long mRtt;
+        private final long mThroughput;
+        private final boolean mReady;
+
+        ServerStats(Member member) {
+            mServerId = member.mServerId;
+            mRtt = (long)member.mRtt;
+            mThroughput = (long)member.mThroughput;
+            mReady = member.mStream != null;
+        }
+
+        public String getServerId() {
+            return mServerId;
+        }
+
+        // Smoothed round trip time in milliseconds, or -1 if not measured.
+        public long getRtt() {
+            return mRtt;
+        }
+
+        // Bytes per second sent and received over the stream.
+        public long getThroughput() {
+            return mThroughput;
+        }
+
+        public boolean isReady() {
+            return mReady;
+        }
+    }
+
+    private static class Member {
+        final String mServerId;
+        SessionPool.Lease mLease;
+        volatile Stream mStream;
+        volatile double mRtt = -1;
+        volatile double mThroughput;
+        long mLastBytes;
+        long mLastAlive = System.currentTimeMillis();
+        CompletableFuture<Long> mProbe;
+
+        Member(String serverId) {
+            mServerId = serverId;
+        }
+
+        double cost() {
+            double rtt = mRtt > 0 ? mRtt : 1;
+            return rtt * (1 + mThroughput / THROUGHPUT_SCALE);
+        }
+    }
+
+    private final PfdAgent mAgent;
+    private final ForwardingEngine mEngine;
+    private final int mServers;
+    private final long mFailoverTimeout;
+    private final ScheduledExecutorService mTimer;
+
+    private final Map<String, Member> mMembers = new ConcurrentHashMap<>();
+    private final Map<String, Double> mKnownRtts = new ConcurrentHashMap<>();
+    private volatile List<Member> mReady = Collections.emptyList();
+    private int mListenerId = -1;
+
+    private final AtomicLong mFailovers = new AtomicLong(0);
+    private final AtomicLong mConnections = new AtomicLong(0);
+
+    PfdBalancer(PfdAgent agent, ForwardingEngine engine, int servers, long failoverTimeout) {
+        if (servers <= 0 || failoverTimeout < PROBE_INTERVAL)
+            throw new IllegalArgumentException();
+
+        mAgent = agent;
+        mEngine = engine;
+        mServers = servers;
+        mFailoverTimeout = failoverTimeout;
+        mTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "PfdBalancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    synchronized int start(int port) throws IOException {
+        mListenerId = mEngine.listen(this::select, SERVICE, "127.0.0.1", port);
+        mTimer.scheduleWithFixedDelay(this::update, 0, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+        return mEngine.getLocalPort(mListenerId);
+    }
+
+    synchronized void stop() {
+        mTimer.shutdownNow();
+        if (mListenerId > 0) {
+            mEngine.closeListener(mListenerId);
+            mListenerId = -1;
+        }
+
+        for (Member member : new ArrayList<>(mMembers.values()))
+            drop(member, "balancer stopped");
+    }
+
+    public int getLocalPort() {
+        return mEngine.getLocalPort(mListenerId);
+    }
+
+    public long getFailoverCount() {
+        return mFailovers.get();
+    }
+
+    public long getConnectionCount() {
+        return mConnections.get();
+    }
+
+    public List<ServerStats> getServerStats() {
+        List<ServerStats> stats = new ArrayList<>();
+        for (Member member : mMembers.values())
+            stats.add(new ServerStats(member));
+        return stats;
+    }
+
+    // Re-evaluate soon after a server or stream changed state.
+    void onServerChanged() {
+        if (!mTimer.isShutdown())
+            mTimer.execute(this::update);
+    }
+
+    // Called by the forwarding engine for each accepted connection.
+    private Stream select() {
+        List<Member> ready = mReady;
+        if (ready.isEmpty())
+            return null;
+
+        double total = 0;
+        for (Member member : ready)
+            total += 1 / member.cost();
+
+        double point = ThreadLocalRandom.current().nextDouble(total);
+        Member chosen = ready.get(ready.size() - 1);
+        for (Member member : ready) {
+            point -= 1 / member.cost();
+            if (point < 0) {
+                chosen = member;
+                break;
+            }
+        }
+
+        mConnections.incrementAndGet();
+        return chosen.mStream;
+    }
+
+    private synchronized void update() {
+        try {
+            long now = System.currentTimeMillis();
+
+            for (Member member : new ArrayList<>(mMembers.values())) {
+                PfdServer server = mAgent.getServer(member.mServerId);
+                if (server == null || !server.isOnline()) {
+                    drop(member, "server offline");
+                    continue;
+                }
+
+                Stream stream = member.mStream;
+                if (stream == null)
+                    continue;
+
+                StreamState state = stream.getState();
+                if (state != StreamState.Connected) {
+                    drop(member, "stream " + state);
+                    continue;
+                }
+
+                if (now - member.mLastAlive > mFailoverTimeout) {
+                    drop(member, "no probe reply in " + mFailoverTimeout + "ms");
+                    continue;
+                }
+
+                long bytes = stream.getBytesSent() + stream.getBytesReceived();
+                double throughput = (bytes - member.mLastBytes) * 1000.0 / PROBE_INTERVAL;
+                member.mLastBytes = bytes;
+                member.mThroughput += EWMA_WEIGHT * (throughput - member.mThroughput);
+
+                probe(member, stream);
+            }
+
+            replaceWorst();
+            fill();
+            publish();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Update balancer error: " + e);
+        }
+    }
+
+    private void probe(Member member, Stream stream) {
+        if (member.mProbe != null && !member.mProbe.isDone())
+            return;
+
+        try {
+            CompletableFuture<Long> probe = stream.measureRtt();
+            member.mProbe = probe;
+            probe.thenAccept(micros -> {
+                double rtt = micros / 1000.0;
+                synchronized (this) {
+                    member.mRtt = member.mRtt < 0 ? rtt : member.mRtt + EWMA_WEIGHT * (rtt - member.mRtt);
+                    member.mLastAlive = System.currentTimeMillis();
+                    mKnownRtts.put(member.mServerId, member.mRtt);
+                }
+            });
+        } catch (CarrierException e) {
+            Log.w(TAG, String.format("Probe server %s error (0x%x)", member.mServerId, e.getErrorCode()));
+        }
+    }
+
+    // Swap the worst member for a known much faster server, if any.
+    private void replaceWorst() {
+        if (mMembers.size() < mServers)
+            return;
+
+        Member worst = null;
+        for (Member member : mMembers.values()) {
+            if (member.mRtt > 0 && (worst == null || member.mRtt > worst.mRtt))
+                worst = member;
+        }
+        if (worst == null)
+            return;
+
+        for (PfdServer server : mAgent.getServerList()) {
+            Double rtt = mKnownRtts.get(server.getServerId());
+            if (server.isOnline() && !mMembers.containsKey(server.getServerId()) &&
+                    rtt != null && rtt * REPLACE_FACTOR < worst.mRtt) {
+                drop(worst, "server " + server.getServerId() + " is faster");
+                return;
+            }
+        }
+    }
+
+    // Warm up streams to the best online servers up to the target count.
+    private void fill() {
+        if (mMembers.size() >= mServers)
+            return;
+
+        List<PfdServer> candidates = new ArrayList<>();
+        for (PfdServer server : mAgent.getServerList()) {
+            if (server.isOnline() && !mMembers.containsKey(server.getServerId()))
+                candidates.add(server);
+        }
+
+        // Servers measured before come first, fastest first.
+        Collections.sort(candidates, Comparator.comparingDouble(server -> {
+            Double rtt = mKnownRtts.get(server.getServerId());
+            return rtt != null ? rtt : Double.MAX_VALUE;
+        }));
+
+        SessionPool pool = mAgent.getSessionPool();
+        for (int i = 0; i < candidates.size() && mMembers.size() < mServers; i++) {
+            String serverId = candidates.get(i).getServerId();
+            Member member = new Member(serverId);
+            mMembers.put(serverId, member);
+
+            pool.acquire(serverId).whenComplete((lease, e) -> {
+                synchronized (this) {
+                    // Dropped while connecting, give the lease back.
+                    if (mMembers.get(serverId) != member) {
+                        if (lease != null)
+                            lease.release();
+                        return;
+                    }
+
+                    if (e != null) {
+                        Log.w(TAG, "Connect server " + serverId + " error: " + e.getMessage());
+                        drop(member, "connect failed");
+                        return;
+                    }
+
+                    Stream stream = lease.getStream();
+                    member.mLease = lease;
+                    member.mStream = stream;
+                    member.mLastBytes = stream.getBytesSent() + stream.getBytesReceived();
+                    member.mLastAlive = System.currentTimeMillis();
+                    publish();
+                    Log.i(TAG, "Server " + serverId + " ready for balancing");
+                }
+                onServerChanged();
+            });
+        }
+    }
+
+    private void drop(Member member, String reason) {
+        if (!mMembers.remove(member.mServerId, member))
+            return;
+
+        if (member.mStream != null) {
+            mFailovers.incrementAndGet();
+            Log.i(TAG, "Server " + member.mServerId + " dropped from balancing: " + reason);
+        }
+
+        // Only a member which acquired its stream holds a lease.
+        if (member.mLease != null)
+            member.mLease.release();
+        publish();
+    }
+
+    private void publish() {
+        List<Member> ready = new ArrayList<>();
+        for (Member member : mMembers.values()) {
+            if (member.mStream != null)
+                ready.add(member);
+        }
+        mReady = Collections.unmodifiableList(ready);
+    }
+}
@@ -5,23 +5,27 @@ import org.elastos.carrier.FriendInfo;
 import org.elastos.carrier.Log;
 import org.elastos.carrier.PresenceStatus;
 import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.exceptions.GeneralException;
 import org.elastos.carrier.session.AbstractStreamHandler;
+import org.elastos.carrier.session.LatencyHistogram;
 import org.elastos.carrier.session.PortForwardingProtocol;
-import org.elastos.carrier.session.Session;
-import org.elastos.carrier.session.SessionRequestCompleteHandler;
+import org.elastos.carrier.session.SessionPool;
 import org.elastos.carrier.session.Stream;
 import org.elastos.carrier.session.StreamState;
 import org.elastos.carrier.session.StreamType;
 
+import java.io.IOException;
 import java.net.ServerSocket;
+import java.util.concurrent.CompletableFuture;
 
-public class PfdServer extends AbstractStreamHandler implements SessionRequestCompleteHandler {
+public class PfdServer extends AbstractStreamHandler {
     private static String TAG = "PfServer";
 
-    private FriendInfo mFriendInfo;
-    private Session mSession;
+    private volatile FriendInfo mFriendInfo;
+    private SessionPool.Lease mLease;
     private String mPort;
     private int mPfId;
+    private ForwardingEngine mEngine;
     private Stream mStream;
     private StreamState mState = StreamState.Closed;
 
@@ -29,6 +33,9 @@ public class PfdServer extends AbstractStreamHandler implements SessionRequestCo
 
     private String storePath;
 
+    private final ReconnectScheduler mReconnect =
+            new ReconnectScheduler(this::getServerId, this::attemptReconnect);
+
     PfdServer(String storePath) {
         this.storePath = storePath;
     }
@@ -49,7 +56,7 @@ public class PfdServer extends AbstractStreamHandler implements SessionRequestCo
         return mFriendInfo.getUserId();
     }
 
-    public void setPort(String port) {
+    public synchronized void setPort(String port) {
         if (mPort != port) {
             mPort = port;
 
@@ -84,58 +91,27 @@ public class PfdServer extends AbstractStreamHandler implements SessionRequestCo
     }
 
     @Override
-    public void onCompletion(Session session, int status, String reason, String sdp) {
-        if (status != 0) {
-            Log.i(TAG, String.format("Session request completion with error (%d:%s", status, reason));
-            close();
+    public synchronized void onStateChanged(Stream stream, StreamState state) {
+        Log.i(TAG, "onStateChanged : " + stream.getStreamId() + "  :  " + state);
+        if (stream != mStream)
             return;
-        }
 
-        try {
-            session.start(sdp);
-            Log.i(TAG, "Session started success.");
-        } catch (CarrierException e) {
-            Log.e(TAG, "Session start error " + e.getErrorCode());
-        }
-    }
-
-    @Override
-    public void onStateChanged(Stream stream, StreamState state) {
-        Log.i(TAG, "onStateChanged : " + stream.getStreamId() + "  :  " + state);
-        mState = state;
-        try {
-            switch (state) {
-                case Initialized:
-                    mSession.request(this);
-                    Log.i(TAG, "Session request to " + getServerId() + " sent.");
-                    break;
-
-                case TransportReady:
-                    Log.i(TAG, "Stream to " + getServerId() + " transport ready");
-                    break;
-
-                case Connected:
-                    Log.i(TAG, "Stream to " + getServerId() + " connected.");
-                    mStream = stream;
-                    openPortforwarding();
-                    break;
-
-                case Deactivated:
-                    Log.i(TAG, "Stream deactived");
-                    close();
-                    break;
-                case Closed:
-                    Log.i(TAG, "Stream closed");
-                    close();
-                    break;
-                case Error:
-                    Log.i(TAG, "Stream error");
-                    close();
-                    break;
-            }
-        } catch (CarrierException e) {
-            Log.e(TAG, String.format("Stream error (0x%x)", e.getErrorCode()));
-            close();
+        switch (state) {
+            case Deactivated:
+                Log.i(TAG, "Stream deactived");
+                teardown();
+                mReconnect.onDisconnected(isOnline());
+                break;
+            case Closed:
+                Log.i(TAG, "Stream closed");
+                teardown();
+                mReconnect.onDisconnected(isOnline());
+                break;
+            case Error:
+                Log.i(TAG, "Stream error");
+                teardown();
+                mReconnect.onDisconnected(isOnline());
+                break;
         }
     }
 
@@ -154,49 +130,78 @@ public class PfdServer extends AbstractStreamHandler implements SessionRequestCo
         return port;
     }
 
-    public void setupPortforwarding() {
+    // Runs on the reconnect timer and application threads alike. Every path
+    // reports to the reconnect scheduler, so a running attempt always ends.
+    public synchronized void setupPortforwarding() {
         if (!isOnline()) {
             Log.i(TAG, "Friend Offline");
+            mReconnect.onPeerOffline();
             return;
         }
 
         if (mState == StreamState.Initialized || mState == StreamState.TransportReady
                 || mState == StreamState.Connecting) {
+            // The pending connect reports its own result.
             Log.i(TAG, "Friend Inprogress");
             return;
         } else if (mState == StreamState.Connected) {
             try {
                 openPortforwarding();
                 Log.i(TAG, "Friend Ready");
+                mReconnect.onConnected();
             } catch (CarrierException e) {
                 e.printStackTrace();
 
                 Log.e(TAG, "Portforwarding to " + getServerId() + " opened error.");
+                mReconnect.onFailure();
             }
             return;
         } else {
-            mState = StreamState.Closed;
+            final String serverId = getServerId();
+            final SessionPool pool = PfdAgent.singleton(this.storePath).getSessionPool();
 
-            int sopt = Stream.PROPERTY_MULTIPLEXING
-                    | Stream.PROPERTY_PORT_FORWARDING
-                    | Stream.PROPERTY_RELIABLE;
+            mState = StreamState.Connecting;
 
+            CompletableFuture<SessionPool.Lease> connecting;
             try {
-                mSession = PfdAgent.singleton(this.storePath).getSessionManager()
-                        .newSession(mFriendInfo.getUserId());
-                mSession.addStream(StreamType.Application, sopt, this);
-            } catch (CarrierException e) {
-                e.printStackTrace();
+                connecting = pool.acquire(serverId);
+            } catch (RuntimeException e) {
+                mState = StreamState.Closed;
+                throw e;
+            }
 
-                if (mSession == null) {
-                    Log.e(TAG, String.format("New session to %s error (0x%x)",
-                            getServerId(), e.getErrorCode()));
-                } else {
-                    Log.e(TAG, String.format("Add stream error (0x%x)", e.getErrorCode()));
-                    mSession.close();
-                    mSession = null;
+            connecting.whenComplete((lease, e) -> {
+                synchronized (PfdServer.this) {
+                    // Closed while connecting, give the lease back.
+                    if (mState != StreamState.Connecting) {
+                        if (lease != null)
+                            lease.release();
+                        return;
+                    }
+
+                    if (e != null) {
+                        Log.e(TAG, "Connect to " + serverId + " error: " + e.getMessage());
+                        teardown();
+                        mReconnect.onFailure();
+                        return;
+                    }
+
+                    Log.i(TAG, "Stream to " + serverId + " connected.");
+                    mLease = lease;
+                    mStream = lease.getStream();
+                    mState = StreamState.Connected;
+
+                    try {
+                        openPortforwarding();
+                        mReconnect.onConnected();
+                    } catch (CarrierException ex) {
+                        Log.e(TAG, String.format("Portforwarding to %s opened error (0x%x)",
+                                serverId, ex.getErrorCode()));
+                        teardown();
+                        mReconnect.onFailure();
+                    }
                 }
-            }
+            });
         }
     }
 
@@ -205,8 +210,7 @@ public class PfdServer extends AbstractStreamHandler implements SessionRequestCo
             Log.i(TAG, "Portforwarding to " + getName() + " already opened.");
         } else {
             if (mPfId > 0) {
-                mStream.closePortForwarding(mPfId);
-                mPfId = -1;
+                closePortforwarding();
                 mNeedClosePortforwarding = false;
             }
 
@@ -214,8 +218,20 @@ public class PfdServer extends AbstractStreamHandler implements SessionRequestCo
             if (port == null || port.isEmpty()) {
                 port = String.valueOf(findFreePort());
             }
-            mPfId = mStream.openPortForwarding("hivenode", PortForwardingProtocol.TCP,
-                    "127.0.0.1", port);
+
+            ForwardingEngine engine = PfdAgent.singleton(this.storePath).getForwardingEngine();
+            if (engine != null) {
+                try {
+                    mPfId = engine.listen(mStream, "hivenode", "127.0.0.1", Integer.parseInt(port));
+                } catch (IOException e) {
+                    Log.e(TAG, "Listen on port " + port + " error: " + e.getMessage());
+                    throw CarrierException.fromErrorCode(GeneralException.WRONG_STATE, e);
+                }
+                mEngine = engine;
+            } else {
+                mPfId = mStream.openPortForwarding("hivenode", PortForwardingProtocol.TCP,
+                        "127.0.0.1", port);
+            }
 
             mPort = port;
 
@@ -223,22 +239,103 @@ public class PfdServer extends AbstractStreamHandler implements SessionRequestCo
         }
     }
 
-    public void close() {
-        if (mSession != null) {
-            mSession.close();
-            mSession = null;
-            mStream = null;
-            mState = StreamState.Closed;
-            mPfId = -1;
+    /**
+     * Open a SOCKS5 proxy on a local port, tunneled over the stream to this
+     * server. Needs the Java forwarding engine, and the server must relay
+     * SOCKS channels.
+     *
+     * @return the listener id of the proxy, or -1 if not connected.
+     */
+    public synchronized int openSocksProxy(int port) throws IOException {
+        ForwardingEngine engine = PfdAgent.singleton(this.storePath).getForwardingEngine();
+        if (engine == null)
+            throw new IllegalStateException("Java forwarding not enabled");
+
+        if (mState != StreamState.Connected || mStream == null)
+            return -1;
+
+        return engine.listenSocks(mStream, "127.0.0.1", port);
+    }
+
+    private void closePortforwarding() throws CarrierException {
+        if (mEngine != null) {
+            mEngine.closeListener(mPfId);
+            mEngine = null;
+        } else {
+            mStream.closePortForwarding(mPfId);
+        }
+        mPfId = -1;
+    }
+
+    private void attemptReconnect() {
+        if (!isOnline()) {
+            mReconnect.onPeerOffline();
+            return;
+        }
+
+        setupPortforwarding();
+    }
+
+    // The peer is back online, reconnect at once.
+    void reconnectNow() {
+        mReconnect.retryNow();
+    }
+
+    // The peer went offline, reconnect once it is back.
+    void onPeerOffline() {
+        teardown();
+        mReconnect.onPeerOffline();
+    }
+
+    public synchronized void close() {
+        mReconnect.cancel();
+        teardown();
+    }
+
+    private synchronized void teardown() {
+        if (mStream != null && mPfId > 0) {
+            try {
+                closePortforwarding();
+            } catch (CarrierException e) {
+                Log.e(TAG, String.format("Close portforwarding error (0x%x)", e.getErrorCode()));
+            }
+        }
+
+        // The session itself stays pooled until idle, or closed by the pool
+        // once the stream is gone.
+        if (mLease != null) {
+            mLease.release();
+            mLease = null;
         }
+
+        mStream = null;
+        mState = StreamState.Closed;
+        mPfId = -1;
     }
 
     public boolean isConnected() {
         if (mPfId > 0) {
             return true;
         } else {
-            setupPortforwarding();
+            mReconnect.request();
             return false;
         }
     }
+
+    public long getReconnectAttempts() {
+        return mReconnect.getAttemptCount();
+    }
+
+    public long getRecoveryCount() {
+        return mReconnect.getRecoveryCount();
+    }
+
+    // Milliseconds the last outage took to recover, or -1 if none yet.
+    public long getLastTimeToRecover() {
+        return mReconnect.getLastTimeToRecover();
+    }
+
+    public LatencyHistogram getTimeToRecover() {
+        return mReconnect.getTimeToRecover();
+    }
 }
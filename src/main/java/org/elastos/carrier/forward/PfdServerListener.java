@@ -0,0 +1,15 @@
+package org.elastos.carrier.forward;
+
+/**
+ * Receives changes of the server registry of PfdAgent, on the thread that
+ * made the change, usually the carrier thread. Listeners should return
+ * quickly and hand longer work to their own threads.
+ */
+public interface PfdServerListener {
+    void onServerAdded(PfdServer server);
+
+    void onServerRemoved(PfdServer server);
+
+    // Friend info, connection or presence of the server changed.
+    void onServerChanged(PfdServer server);
+}
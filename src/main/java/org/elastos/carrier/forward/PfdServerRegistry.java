@@ -0,0 +1,141 @@
+package org.elastos.carrier.forward;
+
+import org.elastos.carrier.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * Copy-on-write registry of the servers known to PfdAgent.
+ *
+ * Readers take the current immutable snapshot with one volatile read, so
+ * they never block and the list and map they see always agree. Writers
+ * are serialized, build a new snapshot and publish it, then notify the
+ * listeners outside the lock.
+ */
+class PfdServerRegistry {
+    private static String TAG = "PfdServerRegistry";
+
+    static final class Snapshot {
+        final List<PfdServer> mList;
+        final Map<String, PfdServer> mMap;
+
+        Snapshot(List<PfdServer> list, Map<String, PfdServer> map) {
+            mList = Collections.unmodifiableList(list);
+            mMap = Collections.unmodifiableMap(map);
+        }
+    }
+
+    private volatile Snapshot mSnapshot =
+            new Snapshot(new ArrayList<PfdServer>(), new HashMap<String, PfdServer>());
+    private final CopyOnWriteArrayList<PfdServerListener> mListeners = new CopyOnWriteArrayList<>();
+
+    Snapshot snapshot() {
+        return mSnapshot;
+    }
+
+    List<PfdServer> list() {
+        return mSnapshot.mList;
+    }
+
+    PfdServer get(String serverId) {
+        return serverId != null ? mSnapshot.mMap.get(serverId) : null;
+    }
+
+    /**
+     * Get the server, adding the one created by the factory if absent.
+     */
+    PfdServer getOrAdd(String serverId, Function<String, PfdServer> factory) {
+        PfdServer server;
+
+        synchronized (this) {
+            server = get(serverId);
+            if (server != null)
+                return server;
+
+            server = factory.apply(serverId);
+            List<PfdServer> list = new ArrayList<>(mSnapshot.mList);
+            Map<String, PfdServer> map = new HashMap<>(mSnapshot.mMap);
+            list.add(server);
+            map.put(serverId, server);
+            mSnapshot = new Snapshot(list, map);
+        }
+
+        for (PfdServerListener listener : mListeners) {
+            try {
+                listener.onServerAdded(server);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Server listener error: " + e);
+            }
+        }
+        return server;
+    }
+
+    PfdServer remove(String serverId) {
+        PfdServer server;
+
+        synchronized (this) {
+            server = get(serverId);
+            if (server == null)
+                return null;
+
+            List<PfdServer> list = new ArrayList<>(mSnapshot.mList);
+            Map<String, PfdServer> map = new HashMap<>(mSnapshot.mMap);
+            list.remove(server);
+            map.remove(serverId);
+            mSnapshot = new Snapshot(list, map);
+        }
+
+        for (PfdServerListener listener : mListeners) {
+            try {
+                listener.onServerRemoved(server);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Server listener error: " + e);
+            }
+        }
+        return server;
+    }
+
+    List<PfdServer> clear() {
+        List<PfdServer> servers;
+
+        synchronized (this) {
+            servers = mSnapshot.mList;
+            mSnapshot = new Snapshot(new ArrayList<PfdServer>(), new HashMap<String, PfdServer>());
+        }
+
+        for (PfdServer server : servers) {
+            for (PfdServerListener listener : mListeners) {
+                try {
+                    listener.onServerRemoved(server);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Server listener error: " + e);
+                }
+            }
+        }
+        return servers;
+    }
+
+    void changed(PfdServer server) {
+        for (PfdServerListener listener : mListeners) {
+            try {
+                listener.onServerChanged(server);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Server listener error: " + e);
+            }
+        }
+    }
+
+    void addListener(PfdServerListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    void removeListener(PfdServerListener listener) {
+        mListeners.remove(listener);
+    }
+}
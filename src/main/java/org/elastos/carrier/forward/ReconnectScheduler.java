@@ -0,0 +1,208 @@
+package org.elastos.carrier.forward;
+
+import org.elastos.carrier.Log;
+import org.elastos.carrier.session.LatencyHistogram;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Schedules reconnect attempts of one PfdServer.
+ *
+ * At most one attempt is pending or running at a time. Failed attempts are
+ * retried after an exponential backoff with equal jitter, from BASE_DELAY
+ * up to MAX_DELAY, and the scheduler gives up after MAX_ATTEMPTS until the
+ * peer is reported back. The time from losing the forwarding to having it
+ * again is recorded as time to recover.
+ */
+class ReconnectScheduler {
+    private static String TAG = "ReconnectScheduler";
+
+    static final long BASE_DELAY = 1000;
+    static final long MAX_DELAY = 60 * 1000;
+    static final int MAX_ATTEMPTS = 10;
+
+    private static volatile ScheduledExecutorService timer;
+
+    private final Supplier<String> mName;
+    private final Runnable mAttempt;
+
+    private ScheduledFuture<?> mPending;
+    private boolean mInProgress;
+    private boolean mGivenUp;
+    private int mAttempts;
+    private long mOutageStart;
+    private boolean mConnectedOnce;
+
+    private final AtomicLong mTotalAttempts = new AtomicLong(0);
+    private final AtomicLong mRecoveries = new AtomicLong(0);
+    private final AtomicLong mGiveUps = new AtomicLong(0);
+    private final LatencyHistogram mTimeToRecover = new LatencyHistogram();
+    private volatile long mLastTimeToRecover = -1;
+
+    ReconnectScheduler(Supplier<String> name, Runnable attempt) {
+        mName = name;
+        mAttempt = attempt;
+    }
+
+    private static ScheduledExecutorService getTimer() {
+        ScheduledExecutorService executor = timer;
+        if (executor == null) {
+            synchronized (ReconnectScheduler.class) {
+                executor = timer;
+                if (executor == null) {
+                    executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread thread = new Thread(r, "ReconnectScheduler");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    timer = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    // Start reconnecting unless an attempt is already pending or running.
+    synchronized void request() {
+        if (mPending != null || mInProgress || mGivenUp)
+            return;
+
+        schedule(0);
+    }
+
+    // The peer is back, retry at once with a fresh backoff.
+    synchronized void retryNow() {
+        mGivenUp = false;
+        mAttempts = 0;
+        if (mInProgress)
+            return;
+
+        cancelPending();
+        schedule(0);
+    }
+
+    synchronized void onFailure() {
+        mInProgress = false;
+        if (mPending != null)
+            return;
+
+        if (mAttempts >= MAX_ATTEMPTS) {
+            mGivenUp = true;
+            mGiveUps.incrementAndGet();
+            Log.w(TAG, "Reconnect " + mName.get() + " given up after " + mAttempts + " attempts");
+            return;
+        }
+
+        long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(Math.max(0, mAttempts - 1), 16));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        Log.i(TAG, "Reconnect " + mName.get() + " in " + delay + "ms, attempt " + (mAttempts + 1));
+        schedule(delay);
+    }
+
+    synchronized void onConnected() {
+        mInProgress = false;
+        mGivenUp = false;
+        mAttempts = 0;
+        cancelPending();
+
+        // The first connect is not a recovery.
+        if (!mConnectedOnce) {
+            mConnectedOnce = true;
+            mOutageStart = 0;
+        } else if (mOutageStart > 0) {
+            long ttr = System.currentTimeMillis() - mOutageStart;
+            mOutageStart = 0;
+            mLastTimeToRecover = ttr;
+            mTimeToRecover.record(ttr, TimeUnit.MILLISECONDS);
+            mRecoveries.incrementAndGet();
+            Log.i(TAG, "Forwarding to " + mName.get() + " recovered in " + ttr + "ms");
+        }
+    }
+
+    // The forwarding was lost, reconnect if the peer is online.
+    synchronized void onDisconnected(boolean peerOnline) {
+        mInProgress = false;
+        if (mOutageStart == 0)
+            mOutageStart = System.currentTimeMillis();
+
+        if (peerOnline && mPending == null && !mGivenUp)
+            schedule(mAttempts == 0 ? 0 : BASE_DELAY);
+    }
+
+    // The peer is offline, wait for retryNow().
+    synchronized void onPeerOffline() {
+        mInProgress = false;
+        cancelPending();
+        if (mOutageStart == 0)
+            mOutageStart = System.currentTimeMillis();
+    }
+
+    // Closed on purpose, no outage to recover from.
+    synchronized void cancel() {
+        cancelPending();
+        mInProgress = false;
+        mOutageStart = 0;
+        mAttempts = 0;
+    }
+
+    private void schedule(long delay) {
+        if (mOutageStart == 0)
+            mOutageStart = System.currentTimeMillis();
+
+        mPending = submit(this::attempt, delay);
+    }
+
+    // Run the task after delay milliseconds on the reconnect timer.
+    ScheduledFuture<?> submit(Runnable task, long delay) {
+        return getTimer().schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelPending() {
+        if (mPending != null) {
+            mPending.cancel(false);
+            mPending = null;
+        }
+    }
+
+    private void attempt() {
+        synchronized (this) {
+            mPending = null;
+            mInProgress = true;
+            mAttempts++;
+        }
+        mTotalAttempts.incrementAndGet();
+
+        try {
+            mAttempt.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Reconnect " + mName.get() + " error: " + e);
+            onFailure();
+        }
+    }
+
+    long getAttemptCount() {
+        return mTotalAttempts.get();
+    }
+
+    long getRecoveryCount() {
+        return mRecoveries.get();
+    }
+
+    long getGiveUpCount() {
+        return mGiveUps.get();
+    }
+
+    long getLastTimeToRecover() {
+        return mLastTimeToRecover;
+    }
+
+    LatencyHistogram getTimeToRecover() {
+        return mTimeToRecover;
+    }
+}
@@ -0,0 +1,126 @@
+package org.elastos.carrier.forward;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parsing of the SOCKS5 greeting and CONNECT request (RFC 1928).
+ *
+ * The parsers read from a buffer flipped for reading. While a message is
+ * incomplete they leave the buffer position untouched, so the caller can
+ * compact it and read more.
+ */
+final class Socks5 {
+    static final byte VERSION = 5;
+    static final byte NO_AUTH = 0;
+    static final byte NO_ACCEPTABLE_METHODS = (byte)0xff;
+
+    static final byte SUCCEEDED = 0;
+    static final byte GENERAL_FAILURE = 1;
+    static final byte CONNECTION_REFUSED = 5;
+    static final byte COMMAND_NOT_SUPPORTED = 7;
+    static final byte ADDRESS_NOT_SUPPORTED = 8;
+
+    // Results of parseGreeting.
+    static final int GREETING_INCOMPLETE = 0;
+    static final int GREETING_NO_AUTH = 1;
+    static final int GREETING_NO_METHOD = 2;
+    static final int GREETING_BAD_VERSION = 3;
+
+    // A request refused with the reply status.
+    static class RequestException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final byte mStatus;
+
+        RequestException(byte status) {
+            super("SOCKS request refused with status " + status);
+            mStatus = status;
+        }
+
+        byte getStatus() {
+            return mStatus;
+        }
+    }
+
+    private Socks5() {
+    }
+
+    static int parseGreeting(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < 2 || buffer.remaining() < 2 + (buffer.get(start + 1) & 0xff))
+            return GREETING_INCOMPLETE;
+
+        if (buffer.get() != VERSION)
+            return GREETING_BAD_VERSION;
+
+        int methods = buffer.get() & 0xff;
+        boolean noAuth = false;
+        for (int i = 0; i < methods; i++)
+            noAuth |= buffer.get() == NO_AUTH;
+
+        return noAuth ? GREETING_NO_AUTH : GREETING_NO_METHOD;
+    }
+
+    // Returns the target as "host:port", or null until the whole request is
+    // buffered.
+    static String parseRequest(ByteBuffer buffer) throws RequestException {
+        if (buffer.remaining() < 5)
+            return null;
+
+        int start = buffer.position();
+        if (buffer.get(start) != VERSION)
+            throw new RequestException(GENERAL_FAILURE);
+
+        byte command = buffer.get(start + 1);
+        byte type = buffer.get(start + 3);
+
+        int addressLength;
+        switch (type) {
+            case 1:
+                addressLength = 4;
+                break;
+            case 3:
+                addressLength = 1 + (buffer.get(start + 4) & 0xff);
+                break;
+            case 4:
+                addressLength = 16;
+                break;
+            default:
+                throw new RequestException(ADDRESS_NOT_SUPPORTED);
+        }
+
+        if (buffer.remaining() < 4 + addressLength + 2)
+            return null;
+
+        if (command != 1)
+            throw new RequestException(COMMAND_NOT_SUPPORTED);
+
+        buffer.position(start + 4);
+        String host;
+        if (type == 3) {
+            byte[] name = new byte[buffer.get() & 0xff];
+            buffer.get(name);
+            host = new String(name, StandardCharsets.US_ASCII);
+            if (host.isEmpty())
+                throw new RequestException(ADDRESS_NOT_SUPPORTED);
+        } else {
+            byte[] address = new byte[addressLength];
+            buffer.get(address);
+            try {
+                host = InetAddress.getByAddress(address).getHostAddress();
+            } catch (UnknownHostException e) {
+                throw new RequestException(ADDRESS_NOT_SUPPORTED);
+            }
+        }
+        int port = buffer.getShort() & 0xffff;
+
+        return host + ":" + port;
+    }
+
+    static byte[] reply(byte status) {
+        return new byte[] { VERSION, status, 0, 1, 0, 0, 0, 0, 0, 0 };
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier.session;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.elastos.carrier.exceptions.CarrierException;
+
+/*
+ * The output stream of a stream or one of its channels, coalescing small
+ * writes into frames of the buffer size.
+ */
+class BufferedChannelOutputStream extends OutputStream {
+	private Stream stream;
+	private int channel;
+	private final byte[] buffer;
+	private int count;
+
+	BufferedChannelOutputStream(Stream stream, int channel, int bufferSize) {
+		this.stream = stream;
+		this.channel = channel;
+		this.buffer = new byte[bufferSize];
+		this.count = 0;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (stream == null)
+			throw new IOException("Stream closed");
+	}
+
+	private void writeFully(byte[] b, int offset, int len) throws IOException {
+		try {
+			stream.writeFully(channel, b, offset, len);
+		} catch (CarrierException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count > 0) {
+			writeFully(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	@Override
+	public synchronized void write(int i) throws IOException {
+		ensureOpen();
+
+		if (count == buffer.length)
+			flushBuffer();
+
+		buffer[count++] = (byte)i;
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int offset, int len) throws IOException {
+		if (b == null)
+			throw new NullPointerException();
+		if (offset < 0 || len < 0 || offset + len > b.length)
+			throw new IndexOutOfBoundsException();
+
+		ensureOpen();
+
+		// Coalesce into the frame buffer as long as data fits.
+		if (len <= buffer.length - count) {
+			System.arraycopy(b, offset, buffer, count, len);
+			count += len;
+			if (count == buffer.length)
+				flushBuffer();
+			return;
+		}
+
+		// Top up the pending frame, then send full frames straight from
+		// the caller's array and keep the tail for coalescing.
+		int fill = buffer.length - count;
+		System.arraycopy(b, offset, buffer, count, fill);
+		count += fill;
+		offset += fill;
+		len -= fill;
+		flushBuffer();
+
+		while (len >= buffer.length) {
+			writeFully(b, offset, buffer.length);
+			offset += buffer.length;
+			len -= buffer.length;
+		}
+
+		System.arraycopy(b, offset, buffer, 0, len);
+		count = len;
+	}
+
+	@Override
+	public synchronized void flush() throws IOException {
+		ensureOpen();
+		flushBuffer();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (stream == null)
+			return;
+
+		try {
+			flushBuffer();
+		} finally {
+			try {
+				if (channel > 0)
+					stream.closeChannel(channel);
+			} catch (CarrierException e) {
+				throw new IOException(e);
+			} finally {
+				this.stream = null;
+				this.channel = -1;
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier.session;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.elastos.carrier.exceptions.CarrierException;
+
+/*
+ * The attachments of the channels of a stream, which take over the events
+ * of their channels from the stream handler.
+ */
+final class ChannelAttachments implements StreamFeature {
+	private final Stream stream;
+	private final ConcurrentHashMap<Integer, ChannelAttachment> attachments = new ConcurrentHashMap<>();
+
+	ChannelAttachments(Stream stream) {
+		this.stream = stream;
+	}
+
+	// Open a channel with its events routed to the attachment. The channel
+	// events are held until the attachment is in place.
+	int open(String cookie, ChannelAttachment attachment) throws CarrierException {
+		synchronized (this) {
+			int channel = stream.openChannel(cookie);
+			attachments.put(channel, attachment);
+			return channel;
+		}
+	}
+
+	void attach(int channel, ChannelAttachment attachment) {
+		attachments.put(channel, attachment);
+	}
+
+	void detach(int channel, ChannelAttachment attachment) {
+		attachments.remove(channel, attachment);
+	}
+
+	ChannelAttachment of(int channel) {
+		return attachments.isEmpty() ? null : attachments.get(channel);
+	}
+
+	// The attachment of a channel being opened, once open() has put it.
+	ChannelAttachment await(int channel) {
+		if (attachments.isEmpty())
+			return null;
+
+		synchronized (this) {
+			return attachments.get(channel);
+		}
+	}
+
+	@Override
+	public void onChannelClosed(int channel, CloseReason reason) {
+		attachments.remove(channel);
+	}
+
+	@Override
+	public void onStreamClosed(StreamState state) {
+		for (ChannelAttachment attachment : attachments.values())
+			attachment.onStreamClosed(stream, state);
+		attachments.clear();
+	}
+}
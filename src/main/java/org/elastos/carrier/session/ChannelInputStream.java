@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.Log;
+import org.elastos.carrier.exceptions.CarrierException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The class representing a pull-side input of stream or channel data.
+ *
+ * Incoming data is kept in a bounded ring buffer until it is read. For
+ * multiplexing channels, the remote peer is asked to pend the channel once
+ * the buffered data passes the high watermark, and to resume it once the
+ * buffer drains below the low watermark. Data beyond the buffer capacity
+ * fails the input and closes the channel with error.
+ *
+ * Stream layered data has no flow control, so a whole stream input relies
+ * on its capacity only.
+ */
+public class ChannelInputStream extends InputStream implements ReadableByteChannel {
+	private static final String TAG = "ChannelInputStream";
+
+	/**
+	 * Default capacity of the receive buffer.
+	 */
+	public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+	private final Stream stream;
+	private final int channel;
+	private final byte[] ring;
+	private int head;
+	private int size;
+	private int lowWatermark;
+	private int highWatermark;
+
+	private boolean paused = false;
+	private boolean eof = false;
+	private boolean closed = false;
+	private String error;
+
+	ChannelInputStream(Stream stream, int channel, int capacity) {
+		this.stream = stream;
+		this.channel = channel;
+		this.ring = new byte[capacity];
+		this.lowWatermark = capacity / 4;
+		this.highWatermark = capacity - capacity / 4;
+	}
+
+	/**
+	 * Get the channel ID of this input.
+	 *
+	 * @return
+	 *      The channel ID, or -1 for the input of stream layered data.
+	 */
+	public int getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Get the capacity of the receive buffer.
+	 *
+	 * @return
+	 *      The capacity in bytes.
+	 */
+	public int getCapacity() {
+		return ring.length;
+	}
+
+	/**
+	 * Set the watermarks to pend and resume the channel.
+	 *
+	 * @param
+	 *      low         Resume the channel once buffered data drops to this size
+	 * @param
+	 *      high        Pend the channel once buffered data reaches this size
+	 */
+	public synchronized void setWatermarks(int low, int high) {
+		if (low < 0 || high <= low || high > ring.length)
+			throw new IllegalArgumentException();
+
+		this.lowWatermark = low;
+		this.highWatermark = high;
+	}
+
+	/**
+	 * Check if the remote peer is currently asked to pend the channel.
+	 *
+	 * @return
+	 *      True if the channel is pended by this input, otherwise false.
+	 */
+	public synchronized boolean isPaused() {
+		return paused;
+	}
+
+	boolean offer(byte[] data) {
+		boolean pend = false;
+
+		synchronized (this) {
+			if (closed)
+				return true;
+
+			if (eof || error != null)
+				return false;
+
+			if (data.length > ring.length - size) {
+				error = "Receive buffer overflow";
+				notifyAll();
+				return false;
+			}
+
+			int tail = (head + size) % ring.length;
+			int first = Math.min(data.length, ring.length - tail);
+			System.arraycopy(data, 0, ring, tail, first);
+			System.arraycopy(data, first, ring, 0, data.length - first);
+			size += data.length;
+
+			if (channel > 0 && !paused && size >= highWatermark) {
+				paused = true;
+				pend = true;
+			}
+
+			notifyAll();
+		}
+
+		if (pend) {
+			try {
+				stream.pendChannel(channel);
+			} catch (CarrierException e) {
+				Log.e(TAG, String.format("Pend channel %d error (0x%x)", channel, e.getErrorCode()));
+			}
+		}
+
+		return true;
+	}
+
+	synchronized void finish(String error) {
+		if (error != null && this.error == null)
+			this.error = error;
+
+		eof = true;
+		// The channel is gone, its id must not be resumed once reused.
+		paused = false;
+		notifyAll();
+	}
+
+	private void resumeIfNeeded(boolean resume) {
+		if (!resume)
+			return;
+
+		try {
+			stream.resumeChannel(channel);
+		} catch (CarrierException e) {
+			Log.e(TAG, String.format("Resume channel %d error (0x%x)", channel, e.getErrorCode()));
+		}
+	}
+
+	// Returns true if the remote peer should be resumed.
+	private boolean consumed(int bytes) {
+		head = (head + bytes) % ring.length;
+		size -= bytes;
+
+		if (paused && size <= lowWatermark) {
+			paused = false;
+			return true;
+		}
+		return false;
+	}
+
+	private boolean awaitData() throws IOException {
+		try {
+			while (size == 0 && !eof && !closed && error == null)
+				wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+
+		if (closed)
+			throw new IOException("Input closed");
+
+		if (size == 0) {
+			if (error != null)
+				throw new IOException(error);
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int value;
+		boolean resume;
+
+		synchronized (this) {
+			if (!awaitData())
+				return -1;
+
+			value = ring[head] & 0xFF;
+			resume = consumed(1);
+		}
+
+		resumeIfNeeded(resume);
+		return value;
+	}
+
+	@Override
+	public int read(byte[] b, int offset, int len) throws IOException {
+		if (b == null)
+			throw new NullPointerException();
+		if (offset < 0 || len < 0 || offset + len > b.length)
+			throw new IndexOutOfBoundsException();
+		if (len == 0)
+			return 0;
+
+		int bytes;
+		boolean resume;
+
+		synchronized (this) {
+			if (!awaitData())
+				return -1;
+
+			bytes = Math.min(len, size);
+			int first = Math.min(bytes, ring.length - head);
+			System.arraycopy(ring, head, b, offset, first);
+			System.arraycopy(ring, 0, b, offset + first, bytes - first);
+			resume = consumed(bytes);
+		}
+
+		resumeIfNeeded(resume);
+		return bytes;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!dst.hasRemaining())
+			return 0;
+
+		int bytes;
+		boolean resume;
+
+		synchronized (this) {
+			if (closed)
+				throw new ClosedChannelException();
+
+			if (!awaitData())
+				return -1;
+
+			bytes = Math.min(dst.remaining(), size);
+			int first = Math.min(bytes, ring.length - head);
+			dst.put(ring, head, first);
+			dst.put(ring, 0, bytes - first);
+			resume = consumed(bytes);
+		}
+
+		resumeIfNeeded(resume);
+		return bytes;
+	}
+
+	@Override
+	public synchronized int available() throws IOException {
+		if (closed)
+			throw new IOException("Input closed");
+
+		return size;
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * Close the input and detach it from the stream. Subsequent incoming
+	 * data goes to the stream handler again. The channel itself is not
+	 * closed.
+	 */
+	@Override
+	public void close() {
+		boolean resume;
+
+		synchronized (this) {
+			if (closed)
+				return;
+
+			closed = true;
+			resume = paused;
+			paused = false;
+			size = 0;
+			notifyAll();
+		}
+
+		stream.getInputs().detach(channel, this);
+		resumeIfNeeded(resume);
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier.session;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * The input streams of a stream and its channels. Data of a channel with an
+ * input stream is buffered for it instead of being delivered to the handler.
+ */
+final class ChannelInputs implements StreamFeature {
+	private final Stream stream;
+	private final ConcurrentHashMap<Integer, ChannelInputStream> inputs = new ConcurrentHashMap<>();
+
+	ChannelInputs(Stream stream) {
+		this.stream = stream;
+	}
+
+	ChannelInputStream attach(int channel, int capacity) {
+		return inputs.computeIfAbsent(channel, k -> new ChannelInputStream(stream, k, capacity));
+	}
+
+	ChannelInputStream of(int channel) {
+		return inputs.isEmpty() ? null : inputs.get(channel);
+	}
+
+	void detach(int channel, ChannelInputStream input) {
+		inputs.remove(channel, input);
+	}
+
+	@Override
+	public void onChannelClosed(int channel, CloseReason reason) {
+		// Native channel ids are reused, so the finished input is detached
+		// right away. The reader keeps draining the data it has buffered.
+		ChannelInputStream input = inputs.remove(channel);
+		if (input != null)
+			input.finish(reason == CloseReason.Normal ? null :
+					"Channel closed with " + reason.name().toLowerCase());
+	}
+
+	@Override
+	public void onStreamClosed(StreamState state) {
+		String error = state == StreamState.Closed ? null : "Stream " + state.name().toLowerCase();
+		for (ChannelInputStream input : inputs.values())
+			input.finish(error);
+	}
+}
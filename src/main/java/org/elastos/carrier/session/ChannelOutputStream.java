@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier.session;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.elastos.carrier.exceptions.CarrierException;
+
+/*
+ * The output stream of a stream or one of its channels, writing straight
+ * through to the stream.
+ */
+class ChannelOutputStream extends OutputStream {
+	private Stream stream;
+	private int channel;
+
+	ChannelOutputStream(Stream stream, int channel) {
+		this.stream = stream;
+		this.channel = channel;
+	}
+
+	ChannelOutputStream(Stream stream) {
+		this(stream, -1);
+	}
+
+	@Override
+	public void write(int i) throws IOException {
+		try {
+			if (channel < 0) {
+				stream.writeData((byte) i);
+			} else {
+				stream.writeData(channel, (byte) i);
+			}
+		} catch (CarrierException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException {
+		try {
+			if (channel < 0) {
+				stream.writeData(b);
+			} else {
+				stream.writeData(channel, b);
+			}
+		} catch (CarrierException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int offset, int len) throws IOException {
+		try {
+			if (channel < 0) {
+				stream.writeData(b, offset, len);
+			} else {
+				stream.writeData(channel, b, offset, len);
+			}
+		} catch (CarrierException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (stream == null)
+			return;
+
+		try {
+			if (channel > 0) {
+				stream.closeChannel(channel);
+
+				this.stream = null;
+				this.channel = -1;
+			}
+		} catch (CarrierException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.Log;
+import org.elastos.carrier.exceptions.CarrierException;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The class representing a router of incoming channels to services by
+ * channel cookie.
+ *
+ * Services register an exact cookie, matched by one hash lookup, or a cookie
+ * prefix, matched by the longest prefix in a trie. The data and close events
+ * of a routed channel run on the executor of its service, serially per
+ * channel, instead of on the carrier thread. A channel is pended while too
+ * much of its data waits for the executor, and resumed once it drains.
+ *
+ * The stream handler calls route() first in StreamHandler.onChannelOpen and
+ * returns true if it returns true.
+ */
+public class ChannelRouter {
+	private static final String TAG = "ChannelRouter";
+
+	/**
+	 * Default bytes waiting for the executor before a channel is pended.
+	 */
+	public static final int DEFAULT_HIGH_WATERMARK = 256 * 1024;
+
+	private static class Service {
+		final ChannelServiceHandler handler;
+		final Executor executor;
+
+		Service(ChannelServiceHandler handler, Executor executor) {
+			this.handler = handler;
+			this.executor = executor;
+		}
+	}
+
+	private static class Node {
+		final ConcurrentHashMap<Character, Node> children = new ConcurrentHashMap<>();
+		volatile Service service;
+	}
+
+	private class RoutedChannel implements ChannelAttachment, Runnable {
+		private final Service service;
+		private final Stream stream;
+		private final int channel;
+
+		private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+		private boolean scheduled;
+		private long queuedBytes;
+		private boolean pended;
+
+		RoutedChannel(Service service, Stream stream, int channel) {
+			this.service = service;
+			this.stream = stream;
+			this.channel = channel;
+		}
+
+		private void submit(Runnable task, int bytes) {
+			boolean pend;
+			boolean schedule;
+
+			synchronized (this) {
+				tasks.add(task);
+				queuedBytes += bytes;
+				pend = !pended && queuedBytes >= highWatermark;
+				if (pend)
+					pended = true;
+				schedule = !scheduled;
+				scheduled = true;
+			}
+
+			if (pend)
+				pend(true);
+
+			if (schedule) {
+				try {
+					service.executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					Log.e(TAG, "Service executor rejected channel " + channel + ", run inline");
+					run();
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			for (;;) {
+				Runnable task;
+
+				synchronized (this) {
+					task = tasks.poll();
+					if (task == null) {
+						scheduled = false;
+						return;
+					}
+				}
+
+				task.run();
+			}
+		}
+
+		private void consumed(int bytes) {
+			boolean resume;
+
+			synchronized (this) {
+				queuedBytes -= bytes;
+				resume = pended && queuedBytes <= highWatermark / 4;
+				if (resume)
+					pended = false;
+			}
+
+			if (resume)
+				pend(false);
+		}
+
+		private void pend(boolean pend) {
+			try {
+				if (pend)
+					stream.pendChannel(channel);
+				else
+					stream.resumeChannel(channel);
+			} catch (CarrierException e) {
+				Log.w(TAG, String.format("%s channel %d error (0x%x)",
+						pend ? "Pend" : "Resume", channel, e.getErrorCode()));
+			}
+		}
+
+		@Override
+		public boolean onChannelData(Stream stream, int channel, byte[] data) {
+			submit(() -> {
+				try {
+					service.handler.onChannelData(stream, channel, data);
+				} finally {
+					consumed(data.length);
+				}
+			}, data.length);
+			return true;
+		}
+
+		@Override
+		public void onChannelOpened(Stream stream, int channel) {
+		}
+
+		@Override
+		public void onChannelClose(Stream stream, int channel, CloseReason reason) {
+			submit(() -> service.handler.onChannelClose(stream, channel, reason), 0);
+		}
+
+		@Override
+		public void onStreamClosed(Stream stream, StreamState state) {
+			CloseReason reason = state == StreamState.Closed ? CloseReason.Normal : CloseReason.Error;
+			submit(() -> service.handler.onChannelClose(stream, channel, reason), 0);
+		}
+	}
+
+	private final ConcurrentHashMap<String, Service> exact = new ConcurrentHashMap<>();
+	private final Node root = new Node();
+	private final int highWatermark;
+
+	private final AtomicLong routed = new AtomicLong(0);
+	private final AtomicLong unmatched = new AtomicLong(0);
+
+	/**
+	 * Create a channel router.
+	 */
+	public ChannelRouter() {
+		this(DEFAULT_HIGH_WATERMARK);
+	}
+
+	/**
+	 * Create a channel router.
+	 *
+	 * @param
+	 *      highWatermark   The bytes of a channel waiting for the executor
+	 *                      before the channel is pended
+	 */
+	public ChannelRouter(int highWatermark) {
+		if (highWatermark <= 0)
+			throw new IllegalArgumentException();
+
+		this.highWatermark = highWatermark;
+	}
+
+	/**
+	 * Register a service for channels with the exact cookie.
+	 *
+	 * @param
+	 *      cookie      The channel cookie
+	 * @param
+	 *      handler     The service handler
+	 * @param
+	 *      executor    The executor running the service callbacks
+	 */
+	public void register(String cookie, ChannelServiceHandler handler, Executor executor) {
+		if (cookie == null || handler == null || executor == null)
+			throw new IllegalArgumentException();
+
+		exact.put(cookie, new Service(handler, executor));
+	}
+
+	/**
+	 * Register a service for channels with cookies starting with the prefix.
+	 * The longest matching prefix wins, and exact cookies take precedence
+	 * over prefixes.
+	 *
+	 * @param
+	 *      prefix      The channel cookie prefix
+	 * @param
+	 *      handler     The service handler
+	 * @param
+	 *      executor    The executor running the service callbacks
+	 */
+	public synchronized void registerPrefix(String prefix, ChannelServiceHandler handler, Executor executor) {
+		if (prefix == null || handler == null || executor == null)
+			throw new IllegalArgumentException();
+
+		Node node = root;
+		for (int i = 0; i < prefix.length(); i++)
+			node = node.children.computeIfAbsent(prefix.charAt(i), k -> new Node());
+
+		node.service = new Service(handler, executor);
+	}
+
+	/**
+	 * Unregister the service of the exact cookie. Channels already routed
+	 * keep their service.
+	 *
+	 * @param
+	 *      cookie      The channel cookie
+	 */
+	public void unregister(String cookie) {
+		exact.remove(cookie);
+	}
+
+	/**
+	 * Unregister the service of the cookie prefix. Channels already routed
+	 * keep their service.
+	 *
+	 * @param
+	 *      prefix      The channel cookie prefix
+	 */
+	public synchronized void unregisterPrefix(String prefix) {
+		Node node = root;
+		for (int i = 0; i < prefix.length() && node != null; i++)
+			node = node.children.get(prefix.charAt(i));
+
+		if (node != null)
+			node.service = null;
+	}
+
+	private Service match(String cookie) {
+		Service service = exact.get(cookie);
+		if (service != null)
+			return service;
+
+		Node node = root;
+		service = node.service;
+		for (int i = 0; i < cookie.length(); i++) {
+			node = node.children.get(cookie.charAt(i));
+			if (node == null)
+				break;
+
+			Service candidate = node.service;
+			if (candidate != null)
+				service = candidate;
+		}
+
+		return service;
+	}
+
+	/**
+	 * Route an incoming channel to its service. Must be called from
+	 * StreamHandler.onChannelOpen.
+	 *
+	 * @param
+	 *      stream      The stream of incoming channel
+	 * @param
+	 *      channel     The incoming channel ID
+	 * @param
+	 *      cookie      The incoming channel cookie
+	 *
+	 * @return
+	 *      True if a service accepted the channel, false if no service
+	 *      matches the cookie or the service refused it.
+	 */
+	public boolean route(Stream stream, int channel, String cookie) {
+		Service service = match(cookie == null ? "" : cookie);
+		if (service == null) {
+			unmatched.incrementAndGet();
+			return false;
+		}
+
+		if (!service.handler.onChannelOpen(stream, channel, cookie))
+			return false;
+
+		stream.getAttachments().attach(channel, new RoutedChannel(service, stream, channel));
+		routed.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Get the number of routed channels.
+	 *
+	 * @return
+	 *      The routed channel count.
+	 */
+	public long getRoutedCount() {
+		return routed.get();
+	}
+
+	/**
+	 * Get the number of channels matching no service.
+	 *
+	 * @return
+	 *      The unmatched channel count.
+	 */
+	public long getUnmatchedCount() {
+		return unmatched.get();
+	}
+}
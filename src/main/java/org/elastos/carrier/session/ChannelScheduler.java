@@ -0,0 +1,474 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.Log;
+import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.exceptions.GeneralException;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The class representing a weighted fair scheduler of channel writes on a
+ * multiplexing stream.
+ *
+ * Data submitted to the scheduler is queued per channel and sent in slices
+ * of at most the slice size, interleaving the channels with deficit round
+ * robin. Each round a channel may send up to its weight times the slice size,
+ * so a bulk channel can not hold the stream for longer than one quantum while
+ * other channels have data queued. Channels pended by the remote peer are
+ * skipped until resumed.
+ *
+ * The slices are written with Stream.writeData, so they are held as early
+ * data before the stream is connected, and queued by the channel send queue
+ * while pended. The queues of all the streams are drained by a shared pool
+ * of sender threads, which only runs while some channel has data to send.
+ */
+public class ChannelScheduler {
+	private static final String TAG = "ChannelScheduler";
+
+	/**
+	 * Default maximum queued bytes per channel.
+	 */
+	public static final int DEFAULT_QUEUE_LIMIT = 1024 * 1024;
+
+	private static final long BUSY_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static final AtomicInteger index = new AtomicInteger(0);
+	private static final ExecutorService senders = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "ChannelScheduler-" + index.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * The priority classes of channels, as presets of weight.
+	 */
+	public enum Priority {
+		/**
+		 * Small latency sensitive messages, such as control or RPC traffic.
+		 */
+		Interactive(16),
+
+		/**
+		 * Default class.
+		 */
+		Normal(4),
+
+		/**
+		 * Bulk transfers using the spare bandwidth.
+		 */
+		Bulk(1);
+
+		private final int weight;
+
+		Priority(int weight) {
+			this.weight = weight;
+		}
+
+		public int weight() {
+			return weight;
+		}
+	}
+
+	private static class Flow {
+		final int channel;
+		int weight = Priority.Normal.weight();
+		final ArrayDeque<byte[]> frames = new ArrayDeque<>();
+		int headOffset;
+		long queuedBytes;
+		long sentBytes;
+		int deficit;
+		boolean visited;
+		boolean pending;
+		boolean active;
+		boolean removed;
+
+		Flow(int channel) {
+			this.channel = channel;
+		}
+
+		void clear() {
+			frames.clear();
+			headOffset = 0;
+			queuedBytes = 0;
+			deficit = 0;
+			visited = false;
+		}
+	}
+
+	private final Stream stream;
+	private final HashMap<Integer, Flow> flows = new HashMap<>();
+	private final ArrayDeque<Flow> active = new ArrayDeque<>();
+	private int sliceSize;
+	private long queueLimit = DEFAULT_QUEUE_LIMIT;
+	private boolean sending = false;
+	private boolean closed = false;
+
+	ChannelScheduler(Stream stream) {
+		this(stream, stream.getFrameSize());
+	}
+
+	ChannelScheduler(Stream stream, int sliceSize) {
+		this.stream = stream;
+		this.sliceSize = sliceSize;
+	}
+
+	/**
+	 * Set the maximum size of each write to the transport.
+	 *
+	 * @param
+	 *      sliceSize   The slice size in bytes
+	 */
+	public synchronized void setSliceSize(int sliceSize) {
+		if (sliceSize <= 0)
+			throw new IllegalArgumentException();
+
+		this.sliceSize = sliceSize;
+	}
+
+	/**
+	 * Get the maximum size of each write to the transport.
+	 *
+	 * @return
+	 *      The slice size in bytes.
+	 */
+	public synchronized int getSliceSize() {
+		return sliceSize;
+	}
+
+	/**
+	 * Set the maximum queued bytes of each channel.
+	 *
+	 * @param
+	 *      limit       The queue limit in bytes
+	 */
+	public synchronized void setQueueLimit(long limit) {
+		if (limit <= 0)
+			throw new IllegalArgumentException();
+
+		this.queueLimit = limit;
+	}
+
+	/**
+	 * Set the weight of channel.
+	 *
+	 * @param
+	 *      channel     The channel ID
+	 * @param
+	 *      weight      The number of slices the channel may send each round
+	 */
+	public synchronized void setWeight(int channel, int weight) {
+		if (channel <= 0 || weight <= 0)
+			throw new IllegalArgumentException();
+
+		flowOf(channel).weight = weight;
+	}
+
+	/**
+	 * Set the priority class of channel.
+	 *
+	 * @param
+	 *      channel     The channel ID
+	 * @param
+	 *      priority    The priority class
+	 */
+	public void setPriority(int channel, Priority priority) {
+		if (priority == null)
+			throw new IllegalArgumentException();
+
+		setWeight(channel, priority.weight());
+	}
+
+	/**
+	 * Get the weight of channel.
+	 *
+	 * @param
+	 *      channel     The channel ID
+	 *
+	 * @return
+	 *      The channel weight.
+	 */
+	public synchronized int getWeight(int channel) {
+		Flow flow = flows.get(channel);
+		return flow != null ? flow.weight : Priority.Normal.weight();
+	}
+
+	private Flow flowOf(int channel) {
+		Flow flow = flows.get(channel);
+		if (flow == null) {
+			flow = new Flow(channel);
+			flows.put(channel, flow);
+		}
+		return flow;
+	}
+
+	private void activate(Flow flow) {
+		if (flow.active || flow.pending || flow.frames.isEmpty())
+			return;
+
+		flow.active = true;
+		active.add(flow);
+
+		if (!sending && !closed) {
+			sending = true;
+			execute(this::run);
+		}
+	}
+
+	private void deactivate(Flow flow) {
+		if (!flow.active)
+			return;
+
+		flow.active = false;
+		flow.visited = false;
+		flow.deficit = 0;
+		active.remove(flow);
+	}
+
+	/**
+	 * Queue data to send on channel.
+	 *
+	 * @param
+	 *      channel     The channel ID
+	 * @param
+	 *      data        The data to send
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public void send(int channel, byte[] data) throws CarrierException {
+		if (data == null)
+			throw new IllegalArgumentException();
+
+		send(channel, data, 0, data.length);
+	}
+
+	/**
+	 * Queue data to send on channel.
+	 *
+	 * The data is copied into the channel queue. Sending fails with
+	 * LIMIT_EXCEEDED if the channel queue is full.
+	 *
+	 * @param
+	 *      channel     The channel ID
+	 * @param
+	 *      data        The data buffer
+	 * @param
+	 *      offset      The start offset of data
+	 * @param
+	 *      len         The data length
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public void send(int channel, byte[] data, int offset, int len) throws CarrierException {
+		if (channel <= 0 || data == null || offset < 0 || len <= 0 || (offset + len) > data.length)
+			throw new IllegalArgumentException();
+
+		byte[] frame = new byte[len];
+		System.arraycopy(data, offset, frame, 0, len);
+
+		synchronized (this) {
+			if (closed)
+				throw CarrierException.fromErrorCode(GeneralException.WRONG_STATE, "Scheduler closed");
+
+			Flow flow = flowOf(channel);
+			if (flow.queuedBytes + len > queueLimit)
+				throw CarrierException.fromErrorCode(GeneralException.LIMIT_EXCEEDED,
+						String.format("Channel %d send queue is full", channel));
+
+			flow.frames.add(frame);
+			flow.queuedBytes += len;
+			activate(flow);
+		}
+	}
+
+	/**
+	 * Get the number of bytes queued on channel.
+	 *
+	 * @param
+	 *      channel     The channel ID
+	 *
+	 * @return
+	 *      The queued bytes.
+	 */
+	public synchronized long getQueuedBytes(int channel) {
+		Flow flow = flows.get(channel);
+		return flow != null ? flow.queuedBytes : 0;
+	}
+
+	/**
+	 * Get the number of bytes sent on channel through the scheduler.
+	 *
+	 * @param
+	 *      channel     The channel ID
+	 *
+	 * @return
+	 *      The sent bytes.
+	 */
+	public synchronized long getSentBytes(int channel) {
+		Flow flow = flows.get(channel);
+		return flow != null ? flow.sentBytes : 0;
+	}
+
+	synchronized void onChannelPending(int channel) {
+		Flow flow = flowOf(channel);
+		flow.pending = true;
+		deactivate(flow);
+	}
+
+	synchronized void onChannelResume(int channel) {
+		Flow flow = flows.get(channel);
+		if (flow == null)
+			return;
+
+		flow.pending = false;
+		activate(flow);
+	}
+
+	synchronized void removeChannel(int channel) {
+		Flow flow = flows.remove(channel);
+		if (flow == null)
+			return;
+
+		deactivate(flow);
+		flow.clear();
+		flow.removed = true;
+	}
+
+	/**
+	 * Stop sending and drop all the queued data.
+	 */
+	public synchronized void close() {
+		if (closed)
+			return;
+
+		closed = true;
+		for (Flow flow : flows.values()) {
+			flow.clear();
+			flow.removed = true;
+		}
+		flows.clear();
+		active.clear();
+	}
+
+	// Run the sending task on the shared sender pool.
+	void execute(Runnable task) {
+		senders.execute(task);
+	}
+
+	// Write a slice the same way as application writes to the channel.
+	int write(int channel, byte[] data, int offset, int len) throws CarrierException {
+		return stream.writeData(channel, data, offset, len);
+	}
+
+	private void run() {
+		for (;;) {
+			Flow flow;
+			byte[] frame;
+			int offset;
+			int len;
+
+			synchronized (this) {
+				// Give the sender thread back once there is nothing to send.
+				if (closed || active.isEmpty()) {
+					sending = false;
+					return;
+				}
+
+				flow = active.peek();
+				if (!flow.visited) {
+					// Carry over at most one slice, so turns lost to a busy
+					// transport do not pile up into a burst later.
+					flow.deficit = Math.min(flow.deficit, sliceSize) + flow.weight * sliceSize;
+					flow.visited = true;
+				}
+
+				frame = flow.frames.peek();
+				offset = flow.headOffset;
+				len = Math.min(sliceSize, frame.length - offset);
+
+				if (len > flow.deficit) {
+					flow.visited = false;
+					active.poll();
+					active.add(flow);
+					continue;
+				}
+			}
+
+			int bytes;
+			try {
+				bytes = write(flow.channel, frame, offset, len);
+			} catch (CarrierException e) {
+				if (e.getErrorCode() == GeneralException.BUSY) {
+					// Pended with fail fast send queue, retry as a busy transport.
+					bytes = 0;
+				} else {
+					Log.e(TAG, String.format("Write channel %d error (0x%x), dropped queued data",
+							flow.channel, e.getErrorCode()));
+					removeChannel(flow.channel);
+					continue;
+				}
+			}
+
+			boolean busy = false;
+
+			synchronized (this) {
+				if (flow.removed)
+					continue;
+
+				flow.headOffset += bytes;
+				flow.queuedBytes -= bytes;
+				flow.sentBytes += bytes;
+				flow.deficit -= bytes;
+
+				if (flow.headOffset == frame.length) {
+					flow.frames.poll();
+					flow.headOffset = 0;
+				}
+
+				if (flow.frames.isEmpty()) {
+					deactivate(flow);
+				} else if (bytes < len && flow.active) {
+					// Transport is busy, give other channels a turn before retry.
+					flow.visited = false;
+					flow.deficit = 0;
+					active.remove(flow);
+					active.add(flow);
+					busy = true;
+				}
+			}
+
+			if (busy)
+				LockSupport.parkNanos(BUSY_PARK_NANOS);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.Log;
+import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.exceptions.GeneralException;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The outbound queue of a multiplexing channel.
+ *
+ * Writes pass through to the transport while the channel is flowing. Once
+ * the remote peer pends the channel, writes are copied into the queue up to
+ * the stream's queue limit, and the queue is drained in order when the
+ * channel is resumed. A short write while draining leaves the rest queued,
+ * which is retried on the next write or resume.
+ */
+final class ChannelSendQueue {
+	private static final String TAG = "ChannelSendQueue";
+
+	private final Stream stream;
+	private final int channel;
+
+	private final ArrayDeque<byte[]> frames = new ArrayDeque<>();
+	private int headOffset;
+	private long queuedBytes;
+
+	private boolean pending;
+	private long stallStart;
+	private long stallTotal;
+
+	ChannelSendQueue(Stream stream, int channel) {
+		this.stream = stream;
+		this.channel = channel;
+	}
+
+	synchronized int write(byte[] data, int offset, int len, long limit, boolean failFast)
+			throws CarrierException {
+		if (!pending && !frames.isEmpty())
+			drain();
+
+		if (!pending && frames.isEmpty())
+			return stream.writeChannel(channel, data, offset, len);
+
+		if (failFast)
+			throw CarrierException.fromErrorCode(GeneralException.BUSY,
+					String.format("Channel %d is pending", channel));
+
+		if (queuedBytes + len > limit)
+			throw CarrierException.fromErrorCode(GeneralException.LIMIT_EXCEEDED,
+					String.format("Channel %d send queue is full", channel));
+
+		byte[] frame = new byte[len];
+		System.arraycopy(data, offset, frame, 0, len);
+		frames.add(frame);
+		queuedBytes += len;
+		return len;
+	}
+
+	synchronized void onPending() {
+		if (pending)
+			return;
+
+		pending = true;
+		stallStart = System.nanoTime();
+	}
+
+	synchronized void onResume() {
+		if (pending) {
+			pending = false;
+			stallTotal += System.nanoTime() - stallStart;
+		}
+
+		try {
+			drain();
+		} catch (CarrierException e) {
+			Log.e(TAG, String.format("Drain channel %d error (0x%x), dropped %d queued bytes",
+					channel, e.getErrorCode(), queuedBytes));
+			clear();
+		}
+	}
+
+	private void drain() throws CarrierException {
+		while (!frames.isEmpty()) {
+			byte[] frame = frames.peek();
+			int len = frame.length - headOffset;
+			int bytes = stream.writeChannel(channel, frame, headOffset, len);
+
+			queuedBytes -= bytes;
+			if (bytes < len) {
+				headOffset += bytes;
+				return;
+			}
+
+			frames.poll();
+			headOffset = 0;
+		}
+	}
+
+	synchronized void clear() {
+		frames.clear();
+		headOffset = 0;
+		queuedBytes = 0;
+	}
+
+	synchronized boolean isPending() {
+		return pending;
+	}
+
+	synchronized long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	synchronized long getStallTime(TimeUnit unit) {
+		long stall = stallTotal;
+		if (pending)
+			stall += System.nanoTime() - stallStart;
+
+		return unit.convert(stall, TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier.session;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.elastos.carrier.exceptions.CarrierException;
+
+/*
+ * The outbound side of the channels of a stream: the send queues holding
+ * writes to channels pended by the remote peer, and the channel scheduler
+ * once it is used.
+ */
+final class ChannelSendQueues implements StreamFeature {
+	private final Stream stream;
+	private final ConcurrentHashMap<Integer, ChannelSendQueue> queues = new ConcurrentHashMap<>();
+	private volatile int limit = 0;
+	private volatile boolean failFast = false;
+	private volatile ChannelScheduler scheduler;
+
+	ChannelSendQueues(Stream stream) {
+		this.stream = stream;
+	}
+
+	void setLimit(int limit) {
+		this.limit = limit;
+		if (limit == 0)
+			clear();
+	}
+
+	int getLimit() {
+		return limit;
+	}
+
+	void setFailFast(boolean failFast) {
+		this.failFast = failFast;
+	}
+
+	ChannelSendQueue get(int channel) {
+		return queues.get(channel);
+	}
+
+	private ChannelSendQueue queueOf(int channel) {
+		if (limit == 0)
+			return null;
+
+		return queues.computeIfAbsent(channel, k -> new ChannelSendQueue(stream, k));
+	}
+
+	// Write to the channel, or queue the data while the channel is pended.
+	int write(int channel, byte[] data, int offset, int len) throws CarrierException {
+		ChannelSendQueue queue = queueOf(channel);
+		if (queue != null)
+			return queue.write(data, offset, len, limit, failFast);
+
+		return stream.writeChannel(channel, data, offset, len);
+	}
+
+	ChannelScheduler getScheduler() {
+		ChannelScheduler result = scheduler;
+		if (result == null) {
+			synchronized (this) {
+				result = scheduler;
+				if (result == null) {
+					result = new ChannelScheduler(stream);
+					scheduler = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	void onPending(int channel) {
+		ChannelSendQueue queue = queueOf(channel);
+		if (queue != null)
+			queue.onPending();
+
+		ChannelScheduler sched = scheduler;
+		if (sched != null)
+			sched.onChannelPending(channel);
+	}
+
+	void onResume(int channel) {
+		ChannelSendQueue queue = queues.get(channel);
+		if (queue != null)
+			queue.onResume();
+
+		ChannelScheduler sched = scheduler;
+		if (sched != null)
+			sched.onChannelResume(channel);
+	}
+
+	void remove(int channel) {
+		ChannelSendQueue queue = queues.remove(channel);
+		if (queue != null)
+			queue.clear();
+
+		ChannelScheduler sched = scheduler;
+		if (sched != null)
+			sched.removeChannel(channel);
+	}
+
+	private void clear() {
+		for (ChannelSendQueue queue : queues.values())
+			queue.clear();
+		queues.clear();
+	}
+
+	@Override
+	public void onChannelClosed(int channel, CloseReason reason) {
+		remove(channel);
+	}
+
+	@Override
+	public void onStreamClosed(StreamState state) {
+		clear();
+
+		ChannelScheduler sched = scheduler;
+		if (sched != null)
+			sched.close();
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+/**
+ * The interface of a service serving channels routed by ChannelRouter.
+ */
+public interface ChannelServiceHandler {
+	/**
+	 * The callback function to accept an incoming channel, called on the
+	 * carrier thread. It should decide quickly without blocking.
+	 *
+	 * @param
+	 *      stream      The carrier stream instance
+	 * @param
+	 *      channel     The incoming channel ID
+	 * @param
+	 *      cookie      The incoming channel cookie
+	 *
+	 * @return
+	 *      True to accept the channel, or false to refuse it.
+	 */
+	boolean onChannelOpen(Stream stream, int channel, String cookie);
+
+	/**
+	 * The callback function to process channel data, called on the service
+	 * executor in receive order.
+	 *
+	 * @param
+	 *      stream      The carrier stream instance
+	 * @param
+	 *      channel     The channel ID
+	 * @param
+	 *      data        The received data
+	 */
+	void onChannelData(Stream stream, int channel, byte[] data);
+
+	/**
+	 * The callback function called on the service executor when the channel
+	 * is closed, after all its data.
+	 *
+	 * @param
+	 *      stream      The carrier stream instance
+	 * @param
+	 *      channel     The channel ID
+	 * @param
+	 *      reason      The channel close reason
+	 */
+	void onChannelClose(Stream stream, int channel, CloseReason reason);
+}
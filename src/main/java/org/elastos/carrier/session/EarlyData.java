@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier.session;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.exceptions.GeneralException;
+
+/*
+ * The early data of a stream: the queue of writes and channel opens issued
+ * before the stream is connected, and the provisional channel IDs handed
+ * out for those opens. The queue is dropped once settled.
+ */
+final class EarlyData implements StreamFeature {
+	private final Stream stream;
+	private volatile EarlyDataQueue queue;
+	private volatile CompletableFuture<Void> flushed;
+	private final ConcurrentHashMap<Integer, Integer> provisionalChannels = new ConcurrentHashMap<>();
+
+	EarlyData(Stream stream) {
+		this.stream = stream;
+	}
+
+	synchronized void enable(int limit, StreamState current) {
+		if (queue != null || flushed != null || (current != null &&
+				current != StreamState.Initialized && current != StreamState.TransportReady &&
+				current != StreamState.Connecting))
+			return;
+
+		EarlyDataQueue early = new EarlyDataQueue(stream, limit);
+		flushed = early.getFuture();
+		queue = early;
+	}
+
+	CompletableFuture<Void> whenFlushed() {
+		CompletableFuture<Void> future = flushed;
+		return future != null ? future : CompletableFuture.completedFuture(null);
+	}
+
+	// Returns the provisional channel ID if the open is queued, otherwise 0.
+	int offerOpen(String cookie) throws CarrierException {
+		EarlyDataQueue early = queue;
+		return early != null ? early.offerOpen(cookie) : 0;
+	}
+
+	boolean offerWrite(int channel, byte[] data, int offset, int len) throws CarrierException {
+		EarlyDataQueue early = queue;
+		return early != null && early.offerWrite(channel, data, offset, len);
+	}
+
+	int resolve(int channel) throws CarrierException {
+		if (channel < EarlyDataQueue.PROVISIONAL_CHANNEL_BASE)
+			return channel;
+
+		Integer real = provisionalChannels.get(channel);
+		if (real == null)
+			throw CarrierException.fromErrorCode(GeneralException.NOT_EXIST,
+					String.format("Channel %d not opened", channel));
+
+		return real;
+	}
+
+	void map(int provisional, int channel) {
+		provisionalChannels.put(provisional, channel);
+	}
+
+	void flush() {
+		EarlyDataQueue early = queue;
+		if (early != null) {
+			early.flush();
+			if (early.isSettled())
+				queue = null;
+		}
+	}
+
+	void onChannelOpened(int channel) {
+		EarlyDataQueue early = queue;
+		if (early != null) {
+			early.onChannelOpened(channel);
+			if (early.isSettled())
+				queue = null;
+		}
+	}
+
+	@Override
+	public void onChannelClosed(int channel, CloseReason reason) {
+		EarlyDataQueue early = queue;
+		if (early != null) {
+			early.onChannelClosed(channel);
+			if (early.isSettled())
+				queue = null;
+		}
+	}
+
+	@Override
+	public void onStreamClosed(StreamState state) {
+		EarlyDataQueue early = queue;
+		if (early != null) {
+			early.fail(state);
+			queue = null;
+		}
+	}
+}
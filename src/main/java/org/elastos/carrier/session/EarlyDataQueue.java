@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.Log;
+import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.exceptions.GeneralException;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * The bounded queue of writes and channel opens issued before the stream
+ * gets connected.
+ *
+ * Channel opens get provisional channel IDs, which are mapped to the real
+ * channel IDs when the queue is flushed. The queue is flushed in order on
+ * the carrier thread as soon as the stream is connected, before the
+ * application handler sees the state change.
+ *
+ * A channel opened by the flush can not be written until the remote peer
+ * has accepted it, so its writes, including the ones issued after the
+ * flush, are held until the channel is opened and sent from the
+ * onChannelOpened callback.
+ */
+final class EarlyDataQueue {
+	private static final String TAG = "EarlyDataQueue";
+
+	// Provisional channel IDs never collide with the native ones.
+	static final int PROVISIONAL_CHANNEL_BASE = 0x40000000;
+
+	private static class Op {
+		final int channel;
+		final String cookie;
+		final byte[] data;
+
+		Op(int channel, String cookie, byte[] data) {
+			this.channel = channel;
+			this.cookie = cookie;
+			this.data = data;
+		}
+	}
+
+	private final Stream stream;
+	private final int limit;
+	private final ArrayDeque<Op> ops = new ArrayDeque<>();
+	// Writes held per real channel ID until the channel gets opened.
+	private final HashMap<Integer, ArrayDeque<byte[]>> opening = new HashMap<>();
+	private final CompletableFuture<Void> flushed = new CompletableFuture<>();
+	private int queuedBytes;
+	private int nextProvisional = PROVISIONAL_CHANNEL_BASE;
+	private boolean done;
+
+	EarlyDataQueue(Stream stream, int limit) {
+		this.stream = stream;
+		this.limit = limit;
+	}
+
+	CompletableFuture<Void> getFuture() {
+		return flushed;
+	}
+
+	private void checkState() throws CarrierException {
+		if (flushed.isCompletedExceptionally())
+			throw CarrierException.fromErrorCode(GeneralException.WRONG_STATE,
+					"Stream setup failed, early data dropped");
+	}
+
+	// Returns the provisional channel ID, or 0 if the queue was flushed.
+	synchronized int offerOpen(String cookie) throws CarrierException {
+		checkState();
+		if (done)
+			return 0;
+
+		int channel = nextProvisional++;
+		ops.add(new Op(channel, cookie, null));
+		return channel;
+	}
+
+	// Returns false if the queue was flushed and the channel is not opening.
+	synchronized boolean offerWrite(int channel, byte[] data, int offset, int len)
+			throws CarrierException {
+		checkState();
+
+		ArrayDeque<byte[]> held = null;
+		if (done) {
+			if (channel < 0 || opening.isEmpty())
+				return false;
+
+			held = opening.get(stream.getEarlyData().resolve(channel));
+			if (held == null)
+				return false;
+		}
+
+		if (queuedBytes + len > limit)
+			throw CarrierException.fromErrorCode(GeneralException.LIMIT_EXCEEDED,
+					"Early data queue is full");
+
+		byte[] copy = new byte[len];
+		System.arraycopy(data, offset, copy, 0, len);
+		if (held != null)
+			held.add(copy);
+		else
+			ops.add(new Op(channel, null, copy));
+		queuedBytes += len;
+		return true;
+	}
+
+	private void send(int channel, byte[] data) throws CarrierException {
+		int offset = 0;
+		while (offset < data.length) {
+			int bytes = channel < 0 ?
+					stream.writeData(data, offset, data.length - offset) :
+					stream.writeChannel(channel, data, offset, data.length - offset);
+			if (bytes <= 0)
+				throw CarrierException.fromErrorCode(GeneralException.BUSY,
+						"Transport busy while flushing early data");
+			offset += bytes;
+		}
+		queuedBytes -= data.length;
+	}
+
+	synchronized void flush() {
+		if (done)
+			return;
+
+		done = true;
+
+		try {
+			Op op;
+			while ((op = ops.poll()) != null) {
+				if (op.data == null) {
+					int channel = stream.openChannel(op.cookie);
+					stream.getEarlyData().map(op.channel, channel);
+					opening.put(channel, new ArrayDeque<>());
+					continue;
+				}
+
+				int channel = op.channel < 0 ? -1 : stream.getEarlyData().resolve(op.channel);
+				ArrayDeque<byte[]> held = channel < 0 ? null : opening.get(channel);
+				if (held != null)
+					held.add(op.data);
+				else
+					send(channel, op.data);
+			}
+		} catch (CarrierException e) {
+			Log.e(TAG, String.format("Flush early data error (0x%x), dropped %d pending operations",
+					e.getErrorCode(), ops.size()));
+			drop(e);
+			return;
+		}
+
+		settle();
+	}
+
+	synchronized void onChannelOpened(int channel) {
+		ArrayDeque<byte[]> held = opening.remove(channel);
+		if (held == null)
+			return;
+
+		try {
+			byte[] data;
+			while ((data = held.poll()) != null)
+				send(channel, data);
+		} catch (CarrierException e) {
+			Log.e(TAG, String.format("Flush early data of channel %d error (0x%x)",
+					channel, e.getErrorCode()));
+			drop(e);
+			return;
+		}
+
+		settle();
+	}
+
+	synchronized void onChannelClosed(int channel) {
+		ArrayDeque<byte[]> held = opening.remove(channel);
+		if (held == null)
+			return;
+
+		for (byte[] data : held)
+			queuedBytes -= data.length;
+
+		if (!held.isEmpty()) {
+			Log.w(TAG, String.format("Channel %d closed before opened, dropped %d early writes",
+					channel, held.size()));
+			flushed.completeExceptionally(CarrierException.fromErrorCode(GeneralException.WRONG_STATE,
+					String.format("Channel %d closed before opened, early data dropped", channel)));
+		}
+
+		settle();
+	}
+
+	// Whether nothing is queued or held any more.
+	synchronized boolean isSettled() {
+		return done && opening.isEmpty();
+	}
+
+	private void settle() {
+		if (opening.isEmpty())
+			flushed.complete(null);
+	}
+
+	private void drop(CarrierException e) {
+		ops.clear();
+		opening.clear();
+		queuedBytes = 0;
+		flushed.completeExceptionally(e);
+	}
+
+	synchronized void fail(StreamState state) {
+		if (done && opening.isEmpty())
+			return;
+
+		String when = done ? "before channels opened" : "before connected";
+		done = true;
+		drop(CarrierException.fromErrorCode(GeneralException.WRONG_STATE,
+				"Stream " + state.name().toLowerCase() + " " + when + ", early data dropped"));
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.exceptions.GeneralException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The class representing a decoder of length prefixed frames.
+ *
+ * Each frame is a varint (unsigned LEB128) payload length followed by the
+ * payload. Frames lying wholly within a received chunk are delivered as
+ * views of that chunk without copying; only a frame spanning chunks is
+ * gathered into a buffer of its exact size.
+ */
+public class FrameDecoder {
+	/**
+	 * Default maximum frame payload size.
+	 */
+	public static final int DEFAULT_MAX_FRAME_SIZE = 1024 * 1024;
+
+	private final Stream stream;
+	private final int channel;
+	private final int maxFrameSize;
+	private final FrameHandler handler;
+
+	// Partially received length prefix.
+	private int length;
+	private int shift;
+
+	// Partially received frame payload.
+	private byte[] pending;
+	private int pendingFilled;
+
+	private boolean failed;
+	private long frames;
+
+	/**
+	 * Create a frame decoder.
+	 *
+	 * @param
+	 *      stream          The stream reported to the handler
+	 * @param
+	 *      channel         The channel ID reported to the handler, or -1
+	 *                      for stream data
+	 * @param
+	 *      maxFrameSize    The maximum frame payload size
+	 * @param
+	 *      handler         The handler of decoded frames
+	 */
+	public FrameDecoder(Stream stream, int channel, int maxFrameSize, FrameHandler handler) {
+		if (maxFrameSize <= 0 || handler == null)
+			throw new IllegalArgumentException();
+
+		this.stream = stream;
+		this.channel = channel;
+		this.maxFrameSize = maxFrameSize;
+		this.handler = handler;
+	}
+
+	/**
+	 * Decode a chunk of received data.
+	 *
+	 * @param
+	 *      data        The received data
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public void decode(byte[] data) throws CarrierException {
+		if (data == null)
+			throw new IllegalArgumentException();
+
+		decode(data, 0, data.length);
+	}
+
+	/**
+	 * Decode a chunk of received data.
+	 *
+	 * Once a frame exceeds the maximum size or the length prefix is malformed,
+	 * the decoder fails and must not be used any more.
+	 *
+	 * @param
+	 *      data        The data buffer
+	 * @param
+	 *      offset      The start offset of data
+	 * @param
+	 *      len         The data length
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public void decode(byte[] data, int offset, int len) throws CarrierException {
+		if (data == null || offset < 0 || len < 0 || (offset + len) > data.length)
+			throw new IllegalArgumentException();
+
+		if (failed)
+			throw CarrierException.fromErrorCode(GeneralException.WRONG_STATE, "Frame decoder failed");
+
+		int end = offset + len;
+		while (offset < end) {
+			if (pending != null) {
+				int bytes = Math.min(pending.length - pendingFilled, end - offset);
+				System.arraycopy(data, offset, pending, pendingFilled, bytes);
+				pendingFilled += bytes;
+				offset += bytes;
+
+				if (pendingFilled == pending.length) {
+					byte[] frame = pending;
+					pending = null;
+					deliver(ByteBuffer.wrap(frame));
+				}
+				continue;
+			}
+
+			int b = data[offset++] & 0xff;
+			length |= (b & 0x7f) << shift;
+			if ((b & 0x80) != 0) {
+				shift += 7;
+				if (shift > 28) {
+					failed = true;
+					throw CarrierException.fromErrorCode(GeneralException.LIMIT_EXCEEDED,
+							"Malformed frame length");
+				}
+				continue;
+			}
+
+			int size = length;
+			length = 0;
+			shift = 0;
+
+			if (size < 0 || size > maxFrameSize) {
+				failed = true;
+				throw CarrierException.fromErrorCode(GeneralException.LIMIT_EXCEEDED,
+						"Frame size " + (size & 0xffffffffL) + " exceeds " + maxFrameSize);
+			}
+
+			if (end - offset >= size) {
+				deliver(ByteBuffer.wrap(data, offset, size).slice());
+				offset += size;
+			} else {
+				pending = new byte[size];
+				pendingFilled = 0;
+			}
+		}
+	}
+
+	private void deliver(ByteBuffer frame) {
+		frames++;
+		handler.onFrame(stream, channel, frame);
+	}
+
+	/**
+	 * Get the number of decoded frames.
+	 *
+	 * @return
+	 *      The frame count.
+	 */
+	public long getFrameCount() {
+		return frames;
+	}
+
+	/**
+	 * Get the number of bytes of the incomplete frame being gathered.
+	 *
+	 * @return
+	 *      The buffered bytes.
+	 */
+	public int getBufferedBytes() {
+		return pending == null ? 0 : pendingFilled;
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.elastos.carrier.session;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * The frame decoders of a stream and its channels. Data of a channel with a
+ * decoder is delivered as whole frames to its frame handler.
+ */
+final class FrameDecoders implements StreamFeature {
+	private final Stream stream;
+	private final ConcurrentHashMap<Integer, FrameDecoder> decoders = new ConcurrentHashMap<>();
+
+	FrameDecoders(Stream stream) {
+		this.stream = stream;
+	}
+
+	void set(int channel, FrameHandler handler, int maxFrameSize) {
+		if (handler == null) {
+			decoders.remove(channel);
+			return;
+		}
+
+		decoders.put(channel, new FrameDecoder(stream, channel, maxFrameSize, handler));
+	}
+
+	FrameDecoder of(int channel) {
+		return decoders.isEmpty() ? null : decoders.get(channel);
+	}
+
+	@Override
+	public void onChannelClosed(int channel, CloseReason reason) {
+		decoders.remove(channel);
+	}
+
+	@Override
+	public void onStreamClosed(StreamState state) {
+		decoders.clear();
+	}
+}
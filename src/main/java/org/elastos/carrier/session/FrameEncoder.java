@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.exceptions.CarrierException;
+
+/**
+ * The class representing an encoder of length prefixed frames.
+ *
+ * Frames are packed into a batch buffer, which is sent with one write when
+ * the next frame does not fit or on flush. A frame larger than the batch
+ * buffer is sent on its own without copying the payload.
+ */
+public class FrameEncoder {
+	private final Stream stream;
+	private final int channel;
+	private final byte[] batch;
+	private int batchLength;
+
+	private long frames;
+	private long writes;
+
+	/**
+	 * Create a frame encoder for stream data, batching up to the stream
+	 * frame size.
+	 *
+	 * @param
+	 *      stream      The stream to send frames
+	 */
+	public FrameEncoder(Stream stream) {
+		this(stream, -1, stream.getFrameSize());
+	}
+
+	/**
+	 * Create a frame encoder.
+	 *
+	 * @param
+	 *      stream      The stream to send frames
+	 * @param
+	 *      channel     The channel ID, or -1 for stream data
+	 * @param
+	 *      batchSize   The batch buffer size, which is also the maximum
+	 *                  size of each batched write
+	 */
+	public FrameEncoder(Stream stream, int channel, int batchSize) {
+		if (stream == null || channel == 0 || channel < -1 || batchSize <= 0)
+			throw new IllegalArgumentException();
+
+		this.stream = stream;
+		this.channel = channel;
+		this.batch = new byte[batchSize];
+	}
+
+	/**
+	 * Get the encoded size of the varint length prefix.
+	 *
+	 * @param
+	 *      length      The frame payload length
+	 *
+	 * @return
+	 *      The prefix size in bytes.
+	 */
+	public static int prefixSize(int length) {
+		int size = 1;
+		while ((length & ~0x7f) != 0) {
+			length >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	private static int putPrefix(byte[] buffer, int offset, int length) {
+		while ((length & ~0x7f) != 0) {
+			buffer[offset++] = (byte)((length & 0x7f) | 0x80);
+			length >>>= 7;
+		}
+		buffer[offset++] = (byte)length;
+		return offset;
+	}
+
+	/**
+	 * Encode one frame into a new array.
+	 *
+	 * @param
+	 *      data        The frame payload
+	 *
+	 * @return
+	 *      The encoded frame.
+	 */
+	public static byte[] encode(byte[] data) {
+		if (data == null)
+			throw new IllegalArgumentException();
+
+		byte[] frame = new byte[prefixSize(data.length) + data.length];
+		int offset = putPrefix(frame, 0, data.length);
+		System.arraycopy(data, 0, frame, offset, data.length);
+		return frame;
+	}
+
+	/**
+	 * Add a frame to the batch.
+	 *
+	 * @param
+	 *      data        The frame payload
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public void write(byte[] data) throws CarrierException {
+		if (data == null)
+			throw new IllegalArgumentException();
+
+		write(data, 0, data.length);
+	}
+
+	/**
+	 * Add a frame to the batch. The pending batch is sent first if the frame
+	 * does not fit.
+	 *
+	 * @param
+	 *      data        The data buffer
+	 * @param
+	 *      offset      The start offset of frame payload
+	 * @param
+	 *      len         The frame payload length
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public synchronized void write(byte[] data, int offset, int len) throws CarrierException {
+		if (data == null || offset < 0 || len < 0 || (offset + len) > data.length)
+			throw new IllegalArgumentException();
+
+		int size = prefixSize(len) + len;
+		if (batchLength + size > batch.length)
+			flushBatch();
+
+		frames++;
+		if (size > batch.length) {
+			// Too large to batch, send the prefix and payload directly.
+			batchLength = putPrefix(batch, 0, len);
+			flushBatch();
+			stream.writeFully(channel, data, offset, len);
+			writes++;
+			return;
+		}
+
+		batchLength = putPrefix(batch, batchLength, len);
+		System.arraycopy(data, offset, batch, batchLength, len);
+		batchLength += len;
+	}
+
+	/**
+	 * Send the pending batch.
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public synchronized void flush() throws CarrierException {
+		flushBatch();
+	}
+
+	private void flushBatch() throws CarrierException {
+		if (batchLength == 0)
+			return;
+
+		int length = batchLength;
+		batchLength = 0;
+		stream.writeFully(channel, batch, 0, length);
+		writes++;
+	}
+
+	/**
+	 * Get the number of encoded frames.
+	 *
+	 * @return
+	 *      The frame count.
+	 */
+	public synchronized long getFrameCount() {
+		return frames;
+	}
+
+	/**
+	 * Get the number of writes to the stream, each carrying one or more
+	 * frames.
+	 *
+	 * @return
+	 *      The write count.
+	 */
+	public synchronized long getWriteCount() {
+		return writes;
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The interface to receive whole frames decoded from stream or channel data.
+ */
+public interface FrameHandler {
+	/**
+	 * The callback function to process a decoded frame.
+	 *
+	 * The frame buffer may be a view of the received data, and is only valid
+	 * until this callback returns. Copy it to keep the content.
+	 *
+	 * @param
+	 *      stream      The carrier stream instance
+	 * @param
+	 *      channel     The channel ID, or -1 for stream data
+	 * @param
+	 *      frame       The frame payload
+	 */
+	void onFrame(Stream stream, int channel, ByteBuffer frame);
+}
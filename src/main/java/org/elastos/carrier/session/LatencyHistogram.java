@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The class representing a histogram of latencies in milliseconds.
+ *
+ * Bucket i counts the latencies in [2^(i-1), 2^i) milliseconds, with bucket
+ * 0 for latencies under one millisecond and the last bucket for everything
+ * above. Recording is lock free.
+ */
+public class LatencyHistogram {
+	/**
+	 * The number of buckets, the last one covers latencies from about 65s.
+	 */
+	public static final int BUCKETS = 18;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong(0);
+	private final AtomicLong total = new AtomicLong(0);
+	private final AtomicLong max = new AtomicLong(0);
+
+	private static int bucketOf(long millis) {
+		if (millis <= 0)
+			return 0;
+
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+	}
+
+	/**
+	 * Record a latency.
+	 *
+	 * @param
+	 *      latency     The latency
+	 * @param
+	 *      unit        The time unit of latency
+	 */
+	public void record(long latency, TimeUnit unit) {
+		long millis = unit.toMillis(latency);
+		if (millis < 0)
+			return;
+
+		buckets.incrementAndGet(bucketOf(millis));
+		count.incrementAndGet();
+		total.addAndGet(millis);
+		for (long m = max.get(); millis > m; m = max.get()) {
+			if (max.compareAndSet(m, millis))
+				break;
+		}
+	}
+
+	/**
+	 * Get the number of recorded latencies.
+	 *
+	 * @return
+	 *      The count.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Get the mean of recorded latencies.
+	 *
+	 * @return
+	 *      The mean latency in milliseconds.
+	 */
+	public long getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : total.get() / n;
+	}
+
+	/**
+	 * Get the maximum of recorded latencies.
+	 *
+	 * @return
+	 *      The maximum latency in milliseconds.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Get the upper bound of the bucket containing the given percentile.
+	 *
+	 * @param
+	 *      percentile  The percentile between 0 and 100
+	 *
+	 * @return
+	 *      The latency upper bound in milliseconds.
+	 */
+	public long getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException();
+
+		long n = count.get();
+		if (n == 0)
+			return 0;
+
+		long target = (long)Math.ceil(n * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS - 1; i++) {
+			seen += buckets.get(i);
+			if (seen >= target)
+				return Math.min(1L << i, max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Get a snapshot of the bucket counts.
+	 *
+	 * @return
+	 *      The counts of each bucket.
+	 */
+	public long[] getBuckets() {
+		long[] result = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			result[i] = buckets.get(i);
+		return result;
+	}
+}
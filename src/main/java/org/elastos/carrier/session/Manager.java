@@ -25,6 +25,14 @@ package org.elastos.carrier.session;
 import org.elastos.carrier.Carrier;
 import org.elastos.carrier.Log;
 import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.exceptions.GeneralException;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * The class representing Carrier session manager.
@@ -36,6 +44,102 @@ public class Manager {
 	private boolean didCleanup;
 	private long nativeCookie = 0;  // store the native (JNI-layered) context
 
+	/**
+	 * Default number of stream setups run at the same time.
+	 */
+	public static final int DEFAULT_CONNECT_CONCURRENCY = 32;
+
+	private static volatile ScheduledExecutorService timer;
+
+	private int connectConcurrency = DEFAULT_CONNECT_CONCURRENCY;
+	private int activeSetups = 0;
+	private final ArrayDeque<StreamSetup> waitingSetups = new ArrayDeque<>();
+
+	/**
+	 * The options of establishing a connected stream.
+	 */
+	public static class ConnectOptions {
+		private int streamOptions = Stream.PROPERTY_RELIABLE;
+		private long timeout = 30 * 1000;
+		private StreamHandler handler;
+
+		/**
+		 * Set the stream options, a bitwise OR of Stream.PROPERTY_* values.
+		 *
+		 * @param
+		 *      streamOptions   The stream options
+		 *
+		 * @return
+		 *      The current ConnectOptions object reference.
+		 */
+		public ConnectOptions setStreamOptions(int streamOptions) {
+			this.streamOptions = streamOptions;
+			return this;
+		}
+
+		/**
+		 * Get the stream options.
+		 *
+		 * @return
+		 *      The stream options.
+		 */
+		public int getStreamOptions() {
+			return streamOptions;
+		}
+
+		/**
+		 * Set the timeout of the whole setup, including the time waiting for
+		 * a free setup slot.
+		 *
+		 * @param
+		 *      timeout     The timeout in milliseconds, or 0 to wait forever
+		 *
+		 * @return
+		 *      The current ConnectOptions object reference.
+		 */
+		public ConnectOptions setTimeout(long timeout) {
+			if (timeout < 0)
+				throw new IllegalArgumentException();
+
+			this.timeout = timeout;
+			return this;
+		}
+
+		/**
+		 * Get the timeout of the setup.
+		 *
+		 * @return
+		 *      The timeout in milliseconds.
+		 */
+		public long getTimeout() {
+			return timeout;
+		}
+
+		/**
+		 * Set the handler to receive the events of the stream.
+		 *
+		 * @param
+		 *      handler     The stream handler
+		 *
+		 * @return
+		 *      The current ConnectOptions object reference.
+		 */
+		public ConnectOptions setHandler(StreamHandler handler) {
+			this.handler = handler;
+			return this;
+		}
+
+		/**
+		 * Get the handler of the stream.
+		 *
+		 * @return
+		 *      The stream handler.
+		 */
+		public StreamHandler getHandler() {
+			return handler;
+		}
+	}
+
 	// jni native methods.
 	private native boolean native_init(Carrier carrier, ManagerHandler handler);
 	private native void native_cleanup(Carrier carrier);
@@ -83,6 +187,8 @@ public class Manager {
 		Log.d(TAG, "Attempt to create carrier session manager instance ...");
 
 		Manager tmp = new Manager(carrier);
+		if (handler instanceof SessionAcceptor)
+			((SessionAcceptor)handler).bind(tmp);
 
 		if (!tmp.native_init(carrier, handler))
 			throw CarrierException.fromErrorCode(get_error_code());
@@ -108,6 +214,11 @@ public class Manager {
 	 */
 	public synchronized void cleanup() {
 		if (!didCleanup) {
+			StreamSetup setup;
+			while ((setup = waitingSetups.poll()) != null)
+				setup.fail(CarrierException.fromErrorCode(GeneralException.WRONG_STATE,
+						"Session manager cleaned up"));
+
 			native_cleanup(carrier);
 			carrier = null;
 			didCleanup = true;
@@ -145,4 +256,122 @@ public class Manager {
 
 		return session;
 	}
+
+	/**
+	 * Set the maximum number of stream setups run at the same time.
+	 *
+	 * Setups beyond the limit wait for a free slot in the order of calls.
+	 *
+	 * @param
+	 *      concurrency     The maximum number of concurrent setups
+	 */
+	public void setConnectConcurrency(int concurrency) {
+		if (concurrency <= 0)
+			throw new IllegalArgumentException();
+
+		synchronized (this) {
+			connectConcurrency = concurrency;
+		}
+		startWaitingSetups();
+	}
+
+	/**
+	 * Get the maximum number of stream setups run at the same time.
+	 *
+	 * @return
+	 *      The maximum number of concurrent setups.
+	 */
+	public synchronized int getConnectConcurrency() {
+		return connectConcurrency;
+	}
+
+	/**
+	 * Establish a session with a connected stream to the peer.
+	 *
+	 * The returned future is completed with the stream once it is connected.
+	 * It fails if any step of the setup fails or times out, and the session
+	 * is closed in that case. Cancelling the future aborts the setup.
+	 *
+	 * @param
+	 *      peer        The target peer
+	 * @param
+	 *      type        The stream type
+	 * @param
+	 *      options     The connect options, or null for default options
+	 *
+	 * @return
+	 *      The future of connected stream.
+	 */
+	public CompletableFuture<Stream> connect(String peer, StreamType type, ConnectOptions options) {
+		if (peer == null || peer.length() == 0 || type == null)
+			throw new IllegalArgumentException();
+
+		if (options == null)
+			options = new ConnectOptions();
+
+		StreamSetup setup = new StreamSetup(this, peer, type, options);
+		CompletableFuture<Stream> future = setup.getFuture();
+
+		if (options.getTimeout() > 0) {
+			setup.setTimer(getTimer().schedule(() ->
+					setup.fail(new TimeoutException("Connect to " + peer + " timeout")),
+					options.getTimeout(), TimeUnit.MILLISECONDS));
+		}
+
+		synchronized (this) {
+			if (didCleanup) {
+				setup.fail(CarrierException.fromErrorCode(GeneralException.WRONG_STATE,
+						"Session manager cleaned up"));
+				return future;
+			}
+
+			waitingSetups.add(setup);
+		}
+
+		future.whenComplete((stream, e) -> onSetupDone(setup));
+		startWaitingSetups();
+		return future;
+	}
+
+	private void onSetupDone(StreamSetup setup) {
+		synchronized (this) {
+			if (!waitingSetups.remove(setup))
+				activeSetups--;
+		}
+		startWaitingSetups();
+	}
+
+	private void startWaitingSetups() {
+		for (;;) {
+			StreamSetup setup;
+
+			synchronized (this) {
+				if (activeSetups >= connectConcurrency || waitingSetups.isEmpty())
+					return;
+
+				setup = waitingSetups.poll();
+				activeSetups++;
+			}
+
+			setup.start();
+		}
+	}
+
+	static ScheduledExecutorService getTimer() {
+		ScheduledExecutorService result = timer;
+		if (result == null) {
+			synchronized (Manager.class) {
+				result = timer;
+				if (result == null) {
+					result = Executors.newSingleThreadScheduledExecutor(r -> {
+						Thread thread = new Thread(r, "CarrierConnectTimer");
+						thread.setDaemon(true);
+						return thread;
+					});
+					timer = result;
+				}
+			}
+		}
+		return result;
+	}
 }
@@ -0,0 +1,751 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.Log;
+import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.exceptions.GeneralException;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The class representing a channel which survives the loss of its stream.
+ *
+ * Data written to a resumable channel is numbered by byte offset and kept
+ * in a bounded retransmit buffer until the remote peer acknowledges it.
+ * When the underlying channel or stream is lost, the opening side reattaches
+ * to a new stream to the same peer, the peers exchange how much they have
+ * received, and only the unacknowledged data is replayed. Channels not
+ * reattached within the resume timeout are closed, and so are channels
+ * whose peer reports having received less than what it already
+ * acknowledged, since that data can not be replayed any more.
+ *
+ * Frames are sent through an outbound queue which is written to the
+ * transport without blocking, so neither application writes nor the
+ * carrier thread ever park on a busy transport. A short write leaves the
+ * rest queued and retries shortly after.
+ *
+ * The accepting side calls accept() from StreamHandler.onChannelOpen for
+ * cookies recognized by isResumable(), and returns true.
+ */
+public class ResumableChannel implements ChannelAttachment {
+	private static final String TAG = "ResumableChannel";
+
+	/**
+	 * The cookie prefix of resumable channels.
+	 */
+	public static final String COOKIE_PREFIX = "carrier:resumable:";
+
+	/**
+	 * Default size of the retransmit buffer.
+	 */
+	public static final int DEFAULT_BUFFER_LIMIT = 256 * 1024;
+
+	/**
+	 * Default time to wait for reattaching before closing the channel.
+	 */
+	public static final long DEFAULT_RESUME_TIMEOUT = 60 * 1000;
+
+	private static final byte TYPE_DATA = 1;
+	private static final byte TYPE_ACK = 2;
+	private static final byte TYPE_HELLO = 3;
+	private static final byte TYPE_CLOSE = 4;
+
+	// Frame: length (4 bytes, excluding itself), type (1 byte), value (8 bytes), payload.
+	private static final int HEADER_SIZE = 4 + 1 + 8;
+	private static final int MAX_SEGMENT = 4096;
+	private static final int ACK_THRESHOLD = 4096;
+	// Delay to retry the outbound queue after a short write, in milliseconds.
+	private static final long RETRY_DELAY = 5;
+
+	private static final SecureRandom random = new SecureRandom();
+	private static final ConcurrentHashMap<String, ResumableChannel> accepted = new ConcurrentHashMap<>();
+
+	private static class Segment {
+		final long seq;
+		final byte[] data;
+
+		Segment(long seq, byte[] data) {
+			this.seq = seq;
+			this.data = data;
+		}
+	}
+
+	private final String id;
+	private final boolean opener;
+	private final ResumableChannelHandler handler;
+	private final int bufferLimit;
+	private volatile long resumeTimeout = DEFAULT_RESUME_TIMEOUT;
+
+	private Stream stream;
+	private int channel;
+	private boolean attached;
+	private boolean helloSent;
+	private boolean everAttached;
+	private boolean closed;
+	private boolean closeWhenDrained;
+	private CarrierException error;
+	private ScheduledFuture<?> expiry;
+
+	private final ArrayDeque<byte[]> outbox = new ArrayDeque<>();
+	private int outboxOffset;
+	private boolean retryPending;
+
+	private final ArrayDeque<Segment> retransmit = new ArrayDeque<>();
+	private long sendBase;
+	private long sendNext;
+	private long recvNext;
+	private long lastAckSent;
+	private long replayedBytes;
+
+	private byte[] rx = new byte[1024];
+	private int rxLength;
+
+	ResumableChannel(String id, boolean opener, ResumableChannelHandler handler, int bufferLimit) {
+		this.id = id;
+		this.opener = opener;
+		this.handler = handler;
+		this.bufferLimit = bufferLimit;
+	}
+
+	/**
+	 * Open a resumable channel on multiplexing stream.
+	 *
+	 * @param
+	 *      stream      The connected multiplexing stream
+	 * @param
+	 *      handler     The handler of channel events
+	 * @param
+	 *      bufferLimit The size of retransmit buffer
+	 *
+	 * @return
+	 *      The resumable channel.
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public static ResumableChannel open(Stream stream, ResumableChannelHandler handler, int bufferLimit)
+			throws CarrierException {
+		if (stream == null || handler == null || bufferLimit < 4 * ACK_THRESHOLD)
+			throw new IllegalArgumentException();
+
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		StringBuilder sb = new StringBuilder(32);
+		for (byte b : bytes)
+			sb.append(String.format("%02x", b));
+
+		ResumableChannel rc = new ResumableChannel(sb.toString(), true, handler, bufferLimit);
+		rc.reattach(stream);
+		return rc;
+	}
+
+	/**
+	 * Open a resumable channel with the default buffer limit.
+	 *
+	 * @param
+	 *      stream      The connected multiplexing stream
+	 * @param
+	 *      handler     The handler of channel events
+	 *
+	 * @return
+	 *      The resumable channel.
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public static ResumableChannel open(Stream stream, ResumableChannelHandler handler)
+			throws CarrierException {
+		return open(stream, handler, DEFAULT_BUFFER_LIMIT);
+	}
+
+	/**
+	 * Check if a channel cookie is from a resumable channel.
+	 *
+	 * @param
+	 *      cookie      The channel cookie
+	 *
+	 * @return
+	 *      True if the channel is resumable, otherwise false.
+	 */
+	public static boolean isResumable(String cookie) {
+		return cookie != null && cookie.startsWith(COOKIE_PREFIX);
+	}
+
+	/**
+	 * Accept an incoming resumable channel.
+	 *
+	 * A channel reattached by the remote peer resumes the existing resumable
+	 * channel, whose handler is kept. Must be called from
+	 * StreamHandler.onChannelOpen.
+	 *
+	 * @param
+	 *      stream      The stream of incoming channel
+	 * @param
+	 *      channel     The incoming channel ID
+	 * @param
+	 *      cookie      The incoming channel cookie
+	 * @param
+	 *      handler     The handler of channel events for a new channel
+	 *
+	 * @return
+	 *      The new or resumed resumable channel.
+	 */
+	public static ResumableChannel accept(Stream stream, int channel, String cookie,
+										  ResumableChannelHandler handler) {
+		if (stream == null || !isResumable(cookie) || handler == null)
+			throw new IllegalArgumentException();
+
+		String id = cookie.substring(COOKIE_PREFIX.length());
+		ResumableChannel rc = accepted.computeIfAbsent(id,
+				k -> new ResumableChannel(k, false, handler, DEFAULT_BUFFER_LIMIT));
+
+		synchronized (rc) {
+			rc.detachLocked();
+			rc.stream = stream;
+			rc.channel = channel;
+			stream.getAttachments().attach(channel, rc);
+		}
+		return rc;
+	}
+
+	/**
+	 * Get the identity of the resumable channel, shared by both peers.
+	 *
+	 * @return
+	 *      The channel identity.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Set the time to wait for reattaching before closing the channel.
+	 *
+	 * @param
+	 *      timeout     The resume timeout in milliseconds
+	 */
+	public void setResumeTimeout(long timeout) {
+		if (timeout <= 0)
+			throw new IllegalArgumentException();
+
+		this.resumeTimeout = timeout;
+	}
+
+	/**
+	 * Check if the channel is currently attached to a stream.
+	 *
+	 * @return
+	 *      True if attached, otherwise false.
+	 */
+	public synchronized boolean isAttached() {
+		return attached;
+	}
+
+	/**
+	 * Get the current stream of the channel.
+	 *
+	 * @return
+	 *      The stream, or null if detached.
+	 */
+	public synchronized Stream getStream() {
+		return stream;
+	}
+
+	/**
+	 * Get the number of bytes written but not yet acknowledged by the peer.
+	 *
+	 * @return
+	 *      The unacknowledged bytes.
+	 */
+	public synchronized long getUnackedBytes() {
+		return sendNext - sendBase;
+	}
+
+	/**
+	 * Get the error the channel was closed with.
+	 *
+	 * @return
+	 *      The error, or null if the channel is open or was closed normally.
+	 */
+	public synchronized CarrierException getError() {
+		return error;
+	}
+
+	/**
+	 * Get the number of bytes replayed on reattaches.
+	 *
+	 * @return
+	 *      The replayed bytes.
+	 */
+	public synchronized long getReplayedBytes() {
+		return replayedBytes;
+	}
+
+	/**
+	 * Reattach the channel to a new stream to the same peer. Only the side
+	 * which opened the channel reattaches.
+	 *
+	 * @param
+	 *      stream      The new connected multiplexing stream
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public void reattach(Stream stream) throws CarrierException {
+		if (stream == null)
+			throw new IllegalArgumentException();
+
+		synchronized (this) {
+			if (!opener)
+				throw CarrierException.fromErrorCode(GeneralException.WRONG_STATE,
+						"Only the opening side reattaches");
+			if (closed)
+				throw CarrierException.fromErrorCode(GeneralException.WRONG_STATE, "Channel closed");
+
+			detachLocked();
+			this.stream = stream;
+			this.channel = stream.getAttachments().open(COOKIE_PREFIX + id, this);
+		}
+	}
+
+	/**
+	 * Write data to the channel.
+	 *
+	 * @param
+	 *      data        The data to write
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public void write(byte[] data) throws CarrierException {
+		if (data == null)
+			throw new IllegalArgumentException();
+
+		write(data, 0, data.length);
+	}
+
+	/**
+	 * Write data to the channel.
+	 *
+	 * The data is buffered until acknowledged, and only sent while attached.
+	 * The write never blocks, it fails with LIMIT_EXCEEDED if the retransmit
+	 * buffer is full.
+	 *
+	 * @param
+	 *      data        The data buffer
+	 * @param
+	 *      offset      The start offset of data
+	 * @param
+	 *      len         The data length
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public synchronized void write(byte[] data, int offset, int len) throws CarrierException {
+		if (data == null || offset < 0 || len <= 0 || (offset + len) > data.length)
+			throw new IllegalArgumentException();
+
+		if (closed)
+			throw error != null ? error :
+					CarrierException.fromErrorCode(GeneralException.WRONG_STATE, "Channel closed");
+
+		if (sendNext - sendBase + len > bufferLimit)
+			throw CarrierException.fromErrorCode(GeneralException.LIMIT_EXCEEDED,
+					"Retransmit buffer is full");
+
+		while (len > 0) {
+			int size = Math.min(len, MAX_SEGMENT);
+			byte[] payload = new byte[size];
+			System.arraycopy(data, offset, payload, 0, size);
+
+			Segment segment = new Segment(sendNext, payload);
+			retransmit.add(segment);
+			sendNext += size;
+			offset += size;
+			len -= size;
+
+			if (attached)
+				sendSegment(segment, 0);
+		}
+	}
+
+	/**
+	 * Close the channel on both peers and drop the buffered data.
+	 */
+	public synchronized void close() {
+		if (closed)
+			return;
+
+		boolean drain = attached;
+		if (attached)
+			send(TYPE_CLOSE, 0, null, 0, 0);
+
+		closeLocked();
+
+		// Keep the channel until the close frame is written.
+		if (drain && !outbox.isEmpty()) {
+			closeWhenDrained = true;
+			return;
+		}
+		closeChannelLocked();
+	}
+
+	private void closeLocked() {
+		closed = true;
+		retransmit.clear();
+		if (expiry != null)
+			expiry.cancel(false);
+		if (!opener)
+			accepted.remove(id, this);
+	}
+
+	private void closeChannelLocked() {
+		if (stream != null) {
+			try {
+				stream.closeChannel(channel);
+			} catch (CarrierException e) {
+				// Channel already gone.
+			}
+		}
+		detachLocked();
+	}
+
+	static byte[] frame(byte type, long value, byte[] payload, int offset, int len) {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + len);
+		frame.putInt(1 + 8 + len).put(type).putLong(value);
+		if (len > 0)
+			frame.put(payload, offset, len);
+
+		return frame.array();
+	}
+
+	private void send(byte type, long value, byte[] payload, int offset, int len) {
+		outbox.add(frame(type, value, payload, offset, len));
+		flushLocked();
+	}
+
+	private void sendSegment(Segment segment, int skip) {
+		send(TYPE_DATA, segment.seq + skip, segment.data, skip, segment.data.length - skip);
+	}
+
+	// Whether the channel is open on a stream, so that frames can be written.
+	boolean linked() {
+		return stream != null;
+	}
+
+	// Write to the transport without blocking, returns the bytes written.
+	int transmit(byte[] frame, int offset, int len) throws CarrierException {
+		return stream.writeChannel(channel, frame, offset, len);
+	}
+
+	private void flushLocked() {
+		if (!linked())
+			return;
+
+		while (!outbox.isEmpty()) {
+			byte[] frame = outbox.peek();
+
+			int bytes;
+			try {
+				bytes = transmit(frame, outboxOffset, frame.length - outboxOffset);
+			} catch (CarrierException e) {
+				// The channel is gone, its close callback detaches us.
+				Log.e(TAG, String.format("Write resumable channel %s error (0x%x)", id, e.getErrorCode()));
+				outbox.clear();
+				outboxOffset = 0;
+				return;
+			}
+
+			if (bytes <= 0) {
+				if (!retryPending) {
+					retryPending = true;
+					Manager.getTimer().schedule(this::retryFlush, RETRY_DELAY, TimeUnit.MILLISECONDS);
+				}
+				return;
+			}
+
+			outboxOffset += bytes;
+			if (outboxOffset == frame.length) {
+				outbox.poll();
+				outboxOffset = 0;
+			}
+		}
+
+		if (closeWhenDrained) {
+			closeWhenDrained = false;
+			closeChannelLocked();
+		}
+	}
+
+	private synchronized void retryFlush() {
+		retryPending = false;
+		flushLocked();
+	}
+
+	private void detachLocked() {
+		if (stream != null)
+			stream.getAttachments().detach(channel, this);
+
+		stream = null;
+		attached = false;
+		helloSent = false;
+		rxLength = 0;
+		// Data frames are replayed from the retransmit buffer on reattach.
+		outbox.clear();
+		outboxOffset = 0;
+		closeWhenDrained = false;
+	}
+
+	private void lost() {
+		boolean notify;
+
+		synchronized (this) {
+			notify = attached;
+			detachLocked();
+
+			if (closed)
+				return;
+
+			if (expiry != null)
+				expiry.cancel(false);
+			expiry = Manager.getTimer().schedule(this::expire, resumeTimeout, TimeUnit.MILLISECONDS);
+		}
+
+		if (notify)
+			handler.onDetached(this);
+	}
+
+	private void expire() {
+		synchronized (this) {
+			if (attached || closed)
+				return;
+
+			Log.i(TAG, "Resumable channel " + id + " expired");
+			closeLocked();
+		}
+		handler.onClosed(this);
+	}
+
+	private void onAck(long ack) {
+		if (ack <= sendBase || ack > sendNext)
+			return;
+
+		sendBase = ack;
+		while (!retransmit.isEmpty()) {
+			Segment segment = retransmit.peek();
+			if (segment.seq + segment.data.length > ack)
+				break;
+			retransmit.poll();
+		}
+	}
+
+	private boolean onHello(long peerReceived) throws CarrierException {
+		// Acknowledged data is gone from the retransmit buffer, a peer which
+		// lost it can never be brought back in sync.
+		if (peerReceived < sendBase || peerReceived > sendNext)
+			throw CarrierException.fromErrorCode(GeneralException.WRONG_STATE,
+					String.format("Peer resumed at %d, outside of unacknowledged range %d-%d",
+							peerReceived, sendBase, sendNext));
+
+		onAck(peerReceived);
+
+		if (!helloSent) {
+			send(TYPE_HELLO, recvNext, null, 0, 0);
+			helloSent = true;
+		}
+
+		for (Segment segment : retransmit) {
+			if (segment.seq + segment.data.length <= peerReceived)
+				continue;
+
+			int skip = (int)Math.max(0, peerReceived - segment.seq);
+			if (everAttached)
+				replayedBytes += segment.data.length - skip;
+			sendSegment(segment, skip);
+		}
+
+		boolean resumed = everAttached;
+		attached = true;
+		everAttached = true;
+		if (expiry != null) {
+			expiry.cancel(false);
+			expiry = null;
+		}
+		return resumed;
+	}
+
+	@Override
+	public boolean onChannelData(Stream stream, int channel, byte[] data) {
+		List<byte[]> delivered = new ArrayList<>();
+		boolean resumed = false;
+		boolean peerClosed = false;
+		boolean failed = false;
+
+		synchronized (this) {
+			if (stream != this.stream || channel != this.channel)
+				return false;
+
+			// Closing, only waiting for the close frame to be written.
+			if (closed)
+				return true;
+
+			if (rx.length - rxLength < data.length) {
+				byte[] grown = new byte[Math.max(rx.length * 2, rxLength + data.length)];
+				System.arraycopy(rx, 0, grown, 0, rxLength);
+				rx = grown;
+			}
+			System.arraycopy(data, 0, rx, rxLength, data.length);
+			rxLength += data.length;
+
+			ByteBuffer buffer = ByteBuffer.wrap(rx, 0, rxLength);
+			try {
+				while (buffer.remaining() >= HEADER_SIZE) {
+					int start = buffer.position();
+					int length = buffer.getInt();
+					if (length < 9 || length > MAX_SEGMENT + 9) {
+						Log.e(TAG, "Invalid frame on resumable channel " + id);
+						return false;
+					}
+					if (buffer.remaining() < length) {
+						buffer.position(start);
+						break;
+					}
+
+					byte type = buffer.get();
+					long value = buffer.getLong();
+					int payloadLength = length - 9;
+					int payloadOffset = buffer.position();
+					buffer.position(payloadOffset + payloadLength);
+
+					switch (type) {
+					case TYPE_DATA:
+						long end = value + payloadLength;
+						if (end <= recvNext || value > recvNext)
+							break;
+
+						int skip = (int)(recvNext - value);
+						byte[] payload = new byte[payloadLength - skip];
+						System.arraycopy(rx, payloadOffset + skip, payload, 0, payload.length);
+						delivered.add(payload);
+						recvNext = end;
+
+						if (recvNext - lastAckSent >= ACK_THRESHOLD) {
+							send(TYPE_ACK, recvNext, null, 0, 0);
+							lastAckSent = recvNext;
+						}
+						break;
+
+					case TYPE_ACK:
+						onAck(value);
+						break;
+
+					case TYPE_HELLO:
+						resumed = onHello(value);
+						break;
+
+					case TYPE_CLOSE:
+						peerClosed = true;
+						break;
+
+					default:
+						break;
+					}
+
+					if (peerClosed)
+						break;
+				}
+			} catch (CarrierException e) {
+				Log.e(TAG, String.format("Resumable channel %s failed (0x%x): %s", id,
+						e.getErrorCode(), e.getMessage()));
+				error = e;
+				failed = true;
+			}
+
+			int consumed = buffer.position();
+			System.arraycopy(rx, consumed, rx, 0, rxLength - consumed);
+			rxLength -= consumed;
+
+			if (peerClosed) {
+				closeLocked();
+				detachLocked();
+			} else if (failed) {
+				// Tell the peer to give up as well, then close.
+				send(TYPE_CLOSE, 0, null, 0, 0);
+				closeLocked();
+				if (outbox.isEmpty())
+					closeChannelLocked();
+				else
+					closeWhenDrained = true;
+			}
+		}
+
+		for (byte[] payload : delivered)
+			handler.onData(this, payload);
+
+		if (resumed)
+			handler.onResumed(this);
+
+		if (peerClosed || failed)
+			handler.onClosed(this);
+
+		return true;
+	}
+
+	@Override
+	public void onChannelOpened(Stream stream, int channel) {
+		synchronized (this) {
+			if (stream != this.stream || channel != this.channel || !opener)
+				return;
+
+			send(TYPE_HELLO, recvNext, null, 0, 0);
+			helloSent = true;
+		}
+	}
+
+	@Override
+	public void onChannelClose(Stream stream, int channel, CloseReason reason) {
+		synchronized (this) {
+			if (stream != this.stream || channel != this.channel)
+				return;
+		}
+		lost();
+	}
+
+	@Override
+	public void onStreamClosed(Stream stream, StreamState state) {
+		synchronized (this) {
+			if (stream != this.stream)
+				return;
+		}
+		lost();
+	}
+}
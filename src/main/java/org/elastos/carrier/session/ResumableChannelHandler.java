@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+/**
+ * The interface to receive the events of a resumable channel.
+ */
+public interface ResumableChannelHandler {
+	/**
+	 * The callback function to process the data received on channel. Data
+	 * is delivered exactly once and in order, across reattaches.
+	 *
+	 * @param
+	 *      channel     The resumable channel
+	 * @param
+	 *      data        The received data
+	 */
+	void onData(ResumableChannel channel, byte[] data);
+
+	/**
+	 * The callback function to be called when the underlying channel or
+	 * stream is lost. Writes keep being buffered until the channel is
+	 * reattached, or expires.
+	 *
+	 * @param
+	 *      channel     The resumable channel
+	 */
+	void onDetached(ResumableChannel channel);
+
+	/**
+	 * The callback function to be called when the channel is reattached and
+	 * unacknowledged data has been replayed.
+	 *
+	 * @param
+	 *      channel     The resumable channel
+	 */
+	void onResumed(ResumableChannel channel);
+
+	/**
+	 * The callback function to be called when the channel is closed by
+	 * either peer, or expired while detached.
+	 *
+	 * @param
+	 *      channel     The resumable channel
+	 */
+	void onClosed(ResumableChannel channel);
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.Log;
+import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.exceptions.GeneralException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The class representing the client side of RPC over a multiplexing channel.
+ *
+ * Any number of calls may be in flight on the channel; each call carries an
+ * id which correlates its response, so responses may arrive in any order.
+ * A call fails with TimeoutException once its deadline passes, and both a
+ * timed out and a cancelled call are cancelled on the server too.
+ *
+ * Calls may be made as soon as the client is opened; the requests are held
+ * until the server accepted the channel. Messages are sent by a sender
+ * thread, so neither the carrier thread nor the call deadlines wait on a
+ * slow channel.
+ */
+public class RpcClient {
+	private static final String TAG = "RpcClient";
+
+	private class Call {
+		final long id;
+		final String method;
+		final long startNanos = System.nanoTime();
+		final CompletableFuture<byte[]> future = new CompletableFuture<>();
+		volatile ScheduledFuture<?> deadline;
+
+		Call(long id, String method) {
+			this.id = id;
+			this.method = method;
+		}
+	}
+
+	private class Connection implements ChannelAttachment {
+		@Override
+		public boolean onChannelData(Stream stream, int channel, byte[] data) {
+			try {
+				decoder.decode(data);
+				return true;
+			} catch (CarrierException e) {
+				Log.e(TAG, "Decode RPC frame error: " + e.getMessage());
+				return false;
+			}
+		}
+
+		@Override
+		public void onChannelOpened(Stream stream, int channel) {
+			opened.complete(null);
+		}
+
+		@Override
+		public void onChannelClose(Stream stream, int channel, CloseReason reason) {
+			failAll("RPC channel closed with " + reason.name().toLowerCase());
+		}
+
+		@Override
+		public void onStreamClosed(Stream stream, StreamState state) {
+			failAll("Stream " + state.name().toLowerCase());
+		}
+	}
+
+	private final Stream stream;
+	private final FrameDecoder decoder;
+	private final Connection connection = new Connection();
+	private final CompletableFuture<Void> opened = new CompletableFuture<>();
+	private int channel;
+	private volatile RpcOutbox outbox;
+	private volatile boolean closed;
+
+	private final AtomicLong nextId = new AtomicLong(1);
+	private final ConcurrentHashMap<Long, Call> calls = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+	private final AtomicLong timeouts = new AtomicLong(0);
+	private final AtomicLong cancellations = new AtomicLong(0);
+
+	private RpcClient(Stream stream, int maxFrameSize) {
+		this.stream = stream;
+		this.decoder = new FrameDecoder(stream, 0, maxFrameSize, (s, c, frame) -> onFrame(frame));
+	}
+
+	/**
+	 * Open an RPC channel on the stream. Calls made before the channel is
+	 * opened are sent once it is.
+	 *
+	 * @param
+	 *      stream      The multiplexing stream to a peer serving RPC
+	 *
+	 * @return
+	 *      The RPC client.
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public static RpcClient open(Stream stream) throws CarrierException {
+		return open(stream, FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+	}
+
+	/**
+	 * Open an RPC channel on the stream.
+	 *
+	 * @param
+	 *      stream          The multiplexing stream to a peer serving RPC
+	 * @param
+	 *      maxFrameSize    The maximum size of response messages
+	 *
+	 * @return
+	 *      The RPC client.
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public static RpcClient open(Stream stream, int maxFrameSize) throws CarrierException {
+		if (stream == null)
+			throw new IllegalArgumentException();
+
+		RpcClient client = new RpcClient(stream, maxFrameSize);
+		client.channel = stream.getAttachments().open(RpcMessage.COOKIE, client.connection);
+		FrameEncoder encoder = new FrameEncoder(stream, client.channel, stream.getFrameSize());
+		client.outbox = new RpcOutbox(encoder, false, client::onSendError);
+		// The channel may be opened or gone before the outbox is set up.
+		client.opened.thenRun(client.outbox::ready);
+		if (client.closed)
+			client.outbox.close();
+		return client;
+	}
+
+	/**
+	 * Call a remote method.
+	 *
+	 * @param
+	 *      method      The method name
+	 * @param
+	 *      request     The request payload
+	 * @param
+	 *      timeout     The call deadline, or 0 for none
+	 * @param
+	 *      unit        The time unit of timeout
+	 *
+	 * @return
+	 *      The future of response payload. It fails with TimeoutException
+	 *      after the deadline, or with CarrierException from the server.
+	 *      Cancelling the future cancels the call on the server.
+	 */
+	public CompletableFuture<byte[]> call(String method, byte[] request, long timeout, TimeUnit unit) {
+		if (method == null || request == null || timeout < 0 || unit == null)
+			throw new IllegalArgumentException();
+
+		Call call = new Call(nextId.getAndIncrement(), method);
+		if (closed) {
+			call.future.completeExceptionally(CarrierException.fromErrorCode(
+					GeneralException.WRONG_STATE, "RPC client closed"));
+			return call.future;
+		}
+
+		calls.put(call.id, call);
+		call.future.whenComplete((response, e) -> complete(call));
+
+		long millis = unit.toMillis(timeout);
+		if (millis > 0) {
+			call.deadline = Manager.getTimer().schedule(() -> {
+				if (call.future.completeExceptionally(new TimeoutException(
+						"Call " + method + " timed out after " + millis + "ms"))) {
+					timeouts.incrementAndGet();
+					sendCancel(call.id);
+				}
+			}, millis, TimeUnit.MILLISECONDS);
+		}
+
+		outbox.send(call.id, RpcMessage.request(call.id, (int)Math.min(millis, Integer.MAX_VALUE),
+				method, request));
+		return call.future;
+	}
+
+	private void complete(Call call) {
+		calls.remove(call.id, call);
+
+		ScheduledFuture<?> deadline = call.deadline;
+		if (deadline != null)
+			deadline.cancel(false);
+
+		if (call.future.isCancelled()) {
+			cancellations.incrementAndGet();
+			sendCancel(call.id);
+		} else if (!call.future.isCompletedExceptionally()) {
+			latencies.computeIfAbsent(call.method, k -> new LatencyHistogram())
+					.record(System.nanoTime() - call.startNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private void sendCancel(long id) {
+		if (closed)
+			return;
+
+		outbox.send(id, RpcMessage.cancel(id));
+	}
+
+	private void onSendError(long id, CarrierException e) {
+		Call call = calls.get(id);
+		if (call != null)
+			call.future.completeExceptionally(e);
+	}
+
+	private void onFrame(ByteBuffer frame) {
+		RpcMessage message = RpcMessage.parse(frame);
+		if (message == null || message.type != RpcMessage.RESPONSE) {
+			Log.w(TAG, "Unexpected RPC message, dropped");
+			return;
+		}
+
+		Call call = calls.get(message.id);
+		if (call == null)
+			return;
+
+		if (message.errorCode == 0)
+			call.future.complete(message.payload);
+		else
+			call.future.completeExceptionally(CarrierException.fromErrorCode(message.errorCode,
+					new String(message.payload, StandardCharsets.UTF_8)));
+	}
+
+	private void failAll(String reason) {
+		closed = true;
+		opened.completeExceptionally(CarrierException.fromErrorCode(
+				GeneralException.WRONG_STATE, reason));
+		RpcOutbox o = outbox;
+		if (o != null)
+			o.close();
+
+		List<Call> pending = new ArrayList<>(calls.values());
+		for (Call call : pending)
+			call.future.completeExceptionally(CarrierException.fromErrorCode(
+					GeneralException.WRONG_STATE, reason));
+	}
+
+	/**
+	 * Get the number of calls in flight.
+	 *
+	 * @return
+	 *      The in flight call count.
+	 */
+	public int getInFlightCount() {
+		return calls.size();
+	}
+
+	/**
+	 * Get the number of calls that timed out.
+	 *
+	 * @return
+	 *      The timeout count.
+	 */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	/**
+	 * Get the number of calls cancelled by application.
+	 *
+	 * @return
+	 *      The cancellation count.
+	 */
+	public long getCancellationCount() {
+		return cancellations.get();
+	}
+
+	/**
+	 * Get the round trip latency of successful calls by method.
+	 *
+	 * @return
+	 *      The latency histograms keyed by method name.
+	 */
+	public Map<String, LatencyHistogram> getLatencies() {
+		return new HashMap<>(latencies);
+	}
+
+	/**
+	 * Close the RPC channel, failing the calls in flight.
+	 */
+	public void close() {
+		if (closed)
+			return;
+
+		failAll("RPC client closed");
+		stream.getAttachments().detach(channel, connection);
+		try {
+			stream.closeChannel(channel);
+		} catch (CarrierException e) {
+			Log.w(TAG, "Close RPC channel error: " + e.getMessage());
+		}
+	}
+}
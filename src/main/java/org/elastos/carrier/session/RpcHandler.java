@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.exceptions.CarrierException;
+
+/**
+ * The interface to serve remote procedure calls.
+ */
+public interface RpcHandler {
+	/**
+	 * The callback function to serve one call, run on a worker thread of the
+	 * RPC server.
+	 *
+	 * The worker thread is interrupted when the caller cancels the call or
+	 * its deadline passes.
+	 *
+	 * @param
+	 *      stream      The carrier stream instance the call came from
+	 * @param
+	 *      method      The method name
+	 * @param
+	 *      request     The request payload
+	 *
+	 * @return
+	 *      The response payload.
+	 *
+	 * @throws
+	 *      CarrierException, which error code and message are returned to
+	 *      the caller
+	 */
+	byte[] onCall(Stream stream, String method, byte[] request) throws CarrierException;
+}
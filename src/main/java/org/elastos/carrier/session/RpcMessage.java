@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * The RPC messages carried in length prefixed frames.
+ *
+ * Request:  type (1), id (8), timeout ms (4, 0 for none), method length (2),
+ *           method, payload.
+ * Response: type (1), id (8), error code (4, 0 on success), payload or
+ *           UTF-8 error message.
+ * Cancel:   type (1), id (8).
+ */
+class RpcMessage {
+	static final String COOKIE = "carrier:rpc";
+
+	static final byte REQUEST = 1;
+	static final byte RESPONSE = 2;
+	static final byte CANCEL = 3;
+
+	final byte type;
+	final long id;
+	final int timeout;
+	final String method;
+	final int errorCode;
+	final byte[] payload;
+
+	private RpcMessage(byte type, long id, int timeout, String method, int errorCode, byte[] payload) {
+		this.type = type;
+		this.id = id;
+		this.timeout = timeout;
+		this.method = method;
+		this.errorCode = errorCode;
+		this.payload = payload;
+	}
+
+	static byte[] request(long id, int timeout, String method, byte[] payload) {
+		byte[] name = method.getBytes(StandardCharsets.UTF_8);
+		if (name.length > 0xffff)
+			throw new IllegalArgumentException("Method name too long");
+
+		return ByteBuffer.allocate(15 + name.length + payload.length)
+				.put(REQUEST).putLong(id).putInt(timeout).putShort((short)name.length)
+				.put(name).put(payload).array();
+	}
+
+	static byte[] response(long id, int errorCode, byte[] payload) {
+		return ByteBuffer.allocate(13 + payload.length)
+				.put(RESPONSE).putLong(id).putInt(errorCode).put(payload).array();
+	}
+
+	static byte[] cancel(long id) {
+		return ByteBuffer.allocate(9).put(CANCEL).putLong(id).array();
+	}
+
+	// Returns null for malformed messages.
+	static RpcMessage parse(ByteBuffer frame) {
+		if (frame.remaining() < 9)
+			return null;
+
+		byte type = frame.get();
+		long id = frame.getLong();
+
+		switch (type) {
+		case REQUEST: {
+			if (frame.remaining() < 6)
+				return null;
+
+			int timeout = frame.getInt();
+			int nameLength = frame.getShort() & 0xffff;
+			if (frame.remaining() < nameLength)
+				return null;
+
+			byte[] name = new byte[nameLength];
+			frame.get(name);
+			return new RpcMessage(type, id, timeout, new String(name, StandardCharsets.UTF_8),
+					0, remaining(frame));
+		}
+
+		case RESPONSE:
+			if (frame.remaining() < 4)
+				return null;
+
+			int errorCode = frame.getInt();
+			return new RpcMessage(type, id, 0, null, errorCode, remaining(frame));
+
+		case CANCEL:
+			return new RpcMessage(type, id, 0, null, 0, null);
+
+		default:
+			return null;
+		}
+	}
+
+	private static byte[] remaining(ByteBuffer frame) {
+		byte[] data = new byte[frame.remaining()];
+		frame.get(data);
+		return data;
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.Log;
+import org.elastos.carrier.exceptions.CarrierException;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The serial queue of RPC messages sent on one channel.
+ *
+ * Writes to a channel may park while the peer is slow, so the callers, which
+ * run on the carrier thread or the shared timer, only queue a message. The
+ * queue is drained in order by a sender thread, batching what queued up
+ * meanwhile into one flush. Nothing is sent until the channel is ready.
+ */
+class RpcOutbox {
+	private static final String TAG = "RpcOutbox";
+
+	interface ErrorHandler {
+		void onSendError(long id, CarrierException e);
+	}
+
+	private static class Message {
+		final long id;
+		final byte[] data;
+
+		Message(long id, byte[] data) {
+			this.id = id;
+			this.data = data;
+		}
+	}
+
+	private static final AtomicInteger index = new AtomicInteger(0);
+	private static final ExecutorService senders = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "RpcSender-" + index.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final FrameEncoder encoder;
+	private final ErrorHandler errorHandler;
+	private final ArrayDeque<Message> queue = new ArrayDeque<>();
+	private boolean ready;
+	private boolean sending;
+	private boolean closed;
+
+	RpcOutbox(FrameEncoder encoder, boolean ready, ErrorHandler errorHandler) {
+		this.encoder = encoder;
+		this.ready = ready;
+		this.errorHandler = errorHandler;
+	}
+
+	void send(long id, byte[] message) {
+		synchronized (queue) {
+			if (closed)
+				return;
+
+			queue.add(new Message(id, message));
+			if (!ready || sending)
+				return;
+
+			sending = true;
+		}
+
+		senders.execute(this::drain);
+	}
+
+	// The channel is open, send what is queued.
+	void ready() {
+		synchronized (queue) {
+			if (closed || ready)
+				return;
+
+			ready = true;
+			if (queue.isEmpty())
+				return;
+
+			sending = true;
+		}
+
+		senders.execute(this::drain);
+	}
+
+	void close() {
+		synchronized (queue) {
+			closed = true;
+			queue.clear();
+		}
+	}
+
+	private void drain() {
+		for (;;) {
+			ArrayDeque<Message> batch;
+
+			synchronized (queue) {
+				if (closed || queue.isEmpty()) {
+					sending = false;
+					return;
+				}
+
+				batch = new ArrayDeque<>(queue);
+				queue.clear();
+			}
+
+			try {
+				for (Message message : batch)
+					encoder.write(message.data);
+				encoder.flush();
+			} catch (CarrierException e) {
+				// Part of the batch may be sent, the channel is broken anyway.
+				Log.e(TAG, "Send RPC messages error: " + e.getMessage());
+				for (Message message : batch)
+					errorHandler.onSendError(message.id, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.Log;
+import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.exceptions.GeneralException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The class representing the server side of RPC over multiplexing channels.
+ *
+ * Calls are dispatched to a bounded worker pool, so a slow call does not
+ * hold up the other calls pipelined on the same channel, and responses are
+ * sent as calls complete. Calls beyond the pool queue are refused with BUSY.
+ * A call cancelled by the caller or past its deadline is interrupted and
+ * gets no response. Responses are sent by a sender thread, so refusing a
+ * call never holds up the carrier thread.
+ *
+ * The server side stream handler calls accept() from
+ * StreamHandler.onChannelOpen for cookies recognized by isRpc(), and
+ * returns true.
+ */
+public class RpcServer {
+	private static final String TAG = "RpcServer";
+
+	private class Task extends FutureTask<Void> {
+		final long id;
+		volatile ScheduledFuture<?> deadline;
+
+		Task(long id, Runnable runnable) {
+			super(runnable, null);
+			this.id = id;
+		}
+	}
+
+	private class Connection implements ChannelAttachment {
+		private final Stream stream;
+		private final FrameDecoder decoder;
+		private final RpcOutbox outbox;
+		private final ConcurrentHashMap<Long, Task> running = new ConcurrentHashMap<>();
+
+		Connection(Stream stream, int channel) {
+			this.stream = stream;
+			this.decoder = new FrameDecoder(stream, channel, maxFrameSize, (s, c, frame) -> onFrame(frame));
+			this.outbox = new RpcOutbox(new FrameEncoder(stream, channel, stream.getFrameSize()), true,
+					(id, e) -> { });
+		}
+
+		private void onFrame(ByteBuffer frame) {
+			RpcMessage message = RpcMessage.parse(frame);
+			if (message == null) {
+				Log.w(TAG, "Malformed RPC message, dropped");
+				return;
+			}
+
+			switch (message.type) {
+			case RpcMessage.REQUEST:
+				dispatch(message);
+				break;
+
+			case RpcMessage.CANCEL:
+				Task task = running.remove(message.id);
+				if (task != null) {
+					task.cancel(true);
+					cancellations.incrementAndGet();
+				}
+				break;
+
+			default:
+				Log.w(TAG, "Unexpected RPC message, dropped");
+			}
+		}
+
+		private void dispatch(RpcMessage request) {
+			calls.incrementAndGet();
+			long startNanos = System.nanoTime();
+
+			Task task = new Task(request.id, () -> {
+				int errorCode = 0;
+				byte[] response;
+
+				try {
+					response = handler.onCall(stream, request.method, request.payload);
+					if (response == null)
+						response = new byte[0];
+				} catch (CarrierException e) {
+					errorCode = e.getErrorCode();
+					response = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Call " + request.method + " error: " + e);
+					errorCode = GeneralException.WRONG_STATE;
+					response = "Internal server error".getBytes(StandardCharsets.UTF_8);
+				}
+
+				respond(request, errorCode, response, startNanos);
+			});
+
+			running.put(request.id, task);
+			try {
+				workers.execute(task);
+			} catch (RejectedExecutionException e) {
+				running.remove(request.id, task);
+				rejections.incrementAndGet();
+				outbox.send(request.id, RpcMessage.response(request.id, GeneralException.BUSY,
+						"Server busy".getBytes(StandardCharsets.UTF_8)));
+				return;
+			}
+
+			if (request.timeout > 0) {
+				task.deadline = Manager.getTimer().schedule(() -> {
+					if (running.remove(request.id, task)) {
+						task.cancel(true);
+						timeouts.incrementAndGet();
+					}
+				}, request.timeout, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		private void respond(RpcMessage request, int errorCode, byte[] response, long startNanos) {
+			Task task = running.remove(request.id);
+			if (task == null)
+				return;
+
+			ScheduledFuture<?> deadline = task.deadline;
+			if (deadline != null)
+				deadline.cancel(false);
+
+			latencies.computeIfAbsent(request.method, k -> new LatencyHistogram())
+					.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+
+			outbox.send(request.id, RpcMessage.response(request.id, errorCode, response));
+		}
+
+		private void cancelAll() {
+			outbox.close();
+			for (Task task : running.values())
+				task.cancel(true);
+			running.clear();
+		}
+
+		@Override
+		public boolean onChannelData(Stream stream, int channel, byte[] data) {
+			try {
+				decoder.decode(data);
+				return true;
+			} catch (CarrierException e) {
+				Log.e(TAG, "Decode RPC frame error: " + e.getMessage());
+				return false;
+			}
+		}
+
+		@Override
+		public void onChannelOpened(Stream stream, int channel) {
+		}
+
+		@Override
+		public void onChannelClose(Stream stream, int channel, CloseReason reason) {
+			cancelAll();
+		}
+
+		@Override
+		public void onStreamClosed(Stream stream, StreamState state) {
+			cancelAll();
+		}
+	}
+
+	private final RpcHandler handler;
+	private final int maxFrameSize;
+	private final ThreadPoolExecutor workers;
+
+	private final ConcurrentHashMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+	private final AtomicLong calls = new AtomicLong(0);
+	private final AtomicLong rejections = new AtomicLong(0);
+	private final AtomicLong timeouts = new AtomicLong(0);
+	private final AtomicLong cancellations = new AtomicLong(0);
+
+	/**
+	 * Create an RPC server.
+	 *
+	 * @param
+	 *      handler         The handler serving calls
+	 * @param
+	 *      workers         The number of worker threads
+	 * @param
+	 *      queueCapacity   The number of calls waiting for a worker
+	 */
+	public RpcServer(RpcHandler handler, int workers, int queueCapacity) {
+		this(handler, workers, queueCapacity, FrameDecoder.DEFAULT_MAX_FRAME_SIZE);
+	}
+
+	/**
+	 * Create an RPC server.
+	 *
+	 * @param
+	 *      handler         The handler serving calls
+	 * @param
+	 *      workers         The number of worker threads
+	 * @param
+	 *      queueCapacity   The number of calls waiting for a worker
+	 * @param
+	 *      maxFrameSize    The maximum size of request messages
+	 */
+	public RpcServer(RpcHandler handler, int workers, int queueCapacity, int maxFrameSize) {
+		if (handler == null || workers <= 0 || queueCapacity <= 0 || maxFrameSize <= 0)
+			throw new IllegalArgumentException();
+
+		this.handler = handler;
+		this.maxFrameSize = maxFrameSize;
+
+		AtomicInteger index = new AtomicInteger(0);
+		ThreadFactory factory = r -> {
+			Thread thread = new Thread(r, "RpcServer-" + index.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		this.workers = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), factory);
+		this.workers.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Check if a channel cookie is from an RPC client.
+	 *
+	 * @param
+	 *      cookie      The channel cookie
+	 *
+	 * @return
+	 *      True if the channel carries RPC, otherwise false.
+	 */
+	public static boolean isRpc(String cookie) {
+		return RpcMessage.COOKIE.equals(cookie);
+	}
+
+	/**
+	 * Serve calls on an incoming RPC channel. Must be called from
+	 * StreamHandler.onChannelOpen.
+	 *
+	 * @param
+	 *      stream      The stream of incoming channel
+	 * @param
+	 *      channel     The incoming channel ID
+	 */
+	public void accept(Stream stream, int channel) {
+		if (stream == null || channel <= 0)
+			throw new IllegalArgumentException();
+
+		stream.getAttachments().attach(channel, new Connection(stream, channel));
+	}
+
+	/**
+	 * Get the number of received calls.
+	 *
+	 * @return
+	 *      The call count.
+	 */
+	public long getCallCount() {
+		return calls.get();
+	}
+
+	/**
+	 * Get the number of calls refused for a full worker queue.
+	 *
+	 * @return
+	 *      The rejection count.
+	 */
+	public long getRejectionCount() {
+		return rejections.get();
+	}
+
+	/**
+	 * Get the number of calls interrupted at their deadline.
+	 *
+	 * @return
+	 *      The timeout count.
+	 */
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	/**
+	 * Get the number of calls cancelled by callers.
+	 *
+	 * @return
+	 *      The cancellation count.
+	 */
+	public long getCancellationCount() {
+		return cancellations.get();
+	}
+
+	/**
+	 * Get the service time of completed calls by method.
+	 *
+	 * @return
+	 *      The latency histograms keyed by method name.
+	 */
+	public Map<String, LatencyHistogram> getLatencies() {
+		return new HashMap<>(latencies);
+	}
+
+	/**
+	 * Stop the worker pool, interrupting the running calls.
+	 */
+	public void close() {
+		workers.shutdownNow();
+	}
+}
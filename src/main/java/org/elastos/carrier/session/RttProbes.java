@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.elastos.carrier.Log;
+import org.elastos.carrier.exceptions.CarrierException;
+
+/*
+ * The round trip probes on one stream, both the ones measured from this side
+ * and the ones opened by the remote peer. A probe of ours that gets no reply
+ * within PROBE_TIMEOUT fails with TimeoutException, and its channel is closed
+ * as soon as its future completes without the reply, so probes sent to a
+ * silent peer do not pile up.
+ */
+class RttProbes implements StreamFeature {
+	private static final String TAG = "RttProbes";
+
+	// How long a probe waits for the reply of remote peer, in milliseconds.
+	static final long PROBE_TIMEOUT = 10 * 1000;
+
+	private static class Probe {
+		final long startNanos = System.nanoTime();
+		final CompletableFuture<Long> future;
+		ScheduledFuture<?> timeout;
+
+		Probe(CompletableFuture<Long> future) {
+			this.future = future;
+		}
+	}
+
+	private final Stream stream;
+	private final HashMap<Integer, Probe> probes = new HashMap<>();
+
+	RttProbes(Stream stream) {
+		this.stream = stream;
+	}
+
+	CompletableFuture<Long> measure() throws CarrierException {
+		CompletableFuture<Long> future = new CompletableFuture<>();
+		Probe probe = new Probe(future);
+		int channel;
+
+		// The reply may arrive before the probe is put, it waits on the lock.
+		synchronized (this) {
+			channel = openProbe();
+			probes.put(channel, probe);
+			probe.timeout = schedule(() -> {
+				if (future.completeExceptionally(new TimeoutException("RTT probe timeout")))
+					Log.w(TAG, "RTT probe on channel " + channel + " timed out");
+			}, PROBE_TIMEOUT);
+		}
+
+		// Timed out, or completed by the caller without waiting for the reply.
+		future.whenComplete((rtt, e) -> discard(channel, probe));
+		return future;
+	}
+
+	private void discard(int channel, Probe probe) {
+		synchronized (this) {
+			if (!probes.remove(channel, probe))
+				return;
+		}
+
+		probe.timeout.cancel(false);
+		closeProbe(channel);
+	}
+
+	// Returns true if the channel is a probe, either ours or the peer's.
+	boolean onReply(int channel, boolean opened) {
+		Probe probe;
+		synchronized (this) {
+			probe = probes.get(channel);
+			if (probe == null)
+				return false;
+
+			// Probes of the peer are kept until closed.
+			if (probe.future == null && opened)
+				return true;
+
+			probes.remove(channel);
+		}
+
+		if (probe.future != null) {
+			probe.timeout.cancel(false);
+			probe.future.complete(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - probe.startNanos));
+			if (opened)
+				closeProbe(channel);
+		}
+		return true;
+	}
+
+	synchronized void onRequest(int channel) {
+		probes.put(channel, new Probe(null));
+	}
+
+	@Override
+	public void onChannelClosed(int channel, CloseReason reason) {
+		// Probe channels are settled by onReply, before the stream sees them.
+	}
+
+	@Override
+	public void onStreamClosed(StreamState state) {
+		Probe[] pending;
+		synchronized (this) {
+			pending = probes.values().toArray(new Probe[0]);
+			probes.clear();
+		}
+
+		for (Probe probe : pending) {
+			if (probe.future != null) {
+				probe.timeout.cancel(false);
+				probe.future.cancel(false);
+			}
+		}
+	}
+
+	synchronized int size() {
+		return probes.size();
+	}
+
+	int openProbe() throws CarrierException {
+		return stream.openNativeChannel(Stream.RTT_PROBE_COOKIE);
+	}
+
+	void closeProbe(int channel) {
+		stream.closeNativeChannel(channel);
+	}
+
+	ScheduledFuture<?> schedule(Runnable task, long delay) {
+		return Manager.getTimer().schedule(task, delay, TimeUnit.MILLISECONDS);
+	}
+}
@@ -35,6 +35,8 @@ public class Session {
 
 	private String to;  // with whom being conversation.
 	private boolean didClose;
+	private volatile long requestNanos;
+	private volatile long completionNanos;
 
 	/* Jni native methods. */
 	private native void session_close();
@@ -87,6 +89,14 @@ public class Session {
 		return to;
 	}
 
+	long getRequestNanos() {
+		return requestNanos;
+	}
+
+	long getCompletionNanos() {
+		return completionNanos;
+	}
+
 	/**
 	 * Send session request to the friend.
 	 *
@@ -104,7 +114,13 @@ public class Session {
 		if (handler == null)
 			throw new IllegalArgumentException();
 
-		if (!native_request(handler))
+		requestNanos = System.nanoTime();
+		SessionRequestCompleteHandler timed = (session, status, reason, sdp) -> {
+			completionNanos = System.nanoTime();
+			handler.onCompletion(session, status, reason, sdp);
+		};
+
+		if (!native_request(timed))
 			throw CarrierException.fromErrorCode(get_error_code());
 
 		Log.d(TAG, "Initiate session request to " + to);
@@ -199,10 +215,13 @@ public class Session {
 
 		Log.d(TAG, String.format("Attempt to add stream (type:%s, options:%d)", type, options));
 
-		Stream stream = add_stream(type, options, handler);
+		StreamCallbacks callbacks = new StreamCallbacks(handler);
+		Stream stream = add_stream(type, options, callbacks);
 		if (stream == null)
 			throw CarrierException.fromErrorCode(get_error_code());
 
+		stream.setSession(this);
+		stream.setTimeline(callbacks.getTimeline());
 		Log.d(TAG, String.format("Stream %d with %s type created", stream.getStreamId(), type.name()));
 
 		return stream;
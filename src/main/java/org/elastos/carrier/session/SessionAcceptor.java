@@ -0,0 +1,462 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.Carrier;
+import org.elastos.carrier.Log;
+import org.elastos.carrier.exceptions.CarrierException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The class accepting incoming session requests with admission control.
+ *
+ * The acceptor is installed as the manager handler through
+ * Manager.createInstance. On the carrier thread it only checks the per-peer
+ * rate limit and the maximum number of concurrent sessions. Requests over
+ * the limits are refused by a separate refusal worker, so refusing never
+ * takes a slot of the worker pool; when even its queue is full the refusal
+ * is dropped and the request times out on the peer. Accepted requests are
+ * handed to a bounded worker pool, which creates the session and stream,
+ * replies and starts the session. Application receives the events of accepted streams
+ * through the stream handler given to the acceptor.
+ */
+public class SessionAcceptor implements ManagerHandler {
+	private static final String TAG = "SessionAcceptor";
+
+	/**
+	 * The reply status when the maximum concurrent sessions is reached.
+	 */
+	public static final int STATUS_OVER_CAPACITY = 1;
+
+	/**
+	 * The reply status when the peer exceeds its request rate.
+	 */
+	public static final int STATUS_RATE_LIMITED = 2;
+
+	// Prune idle rate limiters once there are this many peers tracked.
+	private static final int MAX_LIMITERS = 4096;
+
+	static class TokenBucket {
+		private double tokens;
+		private long lastNanos;
+
+		TokenBucket(double burst, long now) {
+			this.tokens = burst;
+			this.lastNanos = now;
+		}
+
+		synchronized boolean tryAcquire(double rate, double burst, long now) {
+			tokens = Math.min(burst, tokens + (now - lastNanos) * rate / TimeUnit.SECONDS.toNanos(1));
+			lastNanos = now;
+
+			if (tokens < 1)
+				return false;
+
+			tokens -= 1;
+			return true;
+		}
+
+		synchronized boolean isFull(double rate, double burst, long now) {
+			return tokens + (now - lastNanos) * rate / TimeUnit.SECONDS.toNanos(1) >= burst;
+		}
+	}
+
+	private final StreamType type;
+	private final int streamOptions;
+	private final StreamHandler handler;
+	private final int maxSessions;
+	private final double peerRate;
+	private final double peerBurst;
+	private final ThreadPoolExecutor workers;
+	private final ThreadPoolExecutor refusals;
+	private volatile Manager manager;
+
+	private final ConcurrentHashMap<String, TokenBucket> limiters = new ConcurrentHashMap<>();
+	private final AtomicInteger activeSessions = new AtomicInteger(0);
+
+	private final AtomicLong requests = new AtomicLong(0);
+	private final AtomicLong accepted = new AtomicLong(0);
+	private final AtomicLong overCapacity = new AtomicLong(0);
+	private final AtomicLong rateLimited = new AtomicLong(0);
+	private final AtomicLong failed = new AtomicLong(0);
+	private final AtomicLong dequeued = new AtomicLong(0);
+	private final AtomicLong totalWaitNanos = new AtomicLong(0);
+	private final AtomicLong maxWaitNanos = new AtomicLong(0);
+
+	/**
+	 * Create a session acceptor.
+	 *
+	 * @param
+	 *      type            The type of accepted streams
+	 * @param
+	 *      streamOptions   The options of accepted streams
+	 * @param
+	 *      handler         The handler of accepted streams
+	 * @param
+	 *      maxSessions     The maximum number of concurrent sessions
+	 * @param
+	 *      peerRate        The sustained session requests per second per peer
+	 * @param
+	 *      peerBurst       The burst of session requests per peer
+	 * @param
+	 *      workers         The number of worker threads
+	 * @param
+	 *      queueCapacity   The maximum number of requests waiting for workers
+	 */
+	public SessionAcceptor(StreamType type, int streamOptions, StreamHandler handler,
+						   int maxSessions, double peerRate, int peerBurst,
+						   int workers, int queueCapacity) {
+		if (type == null || handler == null || maxSessions <= 0 || peerRate <= 0 ||
+				peerBurst <= 0 || workers <= 0 || queueCapacity <= 0)
+			throw new IllegalArgumentException();
+
+		this.type = type;
+		this.streamOptions = streamOptions;
+		this.handler = handler;
+		this.maxSessions = maxSessions;
+		this.peerRate = peerRate;
+		this.peerBurst = peerBurst;
+
+		AtomicInteger index = new AtomicInteger(0);
+		ThreadFactory factory = r -> {
+			Thread thread = new Thread(r, "SessionAcceptor-" + index.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		this.workers = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), factory);
+		this.workers.allowCoreThreadTimeOut(true);
+		this.refusals = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), factory);
+		this.refusals.allowCoreThreadTimeOut(true);
+	}
+
+	void bind(Manager manager) {
+		this.manager = manager;
+	}
+
+	@Override
+	public void onSessionRequest(Carrier carrier, String from, String sdp) {
+		requests.incrementAndGet();
+
+		if (!allow(from)) {
+			rateLimited.incrementAndGet();
+			refuse(from, STATUS_RATE_LIMITED, "Too many session requests");
+			return;
+		}
+
+		for (;;) {
+			int active = activeSessions.get();
+			if (active >= maxSessions) {
+				overCapacity.incrementAndGet();
+				refuse(from, STATUS_OVER_CAPACITY, "Server busy");
+				return;
+			}
+			if (activeSessions.compareAndSet(active, active + 1))
+				break;
+		}
+
+		long enqueued = System.nanoTime();
+		try {
+			workers.execute(() -> accept(from, sdp, enqueued));
+		} catch (RejectedExecutionException e) {
+			activeSessions.decrementAndGet();
+			overCapacity.incrementAndGet();
+			refuse(from, STATUS_OVER_CAPACITY, "Server busy");
+		}
+	}
+
+	private boolean allow(String peer) {
+		TokenBucket bucket = limiters.get(peer);
+		if (bucket == null) {
+			long now = System.nanoTime();
+			if (limiters.size() >= MAX_LIMITERS)
+				limiters.values().removeIf(b -> b.isFull(peerRate, peerBurst, now));
+
+			bucket = limiters.computeIfAbsent(peer, k -> new TokenBucket(peerBurst, now));
+		}
+
+		return bucket.tryAcquire(peerRate, peerBurst, System.nanoTime());
+	}
+
+	private void refuse(String from, int status, String reason) {
+		try {
+			refusals.execute(() -> reply(from, status, reason));
+		} catch (RejectedExecutionException e) {
+			Log.w(TAG, "Refusal queue full, dropped refusal to " + from);
+		}
+	}
+
+	private void reply(String from, int status, String reason) {
+		Manager m = manager;
+		if (m == null)
+			return;
+
+		Session session = null;
+		try {
+			session = m.newSession(from);
+			session.replyRequest(status, reason);
+		} catch (CarrierException e) {
+			Log.e(TAG, String.format("Refuse session request from %s error (0x%x)", from, e.getErrorCode()));
+		} finally {
+			if (session != null)
+				session.close();
+		}
+	}
+
+	private void accept(String from, String sdp, long enqueued) {
+		long wait = System.nanoTime() - enqueued;
+		dequeued.incrementAndGet();
+		totalWaitNanos.addAndGet(wait);
+		for (long max = maxWaitNanos.get(); wait > max; max = maxWaitNanos.get()) {
+			if (maxWaitNanos.compareAndSet(max, wait))
+				break;
+		}
+
+		AcceptedStream stream = new AcceptedStream(from, sdp);
+		try {
+			stream.session = manager.newSession(from);
+			stream.session.addStream(type, streamOptions, stream);
+		} catch (CarrierException e) {
+			Log.e(TAG, String.format("Accept session from %s error (0x%x)", from, e.getErrorCode()));
+			stream.fail();
+		}
+	}
+
+	/*
+	 * The handler of accepted streams, finishing the handshake and releasing
+	 * the session slot once the stream is gone.
+	 */
+	private class AcceptedStream implements StreamHandler {
+		private final String peer;
+		private final String sdp;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+		volatile Session session;
+
+		AcceptedStream(String peer, String sdp) {
+			this.peer = peer;
+			this.sdp = sdp;
+		}
+
+		private void release() {
+			if (released.compareAndSet(false, true))
+				activeSessions.decrementAndGet();
+		}
+
+		void fail() {
+			failed.incrementAndGet();
+			release();
+			if (session != null)
+				session.close();
+		}
+
+		private void reply() {
+			try {
+				session.replyRequest(0, null);
+				session.start(sdp);
+				accepted.incrementAndGet();
+			} catch (CarrierException e) {
+				Log.e(TAG, String.format("Reply session request from %s error (0x%x)",
+						peer, e.getErrorCode()));
+				fail();
+			}
+		}
+
+		@Override
+		public void onStateChanged(Stream stream, StreamState state) {
+			switch (state) {
+			case Initialized:
+				try {
+					workers.execute(this::reply);
+				} catch (RejectedExecutionException e) {
+					reply();
+				}
+				break;
+
+			case Deactivated:
+			case Closed:
+			case Error:
+				release();
+				break;
+
+			default:
+				break;
+			}
+
+			handler.onStateChanged(stream, state);
+		}
+
+		@Override
+		public void onStreamData(Stream stream, byte[] data) {
+			handler.onStreamData(stream, data);
+		}
+
+		@Override
+		public boolean onChannelOpen(Stream stream, int channel, String cookie) {
+			return handler.onChannelOpen(stream, channel, cookie);
+		}
+
+		@Override
+		public void onChannelOpened(Stream stream, int channel) {
+			handler.onChannelOpened(stream, channel);
+		}
+
+		@Override
+		public void onChannelClose(Stream stream, int channel, CloseReason reason) {
+			handler.onChannelClose(stream, channel, reason);
+		}
+
+		@Override
+		public boolean onChannelData(Stream stream, int channel, byte[] data) {
+			return handler.onChannelData(stream, channel, data);
+		}
+
+		@Override
+		public void onChannelPending(Stream stream, int channel) {
+			handler.onChannelPending(stream, channel);
+		}
+
+		@Override
+		public void onChannelResume(Stream stream, int channel) {
+			handler.onChannelResume(stream, channel);
+		}
+	}
+
+	/**
+	 * Stop the worker pool. Requests arriving afterwards are refused.
+	 */
+	public void shutdown() {
+		workers.shutdown();
+		refusals.shutdown();
+	}
+
+	/**
+	 * Get the number of sessions accepted and not yet closed, including
+	 * handshakes in progress.
+	 *
+	 * @return
+	 *      The number of active sessions.
+	 */
+	public int getActiveSessions() {
+		return activeSessions.get();
+	}
+
+	/**
+	 * Get the number of requests waiting for workers.
+	 *
+	 * @return
+	 *      The queue depth.
+	 */
+	public int getQueueDepth() {
+		return workers.getQueue().size();
+	}
+
+	/**
+	 * Get the number of received session requests.
+	 *
+	 * @return
+	 *      The request count.
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * Get the number of sessions replied and started.
+	 *
+	 * @return
+	 *      The accepted count.
+	 */
+	public long getAcceptedCount() {
+		return accepted.get();
+	}
+
+	/**
+	 * Get the number of requests refused for the session limit or a full
+	 * worker queue.
+	 *
+	 * @return
+	 *      The refused count.
+	 */
+	public long getOverCapacityCount() {
+		return overCapacity.get();
+	}
+
+	/**
+	 * Get the number of requests refused by per-peer rate limit.
+	 *
+	 * @return
+	 *      The rate limited count.
+	 */
+	public long getRateLimitedCount() {
+		return rateLimited.get();
+	}
+
+	/**
+	 * Get the number of admitted requests failed during handshake.
+	 *
+	 * @return
+	 *      The failed count.
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * Get the average time admitted requests waited for a worker, over the
+	 * requests a worker has picked up.
+	 *
+	 * @param
+	 *      unit        The time unit of result
+	 *
+	 * @return
+	 *      The average queue wait.
+	 */
+	public long getAverageQueueWait(TimeUnit unit) {
+		long count = dequeued.get();
+		return count <= 0 ? 0 : unit.convert(totalWaitNanos.get() / count, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Get the maximum time admitted requests waited for a worker.
+	 *
+	 * @param
+	 *      unit        The time unit of result
+	 *
+	 * @return
+	 *      The maximum queue wait.
+	 */
+	public long getMaxQueueWait(TimeUnit unit) {
+		return unit.convert(maxWaitNanos.get(), TimeUnit.NANOSECONDS);
+	}
+}
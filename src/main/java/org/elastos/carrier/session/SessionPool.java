@@ -0,0 +1,464 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The class representing a pool of connected streams keyed by peer.
+ *
+ * Acquiring a peer reuses its pooled stream while it is connected, and
+ * concurrent acquires of a peer without a pooled stream share one setup.
+ * Each acquire yields a lease which must be released. Streams which have
+ * not been leased by anyone for longer than the idle TTL are evicted, and
+ * their sessions closed. Streams which are deactivated, closed or in error
+ * are evicted at once.
+ */
+public class SessionPool {
+	private static final String TAG = "SessionPool";
+
+	/**
+	 * Default idle time before a pooled session is evicted.
+	 */
+	public static final long DEFAULT_IDLE_TTL = 5 * 60 * 1000;
+
+	private static class Entry {
+		final CompletableFuture<Stream> future;
+		int leases;
+		long idleSince;
+
+		Entry(CompletableFuture<Stream> future) {
+			this.future = future;
+		}
+
+		synchronized void release() {
+			if (leases > 0 && --leases == 0)
+				idleSince = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * The class representing one acquire of a pooled stream.
+	 *
+	 * A lease only counts against the pooled entry it was acquired from, so
+	 * releasing it after the peer has been evicted and connected again does
+	 * not affect the new entry.
+	 */
+	public static final class Lease {
+		private final Entry entry;
+		private final Stream stream;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+
+		private Lease(Entry entry, Stream stream) {
+			this.entry = entry;
+			this.stream = stream;
+		}
+
+		/**
+		 * Get the leased stream.
+		 *
+		 * @return
+		 *      The connected stream.
+		 */
+		public Stream getStream() {
+			return stream;
+		}
+
+		/**
+		 * Release the lease. The stream stays pooled until it has been idle
+		 * for the idle TTL. Releasing a lease more than once has no effect.
+		 */
+		public void release() {
+			if (released.compareAndSet(false, true))
+				entry.release();
+		}
+	}
+
+	private final Manager manager;
+	private final StreamType type;
+	private final Manager.ConnectOptions options;
+	private final long idleTTL;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private final ScheduledFuture<?> evictor;
+
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong joins = new AtomicLong(0);
+	private final AtomicLong evictions = new AtomicLong(0);
+	private final AtomicLong setups = new AtomicLong(0);
+	private final AtomicLong totalSetupNanos = new AtomicLong(0);
+	private final AtomicLong maxSetupNanos = new AtomicLong(0);
+
+	/**
+	 * Create a session pool.
+	 *
+	 * @param
+	 *      manager     The session manager
+	 * @param
+	 *      type        The type of pooled streams
+	 * @param
+	 *      options     The connect options of pooled streams
+	 * @param
+	 *      idleTTL     The idle time in milliseconds before a session is evicted
+	 */
+	public SessionPool(Manager manager, StreamType type, Manager.ConnectOptions options, long idleTTL) {
+		this(requireManager(manager), type, options, idleTTL, Manager.getTimer());
+	}
+
+	// Without a manager, subclasses provide the streams by overriding setup().
+	SessionPool(Manager manager, StreamType type, Manager.ConnectOptions options, long idleTTL,
+				ScheduledExecutorService timer) {
+		if (type == null || idleTTL <= 0)
+			throw new IllegalArgumentException();
+
+		if (options == null)
+			options = new Manager.ConnectOptions();
+
+		this.manager = manager;
+		this.type = type;
+		this.idleTTL = idleTTL;
+		this.options = new Manager.ConnectOptions()
+				.setStreamOptions(options.getStreamOptions())
+				.setTimeout(options.getTimeout())
+				.setHandler(new PoolHandler(options.getHandler() != null ?
+						options.getHandler() : new AbstractStreamHandler()));
+
+		long period = Math.max(1000, idleTTL / 2);
+		evictor = timer.scheduleWithFixedDelay(this::evictIdle,
+				period, period, TimeUnit.MILLISECONDS);
+	}
+
+	private static Manager requireManager(Manager manager) {
+		if (manager == null)
+			throw new IllegalArgumentException();
+
+		return manager;
+	}
+
+	/*
+	 * The handler of pooled streams, evicting streams once they are no longer
+	 * usable and forwarding all events to application handler.
+	 */
+	private class PoolHandler implements StreamHandler {
+		private final StreamHandler handler;
+
+		PoolHandler(StreamHandler handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		public void onStateChanged(Stream stream, StreamState state) {
+			boolean gone = state == StreamState.Deactivated || state == StreamState.Closed ||
+					state == StreamState.Error;
+			if (gone)
+				evict(stream);
+
+			handler.onStateChanged(stream, state);
+
+			// Closed after the application handled the state, so that it can
+			// still tear down what it opened on the stream.
+			Session session = stream.getSession();
+			if (gone && session != null)
+				session.close();
+		}
+
+		@Override
+		public void onStreamData(Stream stream, byte[] data) {
+			handler.onStreamData(stream, data);
+		}
+
+		@Override
+		public boolean onChannelOpen(Stream stream, int channel, String cookie) {
+			return handler.onChannelOpen(stream, channel, cookie);
+		}
+
+		@Override
+		public void onChannelOpened(Stream stream, int channel) {
+			handler.onChannelOpened(stream, channel);
+		}
+
+		@Override
+		public void onChannelClose(Stream stream, int channel, CloseReason reason) {
+			handler.onChannelClose(stream, channel, reason);
+		}
+
+		@Override
+		public boolean onChannelData(Stream stream, int channel, byte[] data) {
+			return handler.onChannelData(stream, channel, data);
+		}
+
+		@Override
+		public void onChannelPending(Stream stream, int channel) {
+			handler.onChannelPending(stream, channel);
+		}
+
+		@Override
+		public void onChannelResume(Stream stream, int channel) {
+			handler.onChannelResume(stream, channel);
+		}
+	}
+
+	/**
+	 * Acquire a lease of the connected stream to peer.
+	 *
+	 * Cancelling the returned future, or a failed setup, gives the lease
+	 * back. Cancelling does not abort a setup shared with other acquires.
+	 *
+	 * @param
+	 *      peer        The target peer
+	 *
+	 * @return
+	 *      The future of the lease.
+	 */
+	public CompletableFuture<Lease> acquire(String peer) {
+		if (peer == null || peer.length() == 0)
+			throw new IllegalArgumentException();
+
+		for (;;) {
+			Entry entry = entries.get(peer);
+			if (entry == null) {
+				Entry created = new Entry(new CompletableFuture<>());
+				entry = entries.putIfAbsent(peer, created);
+				if (entry == null) {
+					misses.incrementAndGet();
+					synchronized (created) {
+						created.leases++;
+					}
+					connect(peer, created);
+					return lease(created);
+				}
+			}
+
+			synchronized (entry) {
+				CompletableFuture<Stream> future = entry.future;
+				if (future.isDone() && (future.isCompletedExceptionally() ||
+						future.join().getState() != StreamState.Connected)) {
+					entries.remove(peer, entry);
+					continue;
+				}
+
+				if (future.isDone())
+					hits.incrementAndGet();
+				else
+					joins.incrementAndGet();
+
+				entry.leases++;
+				return lease(entry);
+			}
+		}
+	}
+
+	private CompletableFuture<Lease> lease(Entry entry) {
+		CompletableFuture<Lease> lease = entry.future.thenApply(stream -> new Lease(entry, stream));
+		lease.whenComplete((l, e) -> {
+			if (e != null)
+				entry.release();
+		});
+		return lease;
+	}
+
+	private void connect(String peer, Entry entry) {
+		long start = System.nanoTime();
+
+		setup(peer).whenComplete((stream, e) -> {
+			if (e != null) {
+				entries.remove(peer, entry);
+				entry.future.completeExceptionally(e);
+				return;
+			}
+
+			long nanos = System.nanoTime() - start;
+			setups.incrementAndGet();
+			totalSetupNanos.addAndGet(nanos);
+			for (long max = maxSetupNanos.get(); nanos > max; max = maxSetupNanos.get()) {
+				if (maxSetupNanos.compareAndSet(max, nanos))
+					break;
+			}
+
+			if (!entry.future.complete(stream) || entries.get(peer) != entry)
+				stream.getSession().close();
+		});
+	}
+
+	CompletableFuture<Stream> setup(String peer) {
+		return manager.connect(peer, type, options);
+	}
+
+	/**
+	 * Remove the peer from the pool and close its session.
+	 *
+	 * @param
+	 *      peer        The target peer
+	 */
+	public void invalidate(String peer) {
+		Entry entry = entries.remove(peer);
+		if (entry != null)
+			close(entry);
+	}
+
+	private void close(Entry entry) {
+		if (!entry.future.cancel(false) && !entry.future.isCompletedExceptionally()) {
+			Session session = entry.future.join().getSession();
+			if (session != null)
+				session.close();
+		}
+	}
+
+	private void evict(Stream stream) {
+		Session session = stream.getSession();
+		if (session == null)
+			return;
+
+		Entry entry = entries.get(session.getPeer());
+		if (entry != null && entry.future.isDone() && !entry.future.isCompletedExceptionally() &&
+				entry.future.join() == stream)
+			entries.remove(session.getPeer(), entry);
+	}
+
+	void evictIdle() {
+		long now = System.currentTimeMillis();
+		List<String> idle = new ArrayList<>();
+
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			Entry entry = e.getValue();
+			synchronized (entry) {
+				if (entry.leases == 0 && entry.future.isDone() && now - entry.idleSince >= idleTTL)
+					idle.add(e.getKey());
+			}
+		}
+
+		for (String peer : idle) {
+			Entry entry = entries.get(peer);
+			if (entry == null)
+				continue;
+
+			synchronized (entry) {
+				if (entry.leases > 0 || !entries.remove(peer, entry))
+					continue;
+			}
+
+			Log.d(TAG, "Evict idle session to " + peer);
+			evictions.incrementAndGet();
+			close(entry);
+		}
+	}
+
+	/**
+	 * Close all the pooled sessions and stop evicting.
+	 */
+	public void close() {
+		evictor.cancel(false);
+
+		for (String peer : new ArrayList<>(entries.keySet()))
+			invalidate(peer);
+	}
+
+	/**
+	 * Get the number of pooled peers, including setups in progress.
+	 *
+	 * @return
+	 *      The pool size.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the number of acquires served by pooled connected streams.
+	 *
+	 * @return
+	 *      The hit count.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Get the number of acquires which started new setups.
+	 *
+	 * @return
+	 *      The miss count.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Get the number of acquires which joined setups in progress.
+	 *
+	 * @return
+	 *      The join count.
+	 */
+	public long getJoinCount() {
+		return joins.get();
+	}
+
+	/**
+	 * Get the number of sessions evicted for idle.
+	 *
+	 * @return
+	 *      The eviction count.
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * Get the average time of successful setups.
+	 *
+	 * @param
+	 *      unit        The time unit of result
+	 *
+	 * @return
+	 *      The average setup latency.
+	 */
+	public long getAverageSetupLatency(TimeUnit unit) {
+		long count = setups.get();
+		return count == 0 ? 0 : unit.convert(totalSetupNanos.get() / count, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Get the maximum time of successful setups.
+	 *
+	 * @param
+	 *      unit        The time unit of result
+	 *
+	 * @return
+	 *      The maximum setup latency.
+	 */
+	public long getMaxSetupLatency(TimeUnit unit) {
+		return unit.convert(maxSetupNanos.get(), TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import java.util.EnumMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The class collecting stream setup latencies grouped by network topology.
+ *
+ * Each connected stream contributes the latency of every setup phase to
+ * the histograms of the topology it got connected with, so slow relayed
+ * setups can be told apart from slow signaling.
+ */
+public class SessionTelemetry {
+	/**
+	 * The phases of a stream setup.
+	 */
+	public enum Phase {
+		/**
+		 * From adding the stream to connected.
+		 */
+		Total,
+
+		/**
+		 * From adding the stream to transport ready, mostly candidate
+		 * gathering.
+		 */
+		Gathering,
+
+		/**
+		 * From sending the session request to its completion.
+		 */
+		Signaling,
+
+		/**
+		 * From connecting to connected, the connectivity checks.
+		 */
+		Connectivity
+	}
+
+	private static volatile SessionTelemetry defaultTelemetry;
+
+	private final EnumMap<NetworkTopology, EnumMap<Phase, LatencyHistogram>> histograms =
+			new EnumMap<>(NetworkTopology.class);
+
+	/**
+	 * Create an empty telemetry collector.
+	 */
+	public SessionTelemetry() {
+		for (NetworkTopology topology : NetworkTopology.values()) {
+			EnumMap<Phase, LatencyHistogram> phases = new EnumMap<>(Phase.class);
+			for (Phase phase : Phase.values())
+				phases.put(phase, new LatencyHistogram());
+			histograms.put(topology, phases);
+		}
+	}
+
+	/**
+	 * Get the telemetry collector shared in the SDK.
+	 *
+	 * @return
+	 *      The default telemetry collector.
+	 */
+	public static SessionTelemetry getDefault() {
+		SessionTelemetry telemetry = defaultTelemetry;
+		if (telemetry == null) {
+			synchronized (SessionTelemetry.class) {
+				telemetry = defaultTelemetry;
+				if (telemetry == null) {
+					telemetry = new SessionTelemetry();
+					defaultTelemetry = telemetry;
+				}
+			}
+		}
+		return telemetry;
+	}
+
+	private static void record(LatencyHistogram histogram, long from, long to) {
+		if (from >= 0 && to >= from)
+			histogram.record(to - from, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Record the phases of a connected stream.
+	 *
+	 * @param
+	 *      timeline    The timeline of the connected stream
+	 */
+	public void record(StreamTimeline timeline) {
+		TransportInfo info = timeline.getTransportInfo();
+		if (info == null || info.getTopology() == null)
+			return;
+
+		TimeUnit ms = TimeUnit.MILLISECONDS;
+		EnumMap<Phase, LatencyHistogram> phases = histograms.get(info.getTopology());
+
+		record(phases.get(Phase.Total), 0, timeline.getElapsed(StreamState.Connected, ms));
+		record(phases.get(Phase.Gathering), 0, timeline.getElapsed(StreamState.TransportReady, ms));
+		record(phases.get(Phase.Signaling), timeline.getRequestElapsed(ms),
+				timeline.getCompletionElapsed(ms));
+		record(phases.get(Phase.Connectivity), timeline.getElapsed(StreamState.Connecting, ms),
+				timeline.getElapsed(StreamState.Connected, ms));
+	}
+
+	/**
+	 * Get the histogram of a setup phase for a network topology.
+	 *
+	 * @param
+	 *      topology    The network topology
+	 * @param
+	 *      phase       The setup phase
+	 *
+	 * @return
+	 *      The latency histogram.
+	 */
+	public LatencyHistogram getHistogram(NetworkTopology topology, Phase phase) {
+		if (topology == null || phase == null)
+			throw new IllegalArgumentException();
+
+		return histograms.get(topology).get(phase);
+	}
+}
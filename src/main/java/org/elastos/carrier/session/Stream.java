@@ -22,10 +22,15 @@
 
 package org.elastos.carrier.session;
 
-import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import org.elastos.carrier.Log;
 import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.exceptions.GeneralException;
 
 /**
  * The class representing Carrier stream.
@@ -38,6 +43,30 @@ public class Stream {
 
 	private int streamId;
 	private StreamType type;
+	private volatile int frameSize = DEFAULT_FRAME_SIZE;
+	private volatile Session session;
+	private volatile StreamState state;
+	private volatile StreamTimeline timeline;
+	private final AtomicLong bytesSent = new AtomicLong(0);
+	private final AtomicLong bytesReceived = new AtomicLong(0);
+
+	private final EarlyData earlyData = new EarlyData(this);
+	private final ChannelInputs inputs = new ChannelInputs(this);
+	private final ChannelSendQueues sendQueues = new ChannelSendQueues(this);
+	private final FrameDecoders decoders = new FrameDecoders(this);
+	private final RttProbes probes = new RttProbes(this);
+	private final ChannelAttachments attachments = new ChannelAttachments(this);
+
+	// Released in this order when a channel or the stream is closed.
+	private final StreamFeature[] features = {
+			earlyData, inputs, sendQueues, decoders, probes, attachments
+	};
+
+	/**
+	 * The channel cookie of round trip probes, which are handled by the SDK
+	 * and never reported to stream handlers.
+	 */
+	public static final String RTT_PROBE_COOKIE = "carrier:rtt-probe";
 
 	public static int PROPERTY_COMPRESS = 0x01;
 	public static int PROPERTY_PLAIN = 0x02;
@@ -45,6 +74,14 @@ public class Stream {
 	public static int PROPERTY_MULTIPLEXING = 0x08;
 	public static int PROPERTY_PORT_FORWARDING = 0x10;
 
+	/**
+	 * Default data frame size of stream transport.
+	 */
+	public static final int DEFAULT_FRAME_SIZE = 1024;
+
+	// how long a buffered output stream retries a stalled write, in milliseconds.
+	private static final long WRITE_STALL_TIMEOUT = 30 * 1000;
+
 	/* Jni native methods */
 	private native boolean get_transport_info(int streamId, TransportInfo info);
 	private native int write_stream_data(int streamId, byte[] data, int offset, int len);
@@ -62,87 +99,74 @@ public class Stream {
 
 	private static native int get_error_code();
 
-	private class ChannelOutputStream extends OutputStream {
-		private Stream stream;
-		private int channel;
-
-		ChannelOutputStream(Stream stream, int channel) {
-			this.stream = stream;
-			this.channel = channel;
-		}
+	Stream(StreamType type) {
+		streamId = 0;
+		this.type = type;
+	}
 
-		ChannelOutputStream(Stream stream) {
-			this(stream, -1);
-		}
+	public int getStreamId() {
+		return streamId;
+	}
 
-		@Override
-		public void write(int i) throws IOException {
-			try {
-				if (channel < 0) {
-					stream.writeData((byte) i);
-				} else {
-					stream.writeData(channel, (byte) i);
-				}
-			} catch (CarrierException e) {
-				throw new IOException(e);
-			}
-		}
+	/**
+	 * Get the session this stream belongs to.
+	 *
+	 * @return
+	 *      The session instance.
+	 */
+	public Session getSession() {
+		return session;
+	}
 
-		@Override
-		public void write(byte[] b) throws IOException {
-			try {
-				if (channel < 0) {
-					stream.writeData(b);
-				} else {
-					stream.writeData(channel, b);
-				}
-			} catch (CarrierException e) {
-				throw new IOException(e);
-			}
-		}
+	void setSession(Session session) {
+		this.session = session;
+	}
 
-		@Override
-		public void write(byte[] b, int offset, int len) throws IOException {
-			try {
-				if (channel < 0) {
-					stream.writeData(b, offset, len);
-				} else {
-					stream.writeData(channel, b, offset, len);
-				}
-			} catch (CarrierException e) {
-				throw new IOException(e);
-			}
-		}
+	/**
+	 * Get the latest state of this stream.
+	 *
+	 * @return
+	 *      The stream state, or null if no state reported yet.
+	 */
+	public StreamState getState() {
+		return state;
+	}
 
-		@Override
-		public void flush() {
+	void onStateChanged(StreamState state) {
+		this.state = state;
+
+		switch (state) {
+		case Connected:
+			earlyData.flush();
+			break;
+		case Closed:
+		case Deactivated:
+		case Error:
+			for (StreamFeature feature : features)
+				feature.onStreamClosed(state);
+			break;
+		default:
+			break;
 		}
+	}
 
-		@Override
-		public void close() throws IOException {
-			if (stream == null)
-				return;
-
-			try {
-				if (channel > 0) {
-					stream.closeChannel(channel);
-
-					this.stream = null;
-					this.channel = -1;
-				}
-			} catch (CarrierException e) {
-				throw new IOException(e);
-			}
-		}
+	void onChannelClosed(int channel, CloseReason reason) {
+		for (StreamFeature feature : features)
+			feature.onChannelClosed(channel, reason);
 	}
 
-	private Stream(StreamType type) {
-		streamId = 0;
-		this.type = type;
+	/**
+	 * Get the setup timeline of this stream.
+	 *
+	 * @return
+	 *      The stream timeline.
+	 */
+	public StreamTimeline getTimeline() {
+		return timeline;
 	}
 
-	public int getStreamId() {
-		return streamId;
+	void setTimeline(StreamTimeline timeline) {
+		this.timeline = timeline;
 	}
 
 	/**
@@ -193,10 +217,14 @@ public class Stream {
 		if (data == null || data.length == 0 || offset < 0 || len <= 0 || (offset + len) > data.length)
 			throw new IllegalArgumentException();
 
+		if (earlyData.offerWrite(-1, data, offset, len))
+			return len;
+
 		int bytes = write_stream_data(streamId, data, offset, len);
 		if (bytes < 0)
 			throw CarrierException.fromErrorCode(get_error_code());
 
+		bytesSent.addAndGet(bytes);
 		return bytes;
 	}
 
@@ -243,6 +271,79 @@ public class Stream {
 		return writeData(_data);
 	}
 
+	/**
+	 * Send outgoing data to remote peer.
+	 *
+	 * The data is the remaining content of the buffer, and the buffer position
+	 * is advanced by the bytes sent. Heap buffers are sent through their
+	 * backing array with its offset, direct buffers are copied to a byte
+	 * array first.
+	 *
+	 * If the stream is in multiplexing mode, application can not call this function
+	 * to send data. If this function is called on multiplexing mode stream, it will
+	 * throw exception.
+	 *
+	 * @param
+	 *      data        The buffer of outgoing data
+	 *
+	 * @return
+	 *      Bytes of data sent on success
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public int writeData(ByteBuffer data) throws CarrierException {
+		return writeBuffer(-1, data);
+	}
+
+	/**
+	 * Send outgoing data to remote peer.
+	 *
+	 * The data is the remaining content of the buffer, and the buffer position
+	 * is advanced by the bytes sent. Heap buffers are sent through their
+	 * backing array with its offset, direct buffers are copied to a byte
+	 * array first.
+	 *
+	 * If the stream is not multiplexing this function will throw exception.
+	 *
+	 * @param
+	 *      channel     [in] The channel ID
+	 * @param
+	 *      data        [in] The buffer of outgoing data
+	 *
+	 * @return
+	 *      Bytes of data sent on success.
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public int writeData(int channel, ByteBuffer data) throws CarrierException {
+		if (channel <= 0)
+			throw new IllegalArgumentException();
+
+		return writeBuffer(channel, data);
+	}
+
+	private int writeBuffer(int channel, ByteBuffer data) throws CarrierException {
+		if (data == null || !data.hasRemaining())
+			throw new IllegalArgumentException();
+
+		if (data.hasArray()) {
+			int bytes = (channel < 0) ?
+					writeData(data.array(), data.arrayOffset() + data.position(), data.remaining()) :
+					writeData(channel, data.array(), data.arrayOffset() + data.position(), data.remaining());
+			data.position(data.position() + bytes);
+			return bytes;
+		}
+
+		byte[] _data = new byte[data.remaining()];
+		data.duplicate().get(_data);
+
+		int bytes = (channel < 0) ? writeData(_data) : writeData(channel, _data);
+		data.position(data.position() + bytes);
+		return bytes;
+	}
+
 	public OutputStream getOutputStream() {
 		return new ChannelOutputStream(this, -1);
 	}
@@ -254,6 +355,433 @@ public class Stream {
 		return new ChannelOutputStream(this, channel);
 	}
 
+	/**
+	 * Set the data frame size of the stream transport.
+	 *
+	 * The frame size is used as the buffer size of buffered output streams.
+	 *
+	 * @param
+	 *      frameSize   The frame size in bytes
+	 */
+	public void setFrameSize(int frameSize) {
+		if (frameSize <= 0)
+			throw new IllegalArgumentException();
+
+		this.frameSize = frameSize;
+	}
+
+	/**
+	 * Get the data frame size of the stream transport.
+	 *
+	 * @return
+	 *      The frame size in bytes.
+	 */
+	public int getFrameSize() {
+		return frameSize;
+	}
+
+	/**
+	 * Get a buffered output stream to send stream data.
+	 *
+	 * Small writes are coalesced into frames of the stream frame size, which
+	 * are sent when full or on flush. Partial writes of the transport are
+	 * retried until the whole frame is sent.
+	 *
+	 * @return
+	 *      The buffered output stream.
+	 */
+	public OutputStream getBufferedOutputStream() {
+		return new BufferedChannelOutputStream(this, -1, frameSize);
+	}
+
+	/**
+	 * Get a buffered output stream to send data on multiplexing channel.
+	 *
+	 * Small writes are coalesced into frames of the stream frame size, which
+	 * are sent when full or on flush. Partial writes of the transport are
+	 * retried until the whole frame is sent. Closing the output stream closes
+	 * the channel.
+	 *
+	 * @param
+	 *      channel     The channel ID
+	 *
+	 * @return
+	 *      The buffered output stream.
+	 */
+	public OutputStream getBufferedOutputStream(int channel) {
+		return getBufferedOutputStream(channel, frameSize);
+	}
+
+	/**
+	 * Get a buffered output stream to send data on multiplexing channel.
+	 *
+	 * @param
+	 *      channel     The channel ID
+	 * @param
+	 *      bufferSize  The buffer size, which is also the maximum size of
+	 *                  each write to transport
+	 *
+	 * @return
+	 *      The buffered output stream.
+	 */
+	public OutputStream getBufferedOutputStream(int channel, int bufferSize) {
+		if (channel <= 0 || bufferSize <= 0)
+			throw new IllegalArgumentException();
+
+		return new BufferedChannelOutputStream(this, channel, bufferSize);
+	}
+
+	// Write all the bytes, backing off while the transport is congested.
+	void writeFully(int channel, byte[] data, int offset, int len) throws CarrierException {
+		long parkNanos = TimeUnit.MICROSECONDS.toNanos(100);
+		long stalledSince = 0;
+
+		while (len > 0) {
+			int bytes = (channel < 0) ? writeData(data, offset, len) :
+					writeData(channel, data, offset, len);
+
+			if (bytes > 0) {
+				offset += bytes;
+				len -= bytes;
+				stalledSince = 0;
+				parkNanos = TimeUnit.MICROSECONDS.toNanos(100);
+				continue;
+			}
+
+			// Transport is congested, back off and retry the remaining bytes.
+			long now = System.currentTimeMillis();
+			if (stalledSince == 0)
+				stalledSince = now;
+			else if (now - stalledSince > WRITE_STALL_TIMEOUT)
+				throw CarrierException.fromErrorCode(GeneralException.BUSY,
+						"Write stalled on stream " + streamId);
+
+			LockSupport.parkNanos(parkNanos);
+			parkNanos = Math.min(parkNanos * 2, TimeUnit.MILLISECONDS.toNanos(10));
+		}
+	}
+
+	/**
+	 * Get an input stream to read stream data.
+	 *
+	 * Once created, stream data is buffered for the input stream instead of
+	 * being delivered to the stream handler. Stream layered data has no flow
+	 * control, so data beyond the buffer capacity fails the input.
+	 *
+	 * @return
+	 *      The input stream, which is also a readable byte channel.
+	 */
+	public ChannelInputStream getInputStream() {
+		return inputs.attach(-1, ChannelInputStream.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Get an input stream to read data of multiplexing channel.
+	 *
+	 * @param
+	 *      channel     The channel ID
+	 *
+	 * @return
+	 *      The input stream, which is also a readable byte channel.
+	 */
+	public ChannelInputStream getInputStream(int channel) {
+		return getInputStream(channel, ChannelInputStream.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Get an input stream to read data of multiplexing channel.
+	 *
+	 * Once created, channel data is buffered for the input stream instead of
+	 * being delivered to the stream handler. The channel is pended when the
+	 * buffered data reaches the high watermark, and resumed when it is read
+	 * down to the low watermark. The input should be created when the channel
+	 * is opened, before any data arrives.
+	 *
+	 * @param
+	 *      channel     The channel ID
+	 * @param
+	 *      capacity    The receive buffer capacity in bytes
+	 *
+	 * @return
+	 *      The input stream, which is also a readable byte channel.
+	 */
+	public ChannelInputStream getInputStream(int channel, int capacity) {
+		if (channel <= 0 || capacity <= 0)
+			throw new IllegalArgumentException();
+
+		return inputs.attach(channel, capacity);
+	}
+
+	/**
+	 * Set the handler of length prefixed frames decoded from stream data.
+	 *
+	 * Once set, stream data is decoded by a FrameDecoder and delivered as
+	 * whole frames instead of being delivered to the stream handler.
+	 *
+	 * @param
+	 *      handler         The frame handler, or null to deliver raw data
+	 * @param
+	 *      maxFrameSize    The maximum frame payload size
+	 */
+	public void setFrameHandler(FrameHandler handler, int maxFrameSize) {
+		decoders.set(-1, handler, maxFrameSize);
+	}
+
+	/**
+	 * Set the handler of length prefixed frames decoded from data of
+	 * multiplexing channel.
+	 *
+	 * Once set, channel data is decoded by a FrameDecoder and delivered as
+	 * whole frames instead of being delivered to the stream handler. A frame
+	 * exceeding the maximum size closes the channel with error. The handler
+	 * should be set when the channel is opened, before any data arrives.
+	 *
+	 * @param
+	 *      channel         The channel ID
+	 * @param
+	 *      handler         The frame handler, or null to deliver raw data
+	 * @param
+	 *      maxFrameSize    The maximum frame payload size
+	 */
+	public void setFrameHandler(int channel, FrameHandler handler, int maxFrameSize) {
+		if (channel <= 0)
+			throw new IllegalArgumentException();
+
+		decoders.set(channel, handler, maxFrameSize);
+	}
+
+	/**
+	 * Set the memory bound of the outbound queue of each channel.
+	 *
+	 * With a non-zero limit, data written to a channel while it is pended by
+	 * the remote peer is queued in the SDK and sent in order once the channel
+	 * is resumed. A write that would exceed the limit fails with
+	 * LIMIT_EXCEEDED. The queues are disabled by default.
+	 *
+	 * @param
+	 *      limit       The maximum queued bytes per channel, or 0 to disable
+	 */
+	public void setChannelQueueLimit(int limit) {
+		if (limit < 0)
+			throw new IllegalArgumentException();
+
+		sendQueues.setLimit(limit);
+	}
+
+	/**
+	 * Get the memory bound of the outbound queue of each channel.
+	 *
+	 * @return
+	 *      The maximum queued bytes per channel, or 0 if disabled.
+	 */
+	public int getChannelQueueLimit() {
+		return sendQueues.getLimit();
+	}
+
+	/**
+	 * Set whether writes to a pended channel fail immediately.
+	 *
+	 * When set, writing to a pended channel fails with BUSY instead of being
+	 * queued. Only effective when the channel queues are enabled.
+	 *
+	 * @param
+	 *      failFast    True to fail writes to pended channels
+	 */
+	public void setChannelQueueFailFast(boolean failFast) {
+		sendQueues.setFailFast(failFast);
+	}
+
+	/**
+	 * Check if the channel is currently pended by the remote peer.
+	 *
+	 * Only tracked when the channel queues are enabled.
+	 *
+	 * @param
+	 *      channel     The channel ID
+	 *
+	 * @return
+	 *      True if the channel is pended, otherwise false.
+	 */
+	public boolean isChannelPending(int channel) {
+		ChannelSendQueue queue = sendQueues.get(channel);
+		return queue != null && queue.isPending();
+	}
+
+	/**
+	 * Get the number of bytes queued for sending on the channel.
+	 *
+	 * @param
+	 *      channel     The channel ID
+	 *
+	 * @return
+	 *      The queued bytes.
+	 */
+	public long getChannelQueueDepth(int channel) {
+		ChannelSendQueue queue = sendQueues.get(channel);
+		return queue != null ? queue.getQueuedBytes() : 0;
+	}
+
+	/**
+	 * Get the accumulated time the channel has been pended by remote peer.
+	 *
+	 * @param
+	 *      channel     The channel ID
+	 * @param
+	 *      unit        The time unit of result
+	 *
+	 * @return
+	 *      The stall time, including the current stall if still pended.
+	 */
+	public long getChannelStallTime(int channel, TimeUnit unit) {
+		ChannelSendQueue queue = sendQueues.get(channel);
+		return queue != null ? queue.getStallTime(unit) : 0;
+	}
+
+	/**
+	 * Get the number of bytes written to the transport on this stream.
+	 *
+	 * @return
+	 *      The sent bytes.
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * Get the number of bytes received on this stream.
+	 *
+	 * @return
+	 *      The received bytes.
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	void onDataReceived(int bytes) {
+		bytesReceived.addAndGet(bytes);
+	}
+
+	/**
+	 * Measure the round trip time to the remote peer.
+	 *
+	 * A probe channel is opened and closed once the remote peer replies,
+	 * the round trip time is the time between. Only available on
+	 * multiplexing streams. The future fails with TimeoutException if the
+	 * remote peer does not reply in ten seconds.
+	 *
+	 * @return
+	 *      The future of round trip time in microseconds.
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public CompletableFuture<Long> measureRtt() throws CarrierException {
+		return probes.measure();
+	}
+
+	EarlyData getEarlyData() {
+		return earlyData;
+	}
+
+	ChannelInputs getInputs() {
+		return inputs;
+	}
+
+	ChannelSendQueues getSendQueues() {
+		return sendQueues;
+	}
+
+	FrameDecoders getDecoders() {
+		return decoders;
+	}
+
+	RttProbes getProbes() {
+		return probes;
+	}
+
+	ChannelAttachments getAttachments() {
+		return attachments;
+	}
+
+	// Open a channel on the transport, bypassing early data.
+	int openNativeChannel(String cookie) throws CarrierException {
+		int channel = open_channel(streamId, cookie);
+		if (channel < 0)
+			throw CarrierException.fromErrorCode(get_error_code());
+
+		return channel;
+	}
+
+	boolean closeNativeChannel(int channel) {
+		return close_channel(streamId, channel);
+	}
+
+	/**
+	 * Get the weighted fair scheduler of channel writes on this stream.
+	 *
+	 * Data sent through the scheduler is interleaved across channels by
+	 * weight, instead of being written in the order of calls.
+	 *
+	 * @return
+	 *      The channel scheduler of this stream.
+	 */
+	public ChannelScheduler getChannelScheduler() {
+		return sendQueues.getScheduler();
+	}
+
+	/**
+	 * Buffer writes and channel opens issued before the stream is connected.
+	 *
+	 * Once set, stream writes, channel writes and channel opens made before
+	 * the stream gets connected are queued up to the limit, and flushed in
+	 * order as soon as it is connected. Channel opens return provisional
+	 * channel IDs meanwhile, which keep working for writes and closes after
+	 * flushing, and can be resolved with getChannelId. Writes to a channel
+	 * opened by the flush are held until the remote peer has opened it.
+	 * Has no effect if the stream is already connected.
+	 *
+	 * @param
+	 *      limit       The maximum queued bytes
+	 */
+	public void setEarlyDataLimit(int limit) {
+		if (limit <= 0)
+			throw new IllegalArgumentException();
+
+		earlyData.enable(limit, state);
+	}
+
+	/**
+	 * Get the future completed when the early data is flushed.
+	 *
+	 * The future completes once the writes held for channels opened by the
+	 * flush are sent as well. It fails with WRONG_STATE if the stream fails
+	 * before that, or a channel closes before being opened, in which case
+	 * the queued data is dropped.
+	 *
+	 * @return
+	 *      The future of early data flushing, already completed if early data
+	 *      buffering is not enabled.
+	 */
+	public CompletableFuture<Void> whenEarlyDataFlushed() {
+		return earlyData.whenFlushed();
+	}
+
+	/**
+	 * Get the real channel ID of a channel opened before connected.
+	 *
+	 * @param
+	 *      channel     The provisional or real channel ID
+	 *
+	 * @return
+	 *      The real channel ID.
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public int getChannelId(int channel) throws CarrierException {
+		return earlyData.resolve(channel);
+	}
+
 	/**
 	 * Open a new channel on multiplexing stream.
 	 *
@@ -273,6 +801,10 @@ public class Stream {
 		if (cookie == null || cookie.length() == 0)
 			throw new IllegalArgumentException();
 
+		int provisional = earlyData.offerOpen(cookie);
+		if (provisional > 0)
+			return provisional;
+
 		int channel = open_channel(streamId, cookie);
 		if (channel < 0)
 			throw CarrierException.fromErrorCode(get_error_code());
@@ -297,10 +829,14 @@ public class Stream {
 		if (channel <= 0)
 			throw new IllegalArgumentException();
 
+		channel = earlyData.resolve(channel);
+
 		boolean result = close_channel(streamId, channel);
 		if (!result)
 			throw CarrierException.fromErrorCode(get_error_code());
 
+		sendQueues.remove(channel);
+
 		Log.d(TAG, String.format("Channel %d on stream %d closed", channel, streamId));
 	}
 
@@ -323,10 +859,18 @@ public class Stream {
 		if (channel <= 0 || data == null || data.length == 0 || offset < 0 || len <= 0 || (offset + len) > data.length)
 			throw new IllegalArgumentException();
 
+		if (earlyData.offerWrite(channel, data, offset, len))
+			return len;
+
+		return sendQueues.write(earlyData.resolve(channel), data, offset, len);
+	}
+
+	int writeChannel(int channel, byte[] data, int offset, int len) throws CarrierException {
 		int result = write_channel_data(streamId, channel, data, offset, len);
 		if (result < 0)
 			throw CarrierException.fromErrorCode(get_error_code());
 
+		bytesSent.addAndGet(result);
 		return result;
 	}
 
@@ -382,6 +926,8 @@ public class Stream {
 		if (channel <= 0)
 			throw new IllegalArgumentException();
 
+		channel = earlyData.resolve(channel);
+
 		if (!pend_channel(streamId, channel))
 			throw CarrierException.fromErrorCode(get_error_code());
 	}
@@ -401,6 +947,8 @@ public class Stream {
 		if (channel <= 0)
 			throw new IllegalArgumentException();
 
+		channel = earlyData.resolve(channel);
+
 		if (!resume_channel(streamId, channel))
 			throw CarrierException.fromErrorCode(get_error_code());
 	}
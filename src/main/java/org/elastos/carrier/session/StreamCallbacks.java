@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.Log;
+import org.elastos.carrier.exceptions.CarrierException;
+
+/*
+ * The stream handler installed to native layer on behalf of application
+ * stream handler, adding the SDK side processing of stream events.
+ */
+class StreamCallbacks implements StreamHandler {
+	private static final String TAG = "StreamCallbacks";
+
+	private final StreamHandler handler;
+	private final StreamTimeline timeline = new StreamTimeline();
+
+	StreamCallbacks(StreamHandler handler) {
+		this.handler = handler;
+	}
+
+	StreamHandler getHandler() {
+		return handler;
+	}
+
+	StreamTimeline getTimeline() {
+		return timeline;
+	}
+
+	@Override
+	public void onStateChanged(Stream stream, StreamState state) {
+		stream.onStateChanged(state);
+		timeline.onStateChanged(stream, state);
+		handler.onStateChanged(stream, state);
+	}
+
+	@Override
+	public void onStreamData(Stream stream, byte[] data) {
+		stream.onDataReceived(data.length);
+
+		ChannelInputStream input = stream.getInputs().of(-1);
+		if (input != null) {
+			input.offer(data);
+			return;
+		}
+
+		FrameDecoder decoder = stream.getDecoders().of(-1);
+		if (decoder != null) {
+			try {
+				decoder.decode(data);
+			} catch (CarrierException e) {
+				Log.e(TAG, "Decode stream data error: " + e.getMessage());
+			}
+			return;
+		}
+
+		handler.onStreamData(stream, data);
+	}
+
+	@Override
+	public boolean onChannelOpen(Stream stream, int channel, String cookie) {
+		if (Stream.RTT_PROBE_COOKIE.equals(cookie)) {
+			stream.getProbes().onRequest(channel);
+			return true;
+		}
+
+		return handler.onChannelOpen(stream, channel, cookie);
+	}
+
+	@Override
+	public void onChannelOpened(Stream stream, int channel) {
+		if (stream.getProbes().onReply(channel, true))
+			return;
+
+		stream.getEarlyData().onChannelOpened(channel);
+
+		ChannelAttachment attachment = stream.getAttachments().await(channel);
+		if (attachment != null) {
+			attachment.onChannelOpened(stream, channel);
+			return;
+		}
+
+		handler.onChannelOpened(stream, channel);
+	}
+
+	@Override
+	public void onChannelClose(Stream stream, int channel, CloseReason reason) {
+		if (stream.getProbes().onReply(channel, false))
+			return;
+
+		ChannelAttachment attachment = stream.getAttachments().await(channel);
+		stream.onChannelClosed(channel, reason);
+		if (attachment != null) {
+			attachment.onChannelClose(stream, channel, reason);
+			return;
+		}
+
+		handler.onChannelClose(stream, channel, reason);
+	}
+
+	@Override
+	public boolean onChannelData(Stream stream, int channel, byte[] data) {
+		stream.onDataReceived(data.length);
+
+		ChannelAttachment attachment = stream.getAttachments().of(channel);
+		if (attachment != null)
+			return attachment.onChannelData(stream, channel, data);
+
+		ChannelInputStream input = stream.getInputs().of(channel);
+		if (input != null)
+			return input.offer(data);
+
+		FrameDecoder decoder = stream.getDecoders().of(channel);
+		if (decoder != null) {
+			try {
+				decoder.decode(data);
+				return true;
+			} catch (CarrierException e) {
+				Log.e(TAG, "Decode data of channel " + channel + " error: " + e.getMessage());
+				return false;
+			}
+		}
+
+		return handler.onChannelData(stream, channel, data);
+	}
+
+	@Override
+	public void onChannelPending(Stream stream, int channel) {
+		stream.getSendQueues().onPending(channel);
+		handler.onChannelPending(stream, channel);
+	}
+
+	@Override
+	public void onChannelResume(Stream stream, int channel) {
+		stream.getSendQueues().onResume(channel);
+		handler.onChannelResume(stream, channel);
+	}
+}
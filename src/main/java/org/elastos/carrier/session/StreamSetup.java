@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.Log;
+import org.elastos.carrier.exceptions.CarrierException;
+
+import java.net.ConnectException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+
+/*
+ * The state machine establishing a session with one stream to a peer.
+ *
+ * It creates the session, adds the stream, sends the session request when
+ * the stream is initialized, starts the session with the remote SDP, and
+ * completes the future once the stream is connected. Any failure, timeout
+ * or cancellation before that closes the session. Stream events are
+ * forwarded to the application stream handler throughout.
+ */
+class StreamSetup implements StreamHandler, SessionRequestCompleteHandler {
+	private static final String TAG = "StreamSetup";
+
+	private final Manager manager;
+	private final String peer;
+	private final StreamType type;
+	private final Manager.ConnectOptions options;
+	private final StreamHandler handler;
+	private final CompletableFuture<Stream> future = new CompletableFuture<>();
+
+	private volatile Session session;
+	private volatile ScheduledFuture<?> timer;
+
+	StreamSetup(Manager manager, String peer, StreamType type, Manager.ConnectOptions options) {
+		this.manager = manager;
+		this.peer = peer;
+		this.type = type;
+		this.options = options;
+		this.handler = options.getHandler() != null ? options.getHandler() : new AbstractStreamHandler();
+
+		future.whenComplete((stream, e) -> {
+			ScheduledFuture<?> t = timer;
+			if (t != null)
+				t.cancel(false);
+
+			if (e != null) {
+				Session s = session;
+				if (s != null)
+					s.close();
+			}
+		});
+	}
+
+	CompletableFuture<Stream> getFuture() {
+		return future;
+	}
+
+	String getPeer() {
+		return peer;
+	}
+
+	void setTimer(ScheduledFuture<?> timer) {
+		this.timer = timer;
+		if (future.isDone())
+			timer.cancel(false);
+	}
+
+	void start() {
+		if (future.isDone())
+			return;
+
+		try {
+			session = manager.newSession(peer);
+			if (future.isDone()) {
+				session.close();
+				return;
+			}
+
+			session.addStream(type, options.getStreamOptions(), this);
+		} catch (CarrierException e) {
+			Log.e(TAG, String.format("Setup stream to %s error (0x%x)", peer, e.getErrorCode()));
+			fail(e);
+		}
+	}
+
+	void fail(Throwable e) {
+		future.completeExceptionally(e);
+	}
+
+	@Override
+	public void onCompletion(Session session, int status, String reason, String sdp) {
+		if (future.isDone())
+			return;
+
+		if (status != 0) {
+			Log.i(TAG, String.format("Session request to %s refused (%d:%s)", peer, status, reason));
+			fail(new ConnectException(String.format("Session request refused (%d:%s)", status, reason)));
+			return;
+		}
+
+		try {
+			session.start(sdp);
+		} catch (CarrierException e) {
+			Log.e(TAG, String.format("Start session to %s error (0x%x)", peer, e.getErrorCode()));
+			fail(e);
+		}
+	}
+
+	@Override
+	public void onStateChanged(Stream stream, StreamState state) {
+		switch (state) {
+		case Initialized:
+			if (!future.isDone()) {
+				try {
+					session.request(this);
+				} catch (CarrierException e) {
+					Log.e(TAG, String.format("Request session to %s error (0x%x)", peer, e.getErrorCode()));
+					fail(e);
+				}
+			}
+			break;
+
+		case Connected:
+			future.complete(stream);
+			break;
+
+		case Deactivated:
+		case Closed:
+		case Error:
+			fail(new ConnectException("Stream " + state.name().toLowerCase()));
+			break;
+
+		default:
+			break;
+		}
+
+		handler.onStateChanged(stream, state);
+	}
+
+	@Override
+	public void onStreamData(Stream stream, byte[] data) {
+		handler.onStreamData(stream, data);
+	}
+
+	@Override
+	public boolean onChannelOpen(Stream stream, int channel, String cookie) {
+		return handler.onChannelOpen(stream, channel, cookie);
+	}
+
+	@Override
+	public void onChannelOpened(Stream stream, int channel) {
+		handler.onChannelOpened(stream, channel);
+	}
+
+	@Override
+	public void onChannelClose(Stream stream, int channel, CloseReason reason) {
+		handler.onChannelClose(stream, channel, reason);
+	}
+
+	@Override
+	public boolean onChannelData(Stream stream, int channel, byte[] data) {
+		return handler.onChannelData(stream, channel, data);
+	}
+
+	@Override
+	public void onChannelPending(Stream stream, int channel) {
+		handler.onChannelPending(stream, channel);
+	}
+
+	@Override
+	public void onChannelResume(Stream stream, int channel) {
+		handler.onChannelResume(stream, channel);
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.Log;
+import org.elastos.carrier.exceptions.CarrierException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The class representing the setup timeline of a stream.
+ *
+ * Every stream state transition is timestamped relative to the moment the
+ * stream was added to its session, together with the session request and
+ * its completion. The transport info is captured when the stream gets
+ * connected.
+ */
+public class StreamTimeline {
+	private static final String TAG = "StreamTimeline";
+
+	private final long startNanos;
+	private final long[] stateNanos = new long[StreamState.values().length];
+	private volatile long requestNanos;
+	private volatile long completionNanos;
+	private volatile TransportInfo transportInfo;
+
+	StreamTimeline() {
+		startNanos = System.nanoTime();
+	}
+
+	void onStateChanged(Stream stream, StreamState state) {
+		long now = System.nanoTime();
+
+		synchronized (stateNanos) {
+			if (stateNanos[state.ordinal()] == 0)
+				stateNanos[state.ordinal()] = now;
+		}
+
+		if (state != StreamState.Connected)
+			return;
+
+		Session session = stream.getSession();
+		if (session != null) {
+			requestNanos = session.getRequestNanos();
+			completionNanos = session.getCompletionNanos();
+		}
+
+		try {
+			transportInfo = stream.getTransportInfo();
+		} catch (CarrierException e) {
+			Log.w(TAG, String.format("Get transport info of stream %d error (0x%x)",
+					stream.getStreamId(), e.getErrorCode()));
+		}
+
+		SessionTelemetry.getDefault().record(this);
+
+		if (transportInfo != null) {
+			Log.d(TAG, String.format("Stream %d connected in %dms (%s, local %s, remote %s)",
+					stream.getStreamId(), getElapsed(StreamState.Connected, TimeUnit.MILLISECONDS),
+					transportInfo.getTopology(),
+					transportInfo.getLocalAddressInfo().getCandidateType(),
+					transportInfo.getRemoteAddressInfo().getCandidateType()));
+		}
+	}
+
+	private long elapsed(long nanos, TimeUnit unit) {
+		return nanos == 0 ? -1 : unit.convert(nanos - startNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Get the time from adding the stream to reaching the state.
+	 *
+	 * @param
+	 *      state       The stream state
+	 * @param
+	 *      unit        The time unit of result
+	 *
+	 * @return
+	 *      The elapsed time, or -1 if the state was not reached.
+	 */
+	public long getElapsed(StreamState state, TimeUnit unit) {
+		long nanos;
+		synchronized (stateNanos) {
+			nanos = stateNanos[state.ordinal()];
+		}
+		return elapsed(nanos, unit);
+	}
+
+	/**
+	 * Get the time from adding the stream to sending the session request.
+	 *
+	 * @param
+	 *      unit        The time unit of result
+	 *
+	 * @return
+	 *      The elapsed time, or -1 if unknown.
+	 */
+	public long getRequestElapsed(TimeUnit unit) {
+		return elapsed(requestNanos, unit);
+	}
+
+	/**
+	 * Get the time from adding the stream to the completion of the session
+	 * request.
+	 *
+	 * @param
+	 *      unit        The time unit of result
+	 *
+	 * @return
+	 *      The elapsed time, or -1 if unknown.
+	 */
+	public long getCompletionElapsed(TimeUnit unit) {
+		return elapsed(completionNanos, unit);
+	}
+
+	/**
+	 * Get the transport info captured when the stream got connected.
+	 *
+	 * @return
+	 *      The transport info, or null if not connected yet.
+	 */
+	public TransportInfo getTransportInfo() {
+		return transportInfo;
+	}
+}
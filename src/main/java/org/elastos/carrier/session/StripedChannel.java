@@ -0,0 +1,737 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.Log;
+import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.exceptions.GeneralException;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The class representing one logical channel striped across several
+ * sessions to the same peer.
+ *
+ * Writes are split into sequence numbered segments, which are spread over
+ * the paths by their measured throughput and sent by one writer thread per
+ * path. The receiver reorders the segments and delivers them in order. The
+ * opening side adds a path while all paths are saturated, and drops paths
+ * far slower than the best one. A dropped path is drained first, so no data
+ * is lost; an unexpected loss of a path fails the whole channel. A path
+ * opened by this side only carries data once the remote peer has opened
+ * its channel.
+ *
+ * The accepting side calls accept() from StreamHandler.onChannelOpen for
+ * cookies recognized by isStriped(), and returns true.
+ */
+public class StripedChannel {
+	private static final String TAG = "StripedChannel";
+
+	/**
+	 * The cookie prefix of striped channels.
+	 */
+	public static final String COOKIE_PREFIX = "carrier:striped:";
+
+	/**
+	 * Default maximum bytes queued on all paths.
+	 */
+	public static final int DEFAULT_BUFFER_LIMIT = 4 * 1024 * 1024;
+
+	private static final int SEGMENT_SIZE = 16 * 1024;
+	// Frame: length (4 bytes, excluding itself), sequence (8 bytes), payload.
+	private static final int HEADER_SIZE = 4 + 8;
+	private static final long FIN = -1;
+
+	private static final long ADAPT_INTERVAL = 1000;
+	private static final double BUSY_RATIO = 0.8;
+	private static final int SLOW_PATH_FACTOR = 4;
+
+	private static final SecureRandom random = new SecureRandom();
+	private static final ConcurrentHashMap<String, StripedChannel> accepted = new ConcurrentHashMap<>();
+
+	class Path implements ChannelAttachment {
+		final Stream stream;
+		volatile int channel;
+		final CompletableFuture<Void> opened = new CompletableFuture<>();
+		final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+		long queuedBytes;
+		boolean draining;
+		boolean removed;
+
+		final AtomicLong sentBytes = new AtomicLong(0);
+		final AtomicLong busyNanos = new AtomicLong(0);
+		long lastSentBytes;
+		long lastBusyNanos;
+		long throughput;
+
+		byte[] rx = new byte[4096];
+		int rxLength;
+
+		Path(Stream stream) {
+			this.stream = stream;
+		}
+
+		void start() {
+			Thread writer = new Thread(this::run, "StripedChannel-" + id);
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		private void run() {
+			for (;;) {
+				byte[] frame;
+
+				synchronized (StripedChannel.this) {
+					while (!removed && queue.isEmpty()) {
+						try {
+							StripedChannel.this.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+
+					if (removed && queue.isEmpty())
+						return;
+
+					frame = queue.poll();
+				}
+
+				long start = System.nanoTime();
+				try {
+					transmit(this, frame);
+				} catch (CarrierException e) {
+					Log.e(TAG, String.format("Write path of striped channel %s error (0x%x)",
+							id, e.getErrorCode()));
+					lost(this);
+					return;
+				}
+				busyNanos.addAndGet(System.nanoTime() - start);
+				sentBytes.addAndGet(frame.length);
+
+				synchronized (StripedChannel.this) {
+					queuedBytes -= frame.length;
+					queuedTotal -= frame.length;
+					StripedChannel.this.notifyAll();
+
+					if (draining && queue.isEmpty()) {
+						removePath(this);
+						return;
+					}
+				}
+			}
+		}
+
+		@Override
+		public boolean onChannelData(Stream stream, int channel, byte[] data) {
+			List<byte[]> delivered = new ArrayList<>();
+			boolean fin = false;
+
+			if (rx.length - rxLength < data.length) {
+				byte[] grown = new byte[Math.max(rx.length * 2, rxLength + data.length)];
+				System.arraycopy(rx, 0, grown, 0, rxLength);
+				rx = grown;
+			}
+			System.arraycopy(data, 0, rx, rxLength, data.length);
+			rxLength += data.length;
+
+			ByteBuffer buffer = ByteBuffer.wrap(rx, 0, rxLength);
+			while (buffer.remaining() >= HEADER_SIZE) {
+				int start = buffer.position();
+				int length = buffer.getInt();
+				if (length < 8 || length > SEGMENT_SIZE + 8) {
+					Log.e(TAG, "Invalid frame on striped channel " + id);
+					fail();
+					return false;
+				}
+				if (buffer.remaining() < length) {
+					buffer.position(start);
+					break;
+				}
+
+				long seq = buffer.getLong();
+				byte[] payload = new byte[length - 8];
+				buffer.get(payload);
+
+				if (seq == FIN) {
+					fin = true;
+					break;
+				}
+
+				reorder(seq, payload, delivered);
+			}
+
+			int consumed = buffer.position();
+			System.arraycopy(rx, consumed, rx, 0, rxLength - consumed);
+			rxLength -= consumed;
+
+			for (byte[] payload : delivered)
+				handler.onData(StripedChannel.this, payload);
+
+			if (fin) {
+				synchronized (StripedChannel.this) {
+					removePath(this);
+				}
+				closeChannel(this);
+			}
+
+			return true;
+		}
+
+		@Override
+		public void onChannelOpened(Stream stream, int channel) {
+			this.channel = channel;
+			if (addPath(this)) {
+				opened.complete(null);
+				return;
+			}
+
+			closeChannel(this);
+			unopened(this, "Striped channel closed");
+		}
+
+		@Override
+		public void onChannelClose(Stream stream, int channel, CloseReason reason) {
+			if (!opened.isDone())
+				unopened(this, "Path channel closed before opened");
+			else
+				lost(this);
+		}
+
+		@Override
+		public void onStreamClosed(Stream stream, StreamState state) {
+			if (!opened.isDone())
+				unopened(this, "Path stream " + state.name().toLowerCase() + " before opened");
+			else
+				lost(this);
+		}
+	}
+
+	private final String id;
+	private final StripedChannelHandler handler;
+	private final int bufferLimit;
+
+	private final Manager manager;
+	private final String peer;
+	private final Manager.ConnectOptions options;
+	private final int maxPaths;
+	private ScheduledFuture<?> adapter;
+	private boolean connecting;
+
+	private final CopyOnWriteArrayList<Path> paths = new CopyOnWriteArrayList<>();
+	private long nextSeq;
+	private long queuedTotal;
+	private boolean closed;
+
+	private final TreeMap<Long, byte[]> reorderBuffer = new TreeMap<>();
+	private long nextDeliver;
+
+	StripedChannel(String id, StripedChannelHandler handler, int bufferLimit,
+			Manager manager, String peer, Manager.ConnectOptions options, int maxPaths) {
+		this.id = id;
+		this.handler = handler;
+		this.bufferLimit = bufferLimit;
+		this.manager = manager;
+		this.peer = peer;
+		this.options = options;
+		this.maxPaths = maxPaths;
+	}
+
+	/**
+	 * Open a striped channel to peer.
+	 *
+	 * @param
+	 *      manager         The session manager to connect the paths
+	 * @param
+	 *      peer            The target peer
+	 * @param
+	 *      options         The connect options of each path, multiplexing
+	 *                      and reliable stream options are always added
+	 * @param
+	 *      handler         The handler of channel events
+	 * @param
+	 *      initialPaths    The number of paths to start with
+	 * @param
+	 *      maxPaths        The maximum number of paths
+	 *
+	 * @return
+	 *      The future of striped channel, completed once at least one path
+	 *      is opened by the remote peer.
+	 */
+	public static CompletableFuture<StripedChannel> open(Manager manager, String peer,
+			Manager.ConnectOptions options, StripedChannelHandler handler, int initialPaths, int maxPaths) {
+		if (manager == null || peer == null || handler == null || initialPaths <= 0 ||
+				maxPaths < initialPaths)
+			throw new IllegalArgumentException();
+
+		if (options == null)
+			options = new Manager.ConnectOptions();
+
+		Manager.ConnectOptions pathOptions = new Manager.ConnectOptions()
+				.setStreamOptions(options.getStreamOptions() |
+						Stream.PROPERTY_MULTIPLEXING | Stream.PROPERTY_RELIABLE)
+				.setTimeout(options.getTimeout())
+				.setHandler(options.getHandler());
+
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		StringBuilder sb = new StringBuilder(32);
+		for (byte b : bytes)
+			sb.append(String.format("%02x", b));
+
+		StripedChannel sc = new StripedChannel(sb.toString(), handler, DEFAULT_BUFFER_LIMIT,
+				manager, peer, pathOptions, maxPaths);
+
+		CompletableFuture<?>[] setups = new CompletableFuture<?>[initialPaths];
+		for (int i = 0; i < initialPaths; i++)
+			setups[i] = sc.connectPath();
+
+		// Completed once every initial path is opened or has failed.
+		return CompletableFuture.allOf(setups).handle((v, e) -> {
+			if (sc.paths.isEmpty())
+				throw new IllegalStateException("No path to " + peer + " could be set up",
+						e instanceof java.util.concurrent.CompletionException ? e.getCause() : e);
+
+			sc.adapter = Manager.getTimer().scheduleWithFixedDelay(sc::adapt,
+					ADAPT_INTERVAL, ADAPT_INTERVAL, TimeUnit.MILLISECONDS);
+			return sc;
+		});
+	}
+
+	/**
+	 * Check if a channel cookie is from a striped channel.
+	 *
+	 * @param
+	 *      cookie      The channel cookie
+	 *
+	 * @return
+	 *      True if the channel is striped, otherwise false.
+	 */
+	public static boolean isStriped(String cookie) {
+		return cookie != null && cookie.startsWith(COOKIE_PREFIX);
+	}
+
+	/**
+	 * Accept an incoming path of striped channel.
+	 *
+	 * Paths of the same striped channel are joined into one channel. Must be
+	 * called from StreamHandler.onChannelOpen.
+	 *
+	 * @param
+	 *      stream      The stream of incoming channel
+	 * @param
+	 *      channel     The incoming channel ID
+	 * @param
+	 *      cookie      The incoming channel cookie
+	 * @param
+	 *      handler     The handler of channel events for a new channel
+	 *
+	 * @return
+	 *      The striped channel the path joined.
+	 */
+	public static StripedChannel accept(Stream stream, int channel, String cookie,
+										StripedChannelHandler handler) {
+		if (stream == null || !isStriped(cookie) || handler == null)
+			throw new IllegalArgumentException();
+
+		String id = cookie.substring(COOKIE_PREFIX.length());
+		StripedChannel sc = accepted.computeIfAbsent(id,
+				k -> new StripedChannel(k, handler, DEFAULT_BUFFER_LIMIT, null, null, null, 0));
+
+		// The accepting side may write as soon as it accepted the channel.
+		Path path = sc.new Path(stream);
+		path.channel = channel;
+		stream.getAttachments().attach(channel, path);
+		if (sc.addPath(path))
+			path.opened.complete(null);
+		return sc;
+	}
+
+	private CompletableFuture<Void> connectPath() {
+		synchronized (this) {
+			connecting = true;
+		}
+
+		return manager.connect(peer, StreamType.Application, options).thenCompose(stream -> {
+			// The path joins the channel from onChannelOpened.
+			Path path = new Path(stream);
+			try {
+				path.channel = stream.getAttachments().open(COOKIE_PREFIX + id, path);
+			} catch (CarrierException e) {
+				stream.getSession().close();
+				throw new java.util.concurrent.CompletionException(e);
+			}
+			return path.opened;
+		}).whenComplete((v, e) -> {
+			synchronized (this) {
+				connecting = false;
+			}
+			if (e != null)
+				Log.w(TAG, "Set up path to " + peer + " failed: " + e.getMessage());
+		});
+	}
+
+	// Returns false if the channel is already closed.
+	private boolean addPath(Path path) {
+		synchronized (this) {
+			if (closed) {
+				path.removed = true;
+				return false;
+			}
+			paths.add(path);
+		}
+
+		path.start();
+		handler.onPathsChanged(this, paths.size());
+		return true;
+	}
+
+	// A path of this side failed before its channel was opened.
+	private void unopened(Path path, String reason) {
+		path.removed = true;
+		unbind(path);
+		if (path.stream.getSession() != null)
+			path.stream.getSession().close();
+		path.opened.completeExceptionally(
+				CarrierException.fromErrorCode(GeneralException.WRONG_STATE, reason));
+	}
+
+	// Write the whole frame to the path channel.
+	void transmit(Path path, byte[] frame) throws CarrierException {
+		path.stream.writeFully(path.channel, frame, 0, frame.length);
+	}
+
+	void unbind(Path path) {
+		path.stream.getAttachments().detach(path.channel, path);
+	}
+
+	void closeChannel(Path path) {
+		try {
+			path.stream.closeChannel(path.channel);
+		} catch (CarrierException e) {
+			// Channel already gone.
+		}
+	}
+
+	static byte[] frame(long seq, byte[] data, int offset, int len) {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + len);
+		frame.putInt(8 + len).putLong(seq);
+		if (len > 0)
+			frame.put(data, offset, len);
+		return frame.array();
+	}
+
+	// Called with the channel lock held.
+	private void removePath(Path path) {
+		if (path.removed)
+			return;
+
+		path.removed = true;
+		unbind(path);
+		paths.remove(path);
+		notifyAll();
+
+		if (!opener() && paths.isEmpty())
+			accepted.remove(id, this);
+
+		int remaining = paths.size();
+		if (remaining == 0)
+			closed = true;
+
+		Manager.getTimer().execute(() -> {
+			handler.onPathsChanged(this, remaining);
+			if (remaining == 0)
+				handler.onClosed(this);
+		});
+
+		if (opener() && path.stream.getSession() != null)
+			Manager.getTimer().schedule(() -> path.stream.getSession().close(),
+					ADAPT_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	private boolean opener() {
+		return manager != null;
+	}
+
+	private void lost(Path path) {
+		synchronized (this) {
+			if (path.removed)
+				return;
+
+			Log.e(TAG, "Path of striped channel " + id + " lost, data in flight may be gone");
+		}
+		fail();
+	}
+
+	private void fail() {
+		List<Path> all;
+
+		synchronized (this) {
+			if (closed && paths.isEmpty())
+				return;
+
+			closed = true;
+			all = new ArrayList<>(paths);
+			for (Path path : all) {
+				path.queue.clear();
+				path.draining = false;
+				removePath(path);
+			}
+			queuedTotal = 0;
+		}
+
+		if (adapter != null)
+			adapter.cancel(false);
+
+		for (Path path : all)
+			closeChannel(path);
+	}
+
+	private void reorder(long seq, byte[] payload, List<byte[]> delivered) {
+		synchronized (reorderBuffer) {
+			if (seq < nextDeliver)
+				return;
+
+			reorderBuffer.put(seq, payload);
+			byte[] next;
+			while ((next = reorderBuffer.remove(nextDeliver)) != null) {
+				delivered.add(next);
+				nextDeliver++;
+			}
+		}
+	}
+
+	/**
+	 * Get the identity of the striped channel, shared by both peers.
+	 *
+	 * @return
+	 *      The channel identity.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Get the number of active paths.
+	 *
+	 * @return
+	 *      The number of paths.
+	 */
+	public int getPathCount() {
+		return paths.size();
+	}
+
+	/**
+	 * Get the number of segments waiting for missing segments to arrive.
+	 *
+	 * @return
+	 *      The number of out of order segments.
+	 */
+	public int getReorderDepth() {
+		synchronized (reorderBuffer) {
+			return reorderBuffer.size();
+		}
+	}
+
+	/**
+	 * Get the aggregate throughput of the last measure interval. Only
+	 * measured on the opening side.
+	 *
+	 * @return
+	 *      The throughput in bytes per second.
+	 */
+	public synchronized long getThroughput() {
+		long total = 0;
+		for (Path path : paths)
+			total += path.throughput;
+		return total;
+	}
+
+	private Path choosePath(int size) {
+		Path best = null;
+		double bestCost = Double.MAX_VALUE;
+
+		for (Path path : paths) {
+			if (path.draining)
+				continue;
+
+			// Expected time to drain the path queue including this segment.
+			double cost = (double)(path.queuedBytes + size) / Math.max(path.throughput, 1);
+			if (cost < bestCost) {
+				bestCost = cost;
+				best = path;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Write data to the channel.
+	 *
+	 * @param
+	 *      data        The data to write
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public void write(byte[] data) throws CarrierException {
+		if (data == null)
+			throw new IllegalArgumentException();
+
+		write(data, 0, data.length);
+	}
+
+	/**
+	 * Write data to the channel. Blocks while the path queues are full.
+	 *
+	 * @param
+	 *      data        The data buffer
+	 * @param
+	 *      offset      The start offset of data
+	 * @param
+	 *      len         The data length
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public synchronized void write(byte[] data, int offset, int len) throws CarrierException {
+		if (data == null || offset < 0 || len <= 0 || (offset + len) > data.length)
+			throw new IllegalArgumentException();
+
+		while (len > 0) {
+			int size = Math.min(len, SEGMENT_SIZE);
+
+			try {
+				while (!closed && queuedTotal + size > bufferLimit)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw CarrierException.fromErrorCode(GeneralException.WRONG_STATE, "Write interrupted");
+			}
+
+			Path path = closed ? null : choosePath(size);
+			if (path == null)
+				throw CarrierException.fromErrorCode(GeneralException.WRONG_STATE, "Channel closed");
+
+			byte[] frame = frame(nextSeq++, data, offset, size);
+			path.queue.add(frame);
+			path.queuedBytes += frame.length;
+			queuedTotal += frame.length;
+			notifyAll();
+
+			offset += size;
+			len -= size;
+		}
+	}
+
+	private void drain(Path path) {
+		path.draining = true;
+
+		byte[] frame = frame(FIN, null, 0, 0);
+		path.queue.add(frame);
+		path.queuedBytes += frame.length;
+		queuedTotal += frame.length;
+		notifyAll();
+	}
+
+	/**
+	 * Close the channel once all the queued data is sent.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+
+			closed = true;
+			for (Path path : paths) {
+				if (!path.draining)
+					drain(path);
+			}
+		}
+
+		if (adapter != null)
+			adapter.cancel(false);
+	}
+
+	private void adapt() {
+		boolean grow;
+
+		synchronized (this) {
+			if (closed)
+				return;
+
+			long best = 0;
+			boolean saturated = true;
+			int active = 0;
+
+			for (Path path : paths) {
+				if (path.draining)
+					continue;
+
+				long sent = path.sentBytes.get();
+				long busy = path.busyNanos.get();
+				path.throughput = (sent - path.lastSentBytes) * 1000 / ADAPT_INTERVAL;
+				double busyRatio = (double)(busy - path.lastBusyNanos) /
+						TimeUnit.MILLISECONDS.toNanos(ADAPT_INTERVAL);
+				path.lastSentBytes = sent;
+				path.lastBusyNanos = busy;
+
+				best = Math.max(best, path.throughput);
+				saturated &= busyRatio >= BUSY_RATIO;
+				active++;
+			}
+
+			// Drop paths far slower than the best one while there is data
+			// queued, an idle path is not slow.
+			if (active > 1 && queuedTotal > 0) {
+				for (Path path : paths) {
+					if (!path.draining && path.queuedBytes > 0 &&
+							path.throughput * SLOW_PATH_FACTOR < best && active > 1) {
+						Log.i(TAG, String.format("Drop slow path on stream %d (%d B/s, best %d B/s)",
+								path.stream.getStreamId(), path.throughput, best));
+						drain(path);
+						active--;
+					}
+				}
+			}
+
+			grow = saturated && active > 0 && active < maxPaths && !connecting;
+		}
+
+		if (grow) {
+			Log.i(TAG, "All paths of striped channel " + id + " saturated, add a path");
+			connectPath();
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+/**
+ * The interface to receive the events of a striped channel.
+ */
+public interface StripedChannelHandler {
+	/**
+	 * The callback function to process the data received on channel. Data
+	 * is reordered across paths and delivered in the order written.
+	 *
+	 * @param
+	 *      channel     The striped channel
+	 * @param
+	 *      data        The received data
+	 */
+	void onData(StripedChannel channel, byte[] data);
+
+	/**
+	 * The callback function to be called when a path is added or dropped.
+	 *
+	 * @param
+	 *      channel     The striped channel
+	 * @param
+	 *      paths       The current number of paths
+	 */
+	void onPathsChanged(StripedChannel channel, int paths);
+
+	/**
+	 * The callback function to be called when the last path is gone.
+	 *
+	 * @param
+	 *      channel     The striped channel
+	 */
+	void onClosed(StripedChannel channel);
+}
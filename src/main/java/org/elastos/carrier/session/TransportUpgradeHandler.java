@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+/**
+ * The interface to be notified when a relayed stream is replaced by a
+ * direct one.
+ */
+public interface TransportUpgradeHandler {
+	/**
+	 * The callback function to notify a transport upgrade.
+	 *
+	 * It is called as soon as the new stream replaces the relayed one. Port
+	 * forwardings opened through the upgrader are opened on the new stream
+	 * now or once the old stream drains, while the old ones keep serving
+	 * their connections. Channels are not migrated by the upgrader:
+	 * application should move them to the new stream before the old
+	 * session is closed, when the old stream has been idle or the drain
+	 * period has passed after this callback returns.
+	 *
+	 * @param
+	 *      from        The relayed stream
+	 * @param
+	 *      to          The direct stream replacing it
+	 */
+	void onTransportUpgraded(Stream from, Stream to);
+
+	/**
+	 * The callback function to report the transport metrics of an upgrade.
+	 *
+	 * It is called after the new stream has carried the traffic for a
+	 * sampling window following onTransportUpgraded. The relayed stream may
+	 * already be closed by then.
+	 *
+	 * @param
+	 *      from        The relayed stream
+	 * @param
+	 *      to          The direct stream replacing it
+	 * @param
+	 *      report      The throughput and round trip time before and after
+	 */
+	void onUpgradeReport(Stream from, Stream to, TransportUpgrader.Report report);
+}
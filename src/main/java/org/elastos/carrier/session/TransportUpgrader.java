@@ -0,0 +1,572 @@
+/*
+ * Copyright (c) 2018 Elastos Foundation
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.Log;
+import org.elastos.carrier.exceptions.CarrierException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The class upgrading relayed streams to direct ones in background.
+ *
+ * Watched streams whose transport is relayed get a new session negotiated
+ * to the same peer at the retry interval, backing off while the peer stays
+ * reachable only through relay. Once a new stream connects over LAN or P2P,
+ * the handler is notified at once and the old stream starts draining.
+ *
+ * Only the port forwardings opened through the upgrader are migrated. Each
+ * one is opened on the new stream on the same local port if possible; the
+ * old forwarding keeps serving its connections until the old stream has
+ * been idle for DRAIN_IDLE, or the drain period has passed. Forwardings
+ * whose local port is still held by the old one are re-opened on the new
+ * stream then. Channels are not migrated: the application moves them to the
+ * new stream from the handler, before the old session is closed at the end
+ * of the drain. The throughput and RTT report follows in a separate
+ * callback, once the new stream has carried traffic for a sampling window.
+ */
+public class TransportUpgrader {
+	private static final String TAG = "TransportUpgrader";
+
+	/**
+	 * Default time to keep the old session open after an upgrade.
+	 */
+	public static final long DEFAULT_DRAIN_PERIOD = 30 * 1000;
+
+	/**
+	 * The time without traffic after which the old stream counts as drained.
+	 */
+	public static final long DRAIN_IDLE = 5 * 1000;
+
+	private static final long DRAIN_CHECK_INTERVAL = 1000;
+
+	// The window to sample throughput after an upgrade.
+	private static final long REPORT_WINDOW = 10 * 1000;
+	private static final int MAX_BACKOFF_SHIFT = 4;
+	private static final long RTT_TIMEOUT = 5 * 1000;
+
+	/**
+	 * The class representing the transport metrics around an upgrade.
+	 */
+	public static final class Report {
+		private final NetworkTopology topology;
+		private final long throughputBefore;
+		private final long throughputAfter;
+		private final long rttBefore;
+		private final long rttAfter;
+
+		Report(NetworkTopology topology, long throughputBefore, long throughputAfter,
+			   long rttBefore, long rttAfter) {
+			this.topology = topology;
+			this.throughputBefore = throughputBefore;
+			this.throughputAfter = throughputAfter;
+			this.rttBefore = rttBefore;
+			this.rttAfter = rttAfter;
+		}
+
+		/**
+		 * Get the network topology of the new stream.
+		 *
+		 * @return
+		 *      The network topology.
+		 */
+		public NetworkTopology getTopology() {
+			return topology;
+		}
+
+		/**
+		 * Get the throughput of the relayed stream before the upgrade.
+		 *
+		 * @return
+		 *      The sent and received bytes per second.
+		 */
+		public long getThroughputBefore() {
+			return throughputBefore;
+		}
+
+		/**
+		 * Get the throughput of the new stream after the upgrade.
+		 *
+		 * @return
+		 *      The sent and received bytes per second.
+		 */
+		public long getThroughputAfter() {
+			return throughputAfter;
+		}
+
+		/**
+		 * Get the round trip time of the relayed stream.
+		 *
+		 * @return
+		 *      The round trip time in microseconds, or -1 if not measured.
+		 */
+		public long getRttBefore() {
+			return rttBefore;
+		}
+
+		/**
+		 * Get the round trip time of the new stream.
+		 *
+		 * @return
+		 *      The round trip time in microseconds, or -1 if not measured.
+		 */
+		public long getRttAfter() {
+			return rttAfter;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Report[topology:%s, throughput:%d->%d B/s, rtt:%d->%d us]",
+					topology, throughputBefore, throughputAfter, rttBefore, rttAfter);
+		}
+	}
+
+	private static class Forwarding {
+		final String service;
+		final PortForwardingProtocol protocol;
+		final String host;
+		final String port;
+		int id;
+
+		Forwarding(String service, PortForwardingProtocol protocol, String host, String port, int id) {
+			this.service = service;
+			this.protocol = protocol;
+			this.host = host;
+			this.port = port;
+			this.id = id;
+		}
+	}
+
+	// A forwarding left on the old stream until it drains.
+	private static class Move {
+		final Forwarding forwarding;
+		final int oldId;
+		final boolean opened;
+
+		Move(Forwarding forwarding, int oldId, boolean opened) {
+			this.forwarding = forwarding;
+			this.oldId = oldId;
+			this.opened = opened;
+		}
+	}
+
+	private static class Watch {
+		volatile Stream stream;
+		final StreamType type;
+		final Manager.ConnectOptions options;
+		final List<Forwarding> forwardings = new ArrayList<>();
+		boolean upgrading;
+		int attempts;
+		long nextAttempt;
+		long lastBytes;
+		long lastSampleNanos;
+		long throughput;
+
+		Watch(Stream stream, StreamType type, Manager.ConnectOptions options) {
+			this.stream = stream;
+			this.type = type;
+			this.options = options;
+			this.lastBytes = stream.getBytesSent() + stream.getBytesReceived();
+			this.lastSampleNanos = System.nanoTime();
+		}
+	}
+
+	/*
+	 * Waits for the old stream to go idle or the drain period to pass, then
+	 * closes the old forwardings, re-opens the ones not opened yet on the new
+	 * stream and closes the old session.
+	 */
+	private class Drain implements Runnable {
+		final Watch watch;
+		final Stream old;
+		final Stream stream;
+		final List<Move> moves;
+		final long deadline;
+		long lastBytes;
+		long lastActive;
+		ScheduledFuture<?> check;
+
+		Drain(Watch watch, Stream old, Stream stream, List<Move> moves) {
+			this.watch = watch;
+			this.old = old;
+			this.stream = stream;
+			this.moves = moves;
+			this.lastActive = System.nanoTime();
+			this.deadline = lastActive + TimeUnit.MILLISECONDS.toNanos(drainPeriod);
+			this.lastBytes = old.getBytesSent() + old.getBytesReceived();
+		}
+
+		@Override
+		public void run() {
+			long now = System.nanoTime();
+			long bytes = old.getBytesSent() + old.getBytesReceived();
+			if (bytes != lastBytes) {
+				lastBytes = bytes;
+				lastActive = now;
+			}
+
+			StreamState state = old.getState();
+			boolean gone = state == StreamState.Deactivated || state == StreamState.Closed ||
+					state == StreamState.Error;
+			if (!gone && now < deadline && now - lastActive < TimeUnit.MILLISECONDS.toNanos(DRAIN_IDLE))
+				return;
+
+			synchronized (this) {
+				check.cancel(false);
+			}
+
+			finish(watch, old, stream, moves);
+		}
+	}
+
+	private final Manager manager;
+	private final long retryInterval;
+	private final TransportUpgradeHandler handler;
+	private volatile long drainPeriod = DEFAULT_DRAIN_PERIOD;
+	private final ConcurrentHashMap<String, Watch> watches = new ConcurrentHashMap<>();
+	private final ScheduledFuture<?> task;
+
+	/**
+	 * Create a transport upgrader.
+	 *
+	 * @param
+	 *      manager         The session manager to negotiate new sessions
+	 * @param
+	 *      retryInterval   The interval in milliseconds between upgrade attempts
+	 * @param
+	 *      handler         The handler to be notified of upgrades, or null
+	 */
+	public TransportUpgrader(Manager manager, long retryInterval, TransportUpgradeHandler handler) {
+		if (manager == null || retryInterval <= 0)
+			throw new IllegalArgumentException();
+
+		this.manager = manager;
+		this.retryInterval = retryInterval;
+		this.handler = handler;
+
+		task = Manager.getTimer().scheduleWithFixedDelay(this::check,
+				retryInterval, retryInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Set the longest time to keep the old session open after an upgrade.
+	 * The drain period starts when the upgrade handler returns, and ends
+	 * early once the old stream is idle.
+	 *
+	 * @param
+	 *      drainPeriod     The drain period in milliseconds
+	 */
+	public void setDrainPeriod(long drainPeriod) {
+		if (drainPeriod < 0)
+			throw new IllegalArgumentException();
+
+		this.drainPeriod = drainPeriod;
+	}
+
+	/**
+	 * Watch a connected stream, one stream per peer.
+	 *
+	 * @param
+	 *      stream      The connected stream
+	 * @param
+	 *      type        The stream type to negotiate the replacement with
+	 * @param
+	 *      options     The connect options to negotiate the replacement with
+	 */
+	public void watch(Stream stream, StreamType type, Manager.ConnectOptions options) {
+		if (stream == null || stream.getSession() == null || type == null)
+			throw new IllegalArgumentException();
+
+		watches.put(stream.getSession().getPeer(), new Watch(stream, type,
+				options != null ? options : new Manager.ConnectOptions()));
+	}
+
+	/**
+	 * Stop watching the peer.
+	 *
+	 * @param
+	 *      peer        The peer of watched stream
+	 */
+	public void unwatch(String peer) {
+		watches.remove(peer);
+	}
+
+	/**
+	 * Get the current stream of the watched peer.
+	 *
+	 * @param
+	 *      peer        The peer of watched stream
+	 *
+	 * @return
+	 *      The current stream, or null if the peer is not watched.
+	 */
+	public Stream getStream(String peer) {
+		Watch watch = watches.get(peer);
+		return watch != null ? watch.stream : null;
+	}
+
+	/**
+	 * Open a port forwarding on the watched stream of the peer, which is
+	 * moved to the new stream on upgrade.
+	 *
+	 * @param
+	 *      peer        The peer of watched stream
+	 * @param
+	 *      service     The remote service name
+	 * @param
+	 *      protocol    The port forwarding protocol
+	 * @param
+	 *      host        The local host to listen on
+	 * @param
+	 *      port        The local port to listen on
+	 *
+	 * @return
+	 *      The port forwarding ID on the current stream.
+	 *
+	 * @throws
+	 *      CarrierException
+	 */
+	public int openPortForwarding(String peer, String service, PortForwardingProtocol protocol,
+								  String host, String port) throws CarrierException {
+		Watch watch = watches.get(peer);
+		if (watch == null)
+			throw new IllegalArgumentException();
+
+		synchronized (watch) {
+			int id = watch.stream.openPortForwarding(service, protocol, host, port);
+			watch.forwardings.add(new Forwarding(service, protocol, host, port, id));
+			return id;
+		}
+	}
+
+	/**
+	 * Stop upgrading and forget all the watched streams.
+	 */
+	public void close() {
+		task.cancel(false);
+		watches.clear();
+	}
+
+	private void check() {
+		long now = System.currentTimeMillis();
+
+		for (String peer : watches.keySet()) {
+			Watch watch = watches.get(peer);
+			if (watch == null)
+				continue;
+
+			Stream stream = watch.stream;
+			StreamState state = stream.getState();
+			if (state == StreamState.Deactivated || state == StreamState.Closed ||
+					state == StreamState.Error) {
+				watches.remove(peer, watch);
+				continue;
+			}
+
+			synchronized (watch) {
+				long bytes = stream.getBytesSent() + stream.getBytesReceived();
+				long nanos = System.nanoTime();
+				watch.throughput = throughput(bytes - watch.lastBytes, nanos - watch.lastSampleNanos);
+				watch.lastBytes = bytes;
+				watch.lastSampleNanos = nanos;
+
+				if (state != StreamState.Connected || watch.upgrading || now < watch.nextAttempt)
+					continue;
+
+				TransportInfo info = stream.getTimeline() != null ?
+						stream.getTimeline().getTransportInfo() : null;
+				if (info == null || info.getTopology() != NetworkTopology.Relayed)
+					continue;
+
+				watch.upgrading = true;
+			}
+
+			attempt(peer, watch);
+		}
+	}
+
+	private static long throughput(long bytes, long nanos) {
+		return nanos <= 0 ? 0 : bytes * TimeUnit.SECONDS.toNanos(1) / nanos;
+	}
+
+	private boolean isMultiplexing(Watch watch) {
+		return (watch.options.getStreamOptions() & Stream.PROPERTY_MULTIPLEXING) != 0;
+	}
+
+	private CompletableFuture<Long> rttOf(Stream stream, Watch watch) {
+		if (!isMultiplexing(watch))
+			return CompletableFuture.completedFuture(-1L);
+
+		try {
+			CompletableFuture<Long> rtt = stream.measureRtt();
+			Manager.getTimer().schedule(() -> rtt.complete(-1L), RTT_TIMEOUT, TimeUnit.MILLISECONDS);
+			return rtt.exceptionally(e -> -1L);
+		} catch (CarrierException e) {
+			return CompletableFuture.completedFuture(-1L);
+		}
+	}
+
+	private void attempt(String peer, Watch watch) {
+		Log.d(TAG, "Attempt to upgrade relayed stream to " + peer);
+
+		Stream old = watch.stream;
+		CompletableFuture<Long> rttBefore = rttOf(old, watch);
+
+		manager.connect(peer, watch.type, watch.options).whenComplete((stream, e) -> {
+			if (e != null) {
+				Log.d(TAG, "Upgrade to " + peer + " failed: " + e.getMessage());
+				backoff(watch);
+				return;
+			}
+
+			TransportInfo info = stream.getTimeline() != null ?
+					stream.getTimeline().getTransportInfo() : null;
+			if (info == null || info.getTopology() == NetworkTopology.Relayed ||
+					watches.get(peer) != watch) {
+				stream.getSession().close();
+				backoff(watch);
+				return;
+			}
+
+			migrate(peer, watch, old, stream, info.getTopology(), rttBefore);
+		});
+	}
+
+	private void backoff(Watch watch) {
+		synchronized (watch) {
+			watch.upgrading = false;
+			watch.attempts = Math.min(watch.attempts + 1, MAX_BACKOFF_SHIFT);
+			watch.nextAttempt = System.currentTimeMillis() + (retryInterval << watch.attempts);
+		}
+	}
+
+	private void migrate(String peer, Watch watch, Stream old, Stream stream,
+						 NetworkTopology topology, CompletableFuture<Long> rttBefore) {
+		long throughputBefore;
+		List<Move> moves = new ArrayList<>();
+
+		synchronized (watch) {
+			for (Forwarding forwarding : watch.forwardings)
+				moves.add(open(forwarding, stream));
+
+			throughputBefore = watch.throughput;
+			watch.stream = stream;
+			watch.upgrading = false;
+			watch.attempts = 0;
+			watch.lastBytes = stream.getBytesSent() + stream.getBytesReceived();
+			watch.lastSampleNanos = System.nanoTime();
+		}
+
+		Log.i(TAG, String.format("Stream to %s upgraded from relayed to %s", peer, topology));
+
+		if (handler == null) {
+			drain(watch, old, stream, moves);
+			return;
+		}
+
+		try {
+			handler.onTransportUpgraded(old, stream);
+		} finally {
+			// Drain from the notification on, so the application always gets
+			// the whole period to move its channels.
+			drain(watch, old, stream, moves);
+		}
+
+		// Sampled once the application had the chance to move its traffic.
+		long startBytes = stream.getBytesSent() + stream.getBytesReceived();
+		long startNanos = System.nanoTime();
+
+		Manager.getTimer().schedule(() -> {
+			long throughputAfter = throughput(stream.getBytesSent() + stream.getBytesReceived() - startBytes,
+					System.nanoTime() - startNanos);
+
+			rttOf(stream, watch).thenCombine(rttBefore, (after, before) ->
+					new Report(topology, throughputBefore, throughputAfter, before, after))
+					.thenAccept(report -> handler.onUpgradeReport(old, stream, report));
+		}, REPORT_WINDOW, TimeUnit.MILLISECONDS);
+	}
+
+	// Open the forwarding on the new stream next to the old one, which keeps
+	// serving its connections. Fails while the old one holds the local port.
+	private static Move open(Forwarding forwarding, Stream stream) {
+		int oldId = forwarding.id;
+
+		try {
+			forwarding.id = stream.openPortForwarding(forwarding.service, forwarding.protocol,
+					forwarding.host, forwarding.port);
+			return new Move(forwarding, oldId, true);
+		} catch (CarrierException e) {
+			forwarding.id = -1;
+			return new Move(forwarding, oldId, false);
+		}
+	}
+
+	private void drain(Watch watch, Stream old, Stream stream, List<Move> moves) {
+		Drain drain = new Drain(watch, old, stream, moves);
+		synchronized (drain) {
+			drain.check = Manager.getTimer().scheduleWithFixedDelay(drain,
+					DRAIN_CHECK_INTERVAL, DRAIN_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void finish(Watch watch, Stream old, Stream stream, List<Move> moves) {
+		for (Move move : moves)
+			closePortForwarding(old, move.oldId);
+
+		synchronized (watch) {
+			for (Move move : moves) {
+				if (move.opened || watch.stream != stream)
+					continue;
+
+				Forwarding forwarding = move.forwarding;
+				try {
+					forwarding.id = stream.openPortForwarding(forwarding.service, forwarding.protocol,
+							forwarding.host, forwarding.port);
+				} catch (CarrierException e) {
+					Log.e(TAG, String.format("Move port forwarding of %s to new stream error (0x%x)",
+							forwarding.service, e.getErrorCode()));
+				}
+			}
+		}
+
+		Log.d(TAG, "Relayed stream drained, closing it");
+		old.getSession().close();
+	}
+
+	private static void closePortForwarding(Stream stream, int id) {
+		if (id < 0)
+			return;
+
+		try {
+			stream.closePortForwarding(id);
+		} catch (CarrierException e) {
+			Log.w(TAG, String.format("Close port forwarding %d error (0x%x)", id, e.getErrorCode()));
+		}
+	}
+}
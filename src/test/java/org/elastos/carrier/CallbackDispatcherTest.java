@@ -0,0 +1,190 @@
+package org.elastos.carrier;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class CallbackDispatcherTest {
+    // Holds the scheduled lanes until the test runs them.
+    static class ManualExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            for (;;) {
+                Runnable task;
+                synchronized (this) {
+                    if (tasks.isEmpty())
+                        return;
+                    task = tasks.remove(0);
+                }
+                task.run();
+            }
+        }
+    }
+
+    @Test
+    public void testOrderPerKey() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        CallbackDispatcher dispatcher = new CallbackDispatcher(executor, 10000,
+                CallbackDispatcher.OverflowPolicy.Block);
+        List<Integer> a = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> b = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(2000);
+
+        for (int i = 0; i < 1000; i++) {
+            int value = i;
+            assertTrue(dispatcher.dispatch("a", () -> { a.add(value); done.countDown(); }));
+            assertTrue(dispatcher.dispatch("b", () -> { b.add(value); done.countDown(); }));
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(Integer.valueOf(i), a.get(i));
+            assertEquals(Integer.valueOf(i), b.get(i));
+        }
+        assertEquals(2000, dispatcher.getDispatchedCount());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRejectWhenFull() {
+        ManualExecutor executor = new ManualExecutor();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(executor, 2,
+                CallbackDispatcher.OverflowPolicy.Reject);
+        List<Integer> run = new ArrayList<>();
+
+        assertTrue(dispatcher.dispatch("a", () -> run.add(1)));
+        assertTrue(dispatcher.dispatch("b", () -> run.add(2)));
+        assertFalse(dispatcher.dispatch("c", () -> run.add(3)));
+        assertEquals(1, dispatcher.getRejectedCount());
+        assertEquals(2, dispatcher.getQueueDepth());
+
+        executor.runAll();
+        Collections.sort(run);
+        assertEquals(2, run.size());
+        assertEquals(Integer.valueOf(1), run.get(0));
+        assertEquals(Integer.valueOf(2), run.get(1));
+        assertEquals(0, dispatcher.getQueueDepth());
+    }
+
+    @Test
+    public void testDropOldestWhenFull() {
+        ManualExecutor executor = new ManualExecutor();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(executor, 2,
+                CallbackDispatcher.OverflowPolicy.DropOldest);
+        List<Integer> run = new ArrayList<>();
+
+        assertTrue(dispatcher.dispatch("a", () -> run.add(1)));
+        assertTrue(dispatcher.dispatch("b", () -> run.add(2)));
+        assertTrue(dispatcher.dispatch("c", () -> run.add(3)));
+        assertEquals(1, dispatcher.getDroppedCount());
+
+        executor.runAll();
+        Collections.sort(run);
+        assertEquals(2, run.size());
+        assertEquals(Integer.valueOf(2), run.get(0));
+        assertEquals(Integer.valueOf(3), run.get(1));
+    }
+
+    @Test
+    public void testBlockWaitsForRoom() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(executor, 1,
+                CallbackDispatcher.OverflowPolicy.Block);
+        AtomicInteger run = new AtomicInteger(0);
+
+        assertTrue(dispatcher.dispatch("a", run::incrementAndGet));
+
+        CountDownLatch queued = new CountDownLatch(1);
+        Thread blocked = new Thread(() -> {
+            dispatcher.dispatch("b", run::incrementAndGet);
+            queued.countDown();
+        });
+        blocked.start();
+        assertFalse(queued.await(100, TimeUnit.MILLISECONDS));
+
+        executor.runAll();
+        assertTrue(queued.await(5, TimeUnit.SECONDS));
+        executor.runAll();
+        assertEquals(2, run.get());
+    }
+
+    @Test
+    public void testRefusedLaneNotRunInline() {
+        Executor refusing = task -> {
+            throw new RejectedExecutionException("saturated");
+        };
+        AtomicInteger run = new AtomicInteger(0);
+
+        CallbackDispatcher reject = new CallbackDispatcher(refusing, 16,
+                CallbackDispatcher.OverflowPolicy.Reject);
+        assertFalse(reject.dispatch("a", run::incrementAndGet));
+        assertEquals(1, reject.getRejectedCount());
+        assertEquals(0, reject.getQueueDepth());
+
+        CallbackDispatcher drop = new CallbackDispatcher(refusing, 16,
+                CallbackDispatcher.OverflowPolicy.DropOldest);
+        assertFalse(drop.dispatch("a", run::incrementAndGet));
+        assertEquals(1, drop.getDroppedCount());
+        assertEquals(0, drop.getQueueDepth());
+
+        assertEquals(0, run.get());
+    }
+
+    @Test
+    public void testBlockRetriesRefusedLane() throws Exception {
+        ExecutorService workers = Executors.newSingleThreadExecutor();
+        AtomicInteger refusals = new AtomicInteger(3);
+        Executor flaky = task -> {
+            if (refusals.getAndDecrement() > 0)
+                throw new RejectedExecutionException("saturated");
+            workers.execute(task);
+        };
+
+        CallbackDispatcher dispatcher = new CallbackDispatcher(flaky, 16,
+                CallbackDispatcher.OverflowPolicy.Block);
+        Thread caller = Thread.currentThread();
+        Thread[] ranOn = new Thread[1];
+        CountDownLatch done = new CountDownLatch(1);
+
+        assertTrue(dispatcher.dispatch("a", () -> {
+            ranOn[0] = Thread.currentThread();
+            done.countDown();
+        }));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNotSame(caller, ranOn[0]);
+        workers.shutdown();
+    }
+
+    @Test
+    public void testBlockGivesUpOnShutdownExecutor() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        CallbackDispatcher dispatcher = new CallbackDispatcher(executor, 16,
+                CallbackDispatcher.OverflowPolicy.Block);
+        AtomicInteger run = new AtomicInteger(0);
+
+        assertFalse(dispatcher.dispatch("a", run::incrementAndGet));
+        assertEquals(1, dispatcher.getRejectedCount());
+        assertEquals(0, run.get());
+    }
+}
@@ -0,0 +1,82 @@
+package org.elastos.carrier;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FriendRosterTest {
+    // Profile fields as the native layer reports them, empty but not null.
+    private static FriendInfo friend(String userId, String name) {
+        FriendInfo info = new FriendInfo();
+        info.setUserId(userId);
+        info.setName(name);
+        info.setDescription("");
+        info.setGender("");
+        info.setPhone("");
+        info.setEmail("");
+        info.setRegion("");
+        info.setLabel("");
+        return info;
+    }
+
+    @Test
+    public void testEmptyFieldsStayEmpty() {
+        FriendRoster roster = new FriendRoster();
+        roster.load(Arrays.asList(friend("a", ""), friend("b", "bob")));
+
+        FriendInfo a = roster.get("a");
+        assertEquals("", a.getName());
+        assertEquals("", a.getDescription());
+        assertEquals("", a.getRegion());
+        assertEquals("", a.getLabel());
+        assertEquals("bob", roster.get("b").getName());
+        assertNull(roster.get("c"));
+    }
+
+    @Test
+    public void testSnapshotReturnsCopies() {
+        FriendRoster roster = new FriendRoster();
+        roster.load(Arrays.asList(friend("a", "alice")));
+
+        List<FriendInfo> friends = roster.getFriends();
+        FriendInfo first = friends.get(0);
+        first.setLabel("changed");
+
+        assertNotSame(first, friends.get(0));
+        assertEquals("", friends.get(0).getLabel());
+        assertEquals("", roster.get("a").getLabel());
+    }
+
+    @Test
+    public void testUpdatesReplaceEntries() {
+        FriendRoster roster = new FriendRoster();
+        assertFalse(roster.isLoaded());
+        roster.load(Arrays.asList(friend("a", "alice")));
+        assertTrue(roster.isLoaded());
+
+        List<FriendInfo> before = roster.getFriends();
+        roster.updateLabel("a", "work");
+        roster.updateConnection("a", ConnectionStatus.Connected);
+        roster.updatePresence("a", PresenceStatus.Busy);
+
+        FriendInfo a = roster.get("a");
+        assertEquals("work", a.getLabel());
+        assertEquals("alice", a.getName());
+        assertEquals(ConnectionStatus.Connected, a.getConnectionStatus());
+        assertEquals(PresenceStatus.Busy, a.getPresence());
+
+        // Snapshots taken before keep the old entry.
+        assertEquals("", before.get(0).getLabel());
+
+        roster.remove("a");
+        assertEquals(0, roster.size());
+        assertFalse(roster.contains("a"));
+    }
+}
@@ -0,0 +1,159 @@
+package org.elastos.carrier;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReceiptTableTest {
+    @Test
+    public void testReceiptCompletesFuture() throws Exception {
+        ReceiptTable table = new ReceiptTable();
+
+        CompletableFuture<ReceiptState> future = table.register(42, 0);
+        assertFalse(future.isDone());
+
+        table.onReceipt(42, ReceiptState.ReceiptByFriend);
+        assertEquals(ReceiptState.ReceiptByFriend, future.get());
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testReceiptBeforeRegister() throws Exception {
+        ReceiptTable table = new ReceiptTable();
+
+        table.onReceipt(7, ReceiptState.DeliveredAsOffline);
+        CompletableFuture<ReceiptState> future = table.register(7, 0);
+
+        assertTrue(future.isDone());
+        assertEquals(ReceiptState.DeliveredAsOffline, future.get());
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testManyInflightReceipts() throws Exception {
+        ReceiptTable table = new ReceiptTable();
+        int count = 50000;
+
+        List<CompletableFuture<ReceiptState>> futures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            futures.add(table.register(i * 31L + 1, 0));
+        assertEquals(count, table.size());
+
+        // Complete in a different order than registered to exercise deletion.
+        for (int i = count - 1; i >= 0; i -= 2)
+            table.onReceipt(i * 31L + 1, ReceiptState.ReceiptByFriend);
+        for (int i = count - 2; i >= 0; i -= 2)
+            table.onReceipt(i * 31L + 1, ReceiptState.Error);
+
+        for (int i = 0; i < count; i++) {
+            assertTrue(futures.get(i).isDone());
+            assertEquals((count - 1 - i) % 2 == 0 ? ReceiptState.ReceiptByFriend : ReceiptState.Error,
+                    futures.get(i).get());
+        }
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testReceiptTimeout() throws Exception {
+        ReceiptTable table = new ReceiptTable();
+
+        CompletableFuture<ReceiptState> shortFuture = table.register(1, 10);
+        CompletableFuture<ReceiptState> longFuture = table.register(2, 60000);
+
+        table.expire(System.currentTimeMillis() + 100);
+
+        assertTrue(shortFuture.isCompletedExceptionally());
+        assertFalse(longFuture.isDone());
+        try {
+            shortFuture.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        table.onReceipt(2, ReceiptState.ReceiptByFriend);
+        assertEquals(ReceiptState.ReceiptByFriend, longFuture.get());
+    }
+
+    @Test
+    public void testExpireInDeadlineOrder() throws Exception {
+        ReceiptTable table = new ReceiptTable();
+        long now = System.currentTimeMillis();
+        int count = 1000;
+
+        List<CompletableFuture<ReceiptState>> futures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            futures.add(table.register(i, ((i * 7919) % count + 1) * 1000L));
+
+        // Completed receipts leave stale deadlines behind that must be skipped.
+        for (int i = 0; i < count; i += 3)
+            table.onReceipt(i, ReceiptState.ReceiptByFriend);
+
+        table.expire(now + (count / 2) * 1000L + 500);
+        for (int i = 0; i < count; i++) {
+            boolean due = ((i * 7919) % count + 1) <= count / 2;
+            if (i % 3 == 0)
+                assertEquals(ReceiptState.ReceiptByFriend, futures.get(i).get());
+            else
+                assertEquals(due, futures.get(i).isCompletedExceptionally());
+        }
+
+        table.expire(now + (count + 1) * 1000L);
+        for (int i = 0; i < count; i++)
+            assertTrue(futures.get(i).isDone());
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testCancelAll() {
+        ReceiptTable table = new ReceiptTable();
+
+        CompletableFuture<ReceiptState> future = table.register(3, 0);
+        table.cancelAll();
+
+        assertTrue(future.isCancelled());
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testCancelledFutureReleasesSlot() {
+        ReceiptTable table = new ReceiptTable();
+
+        CompletableFuture<ReceiptState> cancelled = table.register(5, 0);
+        CompletableFuture<ReceiptState> completed = table.register(6, 60000);
+        assertEquals(2, table.size());
+
+        cancelled.cancel(false);
+        assertEquals(1, table.size());
+        completed.complete(ReceiptState.Error);
+        assertEquals(0, table.size());
+
+        // A late receipt is kept as unclaimed and does not touch the futures.
+        table.onReceipt(5, ReceiptState.ReceiptByFriend);
+        assertTrue(cancelled.isCancelled());
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testNoTimeoutIsBounded() {
+        ReceiptTable table = new ReceiptTable();
+        long now = System.currentTimeMillis();
+
+        CompletableFuture<ReceiptState> future = table.register(9, 0);
+        table.expire(now + ReceiptTable.MAX_RECEIPT_WAIT - 1000);
+        assertFalse(future.isDone());
+
+        table.expire(now + ReceiptTable.MAX_RECEIPT_WAIT + 1000);
+        assertTrue(future.isCompletedExceptionally());
+        assertEquals(0, table.size());
+    }
+}
@@ -0,0 +1,172 @@
+package org.elastos.carrier.forward;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReconnectSchedulerTest {
+    private static final ScheduledExecutorService idle = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ReconnectSchedulerTest");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // A scheduler whose attempts never fire on their own. The delays are
+    // recorded, and the test runs the pending attempt when it likes.
+    static class ManualScheduler extends ReconnectScheduler {
+        final List<Long> delays = new ArrayList<>();
+        private Runnable task;
+        private ScheduledFuture<?> future;
+
+        ManualScheduler(Runnable attempt) {
+            super(() -> "test", attempt);
+        }
+
+        @Override
+        ScheduledFuture<?> submit(Runnable task, long delay) {
+            delays.add(delay);
+            this.task = task;
+            this.future = idle.schedule(() -> { }, 1, TimeUnit.HOURS);
+            return future;
+        }
+
+        Long lastDelay() {
+            return delays.isEmpty() ? null : delays.get(delays.size() - 1);
+        }
+
+        void runPending() {
+            assertNotNull(task);
+            assertFalse(future.isCancelled());
+            Runnable pending = task;
+            task = null;
+            pending.run();
+        }
+    }
+
+    @Test
+    public void testBackoffWithinJitter() {
+        ManualScheduler scheduler = new ManualScheduler(() -> { });
+
+        scheduler.request();
+        assertEquals(Long.valueOf(0), scheduler.lastDelay());
+
+        for (int attempt = 1; attempt < ReconnectScheduler.MAX_ATTEMPTS; attempt++) {
+            scheduler.runPending();
+            scheduler.onFailure();
+
+            long backoff = Math.min(ReconnectScheduler.MAX_DELAY,
+                    ReconnectScheduler.BASE_DELAY << (attempt - 1));
+            long delay = scheduler.lastDelay();
+            assertTrue(delay >= backoff / 2);
+            assertTrue(delay <= backoff);
+        }
+
+        assertEquals(ReconnectScheduler.MAX_ATTEMPTS, scheduler.delays.size());
+        assertEquals(ReconnectScheduler.MAX_ATTEMPTS - 1, scheduler.getAttemptCount());
+    }
+
+    @Test
+    public void testJitterSpreadsDelays() {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+
+        for (int i = 0; i < 200; i++) {
+            ManualScheduler scheduler = new ManualScheduler(() -> { });
+            scheduler.request();
+            scheduler.runPending();
+            scheduler.onFailure();
+
+            long delay = scheduler.lastDelay();
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+
+        // Equal jitter spreads the first retry over half the backoff.
+        long half = ReconnectScheduler.BASE_DELAY / 2;
+        assertTrue(min >= half);
+        assertTrue(max <= ReconnectScheduler.BASE_DELAY);
+        assertTrue(min < half + half / 2);
+        assertTrue(max > half + half / 2);
+    }
+
+    @Test
+    public void testGiveUpUntilRetryNow() {
+        ManualScheduler scheduler = new ManualScheduler(() -> { });
+
+        scheduler.request();
+        for (int attempt = 0; attempt < ReconnectScheduler.MAX_ATTEMPTS; attempt++) {
+            scheduler.runPending();
+            scheduler.onFailure();
+        }
+
+        int scheduled = scheduler.delays.size();
+        assertEquals(ReconnectScheduler.MAX_ATTEMPTS, scheduled);
+        assertEquals(1, scheduler.getGiveUpCount());
+
+        // Given up, only the peer coming back starts over.
+        scheduler.request();
+        scheduler.onDisconnected(true);
+        assertEquals(scheduled, scheduler.delays.size());
+
+        scheduler.retryNow();
+        assertEquals(scheduled + 1, scheduler.delays.size());
+        assertEquals(Long.valueOf(0), scheduler.lastDelay());
+
+        scheduler.runPending();
+        scheduler.onFailure();
+        assertTrue(scheduler.lastDelay() <= ReconnectScheduler.BASE_DELAY);
+    }
+
+    @Test
+    public void testRecoveryAfterOutage() {
+        ManualScheduler scheduler = new ManualScheduler(() -> { });
+
+        scheduler.request();
+        scheduler.runPending();
+        scheduler.onConnected();
+        assertEquals(0, scheduler.getRecoveryCount());
+        assertEquals(-1, scheduler.getLastTimeToRecover());
+
+        scheduler.onDisconnected(true);
+        scheduler.runPending();
+        scheduler.onConnected();
+        assertEquals(1, scheduler.getRecoveryCount());
+        assertTrue(scheduler.getLastTimeToRecover() >= 0);
+    }
+
+    @Test
+    public void testFailureBeforeAnyAttempt() {
+        ManualScheduler scheduler = new ManualScheduler(() -> { });
+
+        // A failure reported with no attempt counted yet backs off by the base delay.
+        scheduler.onFailure();
+        long delay = scheduler.lastDelay();
+        assertTrue(delay >= ReconnectScheduler.BASE_DELAY / 2);
+        assertTrue(delay <= ReconnectScheduler.BASE_DELAY);
+    }
+
+    @Test
+    public void testFailedAttemptEndsInProgress() {
+        ManualScheduler scheduler = new ManualScheduler(() -> {
+            throw new IllegalStateException("no pool");
+        });
+
+        scheduler.request();
+        scheduler.runPending();
+
+        // The thrown attempt counts as a failure and the next one is scheduled.
+        assertEquals(2, scheduler.delays.size());
+        scheduler.runPending();
+        assertEquals(3, scheduler.delays.size());
+    }
+}
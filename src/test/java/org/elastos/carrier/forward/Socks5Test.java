@@ -0,0 +1,107 @@
+package org.elastos.carrier.forward;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class Socks5Test {
+    private static ByteBuffer bufferOf(byte... data) {
+        return ByteBuffer.wrap(data);
+    }
+
+    private static ByteBuffer domainRequest(byte command, String host, int port) {
+        byte[] name = host.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocate(7 + name.length);
+        buffer.put(new byte[] { 5, command, 0, 3, (byte)name.length });
+        buffer.put(name);
+        buffer.putShort((short)port);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void testGreeting() {
+        assertEquals(Socks5.GREETING_NO_AUTH, Socks5.parseGreeting(bufferOf(new byte[] { 5, 1, 0 })));
+        assertEquals(Socks5.GREETING_NO_AUTH, Socks5.parseGreeting(bufferOf(new byte[] { 5, 2, 2, 0 })));
+        assertEquals(Socks5.GREETING_NO_METHOD, Socks5.parseGreeting(bufferOf(new byte[] { 5, 1, 2 })));
+        assertEquals(Socks5.GREETING_BAD_VERSION, Socks5.parseGreeting(bufferOf(new byte[] { 4, 1, 0 })));
+    }
+
+    @Test
+    public void testPartialGreeting() {
+        ByteBuffer buffer = bufferOf(new byte[] { 5, 2, 0 });
+        assertEquals(Socks5.GREETING_INCOMPLETE, Socks5.parseGreeting(buffer));
+        assertEquals(0, buffer.position());
+
+        assertEquals(Socks5.GREETING_INCOMPLETE, Socks5.parseGreeting(bufferOf(new byte[] { 5 })));
+    }
+
+    @Test
+    public void testGreetingFollowedByRequest() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put(new byte[] { 5, 1, 0 });
+        buffer.put(domainRequest((byte)1, "example.org", 443));
+        buffer.flip();
+
+        assertEquals(Socks5.GREETING_NO_AUTH, Socks5.parseGreeting(buffer));
+        assertEquals("example.org:443", Socks5.parseRequest(buffer));
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void testIpv4Request() throws Exception {
+        ByteBuffer buffer = bufferOf(new byte[] { 5, 1, 0, 1, 10, 0, 0, 7, 0x1f, (byte)0x90 });
+        assertEquals("10.0.0.7:8080", Socks5.parseRequest(buffer));
+    }
+
+    @Test
+    public void testIpv6Request() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(22);
+        buffer.put(new byte[] { 5, 1, 0, 4 });
+        buffer.put(new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1 });
+        buffer.putShort((short)22);
+        buffer.flip();
+
+        assertEquals("0:0:0:0:0:0:0:1:22", Socks5.parseRequest(buffer));
+    }
+
+    @Test
+    public void testPartialRequest() throws Exception {
+        ByteBuffer whole = domainRequest((byte)1, "example.org", 80);
+        for (int len = 0; len < whole.limit(); len++) {
+            ByteBuffer part = ByteBuffer.wrap(whole.array(), 0, len);
+            assertNull(Socks5.parseRequest(part));
+            assertEquals(0, part.position());
+        }
+    }
+
+    @Test
+    public void testUnsupportedRequests() {
+        assertRefused(domainRequest((byte)2, "example.org", 80), Socks5.COMMAND_NOT_SUPPORTED);
+        assertRefused(bufferOf(new byte[] { 5, 1, 0, 9, 0, 0, 0 }), Socks5.ADDRESS_NOT_SUPPORTED);
+        assertRefused(bufferOf(new byte[] { 5, 1, 0, 3, 0, 0, 80 }), Socks5.ADDRESS_NOT_SUPPORTED);
+        assertRefused(bufferOf(new byte[] { 4, 1, 0, 1, 10, 0, 0, 7, 0, 80 }), Socks5.GENERAL_FAILURE);
+    }
+
+    private static void assertRefused(ByteBuffer buffer, byte status) {
+        try {
+            Socks5.parseRequest(buffer);
+            fail();
+        } catch (Socks5.RequestException e) {
+            assertEquals(status, e.getStatus());
+        }
+    }
+
+    @Test
+    public void testReply() {
+        byte[] reply = Socks5.reply(Socks5.CONNECTION_REFUSED);
+        assertEquals(10, reply.length);
+        assertEquals(Socks5.VERSION, reply[0]);
+        assertEquals(Socks5.CONNECTION_REFUSED, reply[1]);
+    }
+}
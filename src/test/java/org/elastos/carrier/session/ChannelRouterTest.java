@@ -0,0 +1,153 @@
+package org.elastos.carrier.session;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChannelRouterTest {
+    private static final Executor inline = Runnable::run;
+
+    // A service recording the channels it was asked to accept.
+    static class Service implements ChannelServiceHandler {
+        final List<String> cookies = new ArrayList<>();
+        final List<String> events = new ArrayList<>();
+        boolean accept = true;
+
+        @Override
+        public boolean onChannelOpen(Stream stream, int channel, String cookie) {
+            cookies.add(cookie);
+            return accept;
+        }
+
+        @Override
+        public void onChannelData(Stream stream, int channel, byte[] data) {
+            events.add("data " + data.length);
+        }
+
+        @Override
+        public void onChannelClose(Stream stream, int channel, CloseReason reason) {
+            events.add("close " + reason.name());
+        }
+    }
+
+    private final Stream stream = new Stream(StreamType.Application);
+    private int nextChannel = 1;
+
+    private boolean route(ChannelRouter router, String cookie) {
+        return router.route(stream, nextChannel++, cookie);
+    }
+
+    @Test
+    public void testExactBeforePrefix() {
+        ChannelRouter router = new ChannelRouter();
+        Service echo = new Service();
+        Service any = new Service();
+        router.register("svc:echo", echo, inline);
+        router.registerPrefix("svc:", any, inline);
+
+        assertTrue(route(router, "svc:echo"));
+        assertTrue(route(router, "svc:echo2"));
+        assertTrue(route(router, "svc:"));
+
+        assertEquals(1, echo.cookies.size());
+        assertEquals("svc:echo", echo.cookies.get(0));
+        assertEquals(2, any.cookies.size());
+    }
+
+    @Test
+    public void testLongestPrefixWins() {
+        ChannelRouter router = new ChannelRouter();
+        Service a = new Service();
+        Service ab = new Service();
+        Service abc = new Service();
+        router.registerPrefix("abc", abc, inline);
+        router.registerPrefix("a", a, inline);
+        router.registerPrefix("ab", ab, inline);
+
+        assertTrue(route(router, "abcd"));
+        assertTrue(route(router, "abx"));
+        assertTrue(route(router, "a"));
+        assertFalse(route(router, "b"));
+        assertFalse(route(router, ""));
+
+        assertEquals(1, abc.cookies.size());
+        assertEquals(1, ab.cookies.size());
+        assertEquals(1, a.cookies.size());
+        assertEquals(3, router.getRoutedCount());
+        assertEquals(2, router.getUnmatchedCount());
+    }
+
+    @Test
+    public void testEmptyPrefixMatchesAll() {
+        ChannelRouter router = new ChannelRouter();
+        Service fallback = new Service();
+        router.registerPrefix("", fallback, inline);
+
+        assertTrue(route(router, "anything"));
+        assertTrue(route(router, null));
+        assertEquals(2, fallback.cookies.size());
+        assertNull(fallback.cookies.get(1));
+    }
+
+    @Test
+    public void testUnregisterFallsBack() {
+        ChannelRouter router = new ChannelRouter();
+        Service exact = new Service();
+        Service shorter = new Service();
+        Service longer = new Service();
+        router.register("svc:rpc", exact, inline);
+        router.registerPrefix("svc", shorter, inline);
+        router.registerPrefix("svc:r", longer, inline);
+
+        router.unregister("svc:rpc");
+        assertTrue(route(router, "svc:rpc"));
+        assertEquals(1, longer.cookies.size());
+
+        router.unregisterPrefix("svc:r");
+        assertTrue(route(router, "svc:rpc"));
+        assertEquals(1, shorter.cookies.size());
+
+        router.unregisterPrefix("svc");
+        router.unregisterPrefix("missing");
+        assertFalse(route(router, "svc:rpc"));
+        assertTrue(exact.cookies.isEmpty());
+    }
+
+    @Test
+    public void testRefusedChannelNotAttached() {
+        ChannelRouter router = new ChannelRouter();
+        Service service = new Service();
+        service.accept = false;
+        router.register("svc", service, inline);
+
+        assertFalse(router.route(stream, 7, "svc"));
+        assertNull(stream.getAttachments().of(7));
+        assertEquals(0, router.getRoutedCount());
+        assertEquals(0, router.getUnmatchedCount());
+    }
+
+    @Test
+    public void testRoutedEventsReachService() {
+        ChannelRouter router = new ChannelRouter();
+        Service service = new Service();
+        router.register("svc", service, inline);
+
+        assertTrue(router.route(stream, 8, "svc"));
+        ChannelAttachment attachment = stream.getAttachments().of(8);
+        assertNotNull(attachment);
+
+        assertTrue(attachment.onChannelData(stream, 8, new byte[3]));
+        attachment.onChannelClose(stream, 8, CloseReason.Normal);
+        assertEquals(2, service.events.size());
+        assertEquals("data 3", service.events.get(0));
+        assertEquals("close Normal", service.events.get(1));
+    }
+}
@@ -0,0 +1,162 @@
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.exceptions.GeneralException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChannelSchedulerTest {
+    private static final int SLICE = 16;
+
+    // A scheduler without a native stream. The sending task runs when the
+    // test likes, and the channel of each written slice is recorded.
+    static class ManualScheduler extends ChannelScheduler {
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<Integer> written = new ArrayList<>();
+        int busyWrites;
+        CarrierException failure;
+
+        ManualScheduler() {
+            super(null, SLICE);
+        }
+
+        @Override
+        void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        @Override
+        int write(int channel, byte[] data, int offset, int len) throws CarrierException {
+            if (failure != null) {
+                CarrierException e = failure;
+                failure = null;
+                throw e;
+            }
+
+            if (busyWrites > 0) {
+                busyWrites--;
+                return 0;
+            }
+
+            written.add(channel);
+            return len;
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty())
+                tasks.remove(0).run();
+        }
+    }
+
+    @Test
+    public void testWeightedInterleaving() throws Exception {
+        ManualScheduler scheduler = new ManualScheduler();
+        scheduler.setPriority(1, ChannelScheduler.Priority.Bulk);
+        scheduler.setPriority(2, ChannelScheduler.Priority.Interactive);
+
+        scheduler.send(1, new byte[SLICE * 4]);
+        scheduler.send(2, new byte[SLICE * 4]);
+        assertEquals(1, scheduler.tasks.size());
+
+        scheduler.runAll();
+
+        // The bulk channel sends one slice per round, the interactive one all.
+        int[] expected = { 1, 2, 2, 2, 2, 1, 1, 1 };
+        assertEquals(expected.length, scheduler.written.size());
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(Integer.valueOf(expected[i]), scheduler.written.get(i));
+
+        assertEquals(SLICE * 4, scheduler.getSentBytes(1));
+        assertEquals(0, scheduler.getQueuedBytes(2));
+    }
+
+    @Test
+    public void testSenderReleasedWhenIdle() throws Exception {
+        ManualScheduler scheduler = new ManualScheduler();
+
+        scheduler.send(1, new byte[SLICE]);
+        scheduler.send(1, new byte[SLICE]);
+        assertEquals(1, scheduler.tasks.size());
+        scheduler.runAll();
+
+        // Once drained, new data starts a new sending task.
+        scheduler.send(1, new byte[SLICE]);
+        assertEquals(1, scheduler.tasks.size());
+        scheduler.runAll();
+        assertEquals(3, scheduler.written.size());
+    }
+
+    @Test
+    public void testPendedChannelSkipped() throws Exception {
+        ManualScheduler scheduler = new ManualScheduler();
+
+        scheduler.onChannelPending(1);
+        scheduler.send(1, new byte[SLICE]);
+        scheduler.send(2, new byte[SLICE]);
+        scheduler.runAll();
+        assertEquals(1, scheduler.written.size());
+        assertEquals(Integer.valueOf(2), scheduler.written.get(0));
+        assertEquals(SLICE, scheduler.getQueuedBytes(1));
+
+        scheduler.onChannelResume(1);
+        scheduler.runAll();
+        assertEquals(Integer.valueOf(1), scheduler.written.get(1));
+    }
+
+    @Test
+    public void testBusyTransportRetried() throws Exception {
+        ManualScheduler scheduler = new ManualScheduler();
+
+        scheduler.busyWrites = 2;
+        scheduler.failure = CarrierException.fromErrorCode(GeneralException.BUSY, "pending");
+        scheduler.send(1, new byte[SLICE * 2]);
+        scheduler.runAll();
+
+        assertEquals(2, scheduler.written.size());
+        assertEquals(SLICE * 2, scheduler.getSentBytes(1));
+    }
+
+    @Test
+    public void testWriteErrorDropsChannel() throws Exception {
+        ManualScheduler scheduler = new ManualScheduler();
+
+        scheduler.failure = CarrierException.fromErrorCode(GeneralException.WRONG_STATE, "closed");
+        scheduler.send(1, new byte[SLICE * 2]);
+        scheduler.send(2, new byte[SLICE]);
+        scheduler.runAll();
+
+        assertEquals(1, scheduler.written.size());
+        assertEquals(Integer.valueOf(2), scheduler.written.get(0));
+        assertEquals(0, scheduler.getQueuedBytes(1));
+    }
+
+    @Test
+    public void testQueueLimit() throws Exception {
+        ManualScheduler scheduler = new ManualScheduler();
+        scheduler.setQueueLimit(SLICE);
+
+        scheduler.send(1, new byte[SLICE]);
+        try {
+            scheduler.send(1, new byte[1]);
+            fail();
+        } catch (CarrierException e) {
+            assertEquals(GeneralException.LIMIT_EXCEEDED, e.getErrorCode());
+        }
+
+        scheduler.close();
+        try {
+            scheduler.send(2, new byte[1]);
+            fail();
+        } catch (CarrierException e) {
+            assertEquals(GeneralException.WRONG_STATE, e.getErrorCode());
+        }
+        scheduler.runAll();
+        assertTrue(scheduler.written.isEmpty());
+    }
+}
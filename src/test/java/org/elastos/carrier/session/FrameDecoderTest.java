@@ -0,0 +1,78 @@
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.exceptions.CarrierException;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FrameDecoderTest {
+    private static List<byte[]> decodeAll(byte[] data, int chunk, int maxFrameSize) throws CarrierException {
+        List<byte[]> frames = new ArrayList<>();
+        FrameDecoder decoder = new FrameDecoder(null, -1, maxFrameSize, (stream, channel, frame) -> {
+            byte[] copy = new byte[frame.remaining()];
+            frame.get(copy);
+            frames.add(copy);
+        });
+
+        for (int offset = 0; offset < data.length; offset += chunk)
+            decoder.decode(data, offset, Math.min(chunk, data.length - offset));
+        return frames;
+    }
+
+    @Test
+    public void testFramesAcrossChunks() throws Exception {
+        byte[][] payloads = { new byte[0], new byte[1], new byte[127], new byte[128], new byte[20000] };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < payloads.length; i++) {
+            for (int j = 0; j < payloads[i].length; j++)
+                payloads[i][j] = (byte)(i + j);
+            out.write(FrameEncoder.encode(payloads[i]));
+        }
+        byte[] data = out.toByteArray();
+
+        for (int chunk : new int[] { 1, 3, 100, data.length }) {
+            List<byte[]> frames = decodeAll(data, chunk, 65536);
+            assertEquals(payloads.length, frames.size());
+            for (int i = 0; i < payloads.length; i++)
+                assertArrayEquals(payloads[i], frames.get(i));
+        }
+    }
+
+    @Test
+    public void testPrefixSize() {
+        assertEquals(1, FrameEncoder.prefixSize(0));
+        assertEquals(1, FrameEncoder.prefixSize(127));
+        assertEquals(2, FrameEncoder.prefixSize(128));
+        assertEquals(3, FrameEncoder.prefixSize(16384));
+        assertEquals(5, FrameEncoder.prefixSize(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testWholeFrameIsNotCopied() throws Exception {
+        byte[] data = FrameEncoder.encode(new byte[] { 1, 2, 3 });
+        FrameDecoder decoder = new FrameDecoder(null, -1, 16, (stream, channel, frame) -> {
+            assertEquals(true, frame.hasArray());
+            assertEquals(data, frame.array());
+        });
+        decoder.decode(data);
+        assertEquals(1, decoder.getFrameCount());
+    }
+
+    @Test
+    public void testOversizedFrame() {
+        byte[] data = FrameEncoder.encode(new byte[100]);
+        try {
+            decodeAll(data, data.length, 64);
+            fail("Oversized frame accepted");
+        } catch (CarrierException e) {
+            // Expected.
+        }
+    }
+}
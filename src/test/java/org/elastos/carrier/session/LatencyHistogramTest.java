@@ -0,0 +1,44 @@
+package org.elastos.carrier.session;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(0, TimeUnit.MILLISECONDS);
+        histogram.record(1, TimeUnit.MILLISECONDS);
+        histogram.record(3, TimeUnit.MILLISECONDS);
+        histogram.record(200, TimeUnit.MILLISECONDS);
+        histogram.record(10, TimeUnit.MINUTES);
+
+        long[] buckets = histogram.getBuckets();
+        assertEquals(1, buckets[0]);
+        assertEquals(1, buckets[1]);
+        assertEquals(1, buckets[2]);
+        assertEquals(1, buckets[8]);
+        assertEquals(1, buckets[LatencyHistogram.BUCKETS - 1]);
+        assertEquals(5, histogram.getCount());
+        assertEquals(600000, histogram.getMax());
+    }
+
+    @Test
+    public void testPercentile() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int i = 0; i < 90; i++)
+            histogram.record(150, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 10; i++)
+            histogram.record(8, TimeUnit.SECONDS);
+
+        assertEquals(256, histogram.getPercentile(50));
+        assertEquals(256, histogram.getPercentile(90));
+        assertEquals(8000, histogram.getPercentile(99));
+        assertEquals((90 * 150 + 10 * 8000) / 100, histogram.getMean());
+    }
+}
@@ -0,0 +1,196 @@
+package org.elastos.carrier.session;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResumableChannelTest {
+    static class RecordingHandler implements ResumableChannelHandler {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        int detached;
+        int resumed;
+        int closed;
+
+        @Override
+        public void onData(ResumableChannel channel, byte[] data) {
+            received.write(data, 0, data.length);
+        }
+
+        @Override
+        public void onDetached(ResumableChannel channel) {
+            detached++;
+        }
+
+        @Override
+        public void onResumed(ResumableChannel channel) {
+            resumed++;
+        }
+
+        @Override
+        public void onClosed(ResumableChannel channel) {
+            closed++;
+        }
+    }
+
+    // A channel end which is never bound to a native stream. Frames written
+    // to the transport are collected, and delivered to the peer by the test.
+    static class Endpoint extends ResumableChannel {
+        final RecordingHandler handler;
+        final List<byte[]> wire = new ArrayList<>();
+
+        Endpoint(boolean opener, RecordingHandler handler) {
+            super("test", opener, handler, ResumableChannel.DEFAULT_BUFFER_LIMIT);
+            this.handler = handler;
+        }
+
+        @Override
+        boolean linked() {
+            return true;
+        }
+
+        @Override
+        int transmit(byte[] frame, int offset, int len) {
+            wire.add(Arrays.copyOfRange(frame, offset, offset + len));
+            return len;
+        }
+    }
+
+    private static void deliver(Endpoint from, Endpoint to, int chunkSize) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] frame : from.wire)
+            bytes.write(frame, 0, frame.length);
+        from.wire.clear();
+
+        byte[] data = bytes.toByteArray();
+        for (int offset = 0; offset < data.length; offset += chunkSize) {
+            byte[] chunk = Arrays.copyOfRange(data, offset, Math.min(data.length, offset + chunkSize));
+            assertTrue(to.onChannelData(null, 0, chunk));
+        }
+    }
+
+    private static Endpoint[] connect() {
+        Endpoint opener = new Endpoint(true, new RecordingHandler());
+        Endpoint acceptor = new Endpoint(false, new RecordingHandler());
+
+        opener.onChannelOpened(null, 0);
+        deliver(opener, acceptor, Integer.MAX_VALUE);
+        deliver(acceptor, opener, Integer.MAX_VALUE);
+
+        assertTrue(opener.isAttached());
+        assertTrue(acceptor.isAttached());
+        return new Endpoint[] { opener, acceptor };
+    }
+
+    private static byte[] pattern(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte)(i * 31 + 7);
+        return data;
+    }
+
+    @Test
+    public void testFrameLayout() {
+        byte[] payload = { 1, 2, 3, 4, 5 };
+        byte[] frame = ResumableChannel.frame((byte)1, 0x0102030405060708L, payload, 1, 3);
+
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        assertEquals(4 + 1 + 8 + 3, frame.length);
+        assertEquals(1 + 8 + 3, buffer.getInt());
+        assertEquals(1, buffer.get());
+        assertEquals(0x0102030405060708L, buffer.getLong());
+        assertEquals(2, buffer.get());
+        assertEquals(3, buffer.get());
+        assertEquals(4, buffer.get());
+    }
+
+    @Test
+    public void testDataAcrossFragments() throws Exception {
+        Endpoint[] ends = connect();
+        byte[] data = pattern(10000);
+
+        ends[0].write(data);
+        // Odd sized chunks split headers and payloads at every position.
+        deliver(ends[0], ends[1], 7);
+
+        assertArrayEquals(data, ends[1].handler.received.toByteArray());
+    }
+
+    @Test
+    public void testAckTrimsRetransmitBuffer() throws Exception {
+        Endpoint[] ends = connect();
+
+        ends[0].write(pattern(10000));
+        assertEquals(10000, ends[0].getUnackedBytes());
+
+        deliver(ends[0], ends[1], Integer.MAX_VALUE);
+        deliver(ends[1], ends[0], Integer.MAX_VALUE);
+
+        // Acknowledged every 4096 received bytes.
+        assertEquals(10000 - 8192, ends[0].getUnackedBytes());
+    }
+
+    @Test
+    public void testReplayAfterReattach() throws Exception {
+        Endpoint[] ends = connect();
+        byte[] data = pattern(10000);
+
+        ends[0].write(data, 0, 6000);
+        deliver(ends[0], ends[1], Integer.MAX_VALUE);
+        deliver(ends[1], ends[0], Integer.MAX_VALUE);
+
+        // Lost in transit together with the channel.
+        ends[0].write(data, 6000, 4000);
+        ends[0].wire.clear();
+        ends[0].onChannelClose(null, 0, CloseReason.Error);
+        ends[1].onChannelClose(null, 0, CloseReason.Error);
+        assertFalse(ends[0].isAttached());
+        assertEquals(1, ends[0].handler.detached);
+
+        // Reattached, only what the peer did not receive is replayed.
+        ends[0].onChannelOpened(null, 0);
+        deliver(ends[0], ends[1], Integer.MAX_VALUE);
+        deliver(ends[1], ends[0], Integer.MAX_VALUE);
+        deliver(ends[0], ends[1], 13);
+
+        assertTrue(ends[0].isAttached());
+        assertEquals(1, ends[0].handler.resumed);
+        assertEquals(4000, ends[0].getReplayedBytes());
+        assertArrayEquals(data, ends[1].handler.received.toByteArray());
+    }
+
+    @Test
+    public void testHelloBehindAcknowledgedCloses() throws Exception {
+        Endpoint[] ends = connect();
+
+        ends[0].write(pattern(10000));
+        deliver(ends[0], ends[1], Integer.MAX_VALUE);
+        deliver(ends[1], ends[0], Integer.MAX_VALUE);
+        ends[0].onChannelClose(null, 0, CloseReason.Error);
+
+        // The peer lost its state and resumes from zero.
+        Endpoint restarted = new Endpoint(false, new RecordingHandler());
+        ends[0].onChannelOpened(null, 0);
+        deliver(ends[0], restarted, Integer.MAX_VALUE);
+        deliver(restarted, ends[0], Integer.MAX_VALUE);
+
+        assertNotNull(ends[0].getError());
+        assertEquals(1, ends[0].handler.closed);
+        assertFalse(ends[0].isAttached());
+
+        // The peer is told to close as well.
+        deliver(ends[0], restarted, Integer.MAX_VALUE);
+        assertEquals(1, restarted.handler.closed);
+        assertNull(restarted.getError());
+    }
+}
@@ -0,0 +1,87 @@
+package org.elastos.carrier.session;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class RpcMessageTest {
+    private static RpcMessage parse(byte[] data) {
+        return RpcMessage.parse(ByteBuffer.wrap(data));
+    }
+
+    @Test
+    public void testRequest() {
+        byte[] payload = { 1, 2, 3 };
+        RpcMessage message = parse(RpcMessage.request(7, 1500, "echo", payload));
+
+        assertEquals(RpcMessage.REQUEST, message.type);
+        assertEquals(7, message.id);
+        assertEquals(1500, message.timeout);
+        assertEquals("echo", message.method);
+        assertArrayEquals(payload, message.payload);
+    }
+
+    @Test
+    public void testRequestWithoutPayload() {
+        RpcMessage message = parse(RpcMessage.request(Long.MAX_VALUE, 0, "\u00e9t\u00e9", new byte[0]));
+
+        assertEquals(Long.MAX_VALUE, message.id);
+        assertEquals(0, message.timeout);
+        assertEquals("\u00e9t\u00e9", message.method);
+        assertEquals(0, message.payload.length);
+    }
+
+    @Test
+    public void testResponse() {
+        RpcMessage message = parse(RpcMessage.response(9, 0, new byte[] { 4, 5 }));
+        assertEquals(RpcMessage.RESPONSE, message.type);
+        assertEquals(9, message.id);
+        assertEquals(0, message.errorCode);
+        assertArrayEquals(new byte[] { 4, 5 }, message.payload);
+
+        byte[] error = "no such method".getBytes(StandardCharsets.UTF_8);
+        message = parse(RpcMessage.response(10, 0x8100000b, error));
+        assertEquals(0x8100000b, message.errorCode);
+        assertArrayEquals(error, message.payload);
+    }
+
+    @Test
+    public void testCancel() {
+        RpcMessage message = parse(RpcMessage.cancel(11));
+        assertEquals(RpcMessage.CANCEL, message.type);
+        assertEquals(11, message.id);
+    }
+
+    @Test
+    public void testMalformed() {
+        byte[] request = RpcMessage.request(1, 0, "echo", new byte[0]);
+
+        // Cut in the header, in the method name, and an unknown type.
+        assertNull(parse(Arrays.copyOf(request, 8)));
+        assertNull(parse(Arrays.copyOf(request, 14)));
+        assertNull(parse(Arrays.copyOf(request, request.length - 1)));
+        assertNull(parse(Arrays.copyOf(RpcMessage.response(1, 0, new byte[0]), 12)));
+
+        request[0] = 9;
+        assertNull(parse(request));
+    }
+
+    @Test
+    public void testMethodNameTooLong() {
+        char[] name = new char[0x10000];
+        Arrays.fill(name, 'a');
+
+        try {
+            RpcMessage.request(1, 0, new String(name), new byte[0]);
+            fail("Oversized method name accepted");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
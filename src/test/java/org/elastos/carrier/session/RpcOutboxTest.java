@@ -0,0 +1,121 @@
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.exceptions.CarrierException;
+import org.elastos.carrier.exceptions.GeneralException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RpcOutboxTest {
+    // An encoder collecting the messages instead of writing to a stream.
+    static class RecordingEncoder extends FrameEncoder {
+        final List<Long> written = new ArrayList<>();
+        final CountDownLatch flushed = new CountDownLatch(1);
+        volatile boolean broken;
+
+        RecordingEncoder() {
+            super(new Stream(StreamType.Application), 1, 64);
+        }
+
+        @Override
+        public synchronized void write(byte[] data) throws CarrierException {
+            written.add((long)data[0]);
+        }
+
+        @Override
+        public synchronized void flush() throws CarrierException {
+            flushed.countDown();
+            if (broken)
+                throw CarrierException.fromErrorCode(GeneralException.WRONG_STATE, "Channel closed");
+        }
+
+        synchronized List<Long> written() {
+            return new ArrayList<>(written);
+        }
+    }
+
+    private static void send(RpcOutbox outbox, long id) {
+        outbox.send(id, new byte[] { (byte)id });
+    }
+
+    @Test
+    public void testNothingSentUntilReady() throws Exception {
+        RecordingEncoder encoder = new RecordingEncoder();
+        RpcOutbox outbox = new RpcOutbox(encoder, false, (id, e) -> { });
+
+        send(outbox, 1);
+        send(outbox, 2);
+        assertFalse(encoder.flushed.await(100, TimeUnit.MILLISECONDS));
+        assertTrue(encoder.written().isEmpty());
+
+        outbox.ready();
+        assertTrue(encoder.flushed.await(5, TimeUnit.SECONDS));
+        assertEquals(2, encoder.written().size());
+        assertEquals(Long.valueOf(1), encoder.written().get(0));
+        assertEquals(Long.valueOf(2), encoder.written().get(1));
+    }
+
+    @Test
+    public void testSentInOrder() throws Exception {
+        RecordingEncoder encoder = new RecordingEncoder();
+        RpcOutbox outbox = new RpcOutbox(encoder, true, (id, e) -> { });
+
+        for (long id = 1; id <= 100; id++)
+            send(outbox, id);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (encoder.written().size() < 100 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        List<Long> written = encoder.written();
+        assertEquals(100, written.size());
+        for (int i = 0; i < written.size(); i++)
+            assertEquals(Long.valueOf(i + 1), written.get(i));
+    }
+
+    @Test
+    public void testSendErrorReportsBatch() throws Exception {
+        RecordingEncoder encoder = new RecordingEncoder();
+        encoder.broken = true;
+
+        List<Long> failed = new ArrayList<>();
+        CountDownLatch reported = new CountDownLatch(2);
+        RpcOutbox outbox = new RpcOutbox(encoder, false, (id, e) -> {
+            synchronized (failed) {
+                failed.add(id);
+            }
+            reported.countDown();
+        });
+
+        send(outbox, 1);
+        send(outbox, 2);
+        outbox.ready();
+
+        assertTrue(reported.await(5, TimeUnit.SECONDS));
+        synchronized (failed) {
+            assertEquals(Long.valueOf(1), failed.get(0));
+            assertEquals(Long.valueOf(2), failed.get(1));
+        }
+    }
+
+    @Test
+    public void testCloseDropsQueued() throws Exception {
+        RecordingEncoder encoder = new RecordingEncoder();
+        RpcOutbox outbox = new RpcOutbox(encoder, false, (id, e) -> { });
+
+        send(outbox, 1);
+        outbox.close();
+        outbox.ready();
+        send(outbox, 2);
+
+        assertFalse(encoder.flushed.await(100, TimeUnit.MILLISECONDS));
+        assertTrue(encoder.written().isEmpty());
+    }
+}
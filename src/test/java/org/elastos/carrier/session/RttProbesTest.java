@@ -0,0 +1,145 @@
+package org.elastos.carrier.session;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RttProbesTest {
+    private static final ScheduledExecutorService idle = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "RttProbesTest");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Probes without a native stream. Channels are numbered in order, and
+    // the timeouts only fire when the test runs them.
+    static class ManualProbes extends RttProbes {
+        final List<Integer> closed = new ArrayList<>();
+        final List<Runnable> timeouts = new ArrayList<>();
+        final List<ScheduledFuture<?>> futures = new ArrayList<>();
+        private int nextChannel = 1;
+
+        ManualProbes() {
+            super(null);
+        }
+
+        @Override
+        int openProbe() {
+            return nextChannel++;
+        }
+
+        @Override
+        void closeProbe(int channel) {
+            closed.add(channel);
+        }
+
+        @Override
+        ScheduledFuture<?> schedule(Runnable task, long delay) {
+            assertEquals(RttProbes.PROBE_TIMEOUT, delay);
+            timeouts.add(task);
+            ScheduledFuture<?> future = idle.schedule(() -> { }, 1, TimeUnit.HOURS);
+            futures.add(future);
+            return future;
+        }
+    }
+
+    @Test
+    public void testReplyCompletesProbe() throws Exception {
+        ManualProbes probes = new ManualProbes();
+
+        CompletableFuture<Long> rtt = probes.measure();
+        assertEquals(1, probes.size());
+
+        assertTrue(probes.onReply(1, true));
+        assertTrue(rtt.get() >= 0);
+        assertEquals(0, probes.size());
+        assertEquals(1, probes.closed.size());
+        assertTrue(probes.futures.get(0).isCancelled());
+    }
+
+    @Test
+    public void testProbeTimesOut() throws Exception {
+        ManualProbes probes = new ManualProbes();
+
+        CompletableFuture<Long> rtt = probes.measure();
+        probes.timeouts.get(0).run();
+
+        assertEquals(0, probes.size());
+        assertEquals(Integer.valueOf(1), probes.closed.get(0));
+        try {
+            rtt.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        // The late reply is not a probe any more.
+        assertFalse(probes.onReply(1, false));
+    }
+
+    @Test
+    public void testTimeoutAfterReplyIgnored() throws Exception {
+        ManualProbes probes = new ManualProbes();
+
+        CompletableFuture<Long> rtt = probes.measure();
+        assertTrue(probes.onReply(1, false));
+        probes.timeouts.get(0).run();
+
+        assertFalse(rtt.isCompletedExceptionally());
+        assertTrue(probes.closed.isEmpty());
+    }
+
+    @Test
+    public void testPeerProbeKeptUntilClosed() {
+        ManualProbes probes = new ManualProbes();
+
+        probes.onRequest(7);
+        assertTrue(probes.onReply(7, true));
+        assertEquals(1, probes.size());
+
+        assertTrue(probes.onReply(7, false));
+        assertEquals(0, probes.size());
+        assertTrue(probes.closed.isEmpty());
+    }
+
+    @Test
+    public void testCloseCancelsProbes() throws Exception {
+        ManualProbes probes = new ManualProbes();
+
+        CompletableFuture<Long> first = probes.measure();
+        CompletableFuture<Long> second = probes.measure();
+        probes.onRequest(9);
+        probes.onStreamClosed(StreamState.Closed);
+
+        assertTrue(first.isCancelled());
+        assertTrue(second.isCancelled());
+        assertEquals(0, probes.size());
+        assertTrue(probes.futures.get(0).isCancelled());
+    }
+
+    @Test
+    public void testCompletedByCallerReleasesProbe() throws Exception {
+        ManualProbes probes = new ManualProbes();
+
+        CompletableFuture<Long> rtt = probes.measure();
+        rtt.complete(-1L);
+
+        assertEquals(0, probes.size());
+        assertEquals(Integer.valueOf(1), probes.closed.get(0));
+        assertTrue(probes.futures.get(0).isCancelled());
+        assertFalse(probes.onReply(1, true));
+    }
+}
@@ -0,0 +1,58 @@
+package org.elastos.carrier.session;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SessionAcceptorTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testBurstThenRefuse() {
+        SessionAcceptor.TokenBucket bucket = new SessionAcceptor.TokenBucket(3, 0);
+
+        assertTrue(bucket.tryAcquire(1, 3, 0));
+        assertTrue(bucket.tryAcquire(1, 3, 0));
+        assertTrue(bucket.tryAcquire(1, 3, 0));
+        assertFalse(bucket.tryAcquire(1, 3, 0));
+    }
+
+    @Test
+    public void testRefillAtRate() {
+        SessionAcceptor.TokenBucket bucket = new SessionAcceptor.TokenBucket(1, 0);
+
+        assertTrue(bucket.tryAcquire(2, 1, 0));
+        assertFalse(bucket.tryAcquire(2, 1, SECOND / 4));
+
+        // Two per second, so one token is back after half a second.
+        assertTrue(bucket.tryAcquire(2, 1, SECOND / 2));
+        assertFalse(bucket.tryAcquire(2, 1, SECOND / 2));
+    }
+
+    @Test
+    public void testRefillCappedAtBurst() {
+        SessionAcceptor.TokenBucket bucket = new SessionAcceptor.TokenBucket(2, 0);
+
+        assertTrue(bucket.tryAcquire(1, 2, 0));
+        assertTrue(bucket.tryAcquire(1, 2, 0));
+
+        // A long idle time refills only up to the burst.
+        long later = 60 * SECOND;
+        assertTrue(bucket.tryAcquire(1, 2, later));
+        assertTrue(bucket.tryAcquire(1, 2, later));
+        assertFalse(bucket.tryAcquire(1, 2, later));
+    }
+
+    @Test
+    public void testFullOnceRefilled() {
+        SessionAcceptor.TokenBucket bucket = new SessionAcceptor.TokenBucket(2, 0);
+        assertTrue(bucket.isFull(1, 2, 0));
+
+        assertTrue(bucket.tryAcquire(1, 2, 0));
+        assertFalse(bucket.isFull(1, 2, SECOND / 2));
+        assertTrue(bucket.isFull(1, 2, SECOND));
+    }
+}
@@ -0,0 +1,168 @@
+package org.elastos.carrier.session;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SessionPoolTest {
+    private static final long IDLE_TTL = 1;
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "SessionPoolTest");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // A pool without a manager. Each setup is recorded, and completed by
+    // the test when it likes.
+    static class ManualPool extends SessionPool {
+        final List<CompletableFuture<Stream>> setups = new ArrayList<>();
+
+        ManualPool() {
+            super(null, StreamType.Application, null, IDLE_TTL, timer);
+        }
+
+        @Override
+        CompletableFuture<Stream> setup(String peer) {
+            CompletableFuture<Stream> future = new CompletableFuture<>();
+            setups.add(future);
+            return future;
+        }
+
+        Stream connect(int setup) {
+            Stream stream = new Stream(StreamType.Application);
+            stream.onStateChanged(StreamState.Connected);
+            setups.get(setup).complete(stream);
+            return stream;
+        }
+
+        // Let the idle TTL pass, then run the eviction.
+        void evictAfterIdle() throws InterruptedException {
+            Thread.sleep(IDLE_TTL * 10);
+            evictIdle();
+        }
+    }
+
+    @Test
+    public void testConcurrentAcquiresShareSetup() {
+        ManualPool pool = new ManualPool();
+
+        CompletableFuture<SessionPool.Lease> first = pool.acquire("peer");
+        CompletableFuture<SessionPool.Lease> second = pool.acquire("peer");
+        assertEquals(1, pool.setups.size());
+        assertEquals(1, pool.getMissCount());
+        assertEquals(1, pool.getJoinCount());
+
+        Stream stream = pool.connect(0);
+        assertSame(stream, first.join().getStream());
+        assertSame(stream, second.join().getStream());
+
+        assertSame(stream, pool.acquire("peer").join().getStream());
+        assertEquals(1, pool.setups.size());
+        assertEquals(1, pool.getHitCount());
+        pool.close();
+    }
+
+    @Test
+    public void testIdleOnceAllLeasesReleased() throws Exception {
+        ManualPool pool = new ManualPool();
+
+        CompletableFuture<SessionPool.Lease> first = pool.acquire("peer");
+        CompletableFuture<SessionPool.Lease> second = pool.acquire("peer");
+        pool.connect(0);
+
+        first.join().release();
+        pool.evictAfterIdle();
+        assertEquals(1, pool.size());
+
+        // Releasing a lease again does not give back the other one.
+        first.join().release();
+        pool.evictAfterIdle();
+        assertEquals(1, pool.size());
+        assertEquals(0, pool.getEvictionCount());
+
+        second.join().release();
+        pool.evictAfterIdle();
+        assertEquals(0, pool.size());
+        assertEquals(1, pool.getEvictionCount());
+        pool.close();
+    }
+
+    @Test
+    public void testFailedSetupGivesLeasesBack() {
+        ManualPool pool = new ManualPool();
+
+        CompletableFuture<SessionPool.Lease> lease = pool.acquire("peer");
+        pool.setups.get(0).completeExceptionally(new IOException("unreachable"));
+        assertTrue(lease.isCompletedExceptionally());
+        assertEquals(0, pool.size());
+
+        pool.acquire("peer");
+        assertEquals(2, pool.setups.size());
+        assertEquals(2, pool.getMissCount());
+        pool.close();
+    }
+
+    @Test
+    public void testCancelledAcquireGivesLeaseBack() throws Exception {
+        ManualPool pool = new ManualPool();
+
+        CompletableFuture<SessionPool.Lease> lease = pool.acquire("peer");
+        lease.cancel(false);
+        pool.connect(0);
+
+        pool.evictAfterIdle();
+        assertEquals(0, pool.size());
+        assertEquals(1, pool.getEvictionCount());
+        pool.close();
+    }
+
+    @Test
+    public void testStaleLeaseLeavesNewEntry() throws Exception {
+        ManualPool pool = new ManualPool();
+
+        CompletableFuture<SessionPool.Lease> stale = pool.acquire("peer");
+        pool.connect(0);
+        pool.invalidate("peer");
+
+        CompletableFuture<SessionPool.Lease> fresh = pool.acquire("peer");
+        pool.connect(1);
+
+        // The stale lease counts against the invalidated entry only.
+        stale.join().release();
+        pool.evictAfterIdle();
+        assertEquals(1, pool.size());
+
+        fresh.join().release();
+        pool.evictAfterIdle();
+        assertEquals(0, pool.size());
+        pool.close();
+    }
+
+    @Test
+    public void testClosedStreamNotReused() {
+        ManualPool pool = new ManualPool();
+
+        CompletableFuture<SessionPool.Lease> lease = pool.acquire("peer");
+        Stream stream = pool.connect(0);
+        lease.join().release();
+
+        stream.onStateChanged(StreamState.Closed);
+        CompletableFuture<SessionPool.Lease> next = pool.acquire("peer");
+        assertEquals(2, pool.setups.size());
+        assertEquals(0, pool.getHitCount());
+
+        Stream fresh = pool.connect(1);
+        assertSame(fresh, next.join().getStream());
+        pool.close();
+    }
+}
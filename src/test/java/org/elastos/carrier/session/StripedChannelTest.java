@@ -0,0 +1,185 @@
+package org.elastos.carrier.session;
+
+import org.elastos.carrier.exceptions.CarrierException;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StripedChannelTest {
+    static class RecordingHandler implements StripedChannelHandler {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public synchronized void onData(StripedChannel channel, byte[] data) {
+            received.write(data, 0, data.length);
+        }
+
+        @Override
+        public void onPathsChanged(StripedChannel channel, int paths) {
+        }
+
+        @Override
+        public void onClosed(StripedChannel channel) {
+            closed.countDown();
+        }
+
+        synchronized byte[] data() {
+            return received.toByteArray();
+        }
+    }
+
+    // A channel whose paths are never bound to native streams. Frames
+    // written to a path are collected per path, and delivered by the test.
+    static class Endpoint extends StripedChannel {
+        final RecordingHandler handler;
+        final List<Object[]> wire = new ArrayList<>();
+
+        Endpoint(RecordingHandler handler) {
+            super("test", handler, StripedChannel.DEFAULT_BUFFER_LIMIT, null, null, null, 0);
+            this.handler = handler;
+        }
+
+        Path openPath() {
+            Path path = new Path(null);
+            path.onChannelOpened(null, 0);
+            return path;
+        }
+
+        @Override
+        void transmit(Path path, byte[] frame) {
+            synchronized (wire) {
+                wire.add(new Object[] { path, frame });
+            }
+        }
+
+        @Override
+        void unbind(Path path) {
+        }
+
+        @Override
+        void closeChannel(Path path) {
+        }
+
+        List<byte[]> sent(Path path) {
+            List<byte[]> frames = new ArrayList<>();
+            synchronized (wire) {
+                for (Object[] entry : wire) {
+                    if (entry[0] == path)
+                        frames.add((byte[])entry[1]);
+                }
+            }
+            return frames;
+        }
+    }
+
+    private static void deliver(List<byte[]> frames, StripedChannel.Path to, int chunkSize) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] frame : frames)
+            bytes.write(frame, 0, frame.length);
+
+        byte[] data = bytes.toByteArray();
+        for (int offset = 0; offset < data.length; offset += chunkSize) {
+            byte[] chunk = Arrays.copyOfRange(data, offset, Math.min(data.length, offset + chunkSize));
+            assertTrue(to.onChannelData(null, 0, chunk));
+        }
+    }
+
+    private static byte[] pattern(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte)(i * 31 + 7);
+        return data;
+    }
+
+    @Test
+    public void testFinFrameLayout() {
+        byte[] frame = StripedChannel.frame(-1, null, 0, 0);
+
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        assertEquals(4 + 8, frame.length);
+        assertEquals(8, buffer.getInt());
+        assertEquals(-1, buffer.getLong());
+    }
+
+    @Test
+    public void testReorderAcrossPaths() {
+        Endpoint receiver = new Endpoint(new RecordingHandler());
+        StripedChannel.Path first = receiver.openPath();
+        StripedChannel.Path second = receiver.openPath();
+
+        byte[] a = { 1, 2, 3 };
+        byte[] b = { 4, 5 };
+        byte[] c = { 6 };
+
+        deliver(Arrays.asList(StripedChannel.frame(2, c, 0, c.length)), second, Integer.MAX_VALUE);
+        deliver(Arrays.asList(StripedChannel.frame(1, b, 0, b.length)), second, Integer.MAX_VALUE);
+        assertEquals(0, receiver.handler.data().length);
+        assertEquals(2, receiver.getReorderDepth());
+
+        // The missing head arrives in fragments on the other path.
+        deliver(Arrays.asList(StripedChannel.frame(0, a, 0, a.length)), first, 5);
+
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6 }, receiver.handler.data());
+        assertEquals(0, receiver.getReorderDepth());
+        assertEquals(2, receiver.getPathCount());
+    }
+
+    @Test
+    public void testUnopenedPathNotUsed() throws Exception {
+        Endpoint sender = new Endpoint(new RecordingHandler());
+        StripedChannel.Path path = sender.new Path(null);
+
+        try {
+            sender.write(pattern(10));
+            fail("Written without an opened path");
+        } catch (CarrierException e) {
+            // Expected.
+        }
+        assertTrue(sender.sent(path).isEmpty());
+
+        path.onChannelOpened(null, 0);
+        sender.write(pattern(10));
+        sender.close();
+
+        assertTrue(sender.handler.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(2, sender.sent(path).size());
+    }
+
+    @Test
+    public void testDrainDeliversQueuedData() throws Exception {
+        Endpoint sender = new Endpoint(new RecordingHandler());
+        StripedChannel.Path[] out = { sender.openPath(), sender.openPath() };
+        byte[] data = pattern(200000);
+
+        sender.write(data);
+        sender.close();
+        assertTrue(sender.handler.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(0, sender.getPathCount());
+
+        Endpoint receiver = new Endpoint(new RecordingHandler());
+        StripedChannel.Path[] in = { receiver.openPath(), receiver.openPath() };
+
+        // Every path ends with FIN, which drops the path at the receiver.
+        for (int i = out.length - 1; i >= 0; i--) {
+            List<byte[]> frames = sender.sent(out[i]);
+            assertArrayEquals(StripedChannel.frame(-1, null, 0, 0), frames.get(frames.size() - 1));
+            deliver(frames, in[i], 1000);
+        }
+
+        assertArrayEquals(data, receiver.handler.data());
+        assertEquals(0, receiver.getPathCount());
+        assertTrue(receiver.handler.closed.await(5, TimeUnit.SECONDS));
+    }
+}